@@ -18,6 +18,8 @@ package com.google.bitcoin.core;
 import java.io.File;
 import java.util.List;
 
+import org.multibit.network.BlockHeaderIndex;
+
 import com.google.bitcoin.store.BlockStore;
 import com.google.bitcoin.store.BlockStoreException;
 import com.google.bitcoin.store.SPVBlockStore;
@@ -27,6 +29,12 @@ import com.google.bitcoin.store.SPVBlockStore;
  */
 public class MultiBitBlockChain extends BlockChain {
 
+    /**
+     * The height of the chain head before the last rewind, or -1 once the chain has caught up with it.
+     * The blocks above the chain head up to this height are still in the block store.
+     */
+    private int rewoundFromHeight = -1;
+
     public MultiBitBlockChain(NetworkParameters params, Wallet wallet, BlockStore blockStore) throws BlockStoreException {
         super(params, wallet, blockStore);
     }
@@ -57,4 +65,56 @@ public class MultiBitBlockChain extends BlockChain {
             super.setChainHead(chainHead);
         }
     }
+
+    /**
+     * Move the chain head back to a block in the stored best chain, keeping the
+     * block store. The blocks after it are then downloaded again.
+     * (Used for blockchain replay without closing the block store or the peer connections).
+     * The blocks above the new chain head stay in the block store, so until the chain has
+     * caught up again a block that builds on one of them is treated as an orphan rather
+     * than reorganising onto it over the blocks still to be downloaded.
+     * @param newChainHead The block to rewind to
+     * @param blockHeaderIndex The index of the best chain in the block store, which is rewound too
+     * @return true if the chain was rewound, false if the block is not in the stored best chain
+     * @throws BlockStoreException
+     */
+    public boolean rewindTo(StoredBlock newChainHead, BlockHeaderIndex blockHeaderIndex) throws BlockStoreException {
+        lock.lock();
+        try {
+            StoredBlock chainHead = getChainHead();
+            if (newChainHead == null || chainHead == null || newChainHead.getHeight() > chainHead.getHeight()
+                    || blockHeaderIndex == null || blockHeaderIndex.getBlockStore() != blockStore) {
+                return false;
+            }
+
+            // Check the block is in the best chain and has not been overwritten in the store.
+            StoredBlock storedNewChainHead = blockHeaderIndex.findBlock(newChainHead.getHeader().getHash());
+            if (storedNewChainHead == null || storedNewChainHead.getHeight() != newChainHead.getHeight()) {
+                return false;
+            }
+
+            blockStore.setChainHead(storedNewChainHead);
+            super.setChainHead(storedNewChainHead);
+            blockHeaderIndex.rewind(storedNewChainHead);
+            rewoundFromHeight = Math.max(rewoundFromHeight, chainHead.getHeight());
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    protected StoredBlock getStoredBlockInCurrentScope(Sha256Hash hash) throws BlockStoreException {
+        StoredBlock storedBlock = super.getStoredBlockInCurrentScope(hash);
+        if (storedBlock != null && rewoundFromHeight >= 0) {
+            int chainHeadHeight = getBestChainHeight();
+            if (chainHeadHeight >= rewoundFromHeight) {
+                rewoundFromHeight = -1;
+            } else if (storedBlock.getHeight() > chainHeadHeight) {
+                // Left in the block store by the rewind.
+                return null;
+            }
+        }
+        return storedBlock;
+    }
 }
@@ -0,0 +1,39 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.bitcoin.core;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Access to the lock a bitcoinj Wallet takes whilst it is changed, so that
+ * MultiBit can change several things about a wallet (for instance swap in a
+ * re-encrypted keychain) as one step that the wallet's own threads cannot see
+ * half done.
+ */
+public class MultiBitWalletLock {
+
+    private MultiBitWalletLock() {
+    }
+
+    /**
+     * @param wallet
+     * @return the lock of the wallet. It is reentrant so the wallet's own
+     *         methods can be called whilst it is held.
+     */
+    public static ReentrantLock getLock(Wallet wallet) {
+        return wallet.lock;
+    }
+}
@@ -22,6 +22,7 @@ import org.multibit.controller.Controller;
 import org.multibit.controller.bitcoin.BitcoinController;
 import org.multibit.controller.core.CoreController;
 import org.multibit.controller.exchange.ExchangeController;
+import org.multibit.crypto.DerivedKeyCache;
 import org.multibit.exchange.CurrencyConverter;
 import org.multibit.file.BackupManager;
 import org.multibit.file.FileHandler;
@@ -186,6 +187,9 @@ public final class MultiBit {
             }
             coreController.setLocaliser(localiser);
 
+            // Cache the keys derived from the wallet passwords, if the user has opted in.
+            DerivedKeyCache.INSTANCE.configure(userPreferences);
+
             log.debug("MultiBit version = " + localiser.getVersionNumber());
 
             log.debug("Creating model");
@@ -656,6 +660,7 @@ public final class MultiBit {
                 if(syncFromHash != null){
                     syncFromStoredBlock = 
                         ReplayManager.findBlockInStoredBestChain( bitcoinController.getMultiBitService().getBlockStore(),
+                                                                  bitcoinController.getMultiBitService().getBlockHeaderIndex(),
                                                                   syncFromHash);
                 }
 
@@ -19,6 +19,7 @@ import com.google.bitcoin.core.*;
 import com.google.bitcoin.script.Script;
 import com.google.bitcoin.uri.BitcoinURI;
 import com.google.bitcoin.uri.BitcoinURIParseException;
+import com.google.bitcoin.wallet.WalletTransaction;
 import org.multibit.controller.AbstractController;
 import org.multibit.controller.AbstractEventHandler;
 import org.multibit.controller.core.CoreController;
@@ -169,18 +170,13 @@ public class BitcoinController extends AbstractController<CoreController> implem
             viewSystem.blockDownloaded();
         }
         
-        // Mark all the wallets as dirty as their lastBlockSeenHeight will need changing.
+        // The lastBlockSeenHeight of all the wallets has changed.
+        // This is kept in a small file of its own so the wallets themselves are not marked as dirty.
         if (getModel() != null) {
             List<WalletData> perWalletModelDataList = getModel().getPerWalletModelDataList();
             if (perWalletModelDataList != null) {
                 for (WalletData loopPerWalletModelData : perWalletModelDataList) {
-                    if (loopPerWalletModelData.getWalletInfo() != null) {
-                        synchronized(loopPerWalletModelData.getWalletInfo()) {
-                            loopPerWalletModelData.setDirty(true);
-                        }
-                    } else {
-                        loopPerWalletModelData.setDirty(true);                        
-                    }
+                    loopPerWalletModelData.setLastBlockSeenDirty(true);
                 }
             }
         }
@@ -211,8 +207,15 @@ public class BitcoinController extends AbstractController<CoreController> implem
         final int walletIdentityHashCode = System.identityHashCode(wallet);
         for (WalletData loopPerWalletModelData : getModel().getPerWalletModelDataList()) {
             // Find the wallet object and mark as dirty.
+            // A new block also changes the wallet but only the last block seen needs writing for that.
             if (System.identityHashCode(loopPerWalletModelData.getWallet()) == walletIdentityHashCode) {
-                loopPerWalletModelData.setDirty(true);
+                String walletContentFingerprint = calculateWalletContentFingerprint(wallet);
+                if (walletContentFingerprint.equals(loopPerWalletModelData.getWalletContentFingerprint())) {
+                    loopPerWalletModelData.setLastBlockSeenDirty(true);
+                } else {
+                    loopPerWalletModelData.setWalletContentFingerprint(walletContentFingerprint);
+                    loopPerWalletModelData.setDirty(true);
+                }
                 break;
             }
         }
@@ -220,6 +223,40 @@ public class BitcoinController extends AbstractController<CoreController> implem
         fireDataChangedUpdateLater();
     }
 
+    /**
+     * A summary of the transactions and keys in a wallet, used to tell wallet changes apart from new blocks.
+     * It covers the pool each transaction is in, its confidence type, the height it appeared at and the
+     * blocks it appears in, but not its depth - depths are recalculated from the last block seen on load.
+     */
+    private String calculateWalletContentFingerprint(Wallet wallet) {
+        long fingerprint = 0;
+        int numberOfTransactions = 0;
+        for (WalletTransaction walletTransaction : wallet.getWalletTransactions()) {
+            Transaction transaction = walletTransaction.getTransaction();
+            TransactionConfidence confidence = transaction.getConfidence();
+            long transactionFingerprint = transaction.getHash().hashCode();
+            transactionFingerprint = 31 * transactionFingerprint + walletTransaction.getPool().ordinal();
+            if (confidence != null) {
+                transactionFingerprint = 31 * transactionFingerprint + confidence.getConfidenceType().ordinal();
+                if (confidence.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING) {
+                    transactionFingerprint = 31 * transactionFingerprint + confidence.getAppearedAtChainHeight();
+                }
+            }
+            Object appearsInHashes = transaction.getAppearsInHashes();
+            if (appearsInHashes != null) {
+                transactionFingerprint = 31 * transactionFingerprint + appearsInHashes.hashCode();
+            }
+
+            // Mix the bits before adding, so that the sum does not depend on the order of the
+            // transactions and changes to two transactions do not cancel out.
+            transactionFingerprint *= 0x9E3779B97F4A7C15L;
+            transactionFingerprint ^= transactionFingerprint >>> 31;
+            fingerprint += transactionFingerprint;
+            numberOfTransactions++;
+        }
+        return numberOfTransactions + ":" + Long.toHexString(fingerprint) + ":" + wallet.getKeychainSize();
+    }
+
     @Override
     public void onTransactionConfidenceChanged(Wallet wallet, Transaction transaction) {
         //log.debug("onTransactionConfidenceChanged called");
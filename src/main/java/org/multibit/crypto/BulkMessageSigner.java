@@ -0,0 +1,582 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.crypto;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.AddressFormatException;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.crypto.KeyCrypter;
+
+/**
+ * Signs or verifies a file of messages, for instance for a proof of reserves or
+ * to show the ownership of a list of addresses.
+ *
+ * Each input record is an address and a message (to sign) or an address, a
+ * message and a signature (to verify). The records are read as CSV, one record
+ * per row with an optional "address,message,signature" header, or as JSON lines,
+ * one object with "address", "message" and "signature" fields per line.
+ *
+ * The records are processed in batches on all the processors and the results are
+ * streamed to the output in the input order, each record with the signature
+ * and the outcome added. The whole file is never held in memory.
+ */
+public class BulkMessageSigner {
+    private static final Logger log = LoggerFactory.getLogger(BulkMessageSigner.class);
+
+    /**
+     * The number of messages signed or verified together as one task.
+     */
+    private static final int MESSAGES_PER_BATCH = 64;
+
+    /**
+     * The number of batches being processed before the oldest is written out.
+     * This bounds the memory used, whatever the size of the file.
+     */
+    private static final int BATCHES_IN_FLIGHT = 4 * Runtime.getRuntime().availableProcessors();
+
+    public static final String ADDRESS_FIELD = "address";
+    public static final String MESSAGE_FIELD = "message";
+    public static final String SIGNATURE_FIELD = "signature";
+    public static final String OUTCOME_FIELD = "outcome";
+
+    private static final String[] FIELDS = new String[] { ADDRESS_FIELD, MESSAGE_FIELD, SIGNATURE_FIELD, OUTCOME_FIELD };
+
+    private static final int ADDRESS_INDEX = 0;
+    private static final int MESSAGE_INDEX = 1;
+    private static final int SIGNATURE_INDEX = 2;
+    private static final int OUTCOME_INDEX = 3;
+
+    public static final String JSON_LINES_FILE_EXTENSION = "jsonl";
+    public static final String JSON_FILE_EXTENSION = "json";
+
+    /**
+     * The layout of the input and output files.
+     */
+    public enum Format {
+        CSV,
+        JSON_LINES;
+
+        /**
+         * @return JSON_LINES for a .jsonl or .json file, otherwise CSV
+         */
+        public static Format forFilename(String filename) {
+            String lowerCaseFilename = filename == null ? "" : filename.toLowerCase();
+            if (lowerCaseFilename.endsWith("." + JSON_LINES_FILE_EXTENSION) || lowerCaseFilename.endsWith("." + JSON_FILE_EXTENSION)) {
+                return JSON_LINES;
+            }
+            return CSV;
+        }
+    }
+
+    /**
+     * The outcome written out for each record.
+     */
+    public enum Outcome {
+        /**
+         * The message was signed.
+         */
+        SIGNED,
+
+        /**
+         * The message was signed by the address.
+         */
+        VERIFIED,
+
+        /**
+         * The message was NOT signed by the address.
+         */
+        NOT_VERIFIED,
+
+        /**
+         * The address, message or signature is missing from the record.
+         */
+        MISSING_FIELD,
+
+        /**
+         * The address is not a valid address for this network.
+         */
+        BAD_ADDRESS,
+
+        /**
+         * The signature is not a valid signature.
+         */
+        BAD_SIGNATURE,
+
+        /**
+         * The wallet does not contain the key of the address.
+         */
+        NO_SIGNING_KEY,
+
+        /**
+         * The key of the address could not be decrypted or used to sign.
+         */
+        ERROR
+    }
+
+    /**
+     * Told how many of the messages have been written out. Called on the thread
+     * doing the signing or verifying.
+     */
+    public interface ProgressListener {
+        public void messagesProcessed(int numberOfMessagesProcessed);
+    }
+
+    /**
+     * The counts of the records processed.
+     */
+    public static class Result {
+        private int numberOfMessages;
+        private int numberOfSuccesses;
+
+        public int getNumberOfMessages() {
+            return numberOfMessages;
+        }
+
+        /**
+         * @return the number of messages signed or verified
+         */
+        public int getNumberOfSuccesses() {
+            return numberOfSuccesses;
+        }
+
+        public int getNumberOfFailures() {
+            return numberOfMessages - numberOfSuccesses;
+        }
+    }
+
+    private final NetworkParameters networkParameters;
+
+    private volatile boolean cancelled = false;
+
+    public BulkMessageSigner(NetworkParameters networkParameters) {
+        this.networkParameters = networkParameters;
+    }
+
+    /**
+     * Sign each message with the key of its address.
+     *
+     * @param wallet
+     *            containing the keys of the addresses
+     * @param aesKey
+     *            derived once from the wallet password, or null if the wallet is not encrypted
+     * @param input
+     *            the addresses and messages
+     * @param output
+     *            has the address, message, signature and outcome of each record written to it
+     * @param format
+     * @param progressListener
+     *            may be null
+     * @throws CancellationException
+     *             if the signing was cancelled
+     */
+    public Result sign(Wallet wallet, final KeyParameter aesKey, Reader input, Writer output, Format format,
+            ProgressListener progressListener) throws IOException, InterruptedException {
+        // Look up the keys by address once, rather than searching the keychain for each message.
+        final Map<String, ECKey> keysByAddress = new HashMap<String, ECKey>();
+        synchronized (wallet.getKeychain()) {
+            for (ECKey key : wallet.getKeychain()) {
+                keysByAddress.put(key.toAddress(networkParameters).toString(), key);
+            }
+        }
+        final KeyCrypter keyCrypter = wallet.getKeyCrypter();
+
+        return process(input, output, format, new RecordProcessor() {
+            @Override
+            public Outcome process(String[] record) {
+                if (isBlank(record[ADDRESS_INDEX]) || isBlank(record[MESSAGE_INDEX])) {
+                    return Outcome.MISSING_FIELD;
+                }
+                Address address;
+                try {
+                    address = new Address(networkParameters, record[ADDRESS_INDEX].trim());
+                } catch (AddressFormatException afe) {
+                    return Outcome.BAD_ADDRESS;
+                }
+                ECKey signingKey = keysByAddress.get(address.toString());
+                if (signingKey == null) {
+                    return Outcome.NO_SIGNING_KEY;
+                }
+
+                ECKey decryptedKey = signingKey;
+                try {
+                    if (signingKey.isEncrypted()) {
+                        decryptedKey = signingKey.decrypt(keyCrypter, aesKey);
+                    }
+                    record[SIGNATURE_INDEX] = decryptedKey.signMessage(record[MESSAGE_INDEX], aesKey);
+                    return Outcome.SIGNED;
+                } catch (RuntimeException e) {
+                    log.debug("Could not sign message. " + e.getClass().getCanonicalName() + " " + e.getMessage());
+                    return Outcome.ERROR;
+                } finally {
+                    if (decryptedKey != signingKey) {
+                        decryptedKey.clearPrivateKey();
+                    }
+                }
+            }
+        }, Outcome.SIGNED, progressListener);
+    }
+
+    /**
+     * Verify that each message was signed by its address.
+     *
+     * @param input
+     *            the addresses, messages and signatures
+     * @param output
+     *            has the address, message, signature and outcome of each record written to it
+     * @param format
+     * @param progressListener
+     *            may be null
+     * @throws CancellationException
+     *             if the verifying was cancelled
+     */
+    public Result verify(Reader input, Writer output, Format format, ProgressListener progressListener) throws IOException,
+            InterruptedException {
+        return process(input, output, format, new RecordProcessor() {
+            @Override
+            public Outcome process(String[] record) {
+                if (isBlank(record[ADDRESS_INDEX]) || isBlank(record[MESSAGE_INDEX]) || isBlank(record[SIGNATURE_INDEX])) {
+                    return Outcome.MISSING_FIELD;
+                }
+                Address expectedAddress;
+                try {
+                    expectedAddress = new Address(networkParameters, record[ADDRESS_INDEX].trim());
+                } catch (AddressFormatException afe) {
+                    return Outcome.BAD_ADDRESS;
+                }
+                try {
+                    ECKey key = ECKey.signedMessageToKey(record[MESSAGE_INDEX], record[SIGNATURE_INDEX].trim());
+                    return expectedAddress.equals(key.toAddress(networkParameters)) ? Outcome.VERIFIED : Outcome.NOT_VERIFIED;
+                } catch (SignatureException se) {
+                    return Outcome.BAD_SIGNATURE;
+                } catch (RuntimeException e) {
+                    // A signature that is not valid base64 or is the wrong length.
+                    return Outcome.BAD_SIGNATURE;
+                }
+            }
+        }, Outcome.VERIFIED, progressListener);
+    }
+
+    /**
+     * Stop the signing or verifying. The batches being processed at the moment are
+     * finished first.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    private interface RecordProcessor {
+        /**
+         * Sign or verify the record, setting its signature if need be.
+         */
+        public Outcome process(String[] record);
+    }
+
+    private Result process(Reader input, Writer output, Format format, final RecordProcessor recordProcessor,
+            Outcome successfulOutcome, ProgressListener progressListener) throws IOException, InterruptedException {
+        RecordReader recordReader = format == Format.JSON_LINES ? new JsonLinesRecordReader(input) : new CsvRecordReader(input);
+        RecordWriter recordWriter = format == Format.JSON_LINES ? new JsonLinesRecordWriter(output) : new CsvRecordWriter(output);
+        recordWriter.writeHeader();
+
+        Result result = new Result();
+        LinkedList<Future<List<String[]>>> batchesInFlight = new LinkedList<Future<List<String[]>>>();
+        try {
+            while (true) {
+                if (cancelled) {
+                    throw new CancellationException("The bulk signing or verifying of messages was cancelled");
+                }
+
+                final List<String[]> batch = recordReader.read(MESSAGES_PER_BATCH);
+                if (batch.isEmpty()) {
+                    break;
+                }
+                batchesInFlight.add(ParallelKeyCrypter.getExecutorService().submit(new Callable<List<String[]>>() {
+                    @Override
+                    public List<String[]> call() {
+                        for (String[] record : batch) {
+                            record[OUTCOME_INDEX] = recordProcessor.process(record).toString();
+                        }
+                        return batch;
+                    }
+                }));
+
+                if (batchesInFlight.size() >= BATCHES_IN_FLIGHT) {
+                    write(batchesInFlight.removeFirst().get(), recordWriter, successfulOutcome, result, progressListener);
+                }
+            }
+
+            while (!batchesInFlight.isEmpty()) {
+                write(batchesInFlight.removeFirst().get(), recordWriter, successfulOutcome, result, progressListener);
+            }
+            output.flush();
+            return result;
+        } catch (ExecutionException ee) {
+            // The record processors catch everything so this is not expected.
+            throw new IllegalStateException("Could not sign or verify the messages", ee.getCause());
+        } finally {
+            for (Future<List<String[]>> batch : batchesInFlight) {
+                batch.cancel(false);
+            }
+        }
+    }
+
+    private void write(List<String[]> batch, RecordWriter recordWriter, Outcome successfulOutcome, Result result,
+            ProgressListener progressListener) throws IOException {
+        for (String[] record : batch) {
+            recordWriter.write(record);
+            result.numberOfMessages++;
+            if (successfulOutcome.toString().equals(record[OUTCOME_INDEX])) {
+                result.numberOfSuccesses++;
+            }
+        }
+        if (progressListener != null) {
+            progressListener.messagesProcessed(result.numberOfMessages);
+        }
+    }
+
+    private static boolean isBlank(String field) {
+        return field == null || field.trim().length() == 0;
+    }
+
+    private interface RecordReader {
+        /**
+         * @return up to maximumNumberOfRecords records of address, message,
+         *         signature and outcome, empty at the end of the input
+         */
+        public List<String[]> read(int maximumNumberOfRecords) throws IOException;
+    }
+
+    private interface RecordWriter {
+        public void writeHeader() throws IOException;
+
+        public void write(String[] record) throws IOException;
+    }
+
+    /**
+     * Reads comma separated records. Fields may be quoted with double quotes, in
+     * which case they can contain commas, line breaks and doubled double quotes.
+     * A double quote anywhere but at the start of a field is part of the field.
+     */
+    static class CsvRecordReader implements RecordReader {
+        private final Reader reader;
+        private boolean firstRecord = true;
+        private boolean endOfInput = false;
+
+        CsvRecordReader(Reader reader) {
+            this.reader = reader instanceof BufferedReader ? reader : new BufferedReader(reader);
+        }
+
+        @Override
+        public List<String[]> read(int maximumNumberOfRecords) throws IOException {
+            List<String[]> records = new ArrayList<String[]>(maximumNumberOfRecords);
+            while (records.size() < maximumNumberOfRecords) {
+                List<String> fields = readFields();
+                if (fields == null) {
+                    break;
+                }
+                if (fields.size() == 1 && fields.get(0).trim().length() == 0) {
+                    // Blank line.
+                    continue;
+                }
+                if (firstRecord) {
+                    firstRecord = false;
+                    if (ADDRESS_FIELD.equalsIgnoreCase(fields.get(0).trim())) {
+                        // Header row.
+                        continue;
+                    }
+                }
+                String[] record = new String[FIELDS.length];
+                for (int i = 0; i < Math.min(fields.size(), SIGNATURE_INDEX + 1); i++) {
+                    record[i] = fields.get(i);
+                }
+                records.add(record);
+            }
+            return records;
+        }
+
+        /**
+         * @return the fields of the next row, or null at the end of the input
+         */
+        private List<String> readFields() throws IOException {
+            if (endOfInput) {
+                return null;
+            }
+            List<String> fields = new ArrayList<String>();
+            StringBuilder field = new StringBuilder();
+            boolean inQuotes = false;
+            boolean atStartOfField = true;
+            boolean readAnything = false;
+            while (true) {
+                int c = reader.read();
+                if (c == -1) {
+                    endOfInput = true;
+                    if (!readAnything) {
+                        return null;
+                    }
+                    break;
+                }
+                readAnything = true;
+                if (inQuotes) {
+                    if (c == '"') {
+                        reader.mark(1);
+                        int next = reader.read();
+                        if (next == '"') {
+                            field.append('"');
+                        } else {
+                            inQuotes = false;
+                            if (next != -1) {
+                                reader.reset();
+                            }
+                        }
+                    } else {
+                        field.append((char) c);
+                    }
+                } else if (c == '"' && atStartOfField) {
+                    inQuotes = true;
+                    atStartOfField = false;
+                } else if (c == ',') {
+                    fields.add(field.toString());
+                    field.setLength(0);
+                    atStartOfField = true;
+                } else if (c == '\n') {
+                    break;
+                } else if (c != '\r') {
+                    field.append((char) c);
+                    atStartOfField = false;
+                }
+            }
+            fields.add(field.toString());
+            return fields;
+        }
+    }
+
+    static class CsvRecordWriter implements RecordWriter {
+        private final Writer writer;
+
+        CsvRecordWriter(Writer writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public void writeHeader() throws IOException {
+            write(FIELDS);
+        }
+
+        @Override
+        public void write(String[] record) throws IOException {
+            for (int i = 0; i < record.length; i++) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                String field = record[i] == null ? "" : record[i];
+                if (field.indexOf(',') >= 0 || field.indexOf('"') >= 0 || field.indexOf('\n') >= 0 || field.indexOf('\r') >= 0) {
+                    writer.write('"');
+                    writer.write(field.replace("\"", "\"\""));
+                    writer.write('"');
+                } else {
+                    writer.write(field);
+                }
+            }
+            writer.write('\n');
+        }
+    }
+
+    /**
+     * Reads one JSON object per line. A line that is not a JSON object gives a
+     * record with no fields, so that it is reported rather than dropped.
+     */
+    static class JsonLinesRecordReader implements RecordReader {
+        private final BufferedReader reader;
+
+        JsonLinesRecordReader(Reader reader) {
+            this.reader = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+        }
+
+        @Override
+        public List<String[]> read(int maximumNumberOfRecords) throws IOException {
+            List<String[]> records = new ArrayList<String[]>(maximumNumberOfRecords);
+            String line;
+            while (records.size() < maximumNumberOfRecords && (line = reader.readLine()) != null) {
+                if (line.trim().length() == 0) {
+                    continue;
+                }
+                String[] record = new String[FIELDS.length];
+                Object parsed = JSONValue.parse(line);
+                if (parsed instanceof JSONObject) {
+                    JSONObject jsonObject = (JSONObject) parsed;
+                    for (int i = 0; i <= SIGNATURE_INDEX; i++) {
+                        Object value = jsonObject.get(FIELDS[i]);
+                        record[i] = value == null ? null : value.toString();
+                    }
+                }
+                records.add(record);
+            }
+            return records;
+        }
+    }
+
+    static class JsonLinesRecordWriter implements RecordWriter {
+        private final Writer writer;
+
+        JsonLinesRecordWriter(Writer writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public void writeHeader() {
+            // Each line names its own fields.
+        }
+
+        @Override
+        public void write(String[] record) throws IOException {
+            Map<String, String> jsonObject = new LinkedHashMap<String, String>();
+            for (int i = 0; i < record.length; i++) {
+                if (record[i] != null) {
+                    jsonObject.put(FIELDS[i], record[i]);
+                }
+            }
+            writer.write(JSONValue.toJSONString(jsonObject));
+            writer.write('\n');
+        }
+    }
+}
@@ -0,0 +1,323 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.crypto;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.crypto.digests.SHA256Digest;
+import org.spongycastle.crypto.macs.HMac;
+import org.spongycastle.crypto.params.KeyParameter;
+import org.spongycastle.crypto.params.ParametersWithIV;
+
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.crypto.KeyCrypter;
+import com.google.bitcoin.crypto.KeyCrypterScrypt;
+
+/**
+ * Cache of the keys derived from passwords, so that a password used several times
+ * in a session (send, sign, check, backup, export) is only run through scrypt or
+ * the OpenSSL key derivation once.
+ *
+ * The cache is off unless the user opts in. Keys are cached by the derivation
+ * parameters (including the salt) and a fingerprint of the password, which is an
+ * HMAC with a secret that only lives in memory, so the passwords themselves are
+ * never kept. Each key is wiped from memory when it expires, a fixed time after
+ * it was derived, and when the cache is cleared.
+ */
+public enum DerivedKeyCache {
+    INSTANCE;
+
+    private static final Logger log = LoggerFactory.getLogger(DerivedKeyCache.class);
+
+    /**
+     * User preference - set to "true" to cache derived keys.
+     */
+    public static final String CACHE_DERIVED_KEYS = "cacheDerivedKeys";
+
+    /**
+     * User preference - the number of seconds a derived key is cached for.
+     */
+    public static final String CACHE_DERIVED_KEYS_SECONDS = "cacheDerivedKeysSeconds";
+
+    public static final long DEFAULT_TIME_TO_LIVE = 5 * 60 * 1000L; // milliseconds
+
+    private static final long SWEEP_PERIOD = 15 * 1000L; // milliseconds
+
+    private static final int FINGERPRINT_SECRET_LENGTH = 32;
+
+    private static final String SCRYPT_PREFIX = "scrypt:";
+    private static final String OPENSSL_PREFIX = "openssl:";
+    private static final String ENCRYPTION_SALT_PREFIX = "salt:";
+
+    private volatile boolean enabled = false;
+
+    private volatile long timeToLive = DEFAULT_TIME_TO_LIVE;
+
+    private final byte[] fingerprintSecret;
+
+    /**
+     * The cached keys (and encryption salts), by derivation parameters and password fingerprint.
+     */
+    private final Map<String, CachedKey> cachedKeys;
+
+    private ScheduledExecutorService sweeper;
+
+    private DerivedKeyCache() {
+        fingerprintSecret = new byte[FINGERPRINT_SECRET_LENGTH];
+        new SecureRandom().nextBytes(fingerprintSecret);
+        cachedKeys = new HashMap<String, CachedKey>();
+    }
+
+    /**
+     * Turn the cache on or off as set in the user preferences.
+     *
+     * @param userPreferences
+     */
+    public void configure(Properties userPreferences) {
+        String timeToLiveSeconds = userPreferences.getProperty(CACHE_DERIVED_KEYS_SECONDS);
+        if (timeToLiveSeconds != null && timeToLiveSeconds.trim().length() > 0) {
+            try {
+                setTimeToLive(Long.parseLong(timeToLiveSeconds.trim()) * 1000);
+            } catch (NumberFormatException nfe) {
+                log.debug("Ignoring derived key cache time of '" + timeToLiveSeconds + "'");
+            }
+        }
+        setEnabled(Boolean.TRUE.toString().equalsIgnoreCase(userPreferences.getProperty(CACHE_DERIVED_KEYS)));
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public synchronized void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (enabled) {
+            if (sweeper == null) {
+                sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "MultiBit derived key cache");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+                sweeper.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        removeExpiredKeys();
+                    }
+                }, SWEEP_PERIOD, SWEEP_PERIOD, TimeUnit.MILLISECONDS);
+            }
+        } else {
+            clear();
+            if (sweeper != null) {
+                sweeper.shutdown();
+                sweeper = null;
+            }
+        }
+    }
+
+    /**
+     * @param timeToLive
+     *            how long, in milliseconds, a derived key is cached for
+     */
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = Math.max(0, timeToLive);
+    }
+
+    /**
+     * Derive the AES key of a wallet KeyCrypter from the password, using the
+     * cached key if there is one.
+     *
+     * @param keyCrypter
+     * @param password
+     */
+    public KeyParameter deriveKey(KeyCrypter keyCrypter, CharSequence password) {
+        if (!enabled || !(keyCrypter instanceof KeyCrypterScrypt)) {
+            return keyCrypter.deriveKey(password);
+        }
+
+        String cacheKey = SCRYPT_PREFIX + Utils.bytesToHexString(((KeyCrypterScrypt) keyCrypter).getScryptParameters().toByteArray())
+                + ":" + fingerprint(password);
+        byte[][] cached = get(cacheKey);
+        if (cached != null) {
+            return new KeyParameter(cached[0]);
+        }
+
+        KeyParameter aesKey = keyCrypter.deriveKey(password);
+        put(cacheKey, new byte[][] { aesKey.getKey() });
+        return aesKey;
+    }
+
+    /**
+     * Get the salt to encrypt new data with the password. Whilst a salt is
+     * cached for the password it is reused, so that the key derived from it is
+     * also cached. The caller must use a fresh nonce or IV for each encryption.
+     *
+     * @param password
+     * @param saltLength
+     * @param secureRandom
+     *            used to create a new salt
+     */
+    public byte[] getEncryptionSalt(CharSequence password, int saltLength, SecureRandom secureRandom) {
+        if (enabled) {
+            String cacheKey = ENCRYPTION_SALT_PREFIX + saltLength + ":" + fingerprint(password);
+            byte[][] cached = get(cacheKey);
+            if (cached != null) {
+                return cached[0];
+            }
+            byte[] salt = new byte[saltLength];
+            secureRandom.nextBytes(salt);
+            put(cacheKey, new byte[][] { salt });
+            return salt.clone();
+        }
+
+        byte[] salt = new byte[saltLength];
+        secureRandom.nextBytes(salt);
+        return salt;
+    }
+
+    /**
+     * @return the cached OpenSSL key and IV for the password and salt, or null if there is none
+     */
+    ParametersWithIV getOpenSSLKey(CharSequence password, byte[] salt) {
+        if (!enabled) {
+            return null;
+        }
+        byte[][] cached = get(OPENSSL_PREFIX + Utils.bytesToHexString(salt) + ":" + fingerprint(password));
+        return cached == null ? null : new ParametersWithIV(new KeyParameter(cached[0]), cached[1]);
+    }
+
+    void putOpenSSLKey(CharSequence password, byte[] salt, ParametersWithIV key) {
+        if (enabled) {
+            put(OPENSSL_PREFIX + Utils.bytesToHexString(salt) + ":" + fingerprint(password), new byte[][] {
+                    ((KeyParameter) key.getParameters()).getKey(), key.getIV() });
+        }
+    }
+
+    /**
+     * Wipe and forget all the cached keys.
+     */
+    public void clear() {
+        synchronized (cachedKeys) {
+            for (CachedKey cachedKey : cachedKeys.values()) {
+                cachedKey.wipe();
+            }
+            cachedKeys.clear();
+        }
+    }
+
+    void removeExpiredKeys() {
+        long now = System.currentTimeMillis();
+        synchronized (cachedKeys) {
+            Iterator<CachedKey> iterator = cachedKeys.values().iterator();
+            while (iterator.hasNext()) {
+                CachedKey cachedKey = iterator.next();
+                if (cachedKey.expiryTime <= now) {
+                    cachedKey.wipe();
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    int size() {
+        synchronized (cachedKeys) {
+            return cachedKeys.size();
+        }
+    }
+
+    /**
+     * @return copies of the cached values, or null if they are not cached or have expired
+     */
+    private byte[][] get(String cacheKey) {
+        synchronized (cachedKeys) {
+            CachedKey cachedKey = cachedKeys.get(cacheKey);
+            if (cachedKey == null) {
+                return null;
+            }
+            if (cachedKey.expiryTime <= System.currentTimeMillis()) {
+                cachedKey.wipe();
+                cachedKeys.remove(cacheKey);
+                return null;
+            }
+            byte[][] copies = new byte[cachedKey.values.length][];
+            for (int i = 0; i < copies.length; i++) {
+                copies[i] = cachedKey.values[i].clone();
+            }
+            return copies;
+        }
+    }
+
+    private void put(String cacheKey, byte[][] values) {
+        byte[][] copies = new byte[values.length][];
+        for (int i = 0; i < copies.length; i++) {
+            copies[i] = values[i].clone();
+        }
+        synchronized (cachedKeys) {
+            CachedKey previous = cachedKeys.put(cacheKey, new CachedKey(copies, System.currentTimeMillis() + timeToLive));
+            if (previous != null) {
+                previous.wipe();
+            }
+        }
+    }
+
+    /**
+     * @return HMAC-SHA256 of the UTF-16 password with the in-memory secret, in hex
+     */
+    private String fingerprint(CharSequence password) {
+        byte[] passwordBytes = new byte[password.length() * 2];
+        for (int i = 0; i < password.length(); i++) {
+            passwordBytes[2 * i] = (byte) (password.charAt(i) >> 8);
+            passwordBytes[2 * i + 1] = (byte) password.charAt(i);
+        }
+
+        HMac hMac = new HMac(new SHA256Digest());
+        hMac.init(new KeyParameter(fingerprintSecret));
+        hMac.update(passwordBytes, 0, passwordBytes.length);
+        byte[] fingerprint = new byte[hMac.getMacSize()];
+        hMac.doFinal(fingerprint, 0);
+        Arrays.fill(passwordBytes, (byte) 0);
+        return Utils.bytesToHexString(fingerprint);
+    }
+
+    private static class CachedKey {
+        final byte[][] values;
+        final long expiryTime;
+
+        CachedKey(byte[][] values, long expiryTime) {
+            this.values = values;
+            this.expiryTime = expiryTime;
+        }
+
+        void wipe() {
+            for (byte[] value : values) {
+                Arrays.fill(value, (byte) 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.crypto;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.crypto.KeyCrypter;
+
+/**
+ * Checks that each private key of a wallet is present and creates the public key
+ * stored with it, and so the address it is shown as. The keys are checked in
+ * batches on all the processors and the check can be cancelled part way.
+ */
+public class KeyAuditor {
+    private static final Logger log = LoggerFactory.getLogger(KeyAuditor.class);
+
+    /**
+     * The number of keys checked together as one task.
+     */
+    private static final int KEYS_PER_BATCH = 32;
+
+    /**
+     * What is wrong with a key.
+     */
+    public enum Problem {
+        /**
+         * The private key could not be decrypted with the wallet password.
+         */
+        CANNOT_DECRYPT,
+
+        /**
+         * The private key is missing.
+         */
+        MISSING_PRIVATE_KEY,
+
+        /**
+         * The private key creates a different public key to the one stored with it.
+         */
+        PUBLIC_KEY_MISMATCH,
+
+        /**
+         * The key could not be checked, for instance because the private key
+         * is not a valid key.
+         */
+        CHECK_FAILED
+    }
+
+    /**
+     * A key that failed the check.
+     */
+    public static class KeyFailure {
+        private final String address;
+        private final Problem problem;
+
+        KeyFailure(String address, Problem problem) {
+            this.address = address;
+            this.problem = problem;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public Problem getProblem() {
+            return problem;
+        }
+    }
+
+    /**
+     * Told how many of the keys have been checked. Called on the key crypter threads.
+     */
+    public interface AuditListener {
+        public void keysAudited(int numberOfKeysAudited, int numberOfKeys);
+    }
+
+    private final Wallet wallet;
+    private final NetworkParameters networkParameters;
+
+    private volatile boolean cancelled = false;
+
+    /**
+     * @param wallet
+     *            the wallet to check
+     * @param networkParameters
+     */
+    public KeyAuditor(Wallet wallet, NetworkParameters networkParameters) {
+        this.wallet = wallet;
+        this.networkParameters = networkParameters;
+    }
+
+    /**
+     * Check all the keys of the wallet.
+     *
+     * @param aesKey
+     *            derived from the wallet password, or null if the wallet is not encrypted
+     * @param auditListener
+     *            may be null
+     * @return the keys that failed, in keychain order. Empty if all the keys are OK.
+     * @throws CancellationException
+     *             if the check was cancelled
+     * @throws InterruptedException
+     */
+    public List<KeyFailure> audit(final KeyParameter aesKey, final AuditListener auditListener) throws InterruptedException {
+        final List<ECKey> keysToCheck;
+        synchronized (wallet.getKeychain()) {
+            keysToCheck = new ArrayList<ECKey>(wallet.getKeychain());
+        }
+        final KeyCrypter keyCrypter = wallet.getKeyCrypter();
+        final int numberOfKeys = keysToCheck.size();
+        final AtomicInteger numberOfKeysAudited = new AtomicInteger(0);
+
+        List<Future<List<KeyFailure>>> batches = new ArrayList<Future<List<KeyFailure>>>();
+        try {
+            for (int batchStart = 0; batchStart < numberOfKeys; batchStart += KEYS_PER_BATCH) {
+                final List<ECKey> batchKeys = keysToCheck.subList(batchStart, Math.min(numberOfKeys, batchStart + KEYS_PER_BATCH));
+                batches.add(ParallelKeyCrypter.getExecutorService().submit(new Callable<List<KeyFailure>>() {
+                    @Override
+                    public List<KeyFailure> call() {
+                        List<KeyFailure> failures = new ArrayList<KeyFailure>();
+                        for (ECKey key : batchKeys) {
+                            if (cancelled) {
+                                break;
+                            }
+                            Problem problem = check(key, keyCrypter, aesKey);
+                            if (problem != null) {
+                                failures.add(new KeyFailure(key.toAddress(networkParameters).toString(), problem));
+                            }
+                        }
+                        int audited = numberOfKeysAudited.addAndGet(batchKeys.size());
+                        if (auditListener != null && !cancelled) {
+                            auditListener.keysAudited(audited, numberOfKeys);
+                        }
+                        return failures;
+                    }
+                }));
+            }
+
+            List<KeyFailure> failures = new ArrayList<KeyFailure>();
+            for (Future<List<KeyFailure>> batch : batches) {
+                failures.addAll(batch.get());
+                if (cancelled) {
+                    throw new CancellationException("The check of the private keys was cancelled");
+                }
+            }
+            return failures;
+        } catch (ExecutionException ee) {
+            // check() catches everything so this is not expected.
+            throw new IllegalStateException("Could not check the private keys", ee.getCause());
+        } finally {
+            for (Future<List<KeyFailure>> batch : batches) {
+                batch.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Stop the check. The keys being checked at the moment are finished first.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return what is wrong with the key, or null if it is OK
+     */
+    private Problem check(ECKey key, KeyCrypter keyCrypter, KeyParameter aesKey) {
+        ECKey decryptedKey = key;
+        try {
+            if (key.isEncrypted()) {
+                try {
+                    decryptedKey = key.decrypt(keyCrypter, aesKey);
+                } catch (RuntimeException e) {
+                    log.debug("Could not decrypt key. " + e.getClass().getCanonicalName() + " " + e.getMessage());
+                    return Problem.CANNOT_DECRYPT;
+                }
+            }
+
+            byte[] privateKeyBytes = decryptedKey.getPrivKeyBytes();
+            if (privateKeyBytes == null) {
+                return Problem.MISSING_PRIVATE_KEY;
+            }
+
+            // Create an ECKey with just the private key bytes, it creates the public key - which should be the one stored.
+            // The address is the hash of the public key so it matches when the public key does.
+            ECKey rebornKey = new ECKey(new BigInteger(1, privateKeyBytes), null, key.isCompressed());
+            Arrays.fill(privateKeyBytes, (byte) 0);
+            if (!Arrays.equals(rebornKey.getPubKey(), key.getPubKey())) {
+                return Problem.PUBLIC_KEY_MISMATCH;
+            }
+            return null;
+        } catch (RuntimeException e) {
+            log.debug("Could not check key. " + e.getClass().getCanonicalName() + " " + e.getMessage());
+            return Problem.CHECK_FAILED;
+        } finally {
+            if (decryptedKey != key) {
+                decryptedKey.clearPrivateKey();
+            }
+        }
+    }
+}
@@ -18,17 +18,25 @@ package org.multibit.crypto;
 import com.google.bitcoin.core.Utils;
 import com.google.bitcoin.crypto.KeyCrypterException;
 import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Base64InputStream;
+import org.apache.commons.codec.binary.Base64OutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.spongycastle.crypto.BufferedBlockCipher;
 import org.spongycastle.crypto.CipherParameters;
+import org.spongycastle.crypto.DataLengthException;
+import org.spongycastle.crypto.InvalidCipherTextException;
 import org.spongycastle.crypto.PBEParametersGenerator;
 import org.spongycastle.crypto.engines.AESFastEngine;
 import org.spongycastle.crypto.generators.OpenSSLPBEParametersGenerator;
 import org.spongycastle.crypto.modes.CBCBlockCipher;
 import org.spongycastle.crypto.paddings.PaddedBufferedBlockCipher;
+import org.spongycastle.crypto.params.KeyParameter;
 import org.spongycastle.crypto.params.ParametersWithIV;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.security.SecureRandom;
 import java.util.Arrays;
@@ -99,6 +107,31 @@ public class KeyCrypterOpenSSL {
 
     private static SecureRandom secureRandom = new SecureRandom();
 
+    /**
+     * The AES block length in bytes.
+     */
+    private static final int AES_BLOCK_LENGTH = 16;
+
+    /**
+     * A cipher for each thread, initialised afresh for each encrypt or decrypt
+     * of a byte array and cleared afterwards. The streams have their own ciphers
+     * as they outlive the call.
+     */
+    private static final ThreadLocal<BufferedBlockCipher> threadCipher = new ThreadLocal<BufferedBlockCipher>() {
+        @Override
+        protected BufferedBlockCipher initialValue() {
+            return createCipher();
+        }
+    };
+
+    /**
+     * A key of zeros that a thread's cipher is initialised with after each use,
+     * so that it does not keep the key schedule and buffered text of the last
+     * operation reachable for as long as the thread lives.
+     */
+    private static final ParametersWithIV CLEARED_KEY = new ParametersWithIV(new KeyParameter(new byte[KEY_LENGTH / 8]),
+            new byte[IV_LENGTH / 8]);
+
     public KeyCrypterOpenSSL()  {
         try {
             openSSLSaltedBytes = OPENSSL_SALTED_TEXT.getBytes(STRING_ENCODING);
@@ -124,10 +157,17 @@ public class KeyCrypterOpenSSL {
      */
     private CipherParameters getAESPasswordKey(CharSequence password, byte[] salt) throws KeyCrypterException {
         try {
+            // Decrypting the same file again (for instance checking the password, then reading it) reuses the key.
+            ParametersWithIV key = DerivedKeyCache.INSTANCE.getOpenSSLKey(password, salt);
+            if (key != null) {
+                return key;
+            }
+
             PBEParametersGenerator generator = new OpenSSLPBEParametersGenerator();
             generator.init(PBEParametersGenerator.PKCS5PasswordToBytes(convertToCharArray(password)), salt, NUMBER_OF_ITERATIONS);
 
-            ParametersWithIV key = (ParametersWithIV) generator.generateDerivedParameters(KEY_LENGTH, IV_LENGTH);
+            key = (ParametersWithIV) generator.generateDerivedParameters(KEY_LENGTH, IV_LENGTH);
+            DerivedKeyCache.INSTANCE.putOpenSSLKey(password, salt, key);
 
             return key;
         } catch (Exception e) {
@@ -155,10 +195,11 @@ public class KeyCrypterOpenSSL {
                 plainTextAsBytes = plainText.getBytes(STRING_ENCODING);
             }
             
-            byte[] encryptedBytes = encrypt(plainTextAsBytes, password);     
-            
-            // OpenSSL prefixes the salt bytes + encryptedBytes with Salted___ and then base64 encodes it
-            byte[] encryptedBytesPlusSaltedText = concat(openSSLSaltedBytes, encryptedBytes);
+            // OpenSSL prefixes the salt bytes + encryptedBytes with Salted___ and then base64 encodes it.
+            // Encrypt straight after the prefix rather than concatenating.
+            byte[] encryptedBytesPlusSaltedText = new byte[openSSLSaltedBytes.length + getEncryptedLength(plainTextAsBytes.length)];
+            System.arraycopy(openSSLSaltedBytes, 0, encryptedBytesPlusSaltedText, 0, openSSLSaltedBytes.length);
+            encrypt(plainTextAsBytes, 0, plainTextAsBytes.length, password, encryptedBytesPlusSaltedText, openSSLSaltedBytes.length);
             
             return Base64.encodeBase64String(encryptedBytesPlusSaltedText);
         } catch (Exception e) {
@@ -177,24 +218,63 @@ public class KeyCrypterOpenSSL {
      * @throws KeyCrypterException
      */
     public byte[] encrypt(byte[] plainTextAsBytes, CharSequence password) throws KeyCrypterException {
+        // The padded length is known so the result is written in place, without copying.
+        byte[] encryptedBytes = new byte[getEncryptedLength(plainTextAsBytes.length)];
+        encrypt(plainTextAsBytes, 0, plainTextAsBytes.length, password, encryptedBytes, 0);
+        return encryptedBytes;
+    }
+
+    /**
+     * @param plainTextLength
+     *            The number of bytes to encrypt
+     * @return The number of bytes they encrypt to, including the salt
+     */
+    public int getEncryptedLength(int plainTextLength) {
+        return SALT_LENGTH + (plainTextLength / AES_BLOCK_LENGTH + 1) * AES_BLOCK_LENGTH;
+    }
+
+    /**
+     * Password based encryption using AES - CBC 256 bits, into a buffer supplied by the caller.
+     * 
+     * @param plainTextAsBytes
+     *            The bytes to encrypt
+     * @param plainTextOffset
+     * @param plainTextLength
+     * @param password
+     *            The password to use for encryption
+     * @param output
+     *            The buffer to write SALT_LENGTH bytes of salt followed by the encrypted bytes to.
+     *            It must have room for getEncryptedLength(plainTextLength) bytes.
+     * @param outputOffset
+     * @return The number of bytes written to the output
+     * @throws KeyCrypterException
+     */
+    public int encrypt(byte[] plainTextAsBytes, int plainTextOffset, int plainTextLength, CharSequence password, byte[] output,
+            int outputOffset) throws KeyCrypterException {
         try {
             // Generate salt - each encryption call has a different salt.
             byte[] salt = new byte[SALT_LENGTH];
             secureRandom.nextBytes(salt);
+            System.arraycopy(salt, 0, output, outputOffset, SALT_LENGTH);
  
             ParametersWithIV key = (ParametersWithIV) getAESPasswordKey(password, salt);
 
             // The following code uses an AES cipher to encrypt the message.
-            BufferedBlockCipher cipher = new PaddedBufferedBlockCipher(new CBCBlockCipher(new AESFastEngine()));
-            cipher.init(true, key);
-            byte[] encryptedBytes = new byte[cipher.getOutputSize(plainTextAsBytes.length)];
-            final int processLength = cipher.processBytes(plainTextAsBytes, 0, plainTextAsBytes.length, encryptedBytes, 0);
-            final int doFinalLength = cipher.doFinal(encryptedBytes, processLength);
-
-            // The result bytes are the SALT_LENGTH bytes followed by the encrypted bytes.
-            return concat(salt, Arrays.copyOf(encryptedBytes, processLength + doFinalLength));
+            BufferedBlockCipher cipher = threadCipher.get();
+            try {
+                cipher.init(true, key);
+                final int processLength = cipher.processBytes(plainTextAsBytes, plainTextOffset, plainTextLength, output, outputOffset
+                        + SALT_LENGTH);
+                final int doFinalLength = cipher.doFinal(output, outputOffset + SALT_LENGTH + processLength);
+
+                // The result bytes are the SALT_LENGTH bytes followed by the encrypted bytes.
+                return SALT_LENGTH + processLength + doFinalLength;
+            } finally {
+                cipher.init(true, CLEARED_KEY);
+            }
         } catch (Exception e) {
-            throw new KeyCrypterException("Could not encrypt bytes '" + Utils.bytesToHexString(plainTextAsBytes) + "'", e);
+            throw new KeyCrypterException("Could not encrypt bytes '"
+                    + Utils.bytesToHexString(Arrays.copyOfRange(plainTextAsBytes, plainTextOffset, plainTextOffset + plainTextLength)) + "'", e);
         }
     }
 
@@ -212,16 +292,14 @@ public class KeyCrypterOpenSSL {
         try {
             final byte[] decodeTextAsBytes = Base64.decodeBase64(textToDecode.getBytes(STRING_ENCODING));
             
-            // Strip off the bytes due to the OPENSSL_SALTED_TEXT prefix text.
+            // Skip the bytes due to the OPENSSL_SALTED_TEXT prefix text.
             int saltPrefixTextLength = openSSLSaltedBytes.length;
             
-            byte[] cipherBytes = new byte[decodeTextAsBytes.length - saltPrefixTextLength];
-            System.arraycopy(decodeTextAsBytes, saltPrefixTextLength, cipherBytes, 0, decodeTextAsBytes.length
-                    - saltPrefixTextLength);
-
-            byte[] decryptedBytes = decrypt(cipherBytes, password);
+            byte[] decryptedBytes = new byte[decodeTextAsBytes.length - saltPrefixTextLength];
+            int decryptedLength = decrypt(decodeTextAsBytes, saltPrefixTextLength, decodeTextAsBytes.length - saltPrefixTextLength,
+                    password, decryptedBytes, 0);
             
-            return new String(decryptedBytes, STRING_ENCODING).trim();
+            return new String(decryptedBytes, 0, decryptedLength, STRING_ENCODING).trim();
         } catch (Exception e) {
             throw new KeyCrypterException("Could not decrypt input string", e); 
         }
@@ -238,40 +316,119 @@ public class KeyCrypterOpenSSL {
      * @throws KeyCrypterException
      */
     public byte[] decrypt(byte[] bytesToDecode, CharSequence password) throws KeyCrypterException {
+        byte[] decryptedBytes = new byte[Math.max(0, bytesToDecode.length - SALT_LENGTH)];
+        int decryptedLength = decrypt(bytesToDecode, 0, bytesToDecode.length, password, decryptedBytes, 0);
+        return Arrays.copyOf(decryptedBytes, decryptedLength);
+    }
+
+    /**
+     * Decrypt bytes previously encrypted with this class into a buffer supplied by the caller.
+     * 
+     * @param bytesToDecode
+     *            SALT_LENGTH bytes of salt followed by the bytes to decrypt
+     * @param offset
+     * @param length
+     * @param password
+     *            The password to use for decryption
+     * @param output
+     *            The buffer to write the decrypted bytes to. It must have room for
+     *            length - SALT_LENGTH bytes.
+     * @param outputOffset
+     * @return The number of decrypted bytes written to the output
+     * @throws KeyCrypterException
+     */
+    public int decrypt(byte[] bytesToDecode, int offset, int length, CharSequence password, byte[] output, int outputOffset)
+            throws KeyCrypterException {
         try {
             // separate the salt and bytes to decrypt
-            byte[] salt = new byte[SALT_LENGTH];
-
-            System.arraycopy(bytesToDecode, 0, salt, 0, SALT_LENGTH);
-
-            byte[] cipherBytes = new byte[bytesToDecode.length - SALT_LENGTH];
-            System.arraycopy(bytesToDecode, SALT_LENGTH, cipherBytes, 0, bytesToDecode.length - SALT_LENGTH);
+            byte[] salt = Arrays.copyOfRange(bytesToDecode, offset, offset + SALT_LENGTH);
 
             ParametersWithIV key = (ParametersWithIV) getAESPasswordKey(password, salt);
 
             // decrypt the message
-            BufferedBlockCipher cipher = new PaddedBufferedBlockCipher(new CBCBlockCipher(new AESFastEngine()));
-            cipher.init(false, key);
+            BufferedBlockCipher cipher = threadCipher.get();
+            try {
+                cipher.init(false, key);
 
-            byte[] decryptedBytes = new byte[cipher.getOutputSize(cipherBytes.length)];
-            final int processLength = cipher.processBytes(cipherBytes, 0, cipherBytes.length, decryptedBytes, 0);
-            final int doFinalLength = cipher.doFinal(decryptedBytes, processLength);
+                final int processLength = cipher.processBytes(bytesToDecode, offset + SALT_LENGTH, length - SALT_LENGTH, output, outputOffset);
+                final int doFinalLength = cipher.doFinal(output, outputOffset + processLength);
 
-            return Arrays.copyOf(decryptedBytes, processLength + doFinalLength);
+                return processLength + doFinalLength;
+            } finally {
+                cipher.init(true, CLEARED_KEY);
+            }
         } catch (Exception e) {
             throw new KeyCrypterException("Could not decrypt input string", e);
         }
     }
 
     /**
-     * Concatenate two byte arrays.
+     * Decrypt a stream of text previously encrypted with this class, as it is read,
+     * so that large files do not have to be held in memory.
+     * 
+     * @param inputStream
+     *            The encrypted text to decrypt
+     * @param password
+     *            The password to use for decryption
+     * @return The stream of decrypted bytes. A wrong password is only detected
+     *         when the end of the stream is read, with a KeyCrypterException.
+     * @throws IOException
+     * @throws KeyCrypterException
      */
-    private byte[] concat(byte[] arrayA, byte[] arrayB) {
-        byte[] result = new byte[arrayA.length + arrayB.length];
-        System.arraycopy(arrayA, 0, result, 0, arrayA.length);
-        System.arraycopy(arrayB, 0, result, arrayA.length, arrayB.length);
+    public InputStream decrypt(InputStream inputStream, CharSequence password) throws IOException, KeyCrypterException {
+        InputStream decodedStream = new Base64InputStream(inputStream);
+
+        // Strip off the bytes due to the OPENSSL_SALTED_TEXT prefix text and separate the salt.
+        byte[] prefixAndSalt = new byte[openSSLSaltedBytes.length + SALT_LENGTH];
+        int prefixAndSaltLength = 0;
+        while (prefixAndSaltLength < prefixAndSalt.length) {
+            int bytesRead = decodedStream.read(prefixAndSalt, prefixAndSaltLength, prefixAndSalt.length - prefixAndSaltLength);
+            if (bytesRead == -1) {
+                throw new KeyCrypterException("Could not decrypt input stream as it is too short");
+            }
+            prefixAndSaltLength += bytesRead;
+        }
+        byte[] salt = Arrays.copyOfRange(prefixAndSalt, openSSLSaltedBytes.length, prefixAndSalt.length);
 
-        return result;
+        ParametersWithIV key = (ParametersWithIV) getAESPasswordKey(password, salt);
+
+        BufferedBlockCipher cipher = createCipher();
+        cipher.init(false, key);
+        return new DecryptingInputStream(decodedStream, cipher);
+    }
+
+    /**
+     * Encrypt a stream of bytes as they are written, giving the same text as
+     * encrypt(String, CharSequence), so that large files do not have to be held
+     * in memory.
+     * 
+     * @param outputStream
+     *            Where the encrypted text is written to
+     * @param password
+     *            The password to use for encryption
+     * @return The stream to write the bytes to encrypt to. It must be closed to
+     *         write out the last block, which also closes the outputStream.
+     * @throws IOException
+     * @throws KeyCrypterException
+     */
+    public OutputStream encrypt(OutputStream outputStream, CharSequence password) throws IOException, KeyCrypterException {
+        OutputStream encodedStream = new Base64OutputStream(outputStream);
+
+        // Generate salt - each encryption call has a different salt.
+        byte[] salt = new byte[SALT_LENGTH];
+        secureRandom.nextBytes(salt);
+        ParametersWithIV key = (ParametersWithIV) getAESPasswordKey(password, salt);
+
+        encodedStream.write(openSSLSaltedBytes);
+        encodedStream.write(salt);
+
+        BufferedBlockCipher cipher = createCipher();
+        cipher.init(true, key);
+        return new EncryptingOutputStream(encodedStream, cipher);
+    }
+
+    private static BufferedBlockCipher createCipher() {
+        return new PaddedBufferedBlockCipher(new CBCBlockCipher(new AESFastEngine()));
     }
     
     /**
@@ -316,4 +473,145 @@ public class KeyCrypterOpenSSL {
             return false;
         return (obj instanceof KeyCrypterOpenSSL);
     }
-}
\ No newline at end of file
+
+    /**
+     * Encrypts the bytes written to it a buffer at a time, writing them to the underlying stream.
+     */
+    private static class EncryptingOutputStream extends OutputStream {
+        private static final int BUFFER_LENGTH = 4096;
+
+        private final OutputStream cipherStream;
+        private final BufferedBlockCipher cipher;
+
+        private final byte[] cipherBytes;
+        private final byte[] singleByte = new byte[1];
+        private boolean closed = false;
+
+        EncryptingOutputStream(OutputStream cipherStream, BufferedBlockCipher cipher) {
+            this.cipherStream = cipherStream;
+            this.cipher = cipher;
+            this.cipherBytes = new byte[BUFFER_LENGTH + 2 * cipher.getBlockSize()];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            singleByte[0] = (byte) b;
+            write(singleByte, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (closed) {
+                throw new IOException("The stream is closed");
+            }
+            while (length > 0) {
+                int bytesToEncrypt = Math.min(length, BUFFER_LENGTH);
+                int encryptedLength = cipher.processBytes(bytes, offset, bytesToEncrypt, cipherBytes, 0);
+                cipherStream.write(cipherBytes, 0, encryptedLength);
+                offset += bytesToEncrypt;
+                length -= bytesToEncrypt;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            cipherStream.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                // Writes the last block, with its padding.
+                int encryptedLength = cipher.doFinal(cipherBytes, 0);
+                cipherStream.write(cipherBytes, 0, encryptedLength);
+            } catch (InvalidCipherTextException icte) {
+                throw new KeyCrypterException("Could not encrypt output stream", icte);
+            } finally {
+                cipherStream.close();
+            }
+        }
+    }
+
+    /**
+     * Decrypts the bytes of the underlying stream a buffer at a time.
+     */
+    private static class DecryptingInputStream extends InputStream {
+        private static final int BUFFER_LENGTH = 4096;
+
+        private final InputStream cipherStream;
+        private final BufferedBlockCipher cipher;
+
+        private final byte[] cipherBytes;
+        private final byte[] plainBytes;
+        private int plainPosition = 0;
+        private int plainLength = 0;
+        private boolean finished = false;
+
+        DecryptingInputStream(InputStream cipherStream, BufferedBlockCipher cipher) {
+            this.cipherStream = cipherStream;
+            this.cipher = cipher;
+            this.cipherBytes = new byte[BUFFER_LENGTH];
+            this.plainBytes = new byte[BUFFER_LENGTH + 2 * cipher.getBlockSize()];
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return plainBytes[plainPosition++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int bytesToCopy = Math.min(length, plainLength - plainPosition);
+            System.arraycopy(plainBytes, plainPosition, bytes, offset, bytesToCopy);
+            plainPosition += bytesToCopy;
+            return bytesToCopy;
+        }
+
+        /**
+         * Decrypt more bytes if all the decrypted bytes have been read.
+         * 
+         * @return false at the end of the stream
+         */
+        private boolean fill() throws IOException {
+            while (plainPosition == plainLength) {
+                if (finished) {
+                    return false;
+                }
+                plainPosition = 0;
+                int bytesRead = cipherStream.read(cipherBytes);
+                try {
+                    if (bytesRead == -1) {
+                        // Checks the padding, which is where a wrong password shows up.
+                        plainLength = cipher.doFinal(plainBytes, 0);
+                        finished = true;
+                    } else {
+                        plainLength = cipher.processBytes(cipherBytes, 0, bytesRead, plainBytes, 0);
+                    }
+                } catch (InvalidCipherTextException icte) {
+                    throw new KeyCrypterException("Could not decrypt input stream", icte);
+                } catch (DataLengthException dle) {
+                    throw new KeyCrypterException("Could not decrypt input stream", dle);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            cipherStream.close();
+        }
+    }
+}
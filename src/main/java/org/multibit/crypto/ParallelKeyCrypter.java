@@ -0,0 +1,366 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.crypto;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.MultiBitWalletLock;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.crypto.KeyCrypter;
+import com.google.bitcoin.crypto.KeyCrypterException;
+
+/**
+ * Creates, encrypts and re-encrypts the private keys of a wallet on all the processors.
+ *
+ * The AES keys are derived once by the caller. The new keys are all worked out
+ * and checked (by decrypting them again) before the wallet is touched, and the
+ * keychain is then swapped over in one step under the wallet lock, so a failure
+ * part of the way through leaves the wallet with its original keys.
+ */
+public class ParallelKeyCrypter {
+    private static final Logger log = LoggerFactory.getLogger(ParallelKeyCrypter.class);
+
+    /**
+     * The number of keys created or encrypted together as one task.
+     */
+    static final int KEYS_PER_BATCH = 64;
+
+    private static final ExecutorService keyCrypterExecutor = Executors.newFixedThreadPool(Runtime.getRuntime()
+            .availableProcessors(), new ThreadFactory() {
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "MultiBit key crypter " + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * @return the key crypter threads, for other work on all the keys of a wallet
+     */
+    static ExecutorService getExecutorService() {
+        return keyCrypterExecutor;
+    }
+
+    /**
+     * Told how many of the keys have been done. Called on the key crypter threads.
+     */
+    public interface ProgressListener {
+        public void keysDone(int numberOfKeysDone, int numberOfKeys);
+    }
+
+    /**
+     * Create new keys, for instance to use as receiving addresses.
+     *
+     * @param numberOfKeys
+     * @param keyCrypter
+     *            the KeyCrypter of the wallet the keys are for, or null if the
+     *            keys are not to be encrypted
+     * @param aesKey
+     *            derived from the wallet password by the keyCrypter, or null if
+     *            the keys are not to be encrypted
+     * @param progressListener
+     *            may be null
+     * @return the new keys
+     * @throws KeyCrypterException
+     *             if the keys could not be encrypted
+     */
+    public static List<ECKey> createKeys(int numberOfKeys, final KeyCrypter keyCrypter, final KeyParameter aesKey,
+            ProgressListener progressListener) throws KeyCrypterException {
+        // New keys have no original key.
+        return processKeys(Collections.<ECKey> nCopies(numberOfKeys, null), new KeyOperation() {
+            @Override
+            public ECKey process(ECKey key) {
+                ECKey newKey = new ECKey();
+                if (keyCrypter == null) {
+                    return newKey;
+                }
+                ECKey encryptedKey = newKey.encrypt(keyCrypter, aesKey);
+                newKey.clearPrivateKey();
+                return encryptedKey;
+            }
+        }, progressListener);
+    }
+
+    /**
+     * Encrypt the private keys of an unencrypted wallet.
+     *
+     * The keys are encrypted without holding the wallet lock. Any key added to
+     * the wallet in the meantime is encrypted when the keychain is swapped over.
+     *
+     * @param wallet
+     * @param keyCrypter
+     *            the KeyCrypter the wallet will use
+     * @param aesKey
+     *            derived from the wallet password by the keyCrypter
+     * @param progressListener
+     *            may be null
+     * @throws KeyCrypterException
+     *             if the keys could not be encrypted, in which case the wallet
+     *             is unchanged
+     */
+    public static void encrypt(Wallet wallet, final KeyCrypter keyCrypter, final KeyParameter aesKey,
+            ProgressListener progressListener) throws KeyCrypterException {
+        ReentrantLock walletLock = MultiBitWalletLock.getLock(wallet);
+        List<ECKey> originalKeys;
+        walletLock.lock();
+        try {
+            checkIsUnencrypted(wallet);
+            originalKeys = new ArrayList<ECKey>(wallet.getKeychain());
+        } finally {
+            walletLock.unlock();
+        }
+
+        KeyOperation encryptOperation = new KeyOperation() {
+            @Override
+            public ECKey process(ECKey key) {
+                if (key.isEncrypted()) {
+                    return key;
+                }
+                ECKey encryptedKey = key.encrypt(keyCrypter, aesKey);
+                checkEncryptionIsReversible(key, encryptedKey, keyCrypter, aesKey);
+                return encryptedKey;
+            }
+        };
+        List<ECKey> encryptedKeys = processKeys(originalKeys, encryptOperation, progressListener);
+
+        walletLock.lock();
+        try {
+            checkIsUnencrypted(wallet);
+            List<ECKey> keysNow = new ArrayList<ECKey>(wallet.getKeychain());
+            encryptedKeys = matchKeychain(keysNow, originalKeys, encryptedKeys, encryptOperation);
+
+            // The wallet has to set up its own encryption, so give it no keys to
+            // encrypt and then add the encrypted ones. Wallet.encrypt replaces the
+            // keychain list so it is fetched again each time.
+            wallet.getKeychain().clear();
+            try {
+                wallet.encrypt(keyCrypter, aesKey);
+                wallet.getKeychain().addAll(encryptedKeys);
+            } catch (RuntimeException e) {
+                log.error("Could not swap in the encrypted keys so putting back the original keys. " + e.getClass().getCanonicalName()
+                        + " " + e.getMessage());
+                if (wallet.getEncryptionType() != EncryptionType.UNENCRYPTED) {
+                    wallet.getKeychain().clear();
+                    wallet.decrypt(aesKey);
+                }
+                wallet.getKeychain().clear();
+                wallet.getKeychain().addAll(keysNow);
+                throw new KeyCrypterException("Could not encrypt the wallet keys", e);
+            }
+
+            // Remove the unencrypted private keys from memory, as Wallet.encrypt does.
+            for (ECKey originalKey : keysNow) {
+                if (!originalKey.isEncrypted()) {
+                    originalKey.clearPrivateKey();
+                }
+            }
+        } finally {
+            walletLock.unlock();
+        }
+    }
+
+    /**
+     * Re-encrypt the private keys of an encrypted wallet with a new AES key,
+     * for example when the wallet password is changed. The wallet keeps its
+     * KeyCrypter.
+     *
+     * The keys are re-encrypted without holding the wallet lock. Any key added
+     * to the wallet in the meantime is re-encrypted when the keys are swapped
+     * over.
+     *
+     * @param wallet
+     * @param currentAesKey
+     *            the AES key the private keys are encrypted with now
+     * @param newAesKey
+     *            the AES key to encrypt the private keys with
+     * @param progressListener
+     *            may be null
+     * @throws KeyCrypterException
+     *             if the keys could not be re-encrypted (for instance if the
+     *             current AES key is wrong), in which case the wallet is
+     *             unchanged
+     */
+    public static void changeKey(Wallet wallet, final KeyParameter currentAesKey, final KeyParameter newAesKey,
+            ProgressListener progressListener) throws KeyCrypterException {
+        ReentrantLock walletLock = MultiBitWalletLock.getLock(wallet);
+        final KeyCrypter keyCrypter;
+        List<ECKey> currentKeys;
+        walletLock.lock();
+        try {
+            keyCrypter = wallet.getKeyCrypter();
+            if (keyCrypter == null || wallet.getEncryptionType() == EncryptionType.UNENCRYPTED) {
+                throw new KeyCrypterException("The wallet is not encrypted");
+            }
+            currentKeys = new ArrayList<ECKey>(wallet.getKeychain());
+        } finally {
+            walletLock.unlock();
+        }
+
+        KeyOperation reEncryptOperation = new KeyOperation() {
+            @Override
+            public ECKey process(ECKey key) {
+                // Decrypting checks that the current AES key is right.
+                ECKey decryptedKey = key.decrypt(keyCrypter, currentAesKey);
+                try {
+                    ECKey reEncryptedKey = decryptedKey.encrypt(keyCrypter, newAesKey);
+                    checkEncryptionIsReversible(decryptedKey, reEncryptedKey, keyCrypter, newAesKey);
+                    return reEncryptedKey;
+                } finally {
+                    decryptedKey.clearPrivateKey();
+                }
+            }
+        };
+        List<ECKey> reEncryptedKeys = processKeys(currentKeys, reEncryptOperation, progressListener);
+
+        walletLock.lock();
+        try {
+            if (wallet.getKeyCrypter() != keyCrypter) {
+                throw new KeyCrypterException("The wallet encryption was changed whilst its keys were re-encrypted");
+            }
+            List<ECKey> keychain = wallet.getKeychain();
+            List<ECKey> keysNow = new ArrayList<ECKey>(keychain);
+            reEncryptedKeys = matchKeychain(keysNow, currentKeys, reEncryptedKeys, reEncryptOperation);
+
+            for (int i = 0; i < reEncryptedKeys.size(); i++) {
+                keychain.set(i, reEncryptedKeys.get(i));
+            }
+            if (!reEncryptedKeys.isEmpty() && !wallet.checkAESKey(newAesKey)) {
+                // Still encrypted with the current AES key, so put back the keys it can decrypt.
+                for (int i = 0; i < keysNow.size(); i++) {
+                    keychain.set(i, keysNow.get(i));
+                }
+                throw new KeyCrypterException("The re-encrypted keys were not taken up by the wallet");
+            }
+        } finally {
+            walletLock.unlock();
+        }
+    }
+
+    private static void checkIsUnencrypted(Wallet wallet) throws KeyCrypterException {
+        if (wallet.getEncryptionType() != EncryptionType.UNENCRYPTED) {
+            throw new KeyCrypterException("The wallet is already encrypted");
+        }
+    }
+
+    /**
+     * Line up the keys in the wallet now with the keys processed from an
+     * earlier copy of the keychain. Keys added since the copy was taken are
+     * processed here and keys removed since are dropped.
+     *
+     * @return the processed keys, in the order of the keychain now
+     */
+    private static List<ECKey> matchKeychain(List<ECKey> keysNow, List<ECKey> originalKeys, List<ECKey> processedKeys,
+            KeyOperation keyOperation) {
+        Map<ECKey, ECKey> originalToProcessedKeys = new IdentityHashMap<ECKey, ECKey>();
+        for (int i = 0; i < originalKeys.size(); i++) {
+            originalToProcessedKeys.put(originalKeys.get(i), processedKeys.get(i));
+        }
+
+        List<ECKey> matchedKeys = new ArrayList<ECKey>(keysNow.size());
+        for (ECKey key : keysNow) {
+            ECKey processedKey = originalToProcessedKeys.get(key);
+            if (processedKey == null) {
+                processedKey = keyOperation.process(key);
+            }
+            matchedKeys.add(processedKey);
+        }
+        return matchedKeys;
+    }
+
+    private static void checkEncryptionIsReversible(ECKey key, ECKey encryptedKey, KeyCrypter keyCrypter, KeyParameter aesKey) {
+        if (!ECKey.encryptionIsReversible(key, encryptedKey, keyCrypter, aesKey)) {
+            throw new KeyCrypterException("The key " + key.toString()
+                    + " cannot be successfully decrypted after encryption so aborting wallet encryption.");
+        }
+    }
+
+    private interface KeyOperation {
+        ECKey process(ECKey key);
+    }
+
+    /**
+     * Run the operation on each of the keys in batches on the key crypter threads.
+     *
+     * @return the processed keys, in the order of the keys
+     */
+    private static List<ECKey> processKeys(final List<ECKey> keys, final KeyOperation keyOperation,
+            final ProgressListener progressListener) throws KeyCrypterException {
+        final int numberOfKeys = keys.size();
+        final AtomicInteger numberOfKeysDone = new AtomicInteger(0);
+
+        List<Future<List<ECKey>>> batches = new ArrayList<Future<List<ECKey>>>();
+        try {
+            for (int batchStart = 0; batchStart < numberOfKeys; batchStart += KEYS_PER_BATCH) {
+                final int batchFrom = batchStart;
+                final int batchTo = Math.min(numberOfKeys, batchStart + KEYS_PER_BATCH);
+                batches.add(keyCrypterExecutor.submit(new Callable<List<ECKey>>() {
+                    @Override
+                    public List<ECKey> call() {
+                        List<ECKey> processedKeys = new ArrayList<ECKey>(batchTo - batchFrom);
+                        for (int keyIndex = batchFrom; keyIndex < batchTo; keyIndex++) {
+                            processedKeys.add(keyOperation.process(keys.get(keyIndex)));
+                        }
+                        int done = numberOfKeysDone.addAndGet(batchTo - batchFrom);
+                        if (progressListener != null) {
+                            progressListener.keysDone(done, numberOfKeys);
+                        }
+                        return processedKeys;
+                    }
+                }));
+            }
+
+            List<ECKey> processedKeys = new ArrayList<ECKey>(numberOfKeys);
+            for (Future<List<ECKey>> batch : batches) {
+                processedKeys.addAll(batch.get());
+            }
+            return processedKeys;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new KeyCrypterException("Interrupted whilst processing the wallet keys", ie);
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof KeyCrypterException) {
+                throw (KeyCrypterException) ee.getCause();
+            }
+            throw new KeyCrypterException("Could not process the wallet keys", ee.getCause());
+        } finally {
+            // Stop the remaining batches if one has failed.
+            for (Future<List<ECKey>> batch : batches) {
+                batch.cancel(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,408 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.file;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Catalog of the timestamped wallet backups in one backup directory, kept in
+ * <wallet>-data/<backup directory>.catalog.
+ *
+ * The backups are held in timestamp order, together with an index of how
+ * quickly each backup was replaced by the next one, so listing and thinning
+ * need no directory walk. The catalog records the last modified time of the
+ * backup directory - if the directory has been changed by anything other
+ * than the catalog's own updates the catalog is rebuilt from a scan.
+ *
+ * The format of the catalog file is:
+ * 4 magic bytes 'MBCT' in ASCII.
+ * 1 byte version number of format - initially set to 0
+ * 8 bytes last modified time of the backup directory
+ * 4 bytes number of backups
+ * for each backup: 8 bytes timestamp, modified UTF-8 filename
+ */
+public class BackupCatalog {
+    private static final Logger log = LoggerFactory.getLogger(BackupCatalog.class);
+
+    public static final String CATALOG_FILE_EXTENSION = "catalog";
+
+    public static final byte[] CATALOG_MAGIC_BYTES = new byte[] { (byte) 0x4D, (byte) 0x42, (byte) 0x43, (byte) 0x54 }; // MBCT in ASCII
+    public static final byte CATALOG_VERSION_NUMBER = (byte) 0x00;
+
+    private static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+
+    private final File backupDirectory;
+    private final File catalogFile;
+    private final DateFormat dateFormat = new SimpleDateFormat(BackupManager.BACKUP_SUFFIX_FORMAT);
+
+    /**
+     * The backups, oldest first.
+     */
+    private final TreeSet<Entry> entries = new TreeSet<Entry>();
+
+    /**
+     * The backups that have a later backup, ordered by how quickly they were replaced.
+     */
+    private final TreeSet<Entry> entriesByReplacementTime = new TreeSet<Entry>(new Comparator<Entry>() {
+        @Override
+        public int compare(Entry first, Entry second) {
+            if (first.replacementTimeMillis != second.replacementTimeMillis) {
+                return first.replacementTimeMillis < second.replacementTimeMillis ? -1 : 1;
+            }
+            return first.compareTo(second);
+        }
+    });
+
+    private boolean loaded = false;
+    private long directoryLastModified;
+
+    public BackupCatalog(File backupDirectory) {
+        this.backupDirectory = backupDirectory.getAbsoluteFile();
+        this.catalogFile = new File(this.backupDirectory.getParentFile(), this.backupDirectory.getName() + "." + CATALOG_FILE_EXTENSION);
+    }
+
+    /**
+     * @return The backup wallets in the directory, oldest first
+     */
+    public synchronized List<File> getBackups() {
+        ensureUpToDate();
+        List<File> backups = new ArrayList<File>(entries.size());
+        for (Entry entry : entries) {
+            backups.add(new File(backupDirectory, entry.filename));
+        }
+        return backups;
+    }
+
+    public synchronized int size() {
+        ensureUpToDate();
+        return entries.size();
+    }
+
+    /**
+     * Record that a file has been written to the backup directory.
+     *
+     * @param file
+     */
+    public synchronized void added(File file) {
+        ensureLoaded();
+        if (isBackupWallet(file.getName()) && file.length() > 0) {
+            Entry entry = createEntry(file.getName());
+            if (entry != null && !entries.contains(entry)) {
+                addEntry(entry);
+            }
+        }
+        directoryWritten();
+    }
+
+    /**
+     * Record that a file has been deleted from the backup directory.
+     *
+     * @param file
+     */
+    public synchronized void removed(File file) {
+        ensureLoaded();
+        Entry entry = createEntry(file.getName());
+        if (entry != null) {
+            // Use the catalog's own entry as it knows its replacement time.
+            Entry catalogEntry = entries.floor(entry);
+            if (catalogEntry != null && catalogEntry.equals(entry)) {
+                removeEntry(catalogEntry);
+            }
+        }
+        directoryWritten();
+    }
+
+    /**
+     * Find the backup to thin when there are at least maximumNumberOfBackups.
+     * This is the most quickly replaced backup, except for the first and last few
+     * (as they are considered to be more valuable backups).
+     *
+     * @param maximumNumberOfBackups
+     * @param numberOfFirstToKeep
+     * @param numberOfLastToKeep
+     * @return The backup to thin, or null if none should be thinned
+     */
+    public synchronized File findBackupToThin(int maximumNumberOfBackups, int numberOfFirstToKeep, int numberOfLastToKeep) {
+        ensureUpToDate();
+        if (entries.size() < maximumNumberOfBackups) {
+            // No thinning required.
+            return null;
+        }
+
+        // The last of the first backups to keep and the first of the last backups to keep.
+        Entry lastOfFirst = nth(entries.iterator(), numberOfFirstToKeep);
+        Entry firstOfLast = nth(entries.descendingIterator(), numberOfLastToKeep);
+
+        for (Entry entry : entriesByReplacementTime) {
+            if ((lastOfFirst != null && entry.compareTo(lastOfFirst) <= 0) || (firstOfLast != null && entry.compareTo(firstOfLast) >= 0)) {
+                continue;
+            }
+            // If there is a data directory for the backup then it may have been opened
+            // in MultiBit so we will skip considering it for deletion.
+            File backupFile = new File(backupDirectory, entry.filename);
+            if (!new File(BackupManager.INSTANCE.calculateTopLevelBackupDirectoryName(backupFile)).exists()) {
+                return backupFile;
+            }
+        }
+        return null;
+    }
+
+    private static Entry nth(Iterator<Entry> iterator, int n) {
+        Entry entry = null;
+        for (int i = 0; i < n && iterator.hasNext(); i++) {
+            entry = iterator.next();
+        }
+        return entry;
+    }
+
+    private void addEntry(Entry entry) {
+        Entry previous = entries.lower(entry);
+        Entry next = entries.higher(entry);
+        entries.add(entry);
+        if (previous != null) {
+            setReplacementTime(previous, entry);
+        }
+        setReplacementTime(entry, next);
+    }
+
+    private void removeEntry(Entry entry) {
+        Entry previous = entries.lower(entry);
+        Entry next = entries.higher(entry);
+        entriesByReplacementTime.remove(entry);
+        entries.remove(entry);
+        if (previous != null) {
+            setReplacementTime(previous, next);
+        }
+    }
+
+    private void setReplacementTime(Entry entry, Entry next) {
+        entriesByReplacementTime.remove(entry);
+        if (next != null) {
+            entry.replacementTimeMillis = next.timestamp - entry.timestamp;
+            entriesByReplacementTime.add(entry);
+        }
+    }
+
+    /**
+     * Load the catalog if necessary. Once it is loaded a change made by the caller is
+     * applied directly, even though the directory has already been changed.
+     */
+    private void ensureLoaded() {
+        if (!loaded) {
+            loaded = true;
+            if (read() && directoryLastModified == backupDirectory.lastModified()) {
+                return;
+            }
+            rebuild();
+        }
+    }
+
+    private void ensureUpToDate() {
+        if (!loaded) {
+            ensureLoaded();
+        } else if (directoryLastModified != backupDirectory.lastModified()) {
+            log.debug("Backup directory '" + backupDirectory.getAbsolutePath() + "' has been changed - rebuilding its catalog.");
+            rebuild();
+        }
+    }
+
+    private void rebuild() {
+        entries.clear();
+        entriesByReplacementTime.clear();
+
+        // Note the time before scanning so that a change during the scan is picked up next time.
+        long lastModifiedBeforeScan = backupDirectory.lastModified();
+        File[] listOfFiles = backupDirectory.listFiles();
+        if (listOfFiles != null) {
+            for (File file : listOfFiles) {
+                if (file.isFile() && isBackupWallet(file.getName()) && file.length() > 0) {
+                    Entry entry = createEntry(file.getName());
+                    if (entry != null) {
+                        addEntry(entry);
+                    }
+                }
+            }
+        }
+        directoryLastModified = lastModifiedBeforeScan;
+        write();
+    }
+
+    private void directoryWritten() {
+        directoryLastModified = backupDirectory.lastModified();
+        write();
+    }
+
+    /**
+     * Backups have a filename with format "text"-YYYYMMDDHHMMSS.wallet or
+     * "text"-YYYYMMDDHHMMSS.wallet.manifest (a backup in the chunk store).
+     */
+    private static boolean isBackupWallet(String filename) {
+        return filename.matches(BackupManager.REGEX_FOR_TIMESTAMP_AND_WALLET_SUFFIX)
+                || filename.matches(BackupManager.REGEX_FOR_TIMESTAMP_AND_WALLET_AND_MANIFEST_SUFFIX);
+    }
+
+    /**
+     * Work out the date the backup was made from its timestamp rather than the write time of the file.
+     */
+    private Entry createEntry(String filename) {
+        String walletFilename = filename;
+        String manifestSuffix = "." + BackupChunkStore.MANIFEST_SUFFIX;
+        if (walletFilename.endsWith(manifestSuffix)) {
+            walletFilename = walletFilename.substring(0, walletFilename.length() - manifestSuffix.length());
+        }
+        if (walletFilename.length() > 22) { // 22 = 1 for hyphen + 14 for timestamp + 1 for dot + 6 for wallet.
+            int startOfTimestamp = walletFilename.length() - 21; // 21 = 14 for timestamp + 1 for dot + 6 for wallet.
+            String timestampText = walletFilename.substring(startOfTimestamp, startOfTimestamp + BackupManager.BACKUP_SUFFIX_FORMAT.length());
+            try {
+                return new Entry(dateFormat.parse(timestampText).getTime(), filename);
+            } catch (ParseException pe) {
+                // Cannot parse text - may be some other type of file the user has put in the directory.
+                log.debug("For wallet '" + filename + " could not parse the timestamp of '" + timestampText + "'.");
+            }
+        }
+        return null;
+    }
+
+    private boolean read() {
+        if (!catalogFile.exists()) {
+            return false;
+        }
+        DataInputStream inputStream = null;
+        try {
+            inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(catalogFile)));
+            byte[] magicBytes = new byte[CATALOG_MAGIC_BYTES.length];
+            inputStream.readFully(magicBytes);
+            if (!Arrays.equals(CATALOG_MAGIC_BYTES, magicBytes) || inputStream.readByte() != CATALOG_VERSION_NUMBER) {
+                log.error("Backup catalog '" + catalogFile.getAbsolutePath() + "' is not recognised - rebuilding it.");
+                return false;
+            }
+            long lastModified = inputStream.readLong();
+            int numberOfEntries = inputStream.readInt();
+            for (int i = 0; i < numberOfEntries; i++) {
+                long timestamp = inputStream.readLong();
+                addEntry(new Entry(timestamp, inputStream.readUTF()));
+            }
+            directoryLastModified = lastModified;
+            return true;
+        } catch (IOException ioe) {
+            log.error("Backup catalog '" + catalogFile.getAbsolutePath() + "' could not be read - rebuilding it. "
+                    + ioe.getClass().getName() + " " + ioe.getMessage());
+            entries.clear();
+            entriesByReplacementTime.clear();
+            return false;
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException ioe) {
+                    log.error(ioe.getClass().getName() + " " + ioe.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the catalog. It can always be rebuilt from the backup directory so a failure is only logged.
+     */
+    private void write() {
+        if (!catalogFile.getParentFile().exists()) {
+            return;
+        }
+        File temporaryCatalogFile = null;
+        FileOutputStream fileOutputStream = null;
+        try {
+            temporaryCatalogFile = File.createTempFile(catalogFile.getName(), TEMPORARY_FILE_SUFFIX, catalogFile.getParentFile());
+            fileOutputStream = new FileOutputStream(temporaryCatalogFile);
+            DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(fileOutputStream));
+            outputStream.write(CATALOG_MAGIC_BYTES);
+            outputStream.writeByte(CATALOG_VERSION_NUMBER);
+            outputStream.writeLong(directoryLastModified);
+            outputStream.writeInt(entries.size());
+            for (Entry entry : entries) {
+                outputStream.writeLong(entry.timestamp);
+                outputStream.writeUTF(entry.filename);
+            }
+            outputStream.flush();
+            fileOutputStream.close();
+            fileOutputStream = null;
+
+            FileHandler.replaceFile(temporaryCatalogFile, catalogFile);
+            temporaryCatalogFile = null;
+        } catch (IOException ioe) {
+            log.error("Could not write backup catalog '" + catalogFile.getAbsolutePath() + "'. " + ioe.getClass().getName() + " "
+                    + ioe.getMessage());
+        } finally {
+            if (fileOutputStream != null) {
+                try {
+                    fileOutputStream.close();
+                } catch (IOException ioe) {
+                    log.error(ioe.getClass().getName() + " " + ioe.getMessage());
+                }
+            }
+            if (temporaryCatalogFile != null && temporaryCatalogFile.exists()) {
+                temporaryCatalogFile.delete();
+            }
+        }
+    }
+
+    private static class Entry implements Comparable<Entry> {
+        final long timestamp;
+        final String filename;
+        long replacementTimeMillis;
+
+        Entry(long timestamp, String filename) {
+            this.timestamp = timestamp;
+            this.filename = filename;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            if (timestamp != other.timestamp) {
+                return timestamp < other.timestamp ? -1 : 1;
+            }
+            return filename.compareTo(other.filename);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Entry && compareTo((Entry) other) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return filename.hashCode();
+        }
+    }
+}
@@ -0,0 +1,597 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.file;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.multibit.utils.FilePermissionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.Utils;
+
+/**
+ * Content addressed store for the wallet backups of one wallet.
+ *
+ * A backup is split into content defined chunks. Each chunk is compressed and stored once, named by the
+ * SHA-256 of its uncompressed bytes, in <wallet>-data/backup-chunks. The timestamped backup itself is a
+ * small manifest file listing its chunks, so backups that are mostly (or completely) the same as the previous
+ * one only cost a manifest. Removing a backup deletes its manifest and then secure deletes the chunks that no
+ * remaining manifest references.
+ *
+ * The number of manifests referencing each chunk is counted once, the first time the store is used, by reading
+ * every manifest. That sweep also secure deletes chunks left unreferenced, for instance by a backup that was
+ * interrupted. The counts are then kept up to date as backups are stored and removed, so neither reads any other
+ * manifest.
+ *
+ * The format of a manifest is:
+ * 4 magic bytes 'MBCK' in ASCII.
+ * 1 byte version number of format - initially set to 0
+ * 8 bytes length of the backed up content
+ * 32 bytes SHA-256 of the backed up content
+ * 4 bytes number of chunks
+ * for each chunk: 32 bytes SHA-256 of the chunk, 4 bytes length of the chunk
+ */
+public class BackupChunkStore {
+    private static final Logger log = LoggerFactory.getLogger(BackupChunkStore.class);
+
+    public static final String MANIFEST_SUFFIX = "manifest";
+
+    public static final byte[] MANIFEST_MAGIC_BYTES = new byte[] { (byte) 0x4D, (byte) 0x42, (byte) 0x43, (byte) 0x4B }; // MBCK in ASCII
+    public static final byte MANIFEST_VERSION_NUMBER = (byte) 0x00;
+
+    private static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+    private static final int HASH_LENGTH = 32;
+
+    /**
+     * Chunk boundaries are where the top 13 bits of a rolling gear hash are zero, giving chunks of about 8KB.
+     */
+    static final int MINIMUM_CHUNK_LENGTH = 2048;
+    static final int MAXIMUM_CHUNK_LENGTH = 65536;
+    private static final long CHUNK_BOUNDARY_MASK = 0xFFF8000000000000L;
+
+    /**
+     * The gear table must never change - if it did, new backups would no longer share chunks with old ones.
+     * (java.util.Random is specified to give the same sequence for the same seed.)
+     */
+    private static final long GEAR_SEED = 0x4D756C746942697EL;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(GEAR_SEED);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final File chunkDirectory;
+    private final File[] manifestDirectories;
+
+    /**
+     * The number of manifests that reference each chunk, by chunk name, or null if they need counting.
+     */
+    private Map<String, Integer> chunkReferenceCounts = null;
+
+    /**
+     * Set when a manifest could not be read whilst counting, so that the chunks cannot be told apart.
+     * No chunks are then deleted until collectGarbage succeeds.
+     */
+    private boolean manifestsAreDamaged = false;
+
+    /**
+     * @param chunkDirectory
+     *            the directory the chunks are stored in
+     * @param manifestDirectories
+     *            every directory that holds manifests referring to the chunks
+     */
+    public BackupChunkStore(File chunkDirectory, File[] manifestDirectories) {
+        this.chunkDirectory = chunkDirectory;
+        this.manifestDirectories = manifestDirectories;
+    }
+
+    public static boolean isManifest(File file) {
+        return file != null && file.getName().endsWith("." + MANIFEST_SUFFIX);
+    }
+
+    /**
+     * Store the content as a backup described by the manifest file.
+     * Only chunks that are not already in the store are written.
+     *
+     * @param manifestFile
+     * @param content
+     * @throws IOException
+     */
+    public synchronized void store(File manifestFile, byte[] content) throws IOException {
+        createDirectoryIfNecessary(chunkDirectory);
+        countReferencesIfNecessary();
+        Set<String> replacedChunks = manifestFile.exists() ? readChunkNamesOrForgetCounts(manifestFile) : null;
+
+        ByteArrayOutputStream manifestBytes = new ByteArrayOutputStream();
+        DataOutputStream manifest = new DataOutputStream(manifestBytes);
+        manifest.write(MANIFEST_MAGIC_BYTES);
+        manifest.writeByte(MANIFEST_VERSION_NUMBER);
+        manifest.writeLong(content.length);
+        manifest.write(sha256(content, 0, content.length));
+
+        List<Integer> chunkEnds = new ArrayList<Integer>();
+        int start = 0;
+        while (start < content.length) {
+            start = findChunkEnd(content, start);
+            chunkEnds.add(start);
+        }
+        manifest.writeInt(chunkEnds.size());
+
+        int newChunks = 0;
+        Set<String> storedChunks = new HashSet<String>();
+        start = 0;
+        for (int end : chunkEnds) {
+            byte[] chunkHash = sha256(content, start, end - start);
+            storedChunks.add(Utils.bytesToHexString(chunkHash));
+            if (writeChunkIfNecessary(chunkHash, content, start, end - start)) {
+                newChunks++;
+            }
+            manifest.write(chunkHash);
+            manifest.writeInt(end - start);
+            start = end;
+        }
+        manifest.flush();
+
+        writeAtomically(manifestBytes.toByteArray(), manifestFile);
+
+        if (chunkReferenceCounts != null) {
+            for (String chunkName : storedChunks) {
+                Integer referenceCount = chunkReferenceCounts.get(chunkName);
+                chunkReferenceCounts.put(chunkName, referenceCount == null ? 1 : referenceCount + 1);
+            }
+            if (replacedChunks != null) {
+                releaseChunks(replacedChunks);
+            }
+        }
+        log.debug("Backup '" + manifestFile.getAbsolutePath() + "' has " + chunkEnds.size() + " chunks of which " + newChunks
+                + " were new.");
+    }
+
+    /**
+     * Reassemble the content of the backup described by the manifest file.
+     *
+     * @param manifestFile
+     * @return the backed up bytes
+     * @throws IOException
+     *             if the manifest or any of its chunks is missing or damaged
+     */
+    public synchronized byte[] read(File manifestFile) throws IOException {
+        Manifest manifest = readManifest(manifestFile);
+        if (manifest.contentLength > FileHandler.MAX_FILE_SIZE) {
+            throw new IOException("Backup '" + manifestFile.getAbsolutePath() + "' is too large to input");
+        }
+
+        byte[] content = new byte[(int) manifest.contentLength];
+        int position = 0;
+        for (int i = 0; i < manifest.chunkHashes.size(); i++) {
+            byte[] chunkHash = manifest.chunkHashes.get(i);
+            int chunkLength = manifest.chunkLengths.get(i);
+            if (position + chunkLength > content.length) {
+                throw new IOException("Backup '" + manifestFile.getAbsolutePath() + "' has chunks longer than its content");
+            }
+            readChunk(chunkHash, content, position, chunkLength);
+            position += chunkLength;
+        }
+
+        if (position != content.length || !Arrays.equals(manifest.contentHash, sha256(content, 0, content.length))) {
+            throw new IOException("Backup '" + manifestFile.getAbsolutePath() + "' did not reassemble to its original content");
+        }
+        return content;
+    }
+
+    /**
+     * Open a stream on the content of the backup described by the manifest file. Only one chunk is held in memory
+     * at a time. Each chunk is checked as it is read and the whole content is checked at the end of the stream.
+     *
+     * @param manifestFile
+     * @return a stream on the backed up bytes
+     * @throws IOException
+     *             if the manifest is missing or damaged. A missing or damaged chunk is reported when it is read.
+     */
+    public synchronized InputStream openStream(File manifestFile) throws IOException {
+        return new ChunkInputStream(manifestFile, readManifest(manifestFile));
+    }
+
+    /**
+     * Remove the backup described by the manifest file and secure delete the chunks only it used.
+     *
+     * @param manifestFile
+     * @throws IOException
+     */
+    public synchronized void remove(File manifestFile) throws IOException {
+        if (!manifestFile.exists()) {
+            return;
+        }
+        countReferencesIfNecessary();
+        Set<String> removedChunks = readChunkNamesOrForgetCounts(manifestFile);
+        if (!manifestFile.delete()) {
+            throw new IOException("Could not delete backup '" + manifestFile.getAbsolutePath() + "'");
+        }
+        if (chunkReferenceCounts != null && removedChunks != null) {
+            releaseChunks(removedChunks);
+        }
+    }
+
+    /**
+     * Count the references to each chunk by reading every manifest and secure delete every chunk that is not
+     * referenced by a manifest. This is done the first time the store is used and repairs chunks left behind by
+     * a backup that did not complete. If any manifest cannot be read nothing is deleted, as its chunks cannot be
+     * told apart.
+     *
+     * @return the number of chunks deleted
+     * @throws IOException
+     */
+    public synchronized int collectGarbage() throws IOException {
+        chunkReferenceCounts = null;
+        Map<String, Integer> referencedChunks = new HashMap<String, Integer>();
+        for (File manifestDirectory : manifestDirectories) {
+            File[] files = manifestDirectory.listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                if (file.isFile() && isManifest(file)) {
+                    try {
+                        for (String chunkName : readChunkNames(file)) {
+                            Integer referenceCount = referencedChunks.get(chunkName);
+                            referencedChunks.put(chunkName, referenceCount == null ? 1 : referenceCount + 1);
+                        }
+                    } catch (IOException ioe) {
+                        log.error("Not removing any backup chunks as backup '" + file.getAbsolutePath() + "' could not be read. "
+                                + ioe.getClass().getName() + " " + ioe.getMessage());
+                        manifestsAreDamaged = true;
+                        return 0;
+                    }
+                }
+            }
+        }
+
+        int deletedChunks = 0;
+        File[] chunkSubDirectories = chunkDirectory.listFiles();
+        if (chunkSubDirectories != null) {
+            for (File chunkSubDirectory : chunkSubDirectories) {
+                File[] chunkFiles = chunkSubDirectory.listFiles();
+                if (chunkFiles == null) {
+                    continue;
+                }
+                for (File chunkFile : chunkFiles) {
+                    if (!referencedChunks.containsKey(chunkFile.getName())) {
+                        FileHandler.secureDelete(chunkFile);
+                        deletedChunks++;
+                    }
+                }
+            }
+        }
+        chunkReferenceCounts = referencedChunks;
+        manifestsAreDamaged = false;
+        log.debug("Removed " + deletedChunks + " unreferenced backup chunks from '" + chunkDirectory.getAbsolutePath() + "'");
+        return deletedChunks;
+    }
+
+    private void countReferencesIfNecessary() throws IOException {
+        if (chunkReferenceCounts == null && !manifestsAreDamaged) {
+            collectGarbage();
+        }
+    }
+
+    /**
+     * A manifest that is about to be replaced or removed could not be read, so its chunks cannot be released.
+     * The references are counted again the next time the store is used.
+     */
+    private Set<String> readChunkNamesOrForgetCounts(File manifestFile) {
+        try {
+            return readChunkNames(manifestFile);
+        } catch (IOException ioe) {
+            log.error("Backup '" + manifestFile.getAbsolutePath() + "' could not be read so its chunks will be counted again. "
+                    + ioe.getClass().getName() + " " + ioe.getMessage());
+            chunkReferenceCounts = null;
+            manifestsAreDamaged = false;
+            return null;
+        }
+    }
+
+    /**
+     * Remove a reference to each of the chunks and secure delete the chunks no manifest references any more.
+     */
+    private void releaseChunks(Set<String> chunkNames) throws IOException {
+        for (String chunkName : chunkNames) {
+            Integer referenceCount = chunkReferenceCounts.get(chunkName);
+            if (referenceCount == null) {
+                continue;
+            }
+            if (referenceCount > 1) {
+                chunkReferenceCounts.put(chunkName, referenceCount - 1);
+            } else {
+                chunkReferenceCounts.remove(chunkName);
+                File chunkFile = getChunkFile(chunkName);
+                if (chunkFile.exists()) {
+                    FileHandler.secureDelete(chunkFile);
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the end of the chunk starting at start, using a gear hash so that
+     * the boundaries move with the content rather than with the offset.
+     */
+    static int findChunkEnd(byte[] content, int start) {
+        int end = Math.min(content.length, start + MAXIMUM_CHUNK_LENGTH);
+        if (end - start <= MINIMUM_CHUNK_LENGTH) {
+            return end;
+        }
+        long hash = 0;
+        for (int i = start + MINIMUM_CHUNK_LENGTH; i < end; i++) {
+            hash = (hash << 1) + GEAR[content[i] & 0xFF];
+            if ((hash & CHUNK_BOUNDARY_MASK) == 0) {
+                return i + 1;
+            }
+        }
+        return end;
+    }
+
+    File getChunkFile(byte[] chunkHash) {
+        return getChunkFile(Utils.bytesToHexString(chunkHash));
+    }
+
+    private File getChunkFile(String chunkName) {
+        return new File(chunkDirectory, chunkName.substring(0, 2) + File.separator + chunkName);
+    }
+
+    private boolean writeChunkIfNecessary(byte[] chunkHash, byte[] content, int offset, int length) throws IOException {
+        File chunkFile = getChunkFile(chunkHash);
+        if (chunkFile.exists()) {
+            return false;
+        }
+        createDirectoryIfNecessary(chunkFile.getParentFile());
+
+        ByteArrayOutputStream compressedBytes = new ByteArrayOutputStream(length / 2 + 64);
+        DeflaterOutputStream deflaterOutputStream = new DeflaterOutputStream(compressedBytes, new Deflater(Deflater.BEST_COMPRESSION));
+        deflaterOutputStream.write(content, offset, length);
+        deflaterOutputStream.close();
+
+        writeAtomically(compressedBytes.toByteArray(), chunkFile);
+        return true;
+    }
+
+    private void readChunk(byte[] chunkHash, byte[] content, int offset, int length) throws IOException {
+        File chunkFile = getChunkFile(chunkHash);
+        if (!chunkFile.exists()) {
+            throw new IOException("Backup chunk '" + chunkFile.getAbsolutePath() + "' is missing");
+        }
+
+        InputStream inputStream = new InflaterInputStream(new BufferedInputStream(new FileInputStream(chunkFile)));
+        try {
+            int position = 0;
+            while (position < length) {
+                int read = inputStream.read(content, offset + position, length - position);
+                if (read == -1) {
+                    break;
+                }
+                position += read;
+            }
+            if (position != length || inputStream.read() != -1) {
+                throw new IOException("Backup chunk '" + chunkFile.getAbsolutePath() + "' has the wrong length");
+            }
+        } finally {
+            inputStream.close();
+        }
+
+        if (!Arrays.equals(chunkHash, sha256(content, offset, length))) {
+            throw new IOException("Backup chunk '" + chunkFile.getAbsolutePath() + "' is damaged");
+        }
+    }
+
+    /**
+     * @return the names of the different chunks the manifest references
+     */
+    private Set<String> readChunkNames(File manifestFile) throws IOException {
+        Set<String> chunkNames = new HashSet<String>();
+        for (byte[] chunkHash : readManifest(manifestFile).chunkHashes) {
+            chunkNames.add(Utils.bytesToHexString(chunkHash));
+        }
+        return chunkNames;
+    }
+
+    private Manifest readManifest(File manifestFile) throws IOException {
+        DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(manifestFile)));
+        try {
+            byte[] magicBytes = new byte[MANIFEST_MAGIC_BYTES.length];
+            inputStream.readFully(magicBytes);
+            if (!Arrays.equals(MANIFEST_MAGIC_BYTES, magicBytes)) {
+                throw new IOException("Backup '" + manifestFile.getAbsolutePath() + "' did not start with the correct magic bytes.");
+            }
+            byte versionNumber = inputStream.readByte();
+            if (versionNumber != MANIFEST_VERSION_NUMBER) {
+                throw new IOException("Backup '" + manifestFile.getAbsolutePath() + "' did not have the expected version number of "
+                        + MANIFEST_VERSION_NUMBER + ". It was " + versionNumber);
+            }
+
+            Manifest manifest = new Manifest();
+            manifest.contentLength = inputStream.readLong();
+            inputStream.readFully(manifest.contentHash);
+            int numberOfChunks = inputStream.readInt();
+            if (numberOfChunks < 0 || (long) numberOfChunks * (HASH_LENGTH + 4) > manifestFile.length()) {
+                throw new IOException("Backup '" + manifestFile.getAbsolutePath() + "' has a bad number of chunks");
+            }
+            for (int i = 0; i < numberOfChunks; i++) {
+                byte[] chunkHash = new byte[HASH_LENGTH];
+                inputStream.readFully(chunkHash);
+                manifest.chunkHashes.add(chunkHash);
+                manifest.chunkLengths.add(inputStream.readInt());
+            }
+            return manifest;
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Write to a temporary file in the same directory, sync it and rename it into place.
+     */
+    private static void writeAtomically(byte[] bytes, File destinationFile) throws IOException {
+        File temporaryFile = File.createTempFile(destinationFile.getName(), TEMPORARY_FILE_SUFFIX, destinationFile.getAbsoluteFile()
+                .getParentFile());
+        FileOutputStream fileOutputStream = null;
+        try {
+            FilePermissionUtils.setWalletPermission(temporaryFile);
+            fileOutputStream = new FileOutputStream(temporaryFile);
+            BufferedOutputStream outputStream = new BufferedOutputStream(fileOutputStream);
+            outputStream.write(bytes);
+            outputStream.flush();
+            fileOutputStream.getFD().sync();
+            fileOutputStream.close();
+            fileOutputStream = null;
+
+            FileHandler.replaceFile(temporaryFile, destinationFile);
+            temporaryFile = null;
+        } finally {
+            if (fileOutputStream != null) {
+                fileOutputStream.close();
+            }
+            if (temporaryFile != null && temporaryFile.exists()) {
+                temporaryFile.delete();
+            }
+        }
+    }
+
+    private static byte[] sha256(byte[] bytes, int offset, int length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(bytes, offset, length);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e); // Cannot happen.
+        }
+    }
+
+    private static void createDirectoryIfNecessary(File directory) throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Could not create directory '" + directory.getAbsolutePath() + "'");
+        }
+    }
+
+    /**
+     * Reads the content of a backup one chunk at a time.
+     */
+    private class ChunkInputStream extends InputStream {
+        private final File manifestFile;
+        private final Manifest manifest;
+        private final MessageDigest contentDigest;
+
+        private int nextChunk = 0;
+        private long contentRead = 0;
+        private byte[] chunk = new byte[0];
+        private int chunkPosition = 0;
+        private boolean checked = false;
+
+        ChunkInputStream(File manifestFile, Manifest manifest) {
+            this.manifestFile = manifestFile;
+            this.manifest = manifest;
+            try {
+                contentDigest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e); // Cannot happen.
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] singleByte = new byte[1];
+            return read(singleByte, 0, 1) == -1 ? -1 : singleByte[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (chunkPosition == chunk.length && !readNextChunk()) {
+                return -1;
+            }
+            int bytesToCopy = Math.min(length, chunk.length - chunkPosition);
+            System.arraycopy(chunk, chunkPosition, bytes, offset, bytesToCopy);
+            chunkPosition += bytesToCopy;
+            return bytesToCopy;
+        }
+
+        @Override
+        public int available() {
+            return chunk.length - chunkPosition;
+        }
+
+        /**
+         * @return false at the end of the content, once it has been checked
+         */
+        private boolean readNextChunk() throws IOException {
+            while (nextChunk < manifest.chunkHashes.size()) {
+                int chunkLength = manifest.chunkLengths.get(nextChunk);
+                if (chunkLength < 0 || contentRead + chunkLength > manifest.contentLength) {
+                    throw new IOException("Backup '" + manifestFile.getAbsolutePath() + "' has chunks longer than its content");
+                }
+                chunk = new byte[chunkLength];
+                readChunk(manifest.chunkHashes.get(nextChunk), chunk, 0, chunkLength);
+                nextChunk++;
+                contentRead += chunkLength;
+                contentDigest.update(chunk);
+                chunkPosition = 0;
+                if (chunkLength > 0) {
+                    return true;
+                }
+            }
+            if (!checked) {
+                if (contentRead != manifest.contentLength || !Arrays.equals(manifest.contentHash, contentDigest.digest())) {
+                    throw new IOException("Backup '" + manifestFile.getAbsolutePath() + "' did not reassemble to its original content");
+                }
+                checked = true;
+            }
+            return false;
+        }
+    }
+
+    private static class Manifest {
+        long contentLength;
+        final byte[] contentHash = new byte[HASH_LENGTH];
+        final List<byte[]> chunkHashes = new ArrayList<byte[]>();
+        final List<Integer> chunkLengths = new ArrayList<Integer>();
+    }
+}
@@ -1,14 +1,22 @@
 package org.multibit.file;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.text.DateFormat;
-import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -17,15 +25,22 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.bitcoinj.wallet.Protos;
 import org.bitcoinj.wallet.Protos.ScryptParameters;
 import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
+import org.multibit.crypto.DerivedKeyCache;
 import org.multibit.model.bitcoin.BitcoinModel;
 import org.multibit.model.bitcoin.WalletData;
 import org.multibit.model.bitcoin.WalletInfoData;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.spongycastle.crypto.InvalidCipherTextException;
+import org.spongycastle.crypto.engines.AESFastEngine;
+import org.spongycastle.crypto.modes.GCMBlockCipher;
+import org.spongycastle.crypto.params.AEADParameters;
+import org.spongycastle.crypto.params.KeyParameter;
 import org.spongycastle.util.Arrays;
 
 import com.google.bitcoin.core.Utils;
@@ -58,6 +73,7 @@ public enum BackupManager {
     public static final String ROLLING_WALLET_BACKUP_DIRECTORY_NAME = "rolling-backup";
     public static final String ENCRYPTED_WALLET_BACKUP_DIRECTORY_NAME = "wallet-backup";
     public static final String UNENCRYPTED_WALLET_BACKUP_DIRECTORY_NAME = "wallet-unenc-backup";
+    public static final String BACKUP_CHUNK_DIRECTORY_NAME = "backup-chunks";
 
     public static final int MAXIMUM_NUMBER_OF_BACKUPS = 60; // Chosen so that you will have about weekly backups for a year, fortnightly over two years.
     public static final int NUMBER_OF_FIRST_WALLETS_TO_ALWAYS_KEEP = 2; 
@@ -67,6 +83,7 @@ public enum BackupManager {
     public static final String REGEX_FOR_WALLET_SUFFIX = ".*\\.wallet$";
     public static final String REGEX_FOR_TIMESTAMP_AND_KEY_SUFFIX = ".*-\\d{" + BACKUP_SUFFIX_FORMAT.length() + "}\\.key$";
     public static final String REGEX_FOR_TIMESTAMP_AND_WALLET_SUFFIX = ".*-\\d{" + BACKUP_SUFFIX_FORMAT.length() + "}\\.wallet$";
+    public static final String REGEX_FOR_TIMESTAMP_AND_WALLET_AND_MANIFEST_SUFFIX = ".*-\\d{" + BACKUP_SUFFIX_FORMAT.length() + "}\\.wallet\\.manifest$";
     public static final String REGEX_FOR_TIMESTAMP_AND_INFO_SUFFIX = ".*-\\d{" + BACKUP_SUFFIX_FORMAT.length() + "}\\.info$";
     public static final String REGEX_FOR_TIMESTAMP_AND_WALLET_AND_CIPHER_SUFFIX = ".*-\\d{" + BACKUP_SUFFIX_FORMAT.length() + "}\\.wallet\\.cipher$";
     public static final int EXPECTED_LENGTH_OF_SALT = 8;
@@ -75,8 +92,23 @@ public enum BackupManager {
     public static final String INFO_FILE_SUFFIX_STRING = "info";
     public static final String FILE_ENCRYPTED_WALLET_SUFFIX = "cipher";
     public static final byte FILE_ENCRYPTED_VERSION_NUMBER = (byte) 0x00;
+    public static final byte FILE_ENCRYPTED_STREAMING_VERSION_NUMBER = (byte) 0x01;
+    public static final int ENCRYPTED_FILE_CHUNK_LENGTH = 65536;
+    private static final int ENCRYPTED_FILE_NONCE_PREFIX_LENGTH = 8;
+    private static final int ENCRYPTED_FILE_TAG_LENGTH = 16;
 
     public static final byte[] ENCRYPTED_FILE_FORMAT_MAGIC_BYTES = new byte[]{(byte) 0x6D, (byte) 0x65, (byte) 0x6E, (byte) 0x64, (byte) 0x6F, (byte) 0x7A, (byte) 0x61}; // mendoza in ASCII
+
+    /**
+     * The backup chunk store of each wallet, keyed by its top level backup directory.
+     * There is one store per wallet so that all writes to it are serialised.
+     */
+    private final Map<String, BackupChunkStore> chunkStores = new ConcurrentHashMap<String, BackupChunkStore>();
+
+    /**
+     * The catalog of each backup directory, keyed by the directory.
+     */
+    private final Map<String, BackupCatalog> catalogs = new ConcurrentHashMap<String, BackupCatalog>();
      
     /**
      * Backup the perWalletModelData to the <wallet>-data/wallet-backup (encrypted) or wallet-unenc-backup (unencrypted) directories.
@@ -96,16 +128,19 @@ public enum BackupManager {
             } else {
                 backupSuffixText = ENCRYPTED_WALLET_BACKUP_DIRECTORY_NAME;
             }
-            String walletBackupFilename = createBackupFilename(new File(perWalletModelData.getWalletFilename()), backupSuffixText, true, false, BitcoinModel.WALLET_FILE_EXTENSION);
+            String walletBackupFilename = createBackupFilename(new File(perWalletModelData.getWalletFilename()), backupSuffixText, true, false, BitcoinModel.WALLET_FILE_EXTENSION)
+                    + "." + BackupChunkStore.MANIFEST_SUFFIX;
             perWalletModelData.setWalletBackupFilename(walletBackupFilename);
 
-            String walletInfoBackupFilename = walletBackupFilename.replaceAll(BitcoinModel.WALLET_FILE_EXTENSION + "$", INFO_FILE_SUFFIX_STRING);
+            String walletInfoBackupFilename = createWalletInfoBackupFilename(walletBackupFilename);
             perWalletModelData.setWalletInfoBackupFilename(walletInfoBackupFilename);
 
             // If the backup directory is needs thinning, do so.
             thinBackupDirectory(perWalletModelData.getWalletFilename(), backupSuffixText);
             
-            fileHandler.saveWalletAndWalletInfoSimple(perWalletModelData, walletBackupFilename, walletInfoBackupFilename);
+            // Only the chunks that have changed since the previous backup are written.
+            fileHandler.saveWalletAndWalletInfoToBackup(perWalletModelData, new File(walletBackupFilename), new File(walletInfoBackupFilename));
+            backupAdded(new File(walletBackupFilename));
 
             log.info("Written backup wallet files to '" + walletBackupFilename + "', '" + walletInfoBackupFilename + "'");
         } catch (IOException ioe) {
@@ -125,9 +160,14 @@ public enum BackupManager {
         // Copy and encrypt each file and secure delete the original.
         for (File loopFile : unencryptedWalletBackups) {
             try {
-                String encryptedFilename = loopFile.getAbsolutePath() + "." + FILE_ENCRYPTED_WALLET_SUFFIX;
-                copyFileAndEncrypt(loopFile, new File(encryptedFilename), passwordToUse);
-                FileHandler.secureDelete(loopFile);
+                String encryptedFilename = removeManifestSuffix(loopFile.getAbsolutePath()) + "." + FILE_ENCRYPTED_WALLET_SUFFIX;
+                InputStream backupStream = openBackup(loopFile);
+                try {
+                    copyStreamAndEncrypt(backupStream, loopFile, new File(encryptedFilename), passwordToUse);
+                } finally {
+                    backupStream.close();
+                }
+                deleteBackup(loopFile);
             } catch (IOException ioe) {
                 log.error(ioe.getClass().getName() + " " + ioe.getMessage());
             } catch (IllegalArgumentException iae) {
@@ -140,6 +180,154 @@ public enum BackupManager {
         }
     }
     
+    /**
+     * Get the backup chunk store of a wallet, creating it if necessary.
+     * 
+     * @param walletFile
+     */
+    public BackupChunkStore getChunkStore(File walletFile) {
+        String topLevelBackupDirectoryName = calculateTopLevelBackupDirectoryName(walletFile);
+        BackupChunkStore chunkStore = chunkStores.get(topLevelBackupDirectoryName);
+        if (chunkStore == null) {
+            synchronized (chunkStores) {
+                chunkStore = chunkStores.get(topLevelBackupDirectoryName);
+                if (chunkStore == null) {
+                    File[] manifestDirectories = new File[] {
+                            new File(topLevelBackupDirectoryName + File.separator + ROLLING_WALLET_BACKUP_DIRECTORY_NAME),
+                            new File(topLevelBackupDirectoryName + File.separator + UNENCRYPTED_WALLET_BACKUP_DIRECTORY_NAME),
+                            new File(topLevelBackupDirectoryName + File.separator + ENCRYPTED_WALLET_BACKUP_DIRECTORY_NAME) };
+                    chunkStore = new BackupChunkStore(new File(topLevelBackupDirectoryName + File.separator + BACKUP_CHUNK_DIRECTORY_NAME),
+                            manifestDirectories);
+                    chunkStores.put(topLevelBackupDirectoryName, chunkStore);
+                }
+            }
+        }
+        return chunkStore;
+    }
+
+    /**
+     * Read the contents of a backup, which is either a manifest in the backup chunk store or a plain copy.
+     * 
+     * @param backupFile
+     * @throws IOException
+     */
+    public byte[] readBackup(File backupFile) throws IOException {
+        if (BackupChunkStore.isManifest(backupFile)) {
+            return getChunkStore(findWalletFileForBackup(backupFile)).read(backupFile);
+        } else {
+            return FileHandler.read(backupFile);
+        }
+    }
+
+    /**
+     * Open a stream on the contents of a backup, which is either a manifest in the backup chunk store or a plain copy.
+     * 
+     * @param backupFile
+     * @throws IOException
+     */
+    public InputStream openBackup(File backupFile) throws IOException {
+        if (BackupChunkStore.isManifest(backupFile)) {
+            return getChunkStore(findWalletFileForBackup(backupFile)).openStream(backupFile);
+        } else {
+            return new BufferedInputStream(new FileInputStream(backupFile));
+        }
+    }
+
+    /**
+     * Delete a backup. For a backup in the backup chunk store only the chunks no other backup uses are secure deleted,
+     * a plain copy is secure deleted completely.
+     * 
+     * @param backupFile
+     * @throws IOException
+     */
+    public void deleteBackup(File backupFile) throws IOException {
+        if (backupFile == null) {
+            return;
+        }
+        if (BackupChunkStore.isManifest(backupFile)) {
+            getChunkStore(findWalletFileForBackup(backupFile)).remove(backupFile);
+        } else {
+            FileHandler.secureDelete(backupFile);
+        }
+        backupRemoved(backupFile);
+    }
+
+    /**
+     * Get the catalog of one of the backup directories of a wallet, loading it if necessary.
+     * 
+     * @param walletFilename
+     * @param directorySuffix
+     */
+    BackupCatalog getCatalog(String walletFilename, String directorySuffix) {
+        File backupDirectory = new File(calculateTopLevelBackupDirectoryName(new File(walletFilename)) + File.separator + directorySuffix);
+        String backupDirectoryName = backupDirectory.getAbsolutePath();
+        BackupCatalog catalog = catalogs.get(backupDirectoryName);
+        if (catalog == null) {
+            synchronized (catalogs) {
+                catalog = catalogs.get(backupDirectoryName);
+                if (catalog == null) {
+                    catalog = new BackupCatalog(backupDirectory);
+                    catalogs.put(backupDirectoryName, catalog);
+                }
+            }
+        }
+        return catalog;
+    }
+
+    /**
+     * Tell the catalog of the backup's directory, if it is loaded, that the backup has been written.
+     * (A catalog that is not loaded notices the change in the directory when it is next loaded).
+     * 
+     * @param backupFile
+     */
+    void backupAdded(File backupFile) {
+        BackupCatalog catalog = catalogs.get(backupFile.getAbsoluteFile().getParent());
+        if (catalog != null) {
+            catalog.added(backupFile);
+        }
+    }
+
+    /**
+     * Tell the catalog of the backup's directory, if it is loaded, that the backup has been deleted.
+     * 
+     * @param backupFile
+     */
+    void backupRemoved(File backupFile) {
+        BackupCatalog catalog = catalogs.get(backupFile.getAbsoluteFile().getParent());
+        if (catalog != null) {
+            catalog.removed(backupFile);
+        }
+    }
+
+    /**
+     * Work out the wallet a backup in <wallet>-data/<backup directory> belongs to.
+     */
+    private File findWalletFileForBackup(File backupFile) {
+        String topLevelBackupDirectoryName = backupFile.getAbsoluteFile().getParentFile().getParent();
+        return new File(topLevelBackupDirectoryName.substring(0, topLevelBackupDirectoryName.length()
+                - TOP_LEVEL_WALLET_BACKUP_SUFFIX.length()) + "." + BitcoinModel.WALLET_FILE_EXTENSION);
+    }
+
+    private String removeManifestSuffix(String filename) {
+        String manifestSuffix = "." + BackupChunkStore.MANIFEST_SUFFIX;
+        if (filename.endsWith(manifestSuffix)) {
+            return filename.substring(0, filename.length() - manifestSuffix.length());
+        }
+        return filename;
+    }
+
+    /**
+     * Create the name of the wallet info backup that goes with a wallet backup.
+     */
+    String createWalletInfoBackupFilename(String walletBackupFilename) {
+        String walletInfoBackupFilename = removeManifestSuffix(walletBackupFilename).replaceAll(BitcoinModel.WALLET_FILE_EXTENSION + "$",
+                INFO_FILE_SUFFIX_STRING);
+        if (BackupChunkStore.isManifest(new File(walletBackupFilename))) {
+            walletInfoBackupFilename = walletInfoBackupFilename + "." + BackupChunkStore.MANIFEST_SUFFIX;
+        }
+        return walletInfoBackupFilename;
+    }
+
     /**
      * Create a backup filename the format is: original file: filename.suffix.
      * backup file: 
@@ -215,82 +403,29 @@ public enum BackupManager {
      * @param backupDirectoryName
      */
     void thinBackupDirectory(String walletFilename, String backupSuffixText) {
-        if (dateFormat == null) {
-            dateFormat = new SimpleDateFormat(BACKUP_SUFFIX_FORMAT);
-        }
-        
         if (walletFilename == null || backupSuffixText == null) {
             return;
         }
         
-        // Find out how many wallet backups there are.
-        List<File> backupWallets = getWalletsInBackupDirectory(walletFilename, backupSuffixText);
-        
-        if (backupWallets.size() < MAXIMUM_NUMBER_OF_BACKUPS) {
-            // No thinning required.
-            return;
-        }
-        
-        // Work out the date the backup was made for each of the wallet.
-        // This is done using the timestamp rather than the write time of the file.
-        Map<File, Date> mapOfFileToBackupTimes = new HashMap<File, Date>();
-        for (int i = 0; i < backupWallets.size(); i++) {
-            String filename = backupWallets.get(i).getName();
-            if (filename.length() > 22) { // 22 = 1 for hyphen + 14 for timestamp + 1 for dot + 6 for wallet.
-                int startOfTimestamp = filename.length() - 21; // 21 = 14 for timestamp + 1 for dot + 6 for wallet.
-                String timestampText = filename.substring(startOfTimestamp, startOfTimestamp + BACKUP_SUFFIX_FORMAT.length() );
-                try {
-                    Date parsedTimestamp = dateFormat.parse(timestampText);
-                    mapOfFileToBackupTimes.put(backupWallets.get(i), parsedTimestamp);
-                } catch (ParseException pe) {
-                    // Cannot parse text - may be some other type of file the user has put in the directory.
-                    log.debug("For wallet '" + filename + " could not parse the timestamp of '" + timestampText + "'.");
-                }
-            }
-        }
-
-        // See which wallet is most quickly replaced by another backup - this will be thinned.
-        int walletBackupToDeleteIndex = -1; // Not set yet.
-        long walletBackupToDeleteReplacementTimeMillis = Integer.MAX_VALUE; // How quickly the wallet was replaced by a later one.
-        
-        for (int i = 0; i < backupWallets.size(); i++) {
-            if ((i < NUMBER_OF_FIRST_WALLETS_TO_ALWAYS_KEEP)
-                    || (i >= backupWallets.size() - NUMBER_OF_LAST_WALLETS_TO_ALWAYS_KEEP)) {
-                // Keep the very first and last wallets always.
-            } else {
-                // If there is a data directory for the backup then it may have been opened
-                // in MultiBit so we will skip considering it for deletion.
-                String possibleDataDirectory = calculateTopLevelBackupDirectoryName(backupWallets.get(i));
-                boolean theWalletHasADataDirectory = (new File(possibleDataDirectory)).exists();
-
-                // Work out how quickly the wallet is replaced by the next backup.
-                Date thisWalletTimestamp = mapOfFileToBackupTimes.get(backupWallets.get(i));
-                Date nextWalletTimestamp = mapOfFileToBackupTimes.get(backupWallets.get(i + 1));
-                if (thisWalletTimestamp != null && nextWalletTimestamp != null) {
-                    long deltaTimeMillis = nextWalletTimestamp.getTime() - thisWalletTimestamp.getTime();
-                    if (deltaTimeMillis < walletBackupToDeleteReplacementTimeMillis && !theWalletHasADataDirectory) {
-                        // This is the best candidate for deletion so far.
-                        walletBackupToDeleteIndex = i;
-                        walletBackupToDeleteReplacementTimeMillis = deltaTimeMillis;
-                    }
-                }
-            }
-        }
+        // The catalog keeps the backups ordered by how quickly they were replaced by another backup.
+        File walletBackupToDelete = getCatalog(walletFilename, backupSuffixText).findBackupToThin(MAXIMUM_NUMBER_OF_BACKUPS,
+                NUMBER_OF_FIRST_WALLETS_TO_ALWAYS_KEEP, NUMBER_OF_LAST_WALLETS_TO_ALWAYS_KEEP);
         
-        if (walletBackupToDeleteIndex > -1) {
+        if (walletBackupToDelete != null) {
            try {
-                // Secure delete the chosen backup wallet and its info file if present.
-                log.debug("To save space, secure deleting backup wallet '"
-                        + backupWallets.get(walletBackupToDeleteIndex).getAbsolutePath() + "'.");
-                FileHandler.secureDelete(backupWallets.get(walletBackupToDeleteIndex));
-
-                String walletInfoBackupFilename = backupWallets.get(walletBackupToDeleteIndex).getAbsolutePath()
-                        .replaceAll(BitcoinModel.WALLET_FILE_EXTENSION + "$", INFO_FILE_SUFFIX_STRING);
-                File walletInfoBackup = new File(walletInfoBackupFilename);
+                // Delete the chosen backup wallet and its info file if present.
+                // For backups in the chunk store this only removes the manifests and the chunks no other backup uses.
+                log.debug("To save space, deleting backup wallet '" + walletBackupToDelete.getAbsolutePath() + "'.");
+                File walletInfoBackup = new File(createWalletInfoBackupFilename(walletBackupToDelete.getAbsolutePath()));
                 if (walletInfoBackup.exists()) {
-                    log.debug("To save space, secure deleting backup info file '" + walletInfoBackup.getAbsolutePath() + "'.");
-                    FileHandler.secureDelete(walletInfoBackup);
+                    log.debug("To save space, deleting backup info file '" + walletInfoBackup.getAbsolutePath() + "'.");
+                    if (BackupChunkStore.isManifest(walletInfoBackup)) {
+                        getChunkStore(findWalletFileForBackup(walletInfoBackup)).remove(walletInfoBackup);
+                    } else {
+                        FileHandler.secureDelete(walletInfoBackup);
+                    }
                 }
+                deleteBackup(walletBackupToDelete);
             } catch (IOException ioe) {
                 log.error(ioe.getClass().getName() + " " + ioe.getMessage());
             }
@@ -298,6 +433,30 @@ public enum BackupManager {
     }
         
     void copyFileAndEncrypt(File sourceFile, File destinationFile, CharSequence passwordToUse) throws IOException {
+        InputStream sourceStream = new FileInputStream(sourceFile);
+        try {
+            copyStreamAndEncrypt(sourceStream, sourceFile, destinationFile, passwordToUse);
+        } finally {
+            sourceStream.close();
+        }
+    }
+
+    /**
+     * Encrypt the source to the destination file chunk by chunk, so only one chunk of the source is held in memory.
+     * 
+     * The format of the encrypted data is:
+     * 7 magic bytes 'mendoza' in ASCII.
+     * 1 byte version number of format - 1 (version 0 files are still read)
+     * 8 bytes salt
+     * 8 bytes nonce prefix
+     * then for each chunk of up to ENCRYPTED_FILE_CHUNK_LENGTH bytes of source:
+     * 1 byte set to 1 for the last chunk, 0 otherwise
+     * 4 bytes length of the encrypted chunk
+     * the AES-256-GCM encrypted chunk, including its 16 byte authentication tag.
+     * The nonce of each chunk is the nonce prefix followed by the 4 byte chunk number, and the
+     * last chunk flag is authenticated too, so chunks cannot be reordered, dropped or truncated.
+     */
+    private void copyStreamAndEncrypt(InputStream sourceStream, File sourceFile, File destinationFile, CharSequence passwordToUse) throws IOException {
         if (passwordToUse == null || passwordToUse.length() == 0) {
             throw new IllegalArgumentException("Password cannot be blank");
         }
@@ -311,95 +470,241 @@ public enum BackupManager {
             }
         }
         
-        // Read in the source file.
-        byte[] sourceFileUnencrypted = FileHandler.read(sourceFile);
-
-        // Encrypt the data.
-        byte[] salt = new byte[KeyCrypterScrypt.SALT_LENGTH];
-        secureRandom.nextBytes(salt);
+        // Whilst derived keys are cached the salt is reused, so encrypting several backups derives the key once.
+        // Each file has its own random nonce prefix.
+        byte[] salt = DerivedKeyCache.INSTANCE.getEncryptionSalt(passwordToUse, KeyCrypterScrypt.SALT_LENGTH, secureRandom);
+        byte[] noncePrefix = new byte[ENCRYPTED_FILE_NONCE_PREFIX_LENGTH];
+        secureRandom.nextBytes(noncePrefix);
         
         Protos.ScryptParameters.Builder scryptParametersBuilder = Protos.ScryptParameters.newBuilder()
         .setSalt(ByteString.copyFrom(salt));
         ScryptParameters scryptParameters = scryptParametersBuilder.build();
         KeyCrypterScrypt keyCrypter = new KeyCrypterScrypt(scryptParameters);
-        EncryptedPrivateKey encryptedData = keyCrypter.encrypt(sourceFileUnencrypted, keyCrypter.deriveKey(passwordToUse));
-        
-        // The format of the encrypted data is:
-        // 7 magic bytes 'mendoza' in ASCII.
-        // 1 byte version number of format - initially set to 0
-        // 8 bytes salt
-        // 16 bytes iv
-        // rest of file is the encrypted byte data
+        KeyParameter aesKey = DerivedKeyCache.INSTANCE.deriveKey(keyCrypter, passwordToUse);
         
+        // Everything written is also hashed, so the file can be checked by reading it back
+        // without decrypting it again.
+        MessageDigest writtenDigest = createSha256Digest();
         FileOutputStream fileOutputStream = null;
         try {
             FilePermissionUtils.setWalletPermission( destinationFile );
             fileOutputStream = new FileOutputStream(destinationFile);
-            fileOutputStream.write(ENCRYPTED_FILE_FORMAT_MAGIC_BYTES);
+            DataOutputStream outputStream = new DataOutputStream(new DigestOutputStream(new BufferedOutputStream(fileOutputStream), writtenDigest));
+            outputStream.write(ENCRYPTED_FILE_FORMAT_MAGIC_BYTES);
             
             // file format version.
-            fileOutputStream.write(FILE_ENCRYPTED_VERSION_NUMBER);
+            outputStream.write(FILE_ENCRYPTED_STREAMING_VERSION_NUMBER);
             
-            fileOutputStream.write(salt); // 8 bytes.
-            fileOutputStream.write(encryptedData.getInitialisationVector()); // 16 bytes.
-            System.out.println(Utils.bytesToHexString(encryptedData.getInitialisationVector()));
-            
-            fileOutputStream.write(encryptedData.getEncryptedBytes());
-            System.out.println(Utils.bytesToHexString(encryptedData.getEncryptedBytes()));
+            outputStream.write(salt); // 8 bytes.
+            outputStream.write(noncePrefix); // 8 bytes.
+
+            byte[] chunk = new byte[ENCRYPTED_FILE_CHUNK_LENGTH];
+            byte[] nextChunk = new byte[ENCRYPTED_FILE_CHUNK_LENGTH];
+            byte[] encryptedChunk = new byte[ENCRYPTED_FILE_CHUNK_LENGTH + ENCRYPTED_FILE_TAG_LENGTH];
+            int chunkLength = readChunk(sourceStream, chunk);
+            int chunkNumber = 0;
+            boolean lastChunk = false;
+            while (!lastChunk) {
+                // Read ahead so that the last chunk can be marked.
+                int nextChunkLength = chunkLength < chunk.length ? 0 : readChunk(sourceStream, nextChunk);
+                lastChunk = nextChunkLength == 0;
+
+                GCMBlockCipher cipher = createChunkCipher(true, aesKey, noncePrefix, chunkNumber, lastChunk);
+                int encryptedLength = cipher.processBytes(chunk, 0, chunkLength, encryptedChunk, 0);
+                try {
+                    encryptedLength += cipher.doFinal(encryptedChunk, encryptedLength);
+                } catch (InvalidCipherTextException icte) {
+                    throw new KeyCrypterException("Could not encrypt bytes.", icte);
+                }
+                outputStream.writeByte(lastChunk ? 1 : 0);
+                outputStream.writeInt(encryptedLength);
+                outputStream.write(encryptedChunk, 0, encryptedLength);
+
+                byte[] swap = chunk;
+                chunk = nextChunk;
+                nextChunk = swap;
+                chunkLength = nextChunkLength;
+                chunkNumber++;
+            }
+            outputStream.flush();
+            fileOutputStream.getFD().sync();
         } finally {
             if (fileOutputStream != null) {
-                fileOutputStream.flush();
                 fileOutputStream.close();
             }
         }
         
-        // Read in the file again and decrypt it to make sure everything was ok.
-        byte[] phoenix = readFileAndDecrypt(destinationFile, passwordToUse);
-        
-        if (!Arrays.areEqual(sourceFileUnencrypted, phoenix)) {
+        // Read in the file again to make sure everything was written ok.
+        if (!Arrays.areEqual(writtenDigest.digest(), calculateSha256(destinationFile))) {
             throw new IOException("File '" + sourceFile.getAbsolutePath() + "' was not correctly encrypted to file '" + destinationFile.getAbsolutePath());
         }
     }
-    
+
     public byte[] readFileAndDecrypt(File encryptedFile, CharSequence passwordToUse) throws IOException {
+        ByteArrayOutputStream decryptedBytes = new ByteArrayOutputStream();
+        readFileAndDecrypt(encryptedFile, decryptedBytes, passwordToUse);
+        return decryptedBytes.toByteArray();
+    }
+
+    /**
+     * Decrypt an encrypted file to the outputStream.
+     * Files in the streaming format are decrypted one chunk at a time.
+     * 
+     * @param encryptedFile
+     * @param outputStream
+     * @param passwordToUse
+     * @throws IOException
+     */
+    public void readFileAndDecrypt(File encryptedFile, OutputStream outputStream, CharSequence passwordToUse) throws IOException {
+        DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(encryptedFile)));
+        try {
+            // If the file is too short don't process it.
+            if (encryptedFile.length() < ENCRYPTED_FILE_FORMAT_MAGIC_BYTES.length + 1 + KeyCrypterScrypt.SALT_LENGTH) {
+                throw new IOException("File '" + encryptedFile.getAbsolutePath() + "' is too short to decrypt. It is " + encryptedFile.length() + " bytes long.");                        
+            }
+
+            // Check the first bytes match the magic number.
+            byte[] magicBytes = new byte[ENCRYPTED_FILE_FORMAT_MAGIC_BYTES.length];
+            inputStream.readFully(magicBytes);
+            if (!Arrays.areEqual(ENCRYPTED_FILE_FORMAT_MAGIC_BYTES, magicBytes)) {
+                throw new IOException("File '" + encryptedFile.getAbsolutePath() + "' did not start with the correct magic bytes.");            
+            }
+
+            // Check the format version.
+            byte versionNumber = inputStream.readByte();
+            if (versionNumber == FILE_ENCRYPTED_VERSION_NUMBER) {
+                outputStream.write(readFileAndDecryptVersion0(encryptedFile, passwordToUse));
+            } else if (versionNumber == FILE_ENCRYPTED_STREAMING_VERSION_NUMBER) {
+                decryptChunks(encryptedFile, inputStream, outputStream, passwordToUse);
+            } else {
+                throw new IOException("File '" + encryptedFile.getAbsolutePath() + "' did not have the expected version number of "
+                        + FILE_ENCRYPTED_VERSION_NUMBER + " or " + FILE_ENCRYPTED_STREAMING_VERSION_NUMBER + ". It was " + versionNumber);
+            }
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private void decryptChunks(File encryptedFile, DataInputStream inputStream, OutputStream outputStream, CharSequence passwordToUse) throws IOException {
+        byte[] salt = new byte[KeyCrypterScrypt.SALT_LENGTH];
+        inputStream.readFully(salt);
+        byte[] noncePrefix = new byte[ENCRYPTED_FILE_NONCE_PREFIX_LENGTH];
+        inputStream.readFully(noncePrefix);
+
+        Protos.ScryptParameters.Builder scryptParametersBuilder = Protos.ScryptParameters.newBuilder().setSalt(ByteString.copyFrom(salt));
+        ScryptParameters scryptParameters = scryptParametersBuilder.build();
+        KeyCrypterScrypt keyCrypter = new KeyCrypterScrypt(scryptParameters);
+        KeyParameter aesKey = DerivedKeyCache.INSTANCE.deriveKey(keyCrypter, passwordToUse);
+
+        byte[] encryptedChunk = new byte[ENCRYPTED_FILE_CHUNK_LENGTH + ENCRYPTED_FILE_TAG_LENGTH];
+        byte[] chunk = new byte[ENCRYPTED_FILE_CHUNK_LENGTH + ENCRYPTED_FILE_TAG_LENGTH];
+        int chunkNumber = 0;
+        boolean lastChunk = false;
+        try {
+            while (!lastChunk) {
+                lastChunk = inputStream.readByte() == 1;
+                int encryptedLength = inputStream.readInt();
+                if (encryptedLength < ENCRYPTED_FILE_TAG_LENGTH || encryptedLength > encryptedChunk.length) {
+                    throw new IOException("File '" + encryptedFile.getAbsolutePath() + "' has a chunk with a bad length of " + encryptedLength);
+                }
+                inputStream.readFully(encryptedChunk, 0, encryptedLength);
+
+                GCMBlockCipher cipher = createChunkCipher(false, aesKey, noncePrefix, chunkNumber, lastChunk);
+                int chunkLength = cipher.processBytes(encryptedChunk, 0, encryptedLength, chunk, 0);
+                try {
+                    chunkLength += cipher.doFinal(chunk, chunkLength);
+                } catch (InvalidCipherTextException icte) {
+                    // The authentication tag did not match - wrong password or a damaged file.
+                    throw new KeyCrypterException("Could not decrypt bytes", icte);
+                }
+                outputStream.write(chunk, 0, chunkLength);
+                chunkNumber++;
+            }
+        } catch (EOFException eofe) {
+            throw new IOException("File '" + encryptedFile.getAbsolutePath() + "' is truncated.", eofe);
+        }
+        if (inputStream.read() != -1) {
+            throw new IOException("File '" + encryptedFile.getAbsolutePath() + "' has data after its last chunk.");
+        }
+    }
+
+    private GCMBlockCipher createChunkCipher(boolean forEncryption, KeyParameter aesKey, byte[] noncePrefix, int chunkNumber, boolean lastChunk) {
+        byte[] nonce = new byte[ENCRYPTED_FILE_NONCE_PREFIX_LENGTH + 4];
+        System.arraycopy(noncePrefix, 0, nonce, 0, ENCRYPTED_FILE_NONCE_PREFIX_LENGTH);
+        Utils.uint32ToByteArrayBE(chunkNumber, nonce, ENCRYPTED_FILE_NONCE_PREFIX_LENGTH);
+
+        GCMBlockCipher cipher = new GCMBlockCipher(new AESFastEngine());
+        cipher.init(forEncryption, new AEADParameters(aesKey, ENCRYPTED_FILE_TAG_LENGTH * 8, nonce, new byte[] { (byte) (lastChunk ? 1 : 0) }));
+        return cipher;
+    }
+
+    /**
+     * Read until the buffer is full or the stream ends.
+     * 
+     * @return the number of bytes read
+     */
+    private static int readChunk(InputStream inputStream, byte[] buffer) throws IOException {
+        int position = 0;
+        while (position < buffer.length) {
+            int read = inputStream.read(buffer, position, buffer.length - position);
+            if (read == -1) {
+                break;
+            }
+            position += read;
+        }
+        return position;
+    }
+
+    private static MessageDigest createSha256Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e); // Cannot happen.
+        }
+    }
+
+    private static byte[] calculateSha256(File file) throws IOException {
+        MessageDigest digest = createSha256Digest();
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[ENCRYPTED_FILE_CHUNK_LENGTH];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            inputStream.close();
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Read and decrypt a file in the original format, which is encrypted in one piece.
+     */
+    private byte[] readFileAndDecryptVersion0(File encryptedFile, CharSequence passwordToUse) throws IOException {
         // Read in the encrypted file.
         byte[] sourceFileEncrypted = FileHandler.read(encryptedFile);
         
-        // Check the first bytes match the magic number.
-        if (!Arrays.areEqual(ENCRYPTED_FILE_FORMAT_MAGIC_BYTES, Arrays.copyOfRange(sourceFileEncrypted, 0, ENCRYPTED_FILE_FORMAT_MAGIC_BYTES.length))) {
-            throw new IOException("File '" + encryptedFile.getAbsolutePath() + "' did not start with the correct magic bytes.");            
-        }
-        
         // If the file is too short don't process it.
         if (sourceFileEncrypted.length < ENCRYPTED_FILE_FORMAT_MAGIC_BYTES.length + 1 + KeyCrypterScrypt.SALT_LENGTH + KeyCrypterScrypt.BLOCK_LENGTH) {
             throw new IOException("File '" + encryptedFile.getAbsolutePath() + "' is too short to decrypt. It is " + sourceFileEncrypted.length + " bytes long.");                        
         }
         
-        // Check the format version.
-        String versionNumber = "" + sourceFileEncrypted[ENCRYPTED_FILE_FORMAT_MAGIC_BYTES.length];
-        //System.out.println("FileHandler - versionNumber = " + versionNumber);
-        if (!("0".equals(versionNumber))) {
-            throw new IOException("File '" + encryptedFile.getAbsolutePath() + "' did not have the expected version number of 0. It was " + versionNumber);            
-        }
-
         // Extract the salt.
         byte[] salt = Arrays.copyOfRange(sourceFileEncrypted, ENCRYPTED_FILE_FORMAT_MAGIC_BYTES.length + 1, ENCRYPTED_FILE_FORMAT_MAGIC_BYTES.length + 1 + KeyCrypterScrypt.SALT_LENGTH);
-        //System.out.println("FileHandler - salt = " + Utils.bytesToHexString(salt));
         
         // Extract the IV.
         byte[] iv = Arrays.copyOfRange(sourceFileEncrypted, ENCRYPTED_FILE_FORMAT_MAGIC_BYTES.length + 1 + KeyCrypterScrypt.SALT_LENGTH , ENCRYPTED_FILE_FORMAT_MAGIC_BYTES.length + 1 + KeyCrypterScrypt.SALT_LENGTH + KeyCrypterScrypt.BLOCK_LENGTH);
-        //System.out.println("FileHandler - iv = " + Utils.bytesToHexString(iv));
         
         // Extract the encrypted bytes.
         byte[] encryptedBytes = Arrays.copyOfRange(sourceFileEncrypted, ENCRYPTED_FILE_FORMAT_MAGIC_BYTES.length + 1 + KeyCrypterScrypt.SALT_LENGTH + KeyCrypterScrypt.BLOCK_LENGTH , sourceFileEncrypted.length);
-        //System.out.println("FileHandler - encryptedBytes = " + Utils.bytesToHexString(encryptedBytes));
          
         // Decrypt the data.
         Protos.ScryptParameters.Builder scryptParametersBuilder = Protos.ScryptParameters.newBuilder().setSalt(ByteString.copyFrom(salt));
         ScryptParameters scryptParameters = scryptParametersBuilder.build();
         KeyCrypter keyCrypter = new KeyCrypterScrypt(scryptParameters);
         EncryptedPrivateKey encryptedPrivateKey = new EncryptedPrivateKey(iv, encryptedBytes);
-        return keyCrypter.decrypt(encryptedPrivateKey, keyCrypter.deriveKey(passwordToUse));
+        return keyCrypter.decrypt(encryptedPrivateKey, DerivedKeyCache.INSTANCE.deriveKey(keyCrypter, passwordToUse));
     }
     
     void createBackupDirectories(File walletFile) {
@@ -426,6 +731,9 @@ public enum BackupManager {
         String encryptedWalletBackupDirectoryName = topLevelBackupDirectoryName + File.separator
                 + ENCRYPTED_WALLET_BACKUP_DIRECTORY_NAME;
         createDirectoryIfNecessary(encryptedWalletBackupDirectoryName);
+
+        String backupChunkDirectoryName = topLevelBackupDirectoryName + File.separator + BACKUP_CHUNK_DIRECTORY_NAME;
+        createDirectoryIfNecessary(backupChunkDirectoryName);
     }
  
     /**
@@ -685,29 +993,9 @@ public enum BackupManager {
     }
     
     List<File> getWalletsInBackupDirectory(String walletFilename, String directorySuffix) {
-        // See if there are any wallet backups.
-        String topLevelBackupDirectoryName = calculateTopLevelBackupDirectoryName(new File(walletFilename));
-        String walletBackupDirectoryName = topLevelBackupDirectoryName + File.separator
-                + directorySuffix;
-        File walletBackupDirectory = new File(walletBackupDirectoryName);
-
-        File[] listOfFiles = walletBackupDirectory.listFiles();
-
-        List<File> walletBackups = new ArrayList<File>();
-        // Look for filenames with format "text"-YYYYMMDDHHMMSS.wallet<eol> and are not empty.
-        if (listOfFiles != null) {
-            for (int i = 0; i < listOfFiles.length; i++) {
-                if (listOfFiles[i].isFile()) {
-                    if (listOfFiles[i].getName().matches(REGEX_FOR_TIMESTAMP_AND_WALLET_SUFFIX)) {
-                        if (listOfFiles[i].length() > 0) {
-                            walletBackups.add(listOfFiles[i]);
-                        }
-                    }
-                } 
-            }
-        }
-        
-        return walletBackups;
+        // The catalog holds the backups with format "text"-YYYYMMDDHHMMSS.wallet<eol> or
+        // "text"-YYYYMMDDHHMMSS.wallet.manifest<eol> (a backup in the chunk store) that are not empty.
+        return getCatalog(walletFilename, directorySuffix).getBackups();
     }
 
     private void createDirectoryIfNecessary(String directoryName) {
@@ -0,0 +1,301 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import org.multibit.controller.bitcoin.BitcoinController;
+import org.multibit.message.Message;
+import org.multibit.message.MessageManager;
+import org.multibit.model.bitcoin.WalletData;
+import org.multibit.model.bitcoin.WalletInfoData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.crypto.KeyCrypterException;
+
+/**
+ * Single thread scheduler for writing wallet and private key backups in the background.
+ *
+ * Backups are slow (the private keys export runs scrypt) but a user action only
+ * needs the wallet itself to be safely persisted, so the actions hand the backups
+ * over to this scheduler and return straight away.
+ *
+ * Each wallet has at most one pending backup slot. A backup requested whilst an
+ * earlier one for the same wallet is still waiting to run is merged into it, so a
+ * burst of changes is backed up once. That keeps the queue to at most one backup
+ * per open wallet, so it is never full and a backup never runs on the caller's
+ * thread (which is often the Swing thread).
+ */
+public class BackupScheduler {
+    private static final Logger log = LoggerFactory.getLogger(BackupScheduler.class);
+
+    private static final String THREAD_NAME = "MultiBit backup writer";
+
+    private final BitcoinController bitcoinController;
+
+    private final FileHandler fileHandler;
+
+    private final ExecutorService executorService;
+
+    /**
+     * The backups that are queued but not yet started, keyed by wallet filename.
+     */
+    private final Map<String, PendingBackup> pendingBackups;
+
+    /**
+     * The backups that have been queued but have not finished, for flush.
+     */
+    private final List<PendingBackup> unfinishedBackups;
+
+    public BackupScheduler(BitcoinController bitcoinController, FileHandler fileHandler) {
+        this.bitcoinController = bitcoinController;
+        this.fileHandler = fileHandler;
+        this.pendingBackups = new HashMap<String, PendingBackup>();
+        this.unfinishedBackups = new ArrayList<PendingBackup>();
+        this.executorService = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, THREAD_NAME);
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Queue a backup of the perWalletModelData.
+     *
+     * @param perWalletModelData
+     * @param passwordToUse
+     *            the wallet password. A copy is kept until the backup has run.
+     *            May be null.
+     * @param backupPrivateKeys
+     *            write a private keys backup
+     * @param encryptUnencryptedBackups
+     *            file level encrypt any unencrypted wallet backups
+     * @return Future that completes when the backups have been written (or
+     *         failed to be written)
+     */
+    public Future<Void> schedule(WalletData perWalletModelData, CharSequence passwordToUse, boolean backupPrivateKeys,
+            boolean encryptUnencryptedBackups) {
+        String walletFilename = perWalletModelData.getWalletFilename();
+
+        PendingBackup pendingBackup;
+        synchronized (pendingBackups) {
+            pendingBackup = pendingBackups.get(walletFilename);
+            if (pendingBackup != null) {
+                // Merge with the backup that has not started yet.
+                pendingBackup.merge(passwordToUse, backupPrivateKeys, encryptUnencryptedBackups);
+                log.debug("Coalesced backup of wallet '" + walletFilename + "' with the queued backup.");
+                return pendingBackup.future;
+            }
+
+            pendingBackup = new PendingBackup(perWalletModelData);
+            pendingBackup.merge(passwordToUse, backupPrivateKeys, encryptUnencryptedBackups);
+            pendingBackups.put(walletFilename, pendingBackup);
+            unfinishedBackups.add(pendingBackup);
+            executorService.execute(pendingBackup.future);
+        }
+        return pendingBackup.future;
+    }
+
+    /**
+     * Wait until all the backups queued before this call have been written.
+     */
+    public void flush() {
+        List<PendingBackup> backupsToWaitFor;
+        synchronized (pendingBackups) {
+            backupsToWaitFor = new ArrayList<PendingBackup>(unfinishedBackups);
+        }
+        for (PendingBackup pendingBackup : backupsToWaitFor) {
+            try {
+                pendingBackup.future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                // Already reported by the backup itself.
+                log.debug(e.getClass().getCanonicalName() + " " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Write out any queued backups and stop the backup thread.
+     */
+    public void shutdown() {
+        flush();
+        executorService.shutdown();
+    }
+
+    int getNumberOfPendingBackups() {
+        synchronized (pendingBackups) {
+            return pendingBackups.size();
+        }
+    }
+
+    /**
+     * @return the copy of the password held by the pending backup of the wallet, for the tests to check it is wiped
+     */
+    char[] getPendingPassword(String walletFilename) {
+        synchronized (pendingBackups) {
+            PendingBackup pendingBackup = pendingBackups.get(walletFilename);
+            return pendingBackup == null ? null : pendingBackup.password;
+        }
+    }
+
+    private class PendingBackup implements Callable<Void> {
+        private final WalletData perWalletModelData;
+        private final FutureTask<Void> future;
+
+        // Guarded by pendingBackups.
+        private char[] password;
+        private boolean backupPrivateKeys;
+        private boolean encryptUnencryptedBackups;
+
+        PendingBackup(WalletData perWalletModelData) {
+            this.perWalletModelData = perWalletModelData;
+            this.future = new FutureTask<Void>(this);
+        }
+
+        /**
+         * Add a request to this backup. The latest password wins, as it is the
+         * one the wallet is now encrypted with.
+         */
+        void merge(CharSequence passwordToUse, boolean backupPrivateKeys, boolean encryptUnencryptedBackups) {
+            if (passwordToUse != null && passwordToUse.length() > 0) {
+                wipePassword();
+                password = new char[passwordToUse.length()];
+                for (int i = 0; i < password.length; i++) {
+                    password[i] = passwordToUse.charAt(i);
+                }
+            }
+            this.backupPrivateKeys = this.backupPrivateKeys || backupPrivateKeys;
+            this.encryptUnencryptedBackups = this.encryptUnencryptedBackups || encryptUnencryptedBackups;
+        }
+
+        void wipePassword() {
+            if (password != null) {
+                Arrays.fill(password, '\0');
+                password = null;
+            }
+        }
+
+        @Override
+        public Void call() throws Exception {
+            char[] passwordToUse;
+            boolean backupPrivateKeysToUse;
+            boolean encryptUnencryptedBackupsToUse;
+            synchronized (pendingBackups) {
+                // From now on new requests for this wallet need a new slot.
+                if (pendingBackups.get(perWalletModelData.getWalletFilename()) == this) {
+                    pendingBackups.remove(perWalletModelData.getWalletFilename());
+                }
+                passwordToUse = password;
+                password = null;
+                backupPrivateKeysToUse = backupPrivateKeys;
+                encryptUnencryptedBackupsToUse = encryptUnencryptedBackups;
+            }
+
+            try {
+                backup(passwordToUse == null ? null : CharBuffer.wrap(passwordToUse), backupPrivateKeysToUse,
+                        encryptUnencryptedBackupsToUse);
+            } finally {
+                if (passwordToUse != null) {
+                    Arrays.fill(passwordToUse, '\0');
+                }
+                synchronized (pendingBackups) {
+                    unfinishedBackups.remove(this);
+                }
+            }
+            return null;
+        }
+
+        private void backup(CharSequence passwordToUse, boolean backupPrivateKeys, boolean encryptUnencryptedBackups) throws Exception {
+            WalletInfoData walletInfo = perWalletModelData.getWalletInfo();
+            if (walletInfo == null) {
+                return;
+            }
+
+            if (walletInfo.isDeleted()) {
+                log.debug("Wallet '" + perWalletModelData.getWalletFilename() + "' was deleted before it was backed up.");
+                return;
+            }
+
+            // The private keys export (which runs scrypt) only reads the wallet in memory, so
+            // it does not hold the wallet info lock and the saves of the wallet carry on.
+            if (backupPrivateKeys) {
+                try {
+                    File privateKeysBackupFile = fileHandler.backupPrivateKeys(perWalletModelData, passwordToUse);
+                    if (privateKeysBackupFile != null) {
+                        MessageManager.INSTANCE.addMessage(new Message(bitcoinController.getLocaliser().getString(
+                                "changePasswordPanel.keysBackupSuccess",
+                                new Object[] { privateKeysBackupFile.getCanonicalPath() })));
+                    }
+                } catch (IOException ioe) {
+                    reportPrivateKeysBackupFailure(ioe);
+                    throw ioe;
+                } catch (KeyCrypterException kce) {
+                    reportPrivateKeysBackupFailure(kce);
+                    throw kce;
+                }
+            }
+
+            // The wallet backup copies the wallet files so do not interleave with the saves of the same wallet.
+            synchronized (walletInfo) {
+                if (walletInfo.isDeleted()) {
+                    log.debug("Wallet '" + perWalletModelData.getWalletFilename() + "' was deleted before it was backed up.");
+                    return;
+                }
+                try {
+                    BackupManager.INSTANCE.backupPerWalletModelData(fileHandler, perWalletModelData);
+                } catch (WalletSaveException wse) {
+                    log.error(wse.getClass().getCanonicalName() + " " + wse.getMessage());
+                    MessageManager.INSTANCE.addMessage(new Message(bitcoinController.getLocaliser().getString(
+                            "backupScheduler.walletBackupFailed",
+                            new Object[] { perWalletModelData.getWalletDescription(), wse.getMessage() })));
+                    throw wse;
+                }
+            }
+
+            if (encryptUnencryptedBackups && passwordToUse != null) {
+                BackupManager.INSTANCE.fileLevelEncryptUnencryptedWalletBackups(perWalletModelData, passwordToUse);
+            }
+        }
+
+        private void reportPrivateKeysBackupFailure(Exception e) {
+            log.error(e.getClass().getCanonicalName() + " " + e.getMessage());
+            MessageManager.INSTANCE.addMessage(new Message(bitcoinController.getLocaliser().getString(
+                    "changePasswordPanel.keysBackupFailed", new Object[] { e.getMessage() })));
+        }
+    }
+}
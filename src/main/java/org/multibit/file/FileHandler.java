@@ -26,6 +26,7 @@ import org.multibit.message.Message;
 import org.multibit.message.MessageManager;
 import org.multibit.model.bitcoin.BitcoinModel;
 import org.multibit.model.bitcoin.WalletData;
+import org.multibit.model.bitcoin.WalletDirtyListener;
 import org.multibit.model.bitcoin.WalletInfoData;
 import org.multibit.model.core.CoreModel;
 import org.multibit.network.MultiBitService;
@@ -40,6 +41,8 @@ import org.slf4j.LoggerFactory;
 import java.io.*;
 import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 
 import org.multibit.utils.FilePermissionUtils;
 /**
@@ -48,7 +51,7 @@ import org.multibit.utils.FilePermissionUtils;
  * @author jim
  * 
  */
-public class FileHandler {
+public class FileHandler implements WalletDirtyListener {
     private static Logger log = LoggerFactory.getLogger(FileHandler.class);
 
     public static final String USER_PROPERTIES_FILE_NAME = "multimona.properties";
@@ -57,9 +60,30 @@ public class FileHandler {
     private final Controller controller;
     private final BitcoinController bitcoinController;
     
-    private static final int MAX_FILE_SIZE = 1024 * 1024 * 1024; // Dont read files greater than 1 gigabyte.
+    static final int MAX_FILE_SIZE = 1024 * 1024 * 1024; // Dont read files greater than 1 gigabyte.
 
     private MultiBitWalletProtobufSerializer walletProtobufSerializer;
+
+    private final WalletSaveQueue walletSaveQueue;
+
+    private final BackupScheduler backupScheduler;
+
+    /**
+     * The transaction journals of the open wallets, keyed by wallet filename.
+     */
+    private final Map<String, WalletJournal> walletJournals;
+
+    /**
+     * Watches the wallet directories for changes made by other processes.
+     */
+    private final WalletFileWatcher walletFileWatcher;
+
+    private static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+
+    /**
+     * How long to wait after a wallet becomes dirty before saving it, so that a burst of changes is written once.
+     */
+    public static final int DIRTY_SAVE_DELAY = 2000; // milliseconds
     
     // Nonsense bytes to fill up deleted files - these have no meaning.
     private static byte[] NONSENSE_BYTES = new byte[] { (byte) 0xF0, (byte) 0xA6, (byte) 0x55, (byte) 0xAA, (byte) 0x33,
@@ -87,6 +111,10 @@ public class FileHandler {
         this.controller = this.bitcoinController;
 
         walletProtobufSerializer = new MultiBitWalletProtobufSerializer();
+        walletSaveQueue = new WalletSaveQueue(this);
+        backupScheduler = new BackupScheduler(bitcoinController, this);
+        walletJournals = new ConcurrentHashMap<String, WalletJournal>();
+        walletFileWatcher = new WalletFileWatcher(bitcoinController);
     }
 
     /**
@@ -123,6 +151,7 @@ public class FileHandler {
             // (e.g. power loss).
             boolean useBackupWallets = ( !walletFile.exists() || walletFile.length() == 0 );
             boolean walletWasLoadedSuccessfully = false;
+            boolean mainWalletWasLoaded = false;
             Collection<String> errorMessages = new ArrayList<String>();
 
             Wallet wallet = null;
@@ -136,6 +165,7 @@ public class FileHandler {
                     stream = new BufferedInputStream(fileInputStream);
                     wallet = Wallet.loadFromFileStream(stream);
                     walletWasLoadedSuccessfully = true;
+                    mainWalletWasLoaded = true;
                 } catch (WalletVersionException wve) {
                     // We want this exception to propagate out.
                     throw wve;
@@ -163,11 +193,10 @@ public class FileHandler {
                  while (!walletWasLoadedSuccessfully && iterator.hasNext()) {
                     String walletToTry = iterator.next();
 
-                    FileInputStream fileInputStream = new FileInputStream(new File(walletToTry));
                     InputStream stream = null;
 
                     try {
-                        stream = new BufferedInputStream(fileInputStream);
+                        stream = BackupManager.INSTANCE.openBackup(new File(walletToTry));
                         wallet = Wallet.loadFromFileStream(stream);
                         walletWasLoadedSuccessfully = true;
                         
@@ -184,7 +213,6 @@ public class FileHandler {
                         if (stream != null) {
                             stream.close();
                         }
-                        fileInputStream.close();
                     }
                 }
             }
@@ -218,6 +246,30 @@ public class FileHandler {
                 // Add the new wallet into the model.
                 wallet.setNetworkParameters(bitcoinController.getModel().getNetworkParameters());
 
+                // Apply the changes journalled since the wallet snapshot was written.
+                // (A journal never applies to a backup).
+                WalletJournal walletJournal = new WalletJournal(new File(walletFilenameToUseInModel));
+                if (mainWalletWasLoaded) {
+                    try {
+                        walletJournal.replay(wallet);
+                    } catch (IOException ioe) {
+                        log.error("Could not replay the journal for wallet '" + walletFilenameToUseInModel + "'. "
+                                + ioe.getClass().getCanonicalName() + " " + ioe.getMessage());
+                    }
+
+                    // The chain position is kept in its own file as it changes on every block.
+                    try {
+                        if (new LastBlockSeenFile(walletFile).applyTo(wallet)) {
+                            WalletJournal.updateDepthsFromLastBlockSeen(wallet);
+                        }
+                    } catch (IOException ioe) {
+                        log.error("Could not read the last block seen for wallet '" + walletFilenameToUseInModel + "'. "
+                                + ioe.getClass().getCanonicalName() + " " + ioe.getMessage());
+                    }
+                    walletJournal.setBaseline(wallet);
+                }
+                walletJournals.put(walletFilenameToUseInModel, walletJournal);
+
                 perWalletModelData = bitcoinController.getModel().addWallet(this.bitcoinController, wallet,
                         walletFilenameToUseInModel);
 
@@ -238,6 +290,7 @@ public class FileHandler {
                     rememberFileSizesAndLastModified(new File(walletFilenameToUseInModel), walletInfo);
                     perWalletModelData.setDirty(false);
                 }
+                watchWallet(perWalletModelData);
             } else {
                 // No wallet was loaded successfully.
                 // Wipe the rolling backup property to ensure that file wont be deleted.
@@ -318,24 +371,191 @@ public class FileHandler {
                     boolean filesHaveChanged = haveFilesChanged(perWalletModelData);
 
                     if (!filesHaveChanged || forceWrite) {
-                        // Normal write of data.
+                        // Normal write of data - journal the changes if possible, otherwise write a full snapshot.
                         String walletInfoFilename = WalletInfoData.createWalletInfoFilename(perWalletModelData.getWalletFilename());
-                        saveWalletAndWalletInfo(perWalletModelData, perWalletModelData.getWalletFilename(), walletInfoFilename);
+                        if (forceWrite || !appendToWalletJournal(perWalletModelData, walletInfoFilename)) {
+                            saveWalletAndWalletInfo(perWalletModelData, perWalletModelData.getWalletFilename(), walletInfoFilename);
+                        }
 
                         rememberFileSizesAndLastModified(walletFile, walletInfo);
+                        watchWallet(perWalletModelData);
 
                         // The perWalletModelData is no longer dirty.
                         perWalletModelData.setDirty(false);
+
+                        saveLastBlockSeen(perWalletModelData);
                     } else {
                         // Write to backup files.
                         BackupManager.INSTANCE.backupPerWalletModelData(this, perWalletModelData);
                     }
+                } else if (perWalletModelData.isLastBlockSeenDirty()) {
+                    // Only the chain position has moved on - the wallet itself does not need writing.
+                    saveLastBlockSeen(perWalletModelData);
                 }
             }
         }
         return;
     }
-    
+
+    /**
+     * Write the last block seen of the perWalletModelData to its small sidecar file.
+     * This is cheap, so it is used instead of a wallet write when following the chain.
+     * 
+     * @param perWalletModelData
+     */
+    public void saveLastBlockSeen(WalletData perWalletModelData) {
+        if (perWalletModelData == null || perWalletModelData.getWalletFilename() == null
+                || perWalletModelData.getWallet() == null || perWalletModelData.getWalletInfo() == null) {
+            return;
+        }
+
+        synchronized (perWalletModelData.getWalletInfo()) {
+            if (perWalletModelData.getWalletInfo().isDeleted()) {
+                return;
+            }
+            try {
+                new LastBlockSeenFile(new File(perWalletModelData.getWalletFilename())).write(perWalletModelData.getWallet());
+                perWalletModelData.setLastBlockSeenDirty(false);
+            } catch (IOException ioe) {
+                // Not fatal - the chain position is written with the wallet at the next save.
+                log.error("Could not write the last block seen for wallet '" + perWalletModelData.getWalletFilename() + "'. "
+                        + ioe.getClass().getCanonicalName() + " " + ioe.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Append the changes to the wallet since it was last written to its journal
+     * and write the wallet info.
+     * 
+     * @param perWalletModelData
+     * @param walletInfoFilename
+     * @return true if the changes were journalled, false if a full write of the wallet is required
+     */
+    private boolean appendToWalletJournal(WalletData perWalletModelData, String walletInfoFilename) {
+        WalletJournal walletJournal = walletJournals.get(perWalletModelData.getWalletFilename());
+        WalletInfoData walletInfo = perWalletModelData.getWalletInfo();
+        Wallet wallet = perWalletModelData.getWallet();
+        if (walletJournal == null || wallet == null || walletInfo == null) {
+            return false;
+        }
+
+        // The description is kept in the wallet too - a change needs a full write.
+        String walletDescriptionInInfoFile = walletInfo.getProperty(WalletInfoData.DESCRIPTION_PROPERTY);
+        if (walletDescriptionInInfoFile != null) {
+            wallet.setDescription(walletDescriptionInInfoFile);
+        }
+
+        try {
+            if (!walletJournal.appendChanges(wallet)) {
+                return false;
+            }
+        } catch (IOException ioe) {
+            // Fall back to a full write.
+            log.error("Could not append to the journal for wallet '" + perWalletModelData.getWalletFilename() + "'. "
+                    + ioe.getClass().getCanonicalName() + " " + ioe.getMessage());
+            return false;
+        }
+
+        // Write wallet info.
+        perWalletModelData.writeKeyPoolToWalletInfo();
+        FilePermissionUtils.setWalletPermission(new File(walletInfoFilename));
+        walletInfo.writeToFile(walletInfoFilename, walletInfo.getWalletVersion());
+        return true;
+    }
+
+    /**
+     * Queue a save of the perWalletModelData on the background wallet writer.
+     * Back-to-back requests for the same wallet that have not started yet are
+     * coalesced into a single write.
+     * 
+     * @param perWalletModelData
+     * @param forceWrite
+     *            force the write of the perWalletModelData
+     * @return Future that completes when the write has been done
+     */
+    public Future<Void> savePerWalletModelDataInBackground(WalletData perWalletModelData, boolean forceWrite) {
+        if (perWalletModelData == null || perWalletModelData.getWalletFilename() == null) {
+            return null;
+        }
+        return walletSaveQueue.save(perWalletModelData, forceWrite);
+    }
+
+    /**
+     * @return the number of saves written by the background wallet writer
+     */
+    int getNumberOfBackgroundSavesWritten() {
+        return walletSaveQueue.getNumberOfSavesWritten();
+    }
+
+    /**
+     * A wallet has become dirty - save it shortly, in the background.
+     */
+    @Override
+    public void walletDirty(WalletData perWalletModelData) {
+        if (perWalletModelData == null || perWalletModelData.getWalletFilename() == null) {
+            return;
+        }
+        walletSaveQueue.saveLater(perWalletModelData, false, DIRTY_SAVE_DELAY);
+    }
+
+    /**
+     * Save the perWalletModelData when it becomes dirty and watch its files for changes by other processes.
+     */
+    private void watchWallet(WalletData perWalletModelData) {
+        perWalletModelData.setWalletDirtyListener(this);
+        walletFileWatcher.watch(perWalletModelData);
+    }
+
+    /**
+     * Stop saving the perWalletModelData when it becomes dirty and stop watching its files, as it is being closed.
+     */
+    public void unwatchWallet(WalletData perWalletModelData) {
+        if (perWalletModelData == null) {
+            return;
+        }
+        walletFileWatcher.unwatch(perWalletModelData);
+        if (perWalletModelData.getWalletFilename() != null) {
+            walletJournals.remove(perWalletModelData.getWalletFilename());
+        }
+        perWalletModelData.setWalletDirtyListener(null);
+    }
+
+    /**
+     * Stop watching the wallet files for changes by other processes.
+     */
+    public void stopWatchingWalletFiles() {
+        walletFileWatcher.stop();
+    }
+
+    /**
+     * Wait for all the queued background saves and backups to be written.
+     */
+    public void waitForBackgroundSaves() {
+        walletSaveQueue.flush();
+        backupScheduler.flush();
+    }
+
+    /**
+     * Backup the perWalletModelData in the background, once it has been saved.
+     * The caller can carry on as soon as the wallet itself is persisted.
+     * 
+     * @param perWalletModelData
+     * @param passwordToUse
+     *            the wallet password, used to encrypt the private keys backup
+     *            and the unencrypted wallet backups. May be null.
+     * @param backupPrivateKeys
+     *            write a private keys backup
+     * @param encryptUnencryptedBackups
+     *            file level encrypt any unencrypted wallet backups
+     * @return Future that completes when the backups have been written (or
+     *         failed to be written)
+     */
+    public Future<Void> scheduleBackup(WalletData perWalletModelData, CharSequence passwordToUse, boolean backupPrivateKeys,
+            boolean encryptUnencryptedBackups) {
+        return backupScheduler.schedule(perWalletModelData, passwordToUse, backupPrivateKeys, encryptUnencryptedBackups);
+    }
+
     /**
      * Simply save the wallet and wallet info files.
      * Used for backup writes.
@@ -365,6 +585,7 @@ public class FileHandler {
         WalletInfoData walletInfo = perWalletModelData.getWalletInfo();
 
         FileOutputStream fileOutputStream = null;
+        File temporaryWalletFile = null;
 
         // Save the wallet file
         try {
@@ -376,12 +597,7 @@ public class FileHandler {
                 // and wallet infos can be deprecated.
                 // TODO - migrate completely to use wallet description and then
                 // deprecate value in info file.
-                if (walletInfo != null) {
-                    String walletDescriptionInInfoFile = walletInfo.getProperty(WalletInfoData.DESCRIPTION_PROPERTY);
-                    if (walletDescriptionInInfoFile != null) {
-                        perWalletModelData.getWallet().setDescription(walletDescriptionInInfoFile);
-                    }
-                }
+                copyWalletDescriptionToWallet(perWalletModelData);
                 
                 String oldBackupFilename = perWalletModelData.getWalletInfo().getProperty(BitcoinModel.WALLET_BACKUP_FILE);
                 String newBackupFilename = null;
@@ -392,41 +608,43 @@ public class FileHandler {
                     }
                     if (walletInfo != null && (MultiBitWalletVersion.PROTOBUF == walletInfo.getWalletVersion()
                             || MultiBitWalletVersion.PROTOBUF_ENCRYPTED == walletInfo.getWalletVersion())) {
-                        newBackupFilename = copyExistingWalletToBackupAndDeleteOriginal(walletFile);
+                        newBackupFilename = copyExistingWalletToBackup(walletFile);
                     }
                 }
                 log.debug("Saving wallet file '" + walletFile.getAbsolutePath() + "' ...");
                 if (walletInfo != null && MultiBitWalletVersion.SERIALIZED == walletInfo.getWalletVersion()) {
                     throw new WalletSaveException("Cannot save wallet '" + walletFile.getAbsolutePath() + "'. Serialized wallets are no longer supported.");
                 } else {
-                    // See if there are any encrypted private keys - if there
-                    // are the wallet will be saved
-                    // as encrypted and the version set to PROTOBUF_ENCRYPTED.
-                    boolean walletIsActuallyEncrypted = false;
                     Wallet wallet = perWalletModelData.getWallet();
-                    // Check all the keys individually.
-                    for (ECKey key : wallet.getKeychain()) {
-                        if (key.isEncrypted()) {
-                            walletIsActuallyEncrypted = true;
-                            break;
-                        }
-                    }
+                    updateWalletVersionIfEncrypted(perWalletModelData);
 
-                    if (walletIsActuallyEncrypted) {
-                        walletInfo.setWalletVersion(MultiBitWalletVersion.PROTOBUF_ENCRYPTED);
-                    }
-
-                    if (MultiBitWalletVersion.PROTOBUF == walletInfo.getWalletVersion()) {
-                        // Save as a Wallet message.
-                        FilePermissionUtils.setWalletPermission(walletFile);
-                        perWalletModelData.getWallet().saveToFile(walletFile);
-                    } else if (MultiBitWalletVersion.PROTOBUF_ENCRYPTED == walletInfo.getWalletVersion()) {
-                        FilePermissionUtils.setWalletPermission(walletFile);
-                        fileOutputStream = new FileOutputStream(walletFile);
-
-                        // Save as a Wallet message with a mandatory extension
-                        // to prevent loading by older versions of multibit.
-                        walletProtobufSerializer.writeWallet(perWalletModelData.getWallet(), fileOutputStream);
+                    if (MultiBitWalletVersion.PROTOBUF == walletInfo.getWalletVersion()
+                            || MultiBitWalletVersion.PROTOBUF_ENCRYPTED == walletInfo.getWalletVersion()) {
+                        // Write to a temporary file in the same directory, sync it to disk
+                        // and then rename it over the live wallet so that a crash mid-write
+                        // never leaves a truncated wallet behind.
+                        temporaryWalletFile = File.createTempFile(walletFile.getName(), TEMPORARY_FILE_SUFFIX, walletFile.getAbsoluteFile().getParentFile());
+                        FilePermissionUtils.setWalletPermission(temporaryWalletFile);
+                        fileOutputStream = new FileOutputStream(temporaryWalletFile);
+
+                        writeWallet(perWalletModelData, fileOutputStream);
+                        fileOutputStream.flush();
+                        fileOutputStream.getFD().sync();
+                        fileOutputStream.close();
+                        fileOutputStream = null;
+
+                        replaceFile(temporaryWalletFile, walletFile);
+                        temporaryWalletFile = null;
+
+                        if (doBackup) {
+                            // This is the live wallet - its new snapshot compacts the journal.
+                            WalletJournal walletJournal = walletJournals.get(walletFilename);
+                            if (walletJournal == null) {
+                                walletJournal = new WalletJournal(walletFile);
+                                walletJournals.put(walletFilename, walletJournal);
+                            }
+                            walletJournal.snapshotWritten(wallet);
+                        }
                     } else {
                         throw new WalletVersionException("Cannot save wallet '" + perWalletModelData.getWalletFilename()
                                 + "'. Its wallet version is '" + walletInfo.getWalletVersion().toString()
@@ -455,7 +673,7 @@ public class FileHandler {
                             }
                         }
                         if (!userHasOpenedBackupFile) {
-                            secureDelete(oldBackupFile);
+                            BackupManager.INSTANCE.deleteBackup(oldBackupFile);
                         }
                     }
                 }
@@ -471,13 +689,92 @@ public class FileHandler {
                     throw new WalletSaveException("Cannot save wallet '" + perWalletModelData.getWalletFilename(), e);
                 }
             }
+            // Tidy up after a failed write - the live wallet is untouched.
+            if (temporaryWalletFile != null && temporaryWalletFile.exists()) {
+                temporaryWalletFile.delete();
+            }
         }
 
         // Write wallet info.
+        perWalletModelData.writeKeyPoolToWalletInfo();
         FilePermissionUtils.setWalletPermission( new File( walletInfoFilename ));
         walletInfo.writeToFile(walletInfoFilename, walletInfo.getWalletVersion());
     }
 
+    /**
+     * Save the wallet and wallet info files as backups in the backup chunk store.
+     * Only the parts of them that are not already in the store are written.
+     * 
+     * @param perWalletModelData
+     * @param walletBackupFile the manifest to write for the wallet
+     * @param walletInfoBackupFile the manifest to write for the wallet info
+     */
+    void saveWalletAndWalletInfoToBackup(WalletData perWalletModelData, File walletBackupFile, File walletInfoBackupFile) throws IOException {
+        WalletInfoData walletInfo = perWalletModelData.getWalletInfo();
+        BackupChunkStore chunkStore = BackupManager.INSTANCE.getChunkStore(new File(perWalletModelData.getWalletFilename()));
+
+        copyWalletDescriptionToWallet(perWalletModelData);
+        updateWalletVersionIfEncrypted(perWalletModelData);
+        if (MultiBitWalletVersion.PROTOBUF != walletInfo.getWalletVersion()
+                && MultiBitWalletVersion.PROTOBUF_ENCRYPTED != walletInfo.getWalletVersion()) {
+            throw new WalletVersionException("Cannot backup wallet '" + perWalletModelData.getWalletFilename()
+                    + "'. Its wallet version is '" + walletInfo.getWalletVersion().toString()
+                    + "' but this version of MultiBit does not understand that format.");
+        }
+        ByteArrayOutputStream walletBytes = new ByteArrayOutputStream();
+        writeWallet(perWalletModelData, walletBytes);
+        chunkStore.store(walletBackupFile, walletBytes.toByteArray());
+
+        // The wallet info is only written to a file so go through a temporary one.
+        File temporaryWalletInfoFile = File.createTempFile(walletInfoBackupFile.getName(), TEMPORARY_FILE_SUFFIX, walletInfoBackupFile
+                .getAbsoluteFile().getParentFile());
+        try {
+            perWalletModelData.writeKeyPoolToWalletInfo();
+            walletInfo.writeToFile(temporaryWalletInfoFile.getAbsolutePath(), walletInfo.getWalletVersion());
+            chunkStore.store(walletInfoBackupFile, read(temporaryWalletInfoFile));
+        } finally {
+            temporaryWalletInfoFile.delete();
+        }
+    }
+
+    /**
+     * Store the description from the wallet info in the wallet.
+     */
+    private void copyWalletDescriptionToWallet(WalletData perWalletModelData) {
+        WalletInfoData walletInfo = perWalletModelData.getWalletInfo();
+        if (walletInfo != null) {
+            String walletDescriptionInInfoFile = walletInfo.getProperty(WalletInfoData.DESCRIPTION_PROPERTY);
+            if (walletDescriptionInInfoFile != null) {
+                perWalletModelData.getWallet().setDescription(walletDescriptionInInfoFile);
+            }
+        }
+    }
+
+    /**
+     * See if there are any encrypted private keys - if there are the wallet
+     * will be saved as encrypted and the version set to PROTOBUF_ENCRYPTED.
+     */
+    private void updateWalletVersionIfEncrypted(WalletData perWalletModelData) {
+        // Check all the keys individually.
+        for (ECKey key : perWalletModelData.getWallet().getKeychain()) {
+            if (key.isEncrypted()) {
+                perWalletModelData.getWalletInfo().setWalletVersion(MultiBitWalletVersion.PROTOBUF_ENCRYPTED);
+                return;
+            }
+        }
+    }
+
+    private void writeWallet(WalletData perWalletModelData, OutputStream outputStream) throws IOException {
+        if (MultiBitWalletVersion.PROTOBUF == perWalletModelData.getWalletInfo().getWalletVersion()) {
+            // Save as a Wallet message.
+            perWalletModelData.getWallet().saveToFileStream(outputStream);
+        } else {
+            // Save as a Wallet message with a mandatory extension
+            // to prevent loading by older versions of multibit.
+            walletProtobufSerializer.writeWallet(perWalletModelData.getWallet(), outputStream);
+        }
+    }
+
 
     /**
      * Backup the private keys of the active wallet to a file with name <wallet-name>-data/key-backup/<wallet
@@ -490,59 +787,70 @@ public class FileHandler {
      * @throws KeyCrypterException
      */
     public File backupPrivateKeys(CharSequence passwordToUse) throws IOException, KeyCrypterException {
+        WalletData activePerWalletModelData = null;
+        if (this.bitcoinController.getModel() != null) {
+            activePerWalletModelData = this.bitcoinController.getModel().getActivePerWalletModelData();
+        }
+        return backupPrivateKeys(activePerWalletModelData, passwordToUse);
+    }
+
+    /**
+     * Backup the private keys of the perWalletModelData to a file with name <wallet-name>-data/key-backup/<wallet
+     * name>-yyyymmddhhmmss.key
+     * 
+     * @param perWalletModelData
+     * @param passwordToUse
+     * @return File to which keys were backed up, or null if they were not.
+     * @throws KeyCrypterException
+     */
+    public File backupPrivateKeys(WalletData perWalletModelData, CharSequence passwordToUse) throws IOException, KeyCrypterException {
         File privateKeysBackupFile = null;
 
         // Only encrypted files are backed up, and they must have a non blank password.
         if (passwordToUse != null && passwordToUse.length() > 0) {
-            if (controller.getModel() != null
-                    && this.bitcoinController.getModel().getActiveWalletWalletInfo() != null
-                    && this.bitcoinController.getModel().getActiveWalletWalletInfo().getWalletVersion() == MultiBitWalletVersion.PROTOBUF_ENCRYPTED) {
+            if (controller.getModel() != null && perWalletModelData != null
+                    && perWalletModelData.getWalletInfo() != null
+                    && perWalletModelData.getWalletInfo().getWalletVersion() == MultiBitWalletVersion.PROTOBUF_ENCRYPTED) {
                 // Save a backup copy of the private keys, encrypted with the passwordToUse.
                 PrivateKeysHandler privateKeysHandler = new PrivateKeysHandler(this.bitcoinController.getModel()
                         .getNetworkParameters());
-                String privateKeysBackupFilename = BackupManager.INSTANCE.createBackupFilename(new File(this.bitcoinController.getModel()
-                        .getActiveWalletFilename()), BackupManager.PRIVATE_KEY_BACKUP_DIRECTORY_NAME, false, false, BitcoinModel.PRIVATE_KEY_FILE_EXTENSION);
+                String privateKeysBackupFilename = BackupManager.INSTANCE.createBackupFilename(new File(perWalletModelData
+                        .getWalletFilename()), BackupManager.PRIVATE_KEY_BACKUP_DIRECTORY_NAME, false, false, BitcoinModel.PRIVATE_KEY_FILE_EXTENSION);
                 privateKeysBackupFile = new File(privateKeysBackupFilename);
                 BlockChain blockChain = null;
                 if (this.bitcoinController.getMultiBitService() != null) {
                     blockChain = this.bitcoinController.getMultiBitService().getChain();
                 }
                 
-                privateKeysHandler.exportPrivateKeys(privateKeysBackupFile, this.bitcoinController.getModel().getActiveWallet(),
+                privateKeysHandler.exportPrivateKeys(privateKeysBackupFile, perWalletModelData.getWallet(),
                         blockChain, true, passwordToUse, passwordToUse);
             } else {
-                log.debug("Wallet '" + this.bitcoinController.getModel().getActiveWalletFilename()
+                log.debug("Wallet '" + (perWalletModelData == null ? null : perWalletModelData.getWalletFilename())
                         + "' private keys not backed up as not PROTOBUF_ENCRYPTED");
             }
         } else {
-            log.debug("Wallet '" + this.bitcoinController.getModel().getActiveWalletFilename()
+            log.debug("Wallet '" + (perWalletModelData == null ? null : perWalletModelData.getWalletFilename())
                     + "' private keys not backed up password was blank or of zero length");
         }
         return privateKeysBackupFile;
     }
 
     /**
-     * Copy an existing wallet to a backup file and delete the original.
-     * Used in rolling backups
+     * Copy an existing wallet to a backup file.
+     * Used in rolling backups. The original is left in place until the new
+     * wallet is renamed over it.
      * 
      * @param walletFile
      * @return
      * @throws IOException
      */
-    private String copyExistingWalletToBackupAndDeleteOriginal(File walletFile) throws IOException {
-        String newWalletBackupFilename = BackupManager.INSTANCE.createBackupFilename(walletFile, BackupManager.ROLLING_WALLET_BACKUP_DIRECTORY_NAME, false, false, BitcoinModel.WALLET_FILE_EXTENSION);
-        File newWalletBackupFile = new File(newWalletBackupFilename);
+    private String copyExistingWalletToBackup(File walletFile) throws IOException {
+        String newWalletBackupFilename = BackupManager.INSTANCE.createBackupFilename(walletFile, BackupManager.ROLLING_WALLET_BACKUP_DIRECTORY_NAME, false, false, BitcoinModel.WALLET_FILE_EXTENSION)
+                + "." + BackupChunkStore.MANIFEST_SUFFIX;
         if (walletFile != null && walletFile.exists()) {
-            FilePermissionUtils.setWalletPermission(newWalletBackupFile);
-            FileHandler.copyFile(walletFile, newWalletBackupFile);
-            if (walletFile.length() != newWalletBackupFile.length()) {
-                throw new IOException("Failed to copy the existing wallet from '" + walletFile.getAbsolutePath() + "' to '"
-                        + newWalletBackupFilename + "'");
-            }
-
-            if (!walletFile.getAbsolutePath().equals(newWalletBackupFile.getAbsolutePath())) {
-                secureDelete(walletFile);
-            }
+            // Successive rolling backups are mostly the same so only the changed chunks are stored.
+            BackupManager.INSTANCE.getChunkStore(walletFile).store(new File(newWalletBackupFilename), read(walletFile));
+            BackupManager.INSTANCE.backupAdded(new File(newWalletBackupFilename));
         }
 
         return newWalletBackupFilename;
@@ -569,10 +877,19 @@ public class FileHandler {
                 throw new DeleteWalletException(controller.getLocaliser().getString("deleteWalletException.walletWasReadonly"));
             }
 
-            // Delete the wallet info file first, then the wallet.
+            // Delete the wallet info file first, then the wallet, its journal and its last block seen.
             try {
                 FileHandler.secureDelete(walletInfoFile);
                 FileHandler.secureDelete(walletFile);
+                WalletJournal walletJournal = walletJournals.remove(perWalletModelData.getWalletFilename());
+                if (walletJournal == null) {
+                    walletJournal = new WalletJournal(walletFile);
+                }
+                walletJournal.delete();
+                new LastBlockSeenFile(walletFile).delete();
+                walletFileWatcher.unwatch(perWalletModelData);
+                walletInfo.setWriteToken(null);
+                perWalletModelData.setWalletDirtyListener(null);
                 walletInfo.setDeleted(true);
             } catch (IOException ioe) {
                 log.error(ioe.getClass().getCanonicalName() + " " + ioe.getMessage());
@@ -588,6 +905,12 @@ public class FileHandler {
         return;
     }
 
+    /**
+     * See if the wallet files have been changed by another process since this MultiBit last wrote them.
+     * 
+     * @param perWalletModelData
+     * @return true if the wallet or wallet info file is not as this MultiBit left it
+     */
     public boolean haveFilesChanged(WalletData perWalletModelData) {
         if (perWalletModelData == null || perWalletModelData.getWalletFilename() == null) {
             return false;
@@ -595,37 +918,21 @@ public class FileHandler {
 
         boolean haveFilesChanged = false;
 
-        String walletInfoFilename = WalletInfoData.createWalletInfoFilename(perWalletModelData.getWalletFilename());
-        File walletInfoFile = new File(walletInfoFilename);
         File walletFile = new File(perWalletModelData.getWalletFilename());
 
         WalletInfoData walletInfo = perWalletModelData.getWalletInfo();
 
         if (walletInfo != null) {
             synchronized (walletInfo) {
-                String walletFileSize = "" + walletFile.length();
-                String walletFileLastModified = "" + walletFile.lastModified();
-                String walletInfoFileSize = "" + walletInfoFile.length();
-                String walletInfoFileLastModified = "" + walletInfoFile.lastModified();
-
-                if (!walletFileSize.equals(walletInfo.getProperty(BitcoinModel.WALLET_FILE_SIZE))) {
-                    haveFilesChanged = true;
-                }
+                WriteToken currentFiles = new WriteToken(walletFile);
+                WriteToken writeToken = walletInfo.getWriteToken();
 
-                if (!walletFileLastModified.equals(walletInfo.getProperty(BitcoinModel.WALLET_FILE_LAST_MODIFIED))) {
-                    haveFilesChanged = true;
-                }
-
-                if (!walletInfoFileSize.equals(walletInfo.getProperty(BitcoinModel.WALLET_INFO_FILE_SIZE))) {
-                    haveFilesChanged = true;
-                }
+                haveFilesChanged = !currentFiles.matches(writeToken);
 
                 if (haveFilesChanged) {
                     log.debug("Result of check of whether files have changed for wallet filename "
                             + perWalletModelData.getWalletFilename() + " was " + haveFilesChanged + ".");
-                    log.debug(BitcoinModel.WALLET_FILE_SIZE + " " + walletFileSize + " ," + BitcoinModel.WALLET_FILE_LAST_MODIFIED
-                            + " " + walletFileLastModified + " ," + BitcoinModel.WALLET_INFO_FILE_SIZE + " " + walletInfoFileSize
-                            + " ," + BitcoinModel.WALLET_INFO_FILE_LAST_MODIFIED + " " + walletInfoFileLastModified);
+                    log.debug("Files now " + currentFiles + ", last written " + writeToken);
                 }
             }
         }
@@ -635,7 +942,8 @@ public class FileHandler {
 
     /**
      * Keep a record of the wallet and wallet info files sizes and date last
-     * modified.
+     * modified. This is the write token used to tell our own writes from those
+     * of other processes.
      * 
      * @param walletFile
      *            The wallet file
@@ -643,30 +951,48 @@ public class FileHandler {
      *            The wallet info
      */
     private void rememberFileSizesAndLastModified(File walletFile, WalletInfoData walletInfo) {
-        // Get the files' last modified data and sizes and store them in the
-        // wallet properties.
         if (walletFile == null || walletInfo == null) {
             return;
         }
 
-        long walletFileSize = walletFile.length();
-        long walletFileLastModified = walletFile.lastModified();
+        WriteToken writeToken = new WriteToken(walletFile);
+        walletInfo.setWriteToken(writeToken);
 
-        String walletFilename = walletFile.getAbsolutePath();
-        String walletInfoFilename = WalletInfoData.createWalletInfoFilename(walletFilename);
-        File walletInfoFile = new File(walletInfoFilename);
-        long walletInfoFileSize = walletInfoFile.length();
-        long walletInfoFileLastModified = walletInfoFile.lastModified();
+        log.debug("rememberFileSizesAndLastModified: Wallet filename " + walletFile.getAbsolutePath() + " , " + writeToken);
+    }
+
+    /**
+     * The sizes and dates last modified of a wallet file and its wallet info file.
+     * It is kept on the WalletInfoData so that it is the same whichever FileHandler wrote the wallet.
+     */
+    public static final class WriteToken {
+        private final long walletFileSize;
+        private final long walletFileLastModified;
+        private final long walletInfoFileSize;
+        private final long walletInfoFileLastModified;
+
+        WriteToken(File walletFile) {
+            File walletInfoFile = new File(WalletInfoData.createWalletInfoFilename(walletFile.getAbsolutePath()));
+            walletFileSize = walletFile.length();
+            walletFileLastModified = walletFile.lastModified();
+            walletInfoFileSize = walletInfoFile.length();
+            walletInfoFileLastModified = walletInfoFile.lastModified();
+        }
 
-        walletInfo.put(BitcoinModel.WALLET_FILE_SIZE, "" + walletFileSize);
-        walletInfo.put(BitcoinModel.WALLET_FILE_LAST_MODIFIED, "" + walletFileLastModified);
-        walletInfo.put(BitcoinModel.WALLET_INFO_FILE_SIZE, "" + walletInfoFileSize);
-        walletInfo.put(BitcoinModel.WALLET_INFO_FILE_LAST_MODIFIED, "" + walletInfoFileLastModified);
+        /**
+         * As before, the wallet info file is only compared by size.
+         */
+        boolean matches(WriteToken other) {
+            return other != null && walletFileSize == other.walletFileSize && walletFileLastModified == other.walletFileLastModified
+                    && walletInfoFileSize == other.walletInfoFileSize;
+        }
 
-        log.debug("rememberFileSizesAndLastModified: Wallet filename " + walletFilename + " , " + BitcoinModel.WALLET_FILE_SIZE
-                + " " + walletFileSize + " ," + BitcoinModel.WALLET_FILE_LAST_MODIFIED + " " + walletFileLastModified + " ,"
-                + BitcoinModel.WALLET_INFO_FILE_SIZE + " " + walletInfoFileSize + " ,"
-                + BitcoinModel.WALLET_INFO_FILE_LAST_MODIFIED + " " + walletInfoFileLastModified);
+        @Override
+        public String toString() {
+            return BitcoinModel.WALLET_FILE_SIZE + " " + walletFileSize + " ," + BitcoinModel.WALLET_FILE_LAST_MODIFIED + " "
+                    + walletFileLastModified + " ," + BitcoinModel.WALLET_INFO_FILE_SIZE + " " + walletInfoFileSize + " ,"
+                    + BitcoinModel.WALLET_INFO_FILE_LAST_MODIFIED + " " + walletInfoFileLastModified;
+        }
     }
 
     public static void writeUserPreferences(BitcoinController bitcoinController) {
@@ -947,6 +1273,28 @@ public class FileHandler {
         }
     }
 
+    /**
+     * Rename the sourceFile over the destinationFile.
+     * On platforms where a rename cannot replace an existing file (Windows) the
+     * destination is deleted first.
+     * 
+     * @param sourceFile
+     * @param destinationFile
+     * @throws IOException
+     */
+    public static void replaceFile(File sourceFile, File destinationFile) throws IOException {
+        if (sourceFile.renameTo(destinationFile)) {
+            return;
+        }
+        if (destinationFile.exists() && !destinationFile.delete()) {
+            throw new IOException("Could not delete '" + destinationFile.getAbsolutePath() + "' to replace it");
+        }
+        if (!sourceFile.renameTo(destinationFile)) {
+            throw new IOException("Could not rename '" + sourceFile.getAbsolutePath() + "' to '"
+                    + destinationFile.getAbsolutePath() + "'");
+        }
+    }
+
     public static void writeFile(byte[] sourceBytes, File destinationFile) throws IOException {
         if (!destinationFile.exists()) {
             destinationFile.createNewFile();
@@ -0,0 +1,186 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.file;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.AbstractWalletEventListener;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.ScriptException;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionInput;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.Wallet;
+
+/**
+ * Index of the earliest and latest use of each pubkey hash in the transactions of a wallet.
+ *
+ * The index is built in a single pass over the transactions so that the usage
+ * dates of all the keys can then be looked up directly, rather than scanning every
+ * transaction for every key. The index of each wallet is cached until the wallet
+ * changes.
+ */
+public class KeyUsageIndex {
+    private static final Logger log = LoggerFactory.getLogger(KeyUsageIndex.class);
+
+    /**
+     * The cached index watcher of each wallet. Weak so that closed wallets can be collected.
+     */
+    private static final Map<Wallet, WalletWatcher> walletWatchers = new WeakHashMap<Wallet, WalletWatcher>();
+
+    /**
+     * Usage dates keyed by the wrapped pubkey hash.
+     */
+    private final Map<ByteBuffer, Usage> usages;
+
+    private final int numberOfTransactions;
+
+    private final int generation;
+
+    /**
+     * Get the index of the wallet, building it if the wallet has changed since it was last built.
+     *
+     * @param wallet
+     */
+    public static KeyUsageIndex forWallet(Wallet wallet) {
+        WalletWatcher walletWatcher;
+        boolean newWalletWatcher = false;
+        synchronized (walletWatchers) {
+            walletWatcher = walletWatchers.get(wallet);
+            if (walletWatcher == null) {
+                walletWatcher = new WalletWatcher();
+                walletWatchers.put(wallet, walletWatcher);
+                newWalletWatcher = true;
+            }
+        }
+        if (newWalletWatcher) {
+            // Outside the lock as the wallet may be firing events whilst holding its own lock.
+            wallet.addEventListener(walletWatcher);
+        }
+
+        int generation = walletWatcher.generation;
+        Collection<Transaction> transactions = wallet.getTransactions(true);
+        KeyUsageIndex keyUsageIndex = walletWatcher.keyUsageIndex;
+        // The transaction count catches changes whose events have not been delivered yet.
+        if (keyUsageIndex == null || keyUsageIndex.generation != generation
+                || keyUsageIndex.numberOfTransactions != transactions.size()) {
+            keyUsageIndex = new KeyUsageIndex(transactions, generation);
+            walletWatcher.keyUsageIndex = keyUsageIndex;
+        }
+        return keyUsageIndex;
+    }
+
+    /**
+     * Build an index of the transactions.
+     *
+     * @param transactions
+     */
+    public KeyUsageIndex(Collection<Transaction> transactions) {
+        this(transactions, 0);
+    }
+
+    private KeyUsageIndex(Collection<Transaction> transactions, int generation) {
+        this.generation = generation;
+        this.usages = new HashMap<ByteBuffer, Usage>();
+        int transactionCount = 0;
+        if (transactions != null) {
+            for (Transaction transaction : transactions) {
+                transactionCount++;
+                Date updateTime = transaction.getUpdateTime();
+                if (updateTime != null) {
+                    addTransaction(transaction, updateTime.getTime());
+                }
+            }
+        }
+        this.numberOfTransactions = transactionCount;
+    }
+
+    private void addTransaction(Transaction transaction, long time) {
+        // A script that cannot be parsed ends the transaction, as when each key was checked separately.
+        try {
+            for (TransactionOutput output : transaction.getOutputs()) {
+                addUsage(output.getScriptPubKey().getPubKeyHash(), time);
+            }
+            for (TransactionInput input : transaction.getInputs()) {
+                addUsage(Utils.sha256hash160(input.getScriptSig().getPubKey()), time);
+            }
+        } catch (ScriptException e) {
+            log.error("Could not parse tx script: {}", e.toString());
+        }
+    }
+
+    private void addUsage(byte[] pubKeyHash, long time) {
+        ByteBuffer key = ByteBuffer.wrap(pubKeyHash);
+        Usage usage = usages.get(key);
+        if (usage == null) {
+            usages.put(key, new Usage(time));
+        } else {
+            usage.earliest = Math.min(usage.earliest, time);
+            usage.latest = Math.max(usage.latest, time);
+        }
+    }
+
+    /**
+     * @param ecKey
+     * @return the update time of the earliest transaction that uses the key, or null if none do
+     */
+    public Date getEarliestUsageDate(ECKey ecKey) {
+        Usage usage = usages.get(ByteBuffer.wrap(ecKey.getPubKeyHash()));
+        return usage == null ? null : new Date(usage.earliest);
+    }
+
+    /**
+     * @param ecKey
+     * @return the update time of the latest transaction that uses the key, or null if none do
+     */
+    public Date getLatestUsageDate(ECKey ecKey) {
+        Usage usage = usages.get(ByteBuffer.wrap(ecKey.getPubKeyHash()));
+        return usage == null ? null : new Date(usage.latest);
+    }
+
+    private static class Usage {
+        long earliest;
+        long latest;
+
+        Usage(long time) {
+            this.earliest = time;
+            this.latest = time;
+        }
+    }
+
+    /**
+     * Holds the cached index of a wallet and drops it when the wallet changes.
+     */
+    private static class WalletWatcher extends AbstractWalletEventListener {
+        volatile int generation;
+        volatile KeyUsageIndex keyUsageIndex;
+
+        @Override
+        public void onWalletChanged(Wallet wallet) {
+            generation++;
+            keyUsageIndex = null;
+        }
+    }
+}
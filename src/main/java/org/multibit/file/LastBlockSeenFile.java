@@ -0,0 +1,176 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.file;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import org.multibit.model.bitcoin.BitcoinModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Wallet;
+
+/**
+ * Small fixed size sidecar file holding the chain position (last block seen) of a wallet.
+ * It is stored next to the wallet as <wallet name>.lastblock and is overwritten in place,
+ * so following the chain no longer needs the whole wallet to be written.
+ *
+ * The format of the record is:
+ * 4 magic bytes 'MBLB' in ASCII.
+ * 1 byte version number of format - initially set to 0
+ * 4 bytes last block seen height (-1 if none)
+ * 32 bytes last block seen hash (all zeros if none)
+ * 8 bytes last block seen time in seconds
+ * 4 bytes CRC32 of all of the above
+ */
+public class LastBlockSeenFile {
+    private static final Logger log = LoggerFactory.getLogger(LastBlockSeenFile.class);
+
+    public static final String LAST_BLOCK_SEEN_FILE_EXTENSION = "lastblock";
+
+    public static final byte[] LAST_BLOCK_SEEN_MAGIC_BYTES = new byte[] { (byte) 0x4D, (byte) 0x42, (byte) 0x4C, (byte) 0x42 }; // MBLB in ASCII
+    public static final byte LAST_BLOCK_SEEN_VERSION_NUMBER = (byte) 0x00;
+
+    private static final int HASH_LENGTH = 32;
+    private static final int BODY_LENGTH = LAST_BLOCK_SEEN_MAGIC_BYTES.length + 1 + 4 + HASH_LENGTH + 8;
+    static final int RECORD_LENGTH = BODY_LENGTH + 4;
+
+    private final File lastBlockSeenFile;
+
+    public LastBlockSeenFile(File walletFile) {
+        this.lastBlockSeenFile = new File(createLastBlockSeenFilename(walletFile.getAbsolutePath()));
+    }
+
+    /**
+     * Create the last block seen filename for a wallet.
+     *
+     * @param walletFilename
+     */
+    public static String createLastBlockSeenFilename(String walletFilename) {
+        String suffix = "." + BitcoinModel.WALLET_FILE_EXTENSION;
+        if (walletFilename.endsWith(suffix)) {
+            walletFilename = walletFilename.substring(0, walletFilename.length() - suffix.length());
+        }
+        return walletFilename + "." + LAST_BLOCK_SEEN_FILE_EXTENSION;
+    }
+
+    public File getFile() {
+        return lastBlockSeenFile;
+    }
+
+    /**
+     * Write the wallet's last block seen over the existing record.
+     *
+     * @param wallet
+     * @throws IOException
+     */
+    public void write(Wallet wallet) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(RECORD_LENGTH);
+        DataOutputStream outputStream = new DataOutputStream(bytes);
+        outputStream.write(LAST_BLOCK_SEEN_MAGIC_BYTES);
+        outputStream.writeByte(LAST_BLOCK_SEEN_VERSION_NUMBER);
+        outputStream.writeInt(wallet.getLastBlockSeenHeight());
+        Sha256Hash lastBlockSeenHash = wallet.getLastBlockSeenHash();
+        outputStream.write(lastBlockSeenHash == null ? new byte[HASH_LENGTH] : lastBlockSeenHash.getBytes());
+        outputStream.writeLong(wallet.getLastBlockSeenTimeSecs());
+        outputStream.flush();
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes.toByteArray());
+        outputStream.writeInt((int) crc32.getValue());
+        outputStream.flush();
+
+        // A single small write at the start of the file - a torn write is caught by the checksum.
+        RandomAccessFile randomAccessFile = new RandomAccessFile(lastBlockSeenFile, "rwd");
+        try {
+            randomAccessFile.seek(0);
+            randomAccessFile.write(bytes.toByteArray());
+            if (randomAccessFile.length() > RECORD_LENGTH) {
+                randomAccessFile.setLength(RECORD_LENGTH);
+            }
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Apply the stored last block seen to the wallet if it is further along the chain than the wallet's own.
+     * A record without a block hash was written when a replay was queued, so it is applied even though
+     * it is further back - the wallet file may not have been written since.
+     *
+     * @param wallet
+     * @return true if the wallet was updated
+     * @throws IOException
+     */
+    public boolean applyTo(Wallet wallet) throws IOException {
+        if (!lastBlockSeenFile.exists() || lastBlockSeenFile.length() < RECORD_LENGTH) {
+            return false;
+        }
+
+        byte[] record = new byte[RECORD_LENGTH];
+        RandomAccessFile randomAccessFile = new RandomAccessFile(lastBlockSeenFile, "r");
+        try {
+            randomAccessFile.readFully(record);
+        } finally {
+            randomAccessFile.close();
+        }
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(record, 0, BODY_LENGTH);
+        DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(record));
+        byte[] magicBytes = new byte[LAST_BLOCK_SEEN_MAGIC_BYTES.length];
+        inputStream.readFully(magicBytes);
+        byte versionNumber = inputStream.readByte();
+        int lastBlockSeenHeight = inputStream.readInt();
+        byte[] hashBytes = new byte[HASH_LENGTH];
+        inputStream.readFully(hashBytes);
+        long lastBlockSeenTimeSecs = inputStream.readLong();
+        long checksum = inputStream.readInt() & 0xFFFFFFFFL;
+
+        if (!Arrays.equals(LAST_BLOCK_SEEN_MAGIC_BYTES, magicBytes) || versionNumber != LAST_BLOCK_SEEN_VERSION_NUMBER
+                || checksum != crc32.getValue()) {
+            log.error("Last block seen file '" + lastBlockSeenFile.getAbsolutePath() + "' is damaged - ignoring it.");
+            return false;
+        }
+
+        boolean hasHash = !Arrays.equals(new byte[HASH_LENGTH], hashBytes);
+        boolean rewoundForReplay = !hasHash && lastBlockSeenHeight >= 0 && lastBlockSeenHeight < wallet.getLastBlockSeenHeight();
+        if (lastBlockSeenHeight <= wallet.getLastBlockSeenHeight() && !rewoundForReplay) {
+            return false;
+        }
+
+        wallet.setLastBlockSeenHeight(lastBlockSeenHeight);
+        wallet.setLastBlockSeenHash(hasHash ? new Sha256Hash(hashBytes) : null);
+        wallet.setLastBlockSeenTimeSecs(lastBlockSeenTimeSecs);
+        return true;
+    }
+
+    /**
+     * Delete the last block seen file.
+     */
+    public void delete() throws IOException {
+        FileHandler.secureDelete(lastBlockSeenFile);
+    }
+}
@@ -19,6 +19,7 @@ import com.google.bitcoin.core.*;
 import com.google.bitcoin.crypto.KeyCrypter;
 import com.google.bitcoin.crypto.KeyCrypterException;
 import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
+import org.multibit.crypto.DerivedKeyCache;
 import org.multibit.crypto.KeyCrypterOpenSSL;
 import org.multibit.utils.DateUtils;
 import org.slf4j.Logger;
@@ -29,6 +30,13 @@ import java.io.*;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.multibit.utils.FilePermissionUtils;
 
@@ -44,6 +52,31 @@ public class PrivateKeysHandler {
     private static final String COMMENT_STRING_PREFIX = "#";
     private static final int NUMBER_OF_MILLISECONDS_IN_A_SECOND = 1000;
 
+    /**
+     * The number of lines of an import file decoded together.
+     */
+    private static final int LINES_PER_BATCH = 256;
+
+    /**
+     * The number of batches being decoded ahead of the listener.
+     */
+    private static final int MAXIMUM_BATCHES_IN_PROGRESS = 4 * Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Decodes the keys of import files on all the processors.
+     */
+    private static final ExecutorService keyDecodingExecutor = Executors.newFixedThreadPool(Runtime.getRuntime()
+            .availableProcessors(), new ThreadFactory() {
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "MultiBit key decoder " + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
     private SimpleDateFormat formatter;
 
     private NetworkParameters networkParameters;
@@ -82,31 +115,24 @@ public class PrivateKeysHandler {
             outputFooterComment(outputStringBuffer);
         }
         
-        String keyOutputText = outputStringBuffer.toString();
-
-        if (performEncryptionOfExportFile) {
-            KeyCrypterOpenSSL keyCrypter = new KeyCrypterOpenSSL();
-            keyOutputText = keyCrypter.encrypt(keyOutputText, exportPassword);
-        }
-        
-        FileWriter fileWriter = null;
-        PrintWriter printWriter = null;
+        FileOutputStream fileOutputStream = null;
+        Writer writer = null;
         try {
-            fileWriter = new FileWriter(exportFile);
-            printWriter = new PrintWriter(fileWriter);
-
+            fileOutputStream = new FileOutputStream(exportFile);
             FilePermissionUtils.setWalletPermission(exportFile);
-            printWriter.write(keyOutputText);
-
-            // Close the output stream.
-            printWriter.close();
-
-        } finally {
-            if (printWriter != null) {
-                printWriter.close();
+            if (performEncryptionOfExportFile) {
+                // Encrypt as the text is written rather than encrypting a copy of it all.
+                writer = new OutputStreamWriter(keyCrypter.encrypt(new BufferedOutputStream(fileOutputStream), exportPassword),
+                        KeyCrypterOpenSSL.STRING_ENCODING);
+            } else {
+                writer = new OutputStreamWriter(fileOutputStream);
             }
-            if (fileWriter != null) {
-                fileWriter.close();
+            writer.append(outputStringBuffer);
+        } finally {
+            if (writer != null) {
+                writer.close();
+            } else if (fileOutputStream != null) {
+                fileOutputStream.close();
             }
         }
     }
@@ -178,43 +204,142 @@ public class PrivateKeysHandler {
     }
 
     public Collection<PrivateKeyAndDate> readInPrivateKeys(File importFile, CharSequence password) throws PrivateKeysHandlerException, KeyCrypterException {
+        final ArrayList<PrivateKeyAndDate> parseResults = new ArrayList<PrivateKeyAndDate>();
+
+        readInPrivateKeys(importFile, password, new PrivateKeysReadListener() {
+            @Override
+            public void privateKeysRead(List<PrivateKeyAndDate> privateKeyAndDates, int percentComplete) {
+                parseResults.addAll(privateKeyAndDates);
+            }
+        });
+        return parseResults;
+    }
+
+    /**
+     * Read in the private keys of an import file, decrypting it as it is read
+     * if required. The keys are decoded in parallel and passed to the listener
+     * in batches, in file order.
+     * 
+     * @param importFile
+     * @param password
+     *            the password of an encrypted import file
+     * @param privateKeysReadListener
+     * @throws PrivateKeysHandlerException
+     * @throws KeyCrypterException
+     */
+    public void readInPrivateKeys(File importFile, CharSequence password, PrivateKeysReadListener privateKeysReadListener)
+            throws PrivateKeysHandlerException, KeyCrypterException {
         if (importFile == null) {
             throw new PrivateKeysHandlerException("Import file cannot be null");
         }
 
-        ArrayList<PrivateKeyAndDate> parseResults = new ArrayList<PrivateKeyAndDate>();
-
-        Scanner scanner = null;
-
+        InputStream plainInputStream = null;
         try {
-            // Read in the file.
-            String importFileContents = readFile(importFile);
-
-            if (importFileContents != null && importFileContents.startsWith(keyCrypter.getOpenSSLMagicText())) {
-                // Decryption required.
-                KeyCrypterOpenSSL keyCrypter = new KeyCrypterOpenSSL();
-                importFileContents = keyCrypter.decrypt(importFileContents, password);
+            CountingInputStream countingInputStream = new CountingInputStream(new FileInputStream(importFile));
+            plainInputStream = new BufferedInputStream(countingInputStream);
+            BufferedReader reader;
+            boolean decryptionRequired = startsWithOpenSSLMagicText(plainInputStream);
+            if (decryptionRequired) {
+                plainInputStream = keyCrypter.decrypt(plainInputStream, password);
+                reader = new BufferedReader(new InputStreamReader(plainInputStream, KeyCrypterOpenSSL.STRING_ENCODING));
+            } else {
+                reader = new BufferedReader(new InputStreamReader(plainInputStream));
             }
 
-            scanner = new Scanner(new StringReader(importFileContents));
-
-            // First use a Scanner to get each line.
-            while (scanner.hasNextLine()) {
-                processLine(scanner.nextLine(), parseResults);
+            try {
+                processLines(reader, countingInputStream, importFile.length(), privateKeysReadListener);
+            } catch (PrivateKeysHandlerException pkhe) {
+                if (decryptionRequired) {
+                    // A wrong password decrypts to lines of rubbish, but it is only detected
+                    // by the padding at the end of the file.
+                    while (reader.read() != -1) {
+                        // Keep reading.
+                    }
+                }
+                throw pkhe;
             }
         } catch (IOException ioe) {
             throw new PrivateKeysHandlerException("Could not read import file '" + importFile.getAbsolutePath() + "'", ioe);
         } finally {
-            // Ensure the underlying stream is always closed
-            // this only has any effect if the item passed
-            // to the Scanner
-            // constructor implements Closeable (which it
-            // does in this case).
-            if (scanner != null) {
-                scanner.close();
+            if (plainInputStream != null) {
+                try {
+                    plainInputStream.close();
+                } catch (IOException ioe) {
+                    log.debug(ioe.getClass().getCanonicalName() + " " + ioe.getMessage());
+                }
+            }
+        }
+    }
+
+    private boolean startsWithOpenSSLMagicText(InputStream inputStream) throws IOException {
+        byte[] magicBytes = keyCrypter.getOpenSSLMagicText().getBytes(KeyCrypterOpenSSL.STRING_ENCODING);
+        byte[] firstBytes = new byte[magicBytes.length];
+        inputStream.mark(magicBytes.length);
+        int length = 0;
+        int bytesRead;
+        while (length < firstBytes.length && (bytesRead = inputStream.read(firstBytes, length, firstBytes.length - length)) != -1) {
+            length += bytesRead;
+        }
+        inputStream.reset();
+        return Arrays.equals(magicBytes, firstBytes);
+    }
+
+    /**
+     * Decode the lines in batches on the key decoding threads and pass the
+     * results on in order, keeping a limited number of batches in progress.
+     */
+    private void processLines(BufferedReader reader, CountingInputStream countingInputStream, long fileLength,
+            PrivateKeysReadListener privateKeysReadListener) throws IOException {
+        LinkedList<Future<List<PrivateKeyAndDate>>> batchesInProgress = new LinkedList<Future<List<PrivateKeyAndDate>>>();
+        try {
+            List<String> lines = new ArrayList<String>(LINES_PER_BATCH);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+                if (lines.size() == LINES_PER_BATCH) {
+                    batchesInProgress.add(keyDecodingExecutor.submit(new LineDecoder(lines)));
+                    lines = new ArrayList<String>(LINES_PER_BATCH);
+
+                    if (batchesInProgress.size() > MAXIMUM_BATCHES_IN_PROGRESS) {
+                        privateKeysReadListener.privateKeysRead(waitForBatch(batchesInProgress.removeFirst()),
+                                calculatePercentComplete(countingInputStream.getCount(), fileLength));
+                    }
+                }
+            }
+            if (!lines.isEmpty()) {
+                batchesInProgress.add(keyDecodingExecutor.submit(new LineDecoder(lines)));
+            }
+
+            while (!batchesInProgress.isEmpty()) {
+                privateKeysReadListener.privateKeysRead(waitForBatch(batchesInProgress.removeFirst()),
+                        calculatePercentComplete(countingInputStream.getCount(), fileLength));
+            }
+        } finally {
+            for (Future<List<PrivateKeyAndDate>> batchInProgress : batchesInProgress) {
+                batchInProgress.cancel(false);
             }
         }
-        return parseResults;
+    }
+
+    private List<PrivateKeyAndDate> waitForBatch(Future<List<PrivateKeyAndDate>> batch) {
+        try {
+            return batch.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new PrivateKeysHandlerException("Interrupted whilst reading the import file", ie);
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof PrivateKeysHandlerException) {
+                throw (PrivateKeysHandlerException) ee.getCause();
+            }
+            throw new PrivateKeysHandlerException("Could not decode the private keys in the import file", ee.getCause());
+        }
+    }
+
+    private int calculatePercentComplete(long bytesRead, long fileLength) {
+        if (fileLength <= 0) {
+            return 100;
+        }
+        return (int) Math.min(100, bytesRead * 100 / fileLength);
     }
 
     private void outputHeaderComment(StringBuffer out) {
@@ -247,8 +372,9 @@ public class PrivateKeysHandler {
                 }
             }
 
-            Set<Transaction> allTransactions = wallet.getTransactions(true);
             if (keychain != null) {
+                // Look up the usage of each key in an index built in one pass over the transactions.
+                KeyUsageIndex keyUsageIndex = KeyUsageIndex.forWallet(wallet);
                 HashMap<ECKey, Date> keyToEarliestUsageDateMap = new HashMap<ECKey, Date>();
 
                 // The date of the last transaction in the wallet - used where
@@ -256,30 +382,14 @@ public class PrivateKeysHandler {
                 Date overallLastUsageDate = null;
 
                 for (ECKey ecKey : keychain) {
-                    // Find the earliest usage of this key.
-                    Date earliestUsageDate = null;
-                    if (allTransactions != null) {
-                        for (Transaction tx : allTransactions) {
-                            if (transactionUsesKey(tx, ecKey)) {
-                                Date updateTime = tx.getUpdateTime();
-                                if (updateTime != null) {
-                                    if (overallLastUsageDate == null) {
-                                        overallLastUsageDate = updateTime;
-                                    } else {
-                                        overallLastUsageDate = overallLastUsageDate.after(updateTime) ? overallLastUsageDate
-                                                    : updateTime;
-                                    }
-                                    if (earliestUsageDate == null) {
-                                        earliestUsageDate = updateTime;
-                                    } else {
-                                        earliestUsageDate = earliestUsageDate.before(updateTime) ? earliestUsageDate : updateTime;
-                                    }
-                                }
-                            }
-                        }
-                    }
+                    Date earliestUsageDate = keyUsageIndex.getEarliestUsageDate(ecKey);
                     if (earliestUsageDate != null) {
                         keyToEarliestUsageDateMap.put(ecKey, earliestUsageDate);
+
+                        Date latestUsageDate = keyUsageIndex.getLatestUsageDate(ecKey);
+                        if (overallLastUsageDate == null || latestUsageDate.after(overallLastUsageDate)) {
+                            overallLastUsageDate = latestUsageDate;
+                        }
                     }
                 }
 
@@ -310,7 +420,7 @@ public class PrivateKeysHandler {
                 KeyCrypter walletKeyCrypter = wallet.getKeyCrypter();
                 KeyParameter aesKey = null;
                 if (decryptionRequired) {
-                    aesKey = walletKeyCrypter.deriveKey(walletPassword);
+                    aesKey = DerivedKeyCache.INSTANCE.deriveKey(walletKeyCrypter, walletPassword);
                 }
                 
                 for (ECKey ecKey : keychain) {
@@ -391,38 +501,12 @@ public class PrivateKeysHandler {
         }
     }
 
-    private boolean transactionUsesKey(Transaction transaction, ECKey ecKey) {
-        for (TransactionOutput output : transaction.getOutputs()) {
-            // This is not thread safe as a key could be removed between the
-            // call to isMine and receive.
-            try {
-                byte[] pubkeyHash = output.getScriptPubKey().getPubKeyHash();
-                if (Arrays.equals(ecKey.getPubKeyHash(), pubkeyHash)) {
-                    return true;
-                }
-            } catch (ScriptException e) {
-                log.error("Could not parse tx output script: {}", e.toString());
-                return false;
-            }
-        }
-
-        for (TransactionInput input : transaction.getInputs()) {
-            // This is not thread safe as a key could be removed between the
-            // call to isPubKeyMine and receive.
-            try {
-                byte[] pubkey = input.getScriptSig().getPubKey();
-                if (Arrays.equals(ecKey.getPubKey(), pubkey)) {
-                    return true;
-                }
-            } catch (ScriptException e) {
-                log.error("Could not parse tx output script: {}", e.toString());
-                return false;
-            }
-        }
-        return false;
-    }
-
-    private void processLine(String line, ArrayList<PrivateKeyAndDate> parseResults) {
+    /**
+     * Decode a line of an import file.
+     * 
+     * @return the key and date on the line, or null if the line has none
+     */
+    private PrivateKeyAndDate decodeLine(String line, SimpleDateFormat lineFormatter) {
         if (line != null && !line.trim().equals("") && !line.startsWith(COMMENT_STRING_PREFIX)) {
             Scanner scanner = null;
             try {
@@ -444,11 +528,11 @@ public class PrivateKeysHandler {
                 privateKeyAndDate.setKey(dumpedPrivateKey.getKey());
 
                 if (createdAtAsString != null && !"".equals(createdAtAsString)) {
-                    Date date = formatter.parse(createdAtAsString);
+                    Date date = lineFormatter.parse(createdAtAsString);
                     privateKeyAndDate.setDate(date);
                 }
 
-                parseResults.add(privateKeyAndDate);
+                return privateKeyAndDate;
             } catch (AddressFormatException e) {
                 throw new PrivateKeysHandlerException("Could not understand address in import file", e);
             } catch (ParseException pe) {
@@ -459,6 +543,72 @@ public class PrivateKeysHandler {
                 }
             }
         }
+        return null;
+    }
+
+    /**
+     * Decodes a batch of lines of an import file. Deriving the public key of each private key is the slow part.
+     */
+    private class LineDecoder implements Callable<List<PrivateKeyAndDate>> {
+        private final List<String> lines;
+
+        LineDecoder(List<String> lines) {
+            this.lines = lines;
+        }
+
+        @Override
+        public List<PrivateKeyAndDate> call() {
+            // SimpleDateFormat is not thread safe so each batch has its own.
+            SimpleDateFormat lineFormatter = (SimpleDateFormat) formatter.clone();
+            List<PrivateKeyAndDate> privateKeyAndDates = new ArrayList<PrivateKeyAndDate>(lines.size());
+            for (String line : lines) {
+                PrivateKeyAndDate privateKeyAndDate = decodeLine(line, lineFormatter);
+                if (privateKeyAndDate != null) {
+                    privateKeyAndDates.add(privateKeyAndDate);
+                }
+            }
+            return privateKeyAndDates;
+        }
+    }
+
+    /**
+     * Counts the bytes read from the import file, for the progress.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private volatile long count = 0;
+
+        CountingInputStream(InputStream inputStream) {
+            super(inputStream);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            if (value != -1) {
+                count++;
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int bytesRead = super.read(bytes, offset, length);
+            if (bytesRead > 0) {
+                count += bytesRead;
+            }
+            return bytesRead;
+        }
+
+        @Override
+        public long skip(long length) throws IOException {
+            long bytesSkipped = super.skip(length);
+            count += bytesSkipped;
+            return bytesSkipped;
+        }
+
+        long getCount() {
+            return count;
+        }
     }
 
     public static String readFile(File file) throws IOException {
@@ -0,0 +1,33 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.file;
+
+import java.util.List;
+
+/**
+ * Receives the private keys of an import file in batches as the file is read.
+ */
+public interface PrivateKeysReadListener {
+    /**
+     * A batch of private keys has been read. Batches are delivered in file order.
+     *
+     * @param privateKeyAndDates
+     *            the keys in the batch
+     * @param percentComplete
+     *            how much of the import file has been read, from 0 to 100
+     */
+    public void privateKeysRead(List<PrivateKeyAndDate> privateKeyAndDates, int percentComplete);
+}
@@ -0,0 +1,359 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.file;
+
+import java.io.File;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.multibit.controller.bitcoin.BitcoinController;
+import org.multibit.model.bitcoin.WalletData;
+import org.multibit.model.bitcoin.WalletInfoData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches the directories of the open wallets for changes made by other processes.
+ *
+ * When the JVM has a file system WatchService (Java 7 and later) it is used, so a change is
+ * seen as soon as it is made and nothing is polled. MultiBit is built for Java 6 so the
+ * WatchService is reached by reflection. On a Java 6 JVM, or if the WatchService fails, the
+ * wallets are polled instead, at the same rate the health check used to.
+ *
+ * Changes that this MultiBit made itself are recognised by the write token FileHandler
+ * records after each write (see FileHandler.haveFilesChanged).
+ */
+public class WalletFileWatcher {
+    private static final Logger log = LoggerFactory.getLogger(WalletFileWatcher.class);
+
+    private static final String THREAD_NAME = "MultiBit wallet file watcher";
+
+    /**
+     * How often the wallets are checked when there is no WatchService.
+     */
+    public static final int POLL_INTERVAL = 90000; // milliseconds
+
+    /**
+     * How long to wait for a WatchService event before checking for new directories to watch.
+     */
+    private static final int WATCH_TIMEOUT = 1000; // milliseconds
+
+    private final BitcoinController bitcoinController;
+
+    /**
+     * The watched wallets, keyed by the absolute paths of their wallet and wallet info files.
+     */
+    private final Map<String, WalletData> watchedFiles;
+
+    /**
+     * The directories of the watched wallets.
+     */
+    private final Set<String> watchedDirectories;
+
+    private final Object lock = new Object();
+
+    private Thread watcherThread;
+    private volatile boolean stopped;
+
+    public WalletFileWatcher(BitcoinController bitcoinController) {
+        this.bitcoinController = bitcoinController;
+        this.watchedFiles = new ConcurrentHashMap<String, WalletData>();
+        this.watchedDirectories = new HashSet<String>();
+    }
+
+    /**
+     * Start watching the files of the perWalletModelData.
+     *
+     * @param perWalletModelData
+     */
+    public void watch(WalletData perWalletModelData) {
+        if (perWalletModelData == null || perWalletModelData.getWalletFilename() == null) {
+            return;
+        }
+
+        File walletFile = new File(perWalletModelData.getWalletFilename()).getAbsoluteFile();
+        File walletInfoFile = new File(WalletInfoData.createWalletInfoFilename(walletFile.getAbsolutePath()));
+        if (watchedFiles.get(walletFile.getAbsolutePath()) == perWalletModelData) {
+            return;
+        }
+        watchedFiles.put(walletFile.getAbsolutePath(), perWalletModelData);
+        watchedFiles.put(walletInfoFile.getAbsolutePath(), perWalletModelData);
+
+        synchronized (lock) {
+            if (walletFile.getParentFile() != null) {
+                watchedDirectories.add(walletFile.getParentFile().getAbsolutePath());
+            }
+            if (watcherThread == null && !stopped) {
+                watcherThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        watchForChanges();
+                    }
+                }, THREAD_NAME);
+                watcherThread.setDaemon(true);
+                watcherThread.start();
+            }
+        }
+    }
+
+    /**
+     * Stop watching the files of the perWalletModelData.
+     *
+     * @param perWalletModelData
+     */
+    public void unwatch(WalletData perWalletModelData) {
+        if (perWalletModelData == null || perWalletModelData.getWalletFilename() == null) {
+            return;
+        }
+        File walletFile = new File(perWalletModelData.getWalletFilename()).getAbsoluteFile();
+        watchedFiles.remove(walletFile.getAbsolutePath());
+        watchedFiles.remove(new File(WalletInfoData.createWalletInfoFilename(walletFile.getAbsolutePath())).getAbsolutePath());
+    }
+
+    /**
+     * Stop the watcher thread.
+     */
+    public void stop() {
+        stopped = true;
+        synchronized (lock) {
+            if (watcherThread != null) {
+                watcherThread.interrupt();
+            }
+        }
+    }
+
+    private void watchForChanges() {
+        WatchServiceAdapter watchService = null;
+        try {
+            watchService = WatchServiceAdapter.create();
+        } catch (Exception e) {
+            log.debug("No file system WatchService is available (" + e.getClass().getSimpleName()
+                    + ") - polling the wallets every " + POLL_INTERVAL + " ms.");
+        }
+
+        try {
+            if (watchService != null) {
+                boolean watchServiceFailed = false;
+                try {
+                    watchServiceFailed = !watchWithWatchService(watchService);
+                } finally {
+                    watchService.close();
+                }
+                if (watchServiceFailed) {
+                    log.error("The file system WatchService has failed - polling the wallets every " + POLL_INTERVAL + " ms.");
+                    poll();
+                }
+            } else {
+                poll();
+            }
+        } catch (InterruptedException e) {
+            // Stopped.
+        }
+    }
+
+    /**
+     * @return true if the watcher was stopped, false if the WatchService failed
+     */
+    private boolean watchWithWatchService(WatchServiceAdapter watchService) throws InterruptedException {
+        Set<String> registeredDirectories = new HashSet<String>();
+        while (!stopped) {
+            // Register any directories of wallets opened since last time.
+            List<String> directoriesToRegister = new ArrayList<String>();
+            synchronized (lock) {
+                for (String directory : watchedDirectories) {
+                    if (!registeredDirectories.contains(directory)) {
+                        directoriesToRegister.add(directory);
+                    }
+                }
+            }
+            for (String directory : directoriesToRegister) {
+                try {
+                    watchService.register(directory);
+                } catch (Exception e) {
+                    log.error("Could not watch directory '" + directory + "'. " + e.getClass().getCanonicalName() + " "
+                            + e.getMessage());
+                }
+                registeredDirectories.add(directory);
+            }
+
+            List<String> changedFiles = watchService.poll(WATCH_TIMEOUT);
+            if (changedFiles == null) {
+                return false;
+            }
+            Set<WalletData> changedWallets = new HashSet<WalletData>();
+            if (changedFiles.contains(WatchServiceAdapter.EVENTS_LOST)) {
+                changedWallets.addAll(watchedFiles.values());
+            }
+            for (String changedFile : changedFiles) {
+                WalletData perWalletModelData = watchedFiles.get(changedFile);
+                if (perWalletModelData != null) {
+                    changedWallets.add(perWalletModelData);
+                }
+            }
+            for (WalletData perWalletModelData : changedWallets) {
+                checkForChange(perWalletModelData);
+            }
+        }
+        return true;
+    }
+
+    private void poll() throws InterruptedException {
+        while (!stopped) {
+            Thread.sleep(POLL_INTERVAL);
+            for (WalletData perWalletModelData : new HashSet<WalletData>(watchedFiles.values())) {
+                checkForChange(perWalletModelData);
+            }
+        }
+    }
+
+    /**
+     * Compare the wallet files with the write token recorded by the last write and tell the
+     * rest of MultiBit if another process has changed them.
+     */
+    private void checkForChange(WalletData perWalletModelData) {
+        FileHandler fileHandler = bitcoinController.getFileHandler();
+        if (fileHandler == null || perWalletModelData.getWalletInfo() == null || perWalletModelData.getWalletInfo().isDeleted()) {
+            return;
+        }
+
+        if (fileHandler.haveFilesChanged(perWalletModelData)) {
+            boolean previousFilesHaveBeenChanged = perWalletModelData.isFilesHaveBeenChangedByAnotherProcess();
+            perWalletModelData.setFilesHaveBeenChangedByAnotherProcess(true);
+            if (!previousFilesHaveBeenChanged) {
+                // only fire once, when change happens
+                bitcoinController.fireFilesHaveBeenChangedByAnotherProcess(perWalletModelData);
+                log.debug("Marking wallet " + perWalletModelData.getWalletFilename() + " as having been changed by another process.");
+            }
+        }
+    }
+
+    /**
+     * The parts of java.nio.file.WatchService that are used, reached by reflection.
+     */
+    private static class WatchServiceAdapter {
+        static final String EVENTS_LOST = "";
+
+        private final Object fileSystem;
+        private final Object watchService;
+        private final Object eventKinds;
+
+        private final Method getPath;
+        private final Method register;
+        private final Method poll;
+        private final Method pollEvents;
+        private final Method context;
+        private final Method watchable;
+        private final Method reset;
+        private final Method close;
+
+        private WatchServiceAdapter(Object fileSystem, Object watchService, Object eventKinds, Class<?> fileSystemClass,
+                Class<?> pathClass, Class<?> watchServiceClass, Class<?> watchKeyClass, Class<?> watchEventClass) throws Exception {
+            this.fileSystem = fileSystem;
+            this.watchService = watchService;
+            this.eventKinds = eventKinds;
+            this.getPath = fileSystemClass.getMethod("getPath", String.class, String[].class);
+            this.register = pathClass.getMethod("register", watchServiceClass, eventKinds.getClass());
+            this.poll = watchServiceClass.getMethod("poll", long.class, TimeUnit.class);
+            this.pollEvents = watchKeyClass.getMethod("pollEvents");
+            this.context = watchEventClass.getMethod("context");
+            this.watchable = watchKeyClass.getMethod("watchable");
+            this.reset = watchKeyClass.getMethod("reset");
+            this.close = watchServiceClass.getMethod("close");
+        }
+
+        static WatchServiceAdapter create() throws Exception {
+            Class<?> fileSystemsClass = Class.forName("java.nio.file.FileSystems");
+            Class<?> fileSystemClass = Class.forName("java.nio.file.FileSystem");
+            Class<?> pathClass = Class.forName("java.nio.file.Path");
+            Class<?> watchServiceClass = Class.forName("java.nio.file.WatchService");
+            Class<?> watchKeyClass = Class.forName("java.nio.file.WatchKey");
+            Class<?> watchEventClass = Class.forName("java.nio.file.WatchEvent");
+            Class<?> watchEventKindClass = Class.forName("java.nio.file.WatchEvent$Kind");
+            Class<?> standardWatchEventKindsClass = Class.forName("java.nio.file.StandardWatchEventKinds");
+
+            Object fileSystem = fileSystemsClass.getMethod("getDefault").invoke(null);
+            Object watchService = fileSystemClass.getMethod("newWatchService").invoke(fileSystem);
+
+            // Wallets are replaced by renaming, so creates are watched as well as modifies.
+            Object eventKinds = Array.newInstance(watchEventKindClass, 2);
+            Array.set(eventKinds, 0, standardWatchEventKindsClass.getField("ENTRY_CREATE").get(null));
+            Array.set(eventKinds, 1, standardWatchEventKindsClass.getField("ENTRY_MODIFY").get(null));
+
+            return new WatchServiceAdapter(fileSystem, watchService, eventKinds, fileSystemClass, pathClass, watchServiceClass,
+                    watchKeyClass, watchEventClass);
+        }
+
+        void register(String directory) throws Exception {
+            Object path = getPath.invoke(fileSystem, directory, new String[0]);
+            register.invoke(path, watchService, eventKinds);
+        }
+
+        /**
+         * Wait for changes.
+         *
+         * @return The absolute paths of the files that have changed. EVENTS_LOST is
+         *         included if the file system dropped events. null if the WatchService
+         *         can no longer be used, for instance because it has been closed.
+         */
+        List<String> poll(long timeoutInMilliseconds) throws InterruptedException {
+            List<String> changedFiles = new ArrayList<String>();
+            try {
+                Object watchKey = poll.invoke(watchService, timeoutInMilliseconds, TimeUnit.MILLISECONDS);
+                while (watchKey != null) {
+                    String directory = watchable.invoke(watchKey).toString();
+                    for (Object watchEvent : (List<?>) pollEvents.invoke(watchKey)) {
+                        Object changedPath = context.invoke(watchEvent);
+                        if (changedPath != null) {
+                            changedFiles.add(new File(directory, changedPath.toString()).getAbsolutePath());
+                        } else {
+                            // An overflow - the changed files are not known.
+                            changedFiles.add(EVENTS_LOST);
+                        }
+                    }
+                    reset.invoke(watchKey);
+
+                    // Drain any other events that are ready.
+                    watchKey = poll.invoke(watchService, 0L, TimeUnit.MILLISECONDS);
+                }
+            } catch (java.lang.reflect.InvocationTargetException ite) {
+                if (ite.getCause() instanceof InterruptedException) {
+                    throw (InterruptedException) ite.getCause();
+                }
+                log.error("Could not read file system events. " + ite.getCause());
+                return null;
+            } catch (IllegalAccessException iae) {
+                log.error("Could not read file system events. " + iae.getMessage());
+                return null;
+            }
+            return changedFiles;
+        }
+
+        void close() {
+            try {
+                close.invoke(watchService);
+            } catch (Exception e) {
+                log.debug("Could not close the WatchService. " + e.getMessage());
+            }
+        }
+    }
+}
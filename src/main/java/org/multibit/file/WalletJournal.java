@@ -0,0 +1,540 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.file;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
+import org.multibit.model.bitcoin.BitcoinModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionConfidence;
+import com.google.bitcoin.core.TransactionConfidence.ConfidenceType;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.wallet.WalletTransaction;
+import com.google.bitcoin.wallet.WalletTransaction.Pool;
+
+/**
+ * Append-only journal of the incremental changes made to a wallet since its
+ * last full protobuf snapshot. It is stored next to the wallet as
+ * <wallet name>.journal.
+ *
+ * The journal records new transactions, confidence changes and last block
+ * seen updates. Anything it cannot express (key changes, transactions moving
+ * between pools, spends of wallet outputs) makes the caller write a full
+ * snapshot instead, which also compacts the journal.
+ *
+ * The format of the journal is:
+ * 4 magic bytes 'MBJ1' in ASCII.
+ * 8 bytes length and 8 bytes last modified time of the snapshot the journal applies to.
+ * Then records of: 1 byte record type, 4 bytes payload length, payload, 4 bytes CRC32 of the payload.
+ */
+public class WalletJournal {
+    private static final Logger log = LoggerFactory.getLogger(WalletJournal.class);
+
+    public static final String JOURNAL_FILE_EXTENSION = "journal";
+
+    public static final byte[] JOURNAL_MAGIC_BYTES = new byte[] { (byte) 0x4D, (byte) 0x42, (byte) 0x4A, (byte) 0x31 }; // MBJ1 in ASCII
+
+    static final byte RECORD_TRANSACTION = 1;
+    static final byte RECORD_CONFIDENCE = 2;
+    static final byte RECORD_LAST_BLOCK_SEEN = 3;
+
+    /**
+     * The journal is compacted into a snapshot when it is larger than this, or larger than
+     * 1 / COMPACTION_RATIO of the snapshot, whichever is bigger.
+     */
+    static final long MINIMUM_SIZE_BEFORE_COMPACTION = 64 * 1024;
+    static final int COMPACTION_RATIO = 4;
+
+    private static final int MAXIMUM_RECORD_LENGTH = 1024 * 1024;
+    private static final int HEADER_LENGTH = JOURNAL_MAGIC_BYTES.length + 8 + 8;
+    private static final int HASH_LENGTH = 32;
+
+    private final File walletFile;
+    private final File journalFile;
+
+    /**
+     * The wallet state that has been persisted (snapshot plus journal).
+     * Null until a baseline has been recorded.
+     */
+    private Map<Sha256Hash, TransactionState> persistedTransactions;
+    private int persistedKeychainSize;
+    private EncryptionType persistedEncryptionType;
+    private String persistedDescription;
+    private int persistedLastBlockSeenHeight;
+    private Sha256Hash persistedLastBlockSeenHash;
+
+    public WalletJournal(File walletFile) {
+        this.walletFile = walletFile;
+        this.journalFile = new File(createWalletJournalFilename(walletFile.getAbsolutePath()));
+    }
+
+    /**
+     * Create the journal filename for a wallet.
+     *
+     * @param walletFilename
+     */
+    public static String createWalletJournalFilename(String walletFilename) {
+        String suffix = "." + BitcoinModel.WALLET_FILE_EXTENSION;
+        if (walletFilename.endsWith(suffix)) {
+            walletFilename = walletFilename.substring(0, walletFilename.length() - suffix.length());
+        }
+        return walletFilename + "." + JOURNAL_FILE_EXTENSION;
+    }
+
+    public File getJournalFile() {
+        return journalFile;
+    }
+
+    /**
+     * A full snapshot of the wallet has been written - discard the journal and
+     * remember what was written.
+     */
+    public synchronized void snapshotWritten(Wallet wallet) throws IOException {
+        if (journalFile.exists() && !journalFile.delete()) {
+            // Cannot delete it so empty it - it will be ignored on load as its header is missing.
+            RandomAccessFile randomAccessFile = new RandomAccessFile(journalFile, "rw");
+            try {
+                randomAccessFile.setLength(0);
+            } finally {
+                randomAccessFile.close();
+            }
+        }
+        setBaseline(wallet);
+    }
+
+    /**
+     * Remember the given wallet state as the persisted state.
+     */
+    public synchronized void setBaseline(Wallet wallet) {
+        persistedTransactions = captureTransactions(wallet);
+        persistedKeychainSize = wallet.getKeychainSize();
+        persistedEncryptionType = wallet.getEncryptionType();
+        persistedDescription = wallet.getDescription();
+        persistedLastBlockSeenHeight = wallet.getLastBlockSeenHeight();
+        persistedLastBlockSeenHash = wallet.getLastBlockSeenHash();
+    }
+
+    /**
+     * Append the changes made to the wallet since the last snapshot or append.
+     *
+     * @param wallet
+     * @return true if the changes are now persisted, false if a full snapshot has to be written
+     * @throws IOException
+     */
+    public synchronized boolean appendChanges(Wallet wallet) throws IOException {
+        if (persistedTransactions == null) {
+            return false;
+        }
+
+        if (wallet.getKeychainSize() != persistedKeychainSize || wallet.getEncryptionType() != persistedEncryptionType
+                || !equalsOrBothNull(wallet.getDescription(), persistedDescription)) {
+            return false;
+        }
+
+        long journalLength = journalFile.exists() ? journalFile.length() : 0;
+        if (journalLength > Math.max(MINIMUM_SIZE_BEFORE_COMPACTION, walletFile.length() / COMPACTION_RATIO)) {
+            log.debug("Journal '" + journalFile.getAbsolutePath() + "' is " + journalLength + " bytes long - compacting.");
+            return false;
+        }
+
+        List<WalletTransaction> addedTransactions = new ArrayList<WalletTransaction>();
+        List<Transaction> confidenceChangedTransactions = new ArrayList<Transaction>();
+        Map<Sha256Hash, TransactionState> currentTransactions = new HashMap<Sha256Hash, TransactionState>();
+
+        for (WalletTransaction walletTransaction : wallet.getWalletTransactions()) {
+            Transaction transaction = walletTransaction.getTransaction();
+            TransactionState currentState = new TransactionState(walletTransaction);
+            currentTransactions.put(transaction.getHash(), currentState);
+
+            TransactionState persistedState = persistedTransactions.get(transaction.getHash());
+            if (persistedState == null) {
+                if (currentState.spentOutputCount > 0) {
+                    // Spent by another new transaction - the spend links need a snapshot.
+                    return false;
+                }
+                addedTransactions.add(walletTransaction);
+            } else if (persistedState.pool != currentState.pool || persistedState.spentOutputCount != currentState.spentOutputCount) {
+                return false;
+            } else if (persistedState.confidenceType != currentState.confidenceType
+                    || persistedState.appearedAtChainHeight != currentState.appearedAtChainHeight) {
+                confidenceChangedTransactions.add(transaction);
+            }
+        }
+
+        if (!currentTransactions.keySet().containsAll(persistedTransactions.keySet())) {
+            // A transaction was removed.
+            return false;
+        }
+
+        int lastBlockSeenHeight = wallet.getLastBlockSeenHeight();
+        Sha256Hash lastBlockSeenHash = wallet.getLastBlockSeenHash();
+        boolean lastBlockSeenChanged = lastBlockSeenHeight != persistedLastBlockSeenHeight
+                || !equalsOrBothNull(lastBlockSeenHash, persistedLastBlockSeenHash);
+
+        if (addedTransactions.isEmpty() && confidenceChangedTransactions.isEmpty() && !lastBlockSeenChanged) {
+            // Nothing to write.
+            return true;
+        }
+
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        for (WalletTransaction walletTransaction : addedTransactions) {
+            writeRecord(records, RECORD_TRANSACTION, encodeTransaction(walletTransaction));
+        }
+        for (Transaction transaction : confidenceChangedTransactions) {
+            writeRecord(records, RECORD_CONFIDENCE, encodeConfidence(transaction));
+        }
+        if (lastBlockSeenChanged) {
+            writeRecord(records, RECORD_LAST_BLOCK_SEEN, encodeLastBlockSeen(lastBlockSeenHeight, lastBlockSeenHash));
+        }
+
+        append(records.toByteArray(), journalLength < HEADER_LENGTH);
+
+        log.debug("Appended " + addedTransactions.size() + " transactions, " + confidenceChangedTransactions.size()
+                + " confidence changes and " + (lastBlockSeenChanged ? 1 : 0) + " last block seen updates to journal '"
+                + journalFile.getAbsolutePath() + "'");
+
+        persistedTransactions = currentTransactions;
+        persistedLastBlockSeenHeight = lastBlockSeenHeight;
+        persistedLastBlockSeenHash = lastBlockSeenHash;
+        return true;
+    }
+
+    /**
+     * Replay the journal onto a wallet that has just been loaded from its snapshot.
+     * A journal that belongs to a different snapshot is ignored. A partially written
+     * final record (e.g. due to power loss) is discarded.
+     *
+     * @param wallet
+     * @return the number of records replayed
+     * @throws IOException
+     */
+    public synchronized int replay(Wallet wallet) throws IOException {
+        if (!journalFile.exists() || journalFile.length() < HEADER_LENGTH) {
+            return 0;
+        }
+
+        int numberOfRecordsReplayed = 0;
+        long lengthOfGoodRecords = HEADER_LENGTH;
+        boolean lastBlockSeenWasReplayed = false;
+
+        DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+        try {
+            byte[] magicBytes = new byte[JOURNAL_MAGIC_BYTES.length];
+            inputStream.readFully(magicBytes);
+            if (!Arrays.equals(JOURNAL_MAGIC_BYTES, magicBytes)) {
+                throw new IOException("Journal '" + journalFile.getAbsolutePath() + "' did not start with the correct magic bytes.");
+            }
+            long snapshotLength = inputStream.readLong();
+            long snapshotLastModified = inputStream.readLong();
+            if (snapshotLength != walletFile.length() || snapshotLastModified != walletFile.lastModified()) {
+                log.debug("Journal '" + journalFile.getAbsolutePath() + "' does not belong to the current wallet snapshot - ignoring it.");
+                return 0;
+            }
+
+            while (true) {
+                int recordType = inputStream.read();
+                if (recordType == -1) {
+                    break;
+                }
+                byte[] payload;
+                try {
+                    int payloadLength = inputStream.readInt();
+                    if (payloadLength < 0 || payloadLength > MAXIMUM_RECORD_LENGTH) {
+                        log.error("Journal '" + journalFile.getAbsolutePath() + "' has a bad record length of " + payloadLength);
+                        break;
+                    }
+                    payload = new byte[payloadLength];
+                    inputStream.readFully(payload);
+                    long checksum = inputStream.readInt() & 0xFFFFFFFFL;
+                    if (checksum != calculateChecksum(payload)) {
+                        log.error("Journal '" + journalFile.getAbsolutePath() + "' has a record with a bad checksum.");
+                        break;
+                    }
+                } catch (EOFException eofe) {
+                    log.error("Journal '" + journalFile.getAbsolutePath() + "' ends with a partially written record.");
+                    break;
+                }
+
+                if (recordType == RECORD_LAST_BLOCK_SEEN) {
+                    lastBlockSeenWasReplayed = true;
+                }
+                applyRecord(wallet, (byte) recordType, payload);
+                numberOfRecordsReplayed++;
+                lengthOfGoodRecords = lengthOfGoodRecords + 1 + 4 + payload.length + 4;
+            }
+        } finally {
+            inputStream.close();
+        }
+
+        if (lengthOfGoodRecords < journalFile.length()) {
+            // Drop the damaged tail so that later appends are readable.
+            RandomAccessFile randomAccessFile = new RandomAccessFile(journalFile, "rw");
+            try {
+                randomAccessFile.setLength(lengthOfGoodRecords);
+            } finally {
+                randomAccessFile.close();
+            }
+        }
+
+        if (lastBlockSeenWasReplayed) {
+            updateDepthsFromLastBlockSeen(wallet);
+        }
+
+        log.debug("Replayed " + numberOfRecordsReplayed + " records from journal '" + journalFile.getAbsolutePath() + "'");
+        return numberOfRecordsReplayed;
+    }
+
+    /**
+     * Secure delete the journal.
+     */
+    public synchronized void delete() throws IOException {
+        FileHandler.secureDelete(journalFile);
+        persistedTransactions = null;
+    }
+
+    private void append(byte[] records, boolean writeHeader) throws IOException {
+        FileOutputStream fileOutputStream = new FileOutputStream(journalFile, !writeHeader);
+        try {
+            if (writeHeader) {
+                DataOutputStream header = new DataOutputStream(fileOutputStream);
+                header.write(JOURNAL_MAGIC_BYTES);
+                header.writeLong(walletFile.length());
+                header.writeLong(walletFile.lastModified());
+                header.flush();
+            }
+            fileOutputStream.write(records);
+            fileOutputStream.flush();
+            fileOutputStream.getFD().sync();
+        } finally {
+            fileOutputStream.close();
+        }
+    }
+
+    private void applyRecord(Wallet wallet, byte recordType, byte[] payload) throws IOException {
+        DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(payload));
+        switch (recordType) {
+        case RECORD_TRANSACTION: {
+            Pool pool = Pool.valueOf(inputStream.readUTF());
+            ConfidenceType confidenceType = ConfidenceType.valueOf(inputStream.readUTF());
+            int appearedAtChainHeight = inputStream.readInt();
+            long updateTime = inputStream.readLong();
+            int numberOfAppearances = inputStream.readInt();
+            Map<Sha256Hash, Integer> appearsInHashes = new HashMap<Sha256Hash, Integer>();
+            for (int i = 0; i < numberOfAppearances; i++) {
+                Sha256Hash blockHash = readHash(inputStream);
+                appearsInHashes.put(blockHash, inputStream.readInt());
+            }
+            byte[] transactionBytes = new byte[inputStream.readInt()];
+            inputStream.readFully(transactionBytes);
+
+            Transaction transaction = new Transaction(wallet.getNetworkParameters(), transactionBytes);
+            if (wallet.getTransaction(transaction.getHash()) == null) {
+                setConfidence(transaction.getConfidence(), confidenceType, appearedAtChainHeight);
+                if (updateTime != 0) {
+                    transaction.setUpdateTime(new Date(updateTime));
+                }
+                for (Map.Entry<Sha256Hash, Integer> appearance : appearsInHashes.entrySet()) {
+                    transaction.addBlockAppearance(appearance.getKey(), appearance.getValue());
+                }
+                wallet.addWalletTransaction(new WalletTransaction(pool, transaction));
+            }
+            break;
+        }
+        case RECORD_CONFIDENCE: {
+            Sha256Hash transactionHash = readHash(inputStream);
+            ConfidenceType confidenceType = ConfidenceType.valueOf(inputStream.readUTF());
+            int appearedAtChainHeight = inputStream.readInt();
+            Transaction transaction = wallet.getTransaction(transactionHash);
+            if (transaction != null) {
+                setConfidence(transaction.getConfidence(), confidenceType, appearedAtChainHeight);
+            }
+            break;
+        }
+        case RECORD_LAST_BLOCK_SEEN: {
+            int lastBlockSeenHeight = inputStream.readInt();
+            Sha256Hash lastBlockSeenHash = inputStream.readBoolean() ? readHash(inputStream) : null;
+            wallet.setLastBlockSeenHeight(lastBlockSeenHeight);
+            wallet.setLastBlockSeenHash(lastBlockSeenHash);
+            break;
+        }
+        default:
+            log.error("Unknown record type " + recordType + " in journal '" + journalFile.getAbsolutePath() + "' - skipping it.");
+        }
+    }
+
+    private byte[] encodeTransaction(WalletTransaction walletTransaction) throws IOException {
+        Transaction transaction = walletTransaction.getTransaction();
+        TransactionConfidence confidence = transaction.getConfidence();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream outputStream = new DataOutputStream(bytes);
+        outputStream.writeUTF(walletTransaction.getPool().name());
+        outputStream.writeUTF(confidence.getConfidenceType().name());
+        outputStream.writeInt(getAppearedAtChainHeight(confidence));
+        outputStream.writeLong(transaction.getUpdateTime() == null ? 0 : transaction.getUpdateTime().getTime());
+        Map<Sha256Hash, Integer> appearsInHashes = transaction.getAppearsInHashes();
+        if (appearsInHashes == null) {
+            outputStream.writeInt(0);
+        } else {
+            outputStream.writeInt(appearsInHashes.size());
+            for (Map.Entry<Sha256Hash, Integer> appearance : appearsInHashes.entrySet()) {
+                outputStream.write(appearance.getKey().getBytes());
+                outputStream.writeInt(appearance.getValue());
+            }
+        }
+        byte[] transactionBytes = transaction.bitcoinSerialize();
+        outputStream.writeInt(transactionBytes.length);
+        outputStream.write(transactionBytes);
+        outputStream.flush();
+        return bytes.toByteArray();
+    }
+
+    private byte[] encodeConfidence(Transaction transaction) throws IOException {
+        TransactionConfidence confidence = transaction.getConfidence();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream outputStream = new DataOutputStream(bytes);
+        outputStream.write(transaction.getHash().getBytes());
+        outputStream.writeUTF(confidence.getConfidenceType().name());
+        outputStream.writeInt(getAppearedAtChainHeight(confidence));
+        outputStream.flush();
+        return bytes.toByteArray();
+    }
+
+    private byte[] encodeLastBlockSeen(int lastBlockSeenHeight, Sha256Hash lastBlockSeenHash) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream outputStream = new DataOutputStream(bytes);
+        outputStream.writeInt(lastBlockSeenHeight);
+        outputStream.writeBoolean(lastBlockSeenHash != null);
+        if (lastBlockSeenHash != null) {
+            outputStream.write(lastBlockSeenHash.getBytes());
+        }
+        outputStream.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void writeRecord(ByteArrayOutputStream records, byte recordType, byte[] payload) throws IOException {
+        DataOutputStream outputStream = new DataOutputStream(records);
+        outputStream.writeByte(recordType);
+        outputStream.writeInt(payload.length);
+        outputStream.write(payload);
+        outputStream.writeInt((int) calculateChecksum(payload));
+        outputStream.flush();
+    }
+
+    private static long calculateChecksum(byte[] payload) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(payload);
+        return crc32.getValue();
+    }
+
+    private static Sha256Hash readHash(DataInputStream inputStream) throws IOException {
+        byte[] hashBytes = new byte[HASH_LENGTH];
+        inputStream.readFully(hashBytes);
+        return new Sha256Hash(hashBytes);
+    }
+
+    private static void setConfidence(TransactionConfidence confidence, ConfidenceType confidenceType, int appearedAtChainHeight) {
+        confidence.setConfidenceType(confidenceType);
+        if (confidenceType == ConfidenceType.BUILDING && appearedAtChainHeight >= 0) {
+            confidence.setAppearedAtChainHeight(appearedAtChainHeight);
+        }
+    }
+
+    /**
+     * Depths are not journalled as they change on every block - work them out from the last block seen instead.
+     */
+    static void updateDepthsFromLastBlockSeen(Wallet wallet) {
+        int lastBlockSeenHeight = wallet.getLastBlockSeenHeight();
+        if (lastBlockSeenHeight < 0) {
+            return;
+        }
+        for (Transaction transaction : wallet.getTransactions(true)) {
+            TransactionConfidence confidence = transaction.getConfidence();
+            int appearedAtChainHeight = getAppearedAtChainHeight(confidence);
+            if (appearedAtChainHeight >= 0 && appearedAtChainHeight <= lastBlockSeenHeight) {
+                confidence.setDepthInBlocks(lastBlockSeenHeight - appearedAtChainHeight + 1);
+            }
+        }
+    }
+
+    private static int getAppearedAtChainHeight(TransactionConfidence confidence) {
+        if (confidence.getConfidenceType() == ConfidenceType.BUILDING) {
+            return confidence.getAppearedAtChainHeight();
+        } else {
+            return -1;
+        }
+    }
+
+    private static Map<Sha256Hash, TransactionState> captureTransactions(Wallet wallet) {
+        Map<Sha256Hash, TransactionState> transactions = new HashMap<Sha256Hash, TransactionState>();
+        for (WalletTransaction walletTransaction : wallet.getWalletTransactions()) {
+            transactions.put(walletTransaction.getTransaction().getHash(), new TransactionState(walletTransaction));
+        }
+        return transactions;
+    }
+
+    private static boolean equalsOrBothNull(Object first, Object second) {
+        return first == null ? second == null : first.equals(second);
+    }
+
+    /**
+     * The parts of a wallet transaction that decide whether a change can be journalled.
+     */
+    private static class TransactionState {
+        final Pool pool;
+        final ConfidenceType confidenceType;
+        final int appearedAtChainHeight;
+        final int spentOutputCount;
+
+        TransactionState(WalletTransaction walletTransaction) {
+            Transaction transaction = walletTransaction.getTransaction();
+            pool = walletTransaction.getPool();
+            confidenceType = transaction.getConfidence().getConfidenceType();
+            appearedAtChainHeight = getAppearedAtChainHeight(transaction.getConfidence());
+            int spent = 0;
+            for (TransactionOutput output : transaction.getOutputs()) {
+                if (!output.isAvailableForSpending()) {
+                    spent++;
+                }
+            }
+            spentOutputCount = spent;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.file;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.multibit.message.Message;
+import org.multibit.message.MessageManager;
+import org.multibit.model.bitcoin.WalletData;
+import org.multibit.store.WalletVersionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Single writer queue for saving wallets in the background.
+ *
+ * Each wallet has at most one pending save slot. A save requested whilst an
+ * earlier one for the same wallet is still waiting to run is coalesced into it
+ * and the caller gets the same Future back. Once a save has started a new
+ * request gets a new slot, so no change is ever lost.
+ */
+public class WalletSaveQueue {
+    private static final Logger log = LoggerFactory.getLogger(WalletSaveQueue.class);
+
+    private static final String THREAD_NAME = "MultiBit wallet writer";
+
+    private final FileHandler fileHandler;
+
+    private final ScheduledExecutorService executorService;
+
+    /**
+     * The saves that are queued but not yet started, keyed by wallet filename.
+     */
+    private final Map<String, PendingSave> pendingSaves;
+
+    /**
+     * The number of saves written, for the tests to check saves are coalesced.
+     */
+    private final AtomicInteger numberOfSavesWritten = new AtomicInteger(0);
+
+    public WalletSaveQueue(FileHandler fileHandler) {
+        this.fileHandler = fileHandler;
+        this.pendingSaves = new HashMap<String, PendingSave>();
+        this.executorService = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, THREAD_NAME);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Queue a save of the perWalletModelData.
+     *
+     * @param perWalletModelData
+     * @param forceWrite
+     *            force the write of the perWalletModelData
+     * @return Future that completes when the wallet has been written (or
+     *         failed to be written)
+     */
+    public Future<Void> save(WalletData perWalletModelData, boolean forceWrite) {
+        return saveLater(perWalletModelData, forceWrite, 0);
+    }
+
+    /**
+     * Queue a save of the perWalletModelData to run after a delay, so that a
+     * burst of changes is written once.
+     * 
+     * @param perWalletModelData
+     * @param forceWrite
+     *            force the write of the perWalletModelData
+     * @param delayInMilliseconds
+     *            how long to wait before writing
+     * @return Future that completes when the wallet has been written (or
+     *         failed to be written)
+     */
+    public Future<Void> saveLater(WalletData perWalletModelData, boolean forceWrite, long delayInMilliseconds) {
+        String walletFilename = perWalletModelData.getWalletFilename();
+
+        synchronized (pendingSaves) {
+            PendingSave pendingSave = pendingSaves.get(walletFilename);
+            if (pendingSave != null) {
+                // Coalesce with the save that has not started yet.
+                pendingSave.forceWrite = pendingSave.forceWrite || forceWrite;
+                log.debug("Coalesced save of wallet '" + walletFilename + "' with the queued save.");
+                return pendingSave.future;
+            }
+
+            pendingSave = new PendingSave(perWalletModelData, forceWrite);
+            pendingSaves.put(walletFilename, pendingSave);
+            if (delayInMilliseconds > 0) {
+                executorService.schedule(pendingSave.future, delayInMilliseconds, TimeUnit.MILLISECONDS);
+            } else {
+                executorService.execute(pendingSave.future);
+            }
+            return pendingSave.future;
+        }
+    }
+
+    /**
+     * Wait until all the saves queued before this call have been written.
+     * Delayed saves are brought forward.
+     */
+    public void flush() {
+        synchronized (pendingSaves) {
+            for (PendingSave pendingSave : pendingSaves.values()) {
+                // A FutureTask only ever runs once so the delayed copy does nothing later.
+                executorService.execute(pendingSave.future);
+            }
+        }
+        Future<?> marker = executorService.submit(new Runnable() {
+            @Override
+            public void run() {
+                // Nothing to do - the single writer thread has reached this point.
+            }
+        });
+        try {
+            marker.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.error(e.getClass().getCanonicalName() + " " + e.getMessage());
+        }
+    }
+
+    /**
+     * Write out any queued saves and stop the writer thread.
+     */
+    public void shutdown() {
+        flush();
+        executorService.shutdown();
+    }
+
+    int getNumberOfSavesWritten() {
+        return numberOfSavesWritten.get();
+    }
+
+    int getNumberOfPendingSaves() {
+        synchronized (pendingSaves) {
+            return pendingSaves.size();
+        }
+    }
+
+    private class PendingSave implements Callable<Void> {
+        private final WalletData perWalletModelData;
+        private final FutureTask<Void> future;
+
+        // Guarded by pendingSaves.
+        private boolean forceWrite;
+
+        PendingSave(WalletData perWalletModelData, boolean forceWrite) {
+            this.perWalletModelData = perWalletModelData;
+            this.forceWrite = forceWrite;
+            this.future = new FutureTask<Void>(this);
+        }
+
+        @Override
+        public Void call() throws Exception {
+            boolean forceWriteToUse;
+            synchronized (pendingSaves) {
+                // From now on new requests for this wallet need a new slot.
+                if (pendingSaves.get(perWalletModelData.getWalletFilename()) == this) {
+                    pendingSaves.remove(perWalletModelData.getWalletFilename());
+                }
+                forceWriteToUse = forceWrite;
+            }
+
+            try {
+                fileHandler.savePerWalletModelData(perWalletModelData, forceWriteToUse);
+                numberOfSavesWritten.incrementAndGet();
+            } catch (WalletSaveException wse) {
+                log.error(wse.getClass().getCanonicalName() + " " + wse.getMessage());
+                MessageManager.INSTANCE.addMessage(new Message(wse.getClass().getCanonicalName() + " " + wse.getMessage()));
+                throw wse;
+            } catch (WalletVersionException wve) {
+                log.error(wve.getClass().getCanonicalName() + " " + wve.getMessage());
+                MessageManager.INSTANCE.addMessage(new Message(wve.getClass().getCanonicalName() + " " + wve.getMessage()));
+                throw wve;
+            }
+            return null;
+        }
+    }
+}
@@ -137,6 +137,9 @@ public class BitcoinModel extends AbstractModel<CoreModel> {
     // Wallet backup.
     public static final String WALLET_BACKUP_FILE = "walletBackupFile";
 
+    // The number of receiving address keys to create ahead of time for each wallet.
+    public static final String KEY_POOL_SIZE = "keyPoolSize";
+
     // AlertManager and versions
     public static final String ALERT_MANAGER_NEW_VERSION_VALUE = "alertManagerNewVersionValue";
     public static final String ALERT_MANAGER_NEW_VERSION_SEEN_COUNT = "alertManagerNewVersionSeenCount";
@@ -526,7 +529,7 @@ public class BitcoinModel extends AbstractModel<CoreModel> {
     }
 
     /**
-     * Add the receiving addresses of all the keys of the specified wallet.
+     * Add the receiving addresses of all the keys of the specified wallet that are not in its key pool.
      */
     public void createAddressBookReceivingAddresses(String walletFilename) {
         if (walletFilename == null) {
@@ -550,24 +553,28 @@ public class BitcoinModel extends AbstractModel<CoreModel> {
                 if (networkParameters != null) {
                     if (perWalletModelData.getWalletInfo() != null) {
                         // Keep a copy of the existing receiving addresses - labels will be recycled.
-                        List<WalletAddressBookData> currentReceivingAddresses = perWalletModelData.getWalletInfo().getReceivingAddresses();
+                        WalletAddressBook currentReceivingAddresses = perWalletModelData.getWalletInfo().getReceivingAddresses();
 
                         // Clear the existing receiving addresses.
-                        ArrayList<WalletAddressBookData> newReceivingAddresses = new ArrayList<WalletAddressBookData>();
+                        WalletAddressBook newReceivingAddresses = new WalletAddressBook();
                         perWalletModelData.getWalletInfo().setReceivingAddresses(newReceivingAddresses);
 
                         // Add the new receiving addresses from the keys, checking if there is an old label.
+                        // Keys waiting in the key pool are not receiving addresses yet.
+                        WalletKeyPool keyPool = perWalletModelData.getKeyPool();
                         for (ECKey key : keyChain) {
                             Address address = key.toAddress(getNetworkParameters());
                             String addressString = address.toString();
+                            if (keyPool.contains(addressString)) {
+                                continue;
+                            }
                             WalletAddressBookData addressBookData = new WalletAddressBookData(null, addressString);
 
-                            for (WalletAddressBookData loopAddressBookData : currentReceivingAddresses) {
-                                if (loopAddressBookData.getAddress().equals(addressString)) {
-                                    // Recycle label.
-                                    addressBookData.setLabel(loopAddressBookData.getLabel());
-                                    break;
-                                }
+                            WalletAddressBookData currentAddressBookData = currentReceivingAddresses == null ? null
+                                    : currentReceivingAddresses.getByAddress(addressString);
+                            if (currentAddressBookData != null) {
+                                // Recycle label.
+                                addressBookData.setLabel(currentAddressBookData.getLabel());
                             }
                             perWalletModelData.getWalletInfo().addReceivingAddress(addressBookData, false);
                         }
@@ -0,0 +1,154 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.model.bitcoin;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An insertion ordered list of address book entries with an index from address
+ * to position, so that lookups by address do not scan the list.
+ *
+ * Appends keep the index up to date. Any other structural change (a remove, a
+ * sort, an insert in the middle) is picked up from the list's modCount and the
+ * index is rebuilt on the next lookup.
+ *
+ * The lookups are made on the Swing thread and on background threads so the
+ * index is only read and rebuilt whilst holding the lock on the address book.
+ */
+public class WalletAddressBook extends ArrayList<WalletAddressBookData> {
+
+    private static final long serialVersionUID = 6371925416128593218L;
+
+    /**
+     * The positions of the first and last entries with each address.
+     */
+    private transient Map<String, Positions> index;
+
+    /**
+     * The modCount the index was built for.
+     */
+    private transient int indexModCount = -1;
+
+    public WalletAddressBook() {
+        super();
+    }
+
+    public WalletAddressBook(Collection<? extends WalletAddressBookData> addressBookData) {
+        super(addressBookData);
+    }
+
+    @Override
+    public synchronized boolean add(WalletAddressBookData addressBookData) {
+        boolean upToDate = isIndexUpToDate();
+        super.add(addressBookData);
+        if (upToDate) {
+            addToIndex(addressBookData, size() - 1);
+            indexModCount = modCount;
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized WalletAddressBookData set(int position, WalletAddressBookData addressBookData) {
+        WalletAddressBookData previous = super.set(position, addressBookData);
+        // set() does not change the modCount so invalidate explicitly.
+        indexModCount = -1;
+        return previous;
+    }
+
+    /**
+     * @param address
+     * @return The first entry with the address, or null if there is none
+     */
+    public synchronized WalletAddressBookData getByAddress(String address) {
+        Positions positions = getIndex().get(address);
+        return positions == null ? null : get(positions.first);
+    }
+
+    /**
+     * @param address
+     * @return true if there is an entry with the address
+     */
+    public synchronized boolean containsAddress(String address) {
+        return getIndex().containsKey(address);
+    }
+
+    /**
+     * @param address
+     * @return The position of the first entry with the address, or -1 if there is none
+     */
+    public synchronized int indexOfAddress(String address) {
+        Positions positions = getIndex().get(address);
+        return positions == null ? -1 : positions.first;
+    }
+
+    /**
+     * @param address
+     * @return The position of the last entry with the address, or -1 if there is none
+     */
+    public synchronized int lastIndexOfAddress(String address) {
+        Positions positions = getIndex().get(address);
+        return positions == null ? -1 : positions.last;
+    }
+
+    private boolean isIndexUpToDate() {
+        return index != null && indexModCount == modCount;
+    }
+
+    /**
+     * Call holding the lock on the address book.
+     */
+    private Map<String, Positions> getIndex() {
+        if (!isIndexUpToDate()) {
+            Map<String, Positions> newIndex = new HashMap<String, Positions>(Math.max(16, size() * 4 / 3 + 1));
+            for (int i = 0; i < size(); i++) {
+                addToIndex(newIndex, get(i), i);
+            }
+            index = newIndex;
+            indexModCount = modCount;
+        }
+        return index;
+    }
+
+    private void addToIndex(WalletAddressBookData addressBookData, int position) {
+        addToIndex(index, addressBookData, position);
+    }
+
+    private static void addToIndex(Map<String, Positions> indexToAddTo, WalletAddressBookData addressBookData, int position) {
+        if (addressBookData == null) {
+            return;
+        }
+        Positions positions = indexToAddTo.get(addressBookData.getAddress());
+        if (positions == null) {
+            indexToAddTo.put(addressBookData.getAddress(), new Positions(position));
+        } else {
+            positions.last = position;
+        }
+    }
+
+    private static class Positions {
+        final int first;
+        int last;
+
+        Positions(int position) {
+            this.first = position;
+            this.last = position;
+        }
+    }
+}
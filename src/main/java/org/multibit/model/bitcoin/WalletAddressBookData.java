@@ -15,24 +15,47 @@
  */
 package org.multibit.model.bitcoin;
 
+import java.nio.charset.Charset;
+
 /**
  * class used to store the data in the table in a quick to access form
  */
 @SuppressWarnings("rawtypes")
 public class WalletAddressBookData implements Comparable {
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
     String label;
     String address;
 
+    /**
+     * The UTF-8 bytes of a label that has not been decoded yet (the label is
+     * read from the wallet info file lazily). Null once the label is decoded.
+     */
+    private byte[] encodedLabelSource;
+    private int encodedLabelOffset;
+    private int encodedLabelLength;
+
     public WalletAddressBookData(String label, String address) {
         this.label = label;
         this.address = address;
     }
 
+    /**
+     * Create a WalletAddressBookData whose label is decoded from the source bytes when it is first used.
+     */
+    WalletAddressBookData(byte[] encodedLabelSource, int encodedLabelOffset, int encodedLabelLength, String address) {
+        this.encodedLabelSource = encodedLabelSource;
+        this.encodedLabelOffset = encodedLabelOffset;
+        this.encodedLabelLength = encodedLabelLength;
+        this.address = address;
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
         int result = 1;
         result = prime * result + ((address == null) ? 0 : address.hashCode());
+        String label = getLabel();
         result = prime * result + ((label == null) ? 0 : label.hashCode());
         return result;
     }
@@ -56,11 +79,12 @@ public class WalletAddressBookData implements Comparable {
         } else if (!address.equals(other.address)) {
             return false;
         }
+        String label = getLabel();
         if (label == null) {
-            if (other.label != null) {
+            if (other.getLabel() != null) {
                 return false;
             }
-        } else if (!label.equals(other.label)) {
+        } else if (!label.equals(other.getLabel())) {
             return false;
         }
         return true;
@@ -68,24 +92,43 @@ public class WalletAddressBookData implements Comparable {
 
     @Override
     public String toString() {
-        return "AddressBookData [label=" + label + ", address=" + address + "]";
+        return "AddressBookData [label=" + getLabel() + ", address=" + address + "]";
     }
 
     @Override
     public int compareTo(Object other) {
         if (other instanceof WalletAddressBookData) {
-            return (label + "").compareTo(((WalletAddressBookData)other).label);
+            return (getLabel() + "").compareTo(((WalletAddressBookData)other).getLabel());
         } else {
             return 0;
         }
     }
 
-    public String getLabel() {
+    public synchronized String getLabel() {
+        if (encodedLabelSource != null) {
+            if (encodedLabelLength >= 0) {
+                label = new String(encodedLabelSource, encodedLabelOffset, encodedLabelLength, UTF8);
+            }
+            encodedLabelSource = null;
+        }
         return label;
     }
 
-    public void setLabel(String label) {
+    public synchronized void setLabel(String label) {
         this.label = label;
+        this.encodedLabelSource = null;
+    }
+
+    /**
+     * @return The UTF-8 bytes of the label if it has not been decoded yet, otherwise null
+     */
+    synchronized byte[] getEncodedLabel() {
+        if (encodedLabelSource == null || encodedLabelLength < 0) {
+            return null;
+        }
+        byte[] encodedLabel = new byte[encodedLabelLength];
+        System.arraycopy(encodedLabelSource, encodedLabelOffset, encodedLabel, 0, encodedLabelLength);
+        return encodedLabel;
     }
 
     public String getAddress() {
@@ -56,6 +56,17 @@ public class WalletData {
      * The WalletData has changed since last been written to disk.
      */
     private transient boolean isDirty;
+
+    /**
+     * The last block seen has changed since it was last written to disk.
+     * The chain position is stored separately to the wallet so this does not need a wallet write.
+     */
+    private transient boolean lastBlockSeenDirty;
+
+    /**
+     * Summary of the wallet transactions and keys when the wallet was last marked as changed.
+     */
+    private transient String walletContentFingerprint;
     
     /**
      * This wallet is currently busy with an operation that affects the private keys.
@@ -86,6 +97,16 @@ public class WalletData {
      */
     private transient SingleWalletPanelDownloadListener singleWalletDownloadListener;
 
+    /**
+     * A listener told when the WalletData becomes dirty, so that it can be saved.
+     */
+    private transient WalletDirtyListener walletDirtyListener;
+
+    /**
+     * The keys created ahead of time for new receiving addresses. Created when first used.
+     */
+    private transient WalletKeyPool keyPool;
+
     
     public WalletData() {
         isDirty = false;
@@ -107,12 +128,39 @@ public class WalletData {
         this.walletFilename = walletFilename;
     }
 
+    /**
+     * @return the key pool of this wallet, read from the wallet info the first time
+     */
+    public synchronized WalletKeyPool getKeyPool() {
+        if (keyPool == null) {
+            keyPool = new WalletKeyPool(this);
+        }
+        return keyPool;
+    }
+
+    /**
+     * Put any changes to the key pool in the wallet info, ready for it to be saved.
+     */
+    public void writeKeyPoolToWalletInfo() {
+        WalletKeyPool keyPoolToWrite;
+        synchronized (this) {
+            keyPoolToWrite = keyPool;
+        }
+        if (keyPoolToWrite != null) {
+            keyPoolToWrite.writeAddresses();
+        }
+    }
+
     public WalletInfoData getWalletInfo() {
         return walletInfo;
     }
 
     public void setWalletInfo(WalletInfoData walletInfo) {
         this.walletInfo = walletInfo;
+        synchronized (this) {
+            // The key pool is read from the wallet info.
+            keyPool = null;
+        }
         if (walletInfo != null && wallet != null) {
             if (wallet.getVersion() == null) {
                 wallet.setVersion(walletInfo.getWalletVersion());
@@ -166,7 +214,31 @@ public class WalletData {
     }
 
     public void setDirty(boolean isDirty) {
+        boolean wasDirty = this.isDirty;
         this.isDirty = isDirty;
+        if (isDirty && !wasDirty && walletDirtyListener != null) {
+            walletDirtyListener.walletDirty(this);
+        }
+    }
+
+    public void setWalletDirtyListener(WalletDirtyListener walletDirtyListener) {
+        this.walletDirtyListener = walletDirtyListener;
+    }
+
+    public boolean isLastBlockSeenDirty() {
+        return lastBlockSeenDirty;
+    }
+
+    public void setLastBlockSeenDirty(boolean lastBlockSeenDirty) {
+        this.lastBlockSeenDirty = lastBlockSeenDirty;
+    }
+
+    public String getWalletContentFingerprint() {
+        return walletContentFingerprint;
+    }
+
+    public void setWalletContentFingerprint(String walletContentFingerprint) {
+        this.walletContentFingerprint = walletContentFingerprint;
     }
 
     public String getWalletBackupFilename() {
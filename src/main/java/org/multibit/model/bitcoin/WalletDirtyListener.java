@@ -0,0 +1,29 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.model.bitcoin;
+
+/**
+ * Interface to implement if you are interested in hearing when a wallet has changed and needs writing to disk.
+ */
+public interface WalletDirtyListener {
+    /**
+     * The WalletData has become dirty.
+     * This is called with the wallet info locked so implementations must not block.
+     * 
+     * @param perWalletModelData
+     */
+    public void walletDirty(WalletData perWalletModelData);
+}
@@ -17,8 +17,10 @@ package org.multibit.model.bitcoin;
 
 import com.google.bitcoin.core.Address;
 import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
 import com.google.bitcoin.core.Wallet;
 import org.multibit.MultiBit;
+import org.multibit.file.FileHandler;
 import org.multibit.file.WalletLoadException;
 import org.multibit.file.WalletSaveException;
 import org.multibit.store.MultiBitWalletVersion;
@@ -27,6 +29,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
@@ -35,6 +40,21 @@ import java.util.*;
  * 
  * It is stored in the same directory as the wallet and has the suffix ".info".
  * 
+ * The info file is written in a binary format:
+ * 4 magic bytes 'MBIN' in ASCII.
+ * 1 byte version number of format - initially set to 1
+ * 4 bytes length, then the UTF-8 bytes of the wallet version
+ * 4 bytes number of receiving addresses, sending addresses and properties (each)
+ * 4 bytes length of the string table
+ * 16 bytes per receiving address, sending address and property: the offset and length
+ *     of the address (or property name) and of the label (or property value) in the
+ *     string table. A length of -1 is a null string.
+ * The string table - all the strings, UTF-8 encoded.
+ * 
+ * The string table is read in one go and labels are only decoded when they are used.
+ * Earlier MultiBits wrote a comma separated text format - this is still read and
+ * is replaced by the binary format the next time the wallet info is written.
+ * 
  * @author jim
  * 
  */
@@ -47,9 +67,10 @@ public class WalletInfoData {
     /**
      * The actual receiving addresses exposed for this address book (only keys
      * that occur in this wallet).
+     * These are indexed by address so that looking up a label does not scan the list.
      */
-    private ArrayList<WalletAddressBookData> receivingAddresses;
-    private ArrayList<WalletAddressBookData> sendingAddresses;
+    private WalletAddressBook receivingAddresses;
+    private WalletAddressBook sendingAddresses;
 
     private static final String INFO_FILE_EXTENSION = "info";
     private static final String RECEIVE_ADDRESS_MARKER = "receive";
@@ -60,6 +81,11 @@ public class WalletInfoData {
     private static final String INFO_MAGIC_TEXT = "multiBit.info";
     private static final String INFO_VERSION_TEXT = "1";
 
+    public static final byte[] INFO_BINARY_MAGIC_BYTES = new byte[] { (byte) 0x4D, (byte) 0x42, (byte) 0x49, (byte) 0x4E }; // MBIN in ASCII
+    public static final byte INFO_BINARY_VERSION_NUMBER = (byte) 0x01;
+
+    private static final int BINARY_ENTRY_LENGTH = 16;
+
     private static final String WALLET_VERSION_MARKER = "walletVersion";
 
     public static final String DESCRIPTION_PROPERTY = "walletDescription";
@@ -77,6 +103,12 @@ public class WalletInfoData {
      */
     private boolean deleted = false;
 
+    /**
+     * The wallet files as this MultiBit last wrote them, to tell its own writes from those of other processes.
+     * Guarded by the lock on this WalletInfoData.
+     */
+    private FileHandler.WriteToken writeToken;
+
     /**
      * 
      * @param walletFilename
@@ -87,8 +119,8 @@ public class WalletInfoData {
         this.walletVersion = walletVersion;
         this.wallet = wallet;
 
-        receivingAddresses = new ArrayList<WalletAddressBookData>();
-        sendingAddresses = new ArrayList<WalletAddressBookData>();
+        receivingAddresses = new WalletAddressBook();
+        sendingAddresses = new WalletAddressBook();
 
         walletPreferences = new Properties();
 
@@ -133,16 +165,25 @@ public class WalletInfoData {
         walletPreferences.remove(key);
     }
 
-    public ArrayList<WalletAddressBookData> getReceivingAddresses() {
+    public WalletAddressBook getReceivingAddresses() {
         return receivingAddresses;
     }
 
-    public ArrayList<WalletAddressBookData> getSendingAddresses() {
+    public WalletAddressBook getSendingAddresses() {
         return sendingAddresses;
     }
 
+    /**
+     * Replace the receiving addresses. A list that is not a WalletAddressBook is copied into one.
+     * 
+     * @param receivingAddresses
+     */
     public void setReceivingAddresses(ArrayList<WalletAddressBookData> receivingAddresses) {
-        this.receivingAddresses = receivingAddresses;
+        if (receivingAddresses == null || receivingAddresses instanceof WalletAddressBook) {
+            this.receivingAddresses = (WalletAddressBook) receivingAddresses;
+        } else {
+            this.receivingAddresses = new WalletAddressBook(receivingAddresses);
+        }
     }
 
     /**
@@ -161,13 +202,11 @@ public class WalletInfoData {
 
         if (checkAlreadyPresent) {
             // Check the address is not already in the set.
-            for (WalletAddressBookData addressBookData : receivingAddresses) {
-                if (addressBookData.getAddress().equals(receivingAddress.getAddress())) {
-                    // Just update label.
-                    addressBookData.setLabel(receivingAddress.getLabel());
-                    justUpdateLabel = true;
-                    break;
-                }
+            WalletAddressBookData addressBookData = receivingAddresses.getByAddress(receivingAddress.getAddress());
+            if (addressBookData != null) {
+                // Just update label.
+                addressBookData.setLabel(receivingAddress.getLabel());
+                justUpdateLabel = true;
             }
         }
 
@@ -192,19 +231,18 @@ public class WalletInfoData {
      * prevent adding receiving addresses manually in the info file.
      */
     public void checkAllReceivingAddressesAppearInWallet(Wallet wallet) {
-        List<WalletAddressBookData> toRemove = new ArrayList<WalletAddressBookData>();
+        Set<WalletAddressBookData> toRemove = new HashSet<WalletAddressBookData>();
         if (wallet != null) {
+            // Work out the addresses of the keys once rather than once per receiving address.
+            Set<String> keyAddresses = new HashSet<String>();
+            for (ECKey key : wallet.getKeys()) {
+                keyAddresses.add(key.toAddress(MultiBit.getBitcoinController().getModel().getNetworkParameters()).toString());
+            }
+
             Iterator<WalletAddressBookData> iterator = receivingAddresses.iterator();
             while (iterator.hasNext()) {
-                boolean addressMatchesKey = false;
                 WalletAddressBookData walletAddressBookData = iterator.next();
-                for (ECKey key : wallet.getKeys()) {
-                    if (walletAddressBookData.getAddress().equals(
-                            key.toAddress(MultiBit.getBitcoinController().getModel().getNetworkParameters()).toString())) {
-                        addressMatchesKey = true;
-                        break;
-                    }
-                }
+                boolean addressMatchesKey = keyAddresses.contains(walletAddressBookData.getAddress());
                 
                 if (!addressMatchesKey) {
                     // Remove from receivingAddresses and log.
@@ -234,18 +272,31 @@ public class WalletInfoData {
         }
     }
 
-    public boolean containsReceivingAddress(String receivingAddress) {
-        boolean toReturn = false;
-        // see if the receiving address is on the current list
-        for (WalletAddressBookData addressBookData : receivingAddresses) {
-            if (addressBookData.getAddress().equals(receivingAddress.toString())) {
-                // do nothing
-                toReturn = true;
-                break;
+    /**
+     * Add the receiving addresses of keys that have just been added to the
+     * current wallet, with empty labels. As the keys are known to be in the
+     * wallet the wallet keys are not searched for each address.
+     *
+     * @param keys
+     */
+    public void addReceivingAddressesOfKeys(Collection<ECKey> keys) {
+        if (keys == null) {
+            return;
+        }
+
+        NetworkParameters networkParameters = MultiBit.getBitcoinController().getModel().getNetworkParameters();
+        receivingAddresses.ensureCapacity(receivingAddresses.size() + keys.size());
+        for (ECKey key : keys) {
+            String address = key.toAddress(networkParameters).toString();
+            if (!receivingAddresses.containsAddress(address)) {
+                receivingAddresses.add(new WalletAddressBookData("", address));
             }
         }
+    }
 
-        return toReturn;
+    public boolean containsReceivingAddress(String receivingAddress) {
+        // see if the receiving address is on the current list
+        return receivingAddresses.containsAddress(receivingAddress);
     }
 
     public void addSendingAddress(WalletAddressBookData sendingAddress) {
@@ -254,14 +305,13 @@ public class WalletInfoData {
         }
 
         boolean done = false;
-        // Check the address is not already in the arraylist.
-        for (WalletAddressBookData addressBookData : sendingAddresses) {
-            if (addressBookData.getAddress() != null && addressBookData.getAddress().equals(sendingAddress.getAddress())) {
-                // Just update label.
-                addressBookData.setLabel(sendingAddress.getLabel());
-                done = true;
-                break;
-            }
+        // Check the address is not already in the address book.
+        WalletAddressBookData addressBookData = sendingAddress.getAddress() == null ? null : sendingAddresses
+                .getByAddress(sendingAddress.getAddress());
+        if (addressBookData != null) {
+            // Just update label.
+            addressBookData.setLabel(sendingAddress.getLabel());
+            done = true;
         }
 
         if (!done) {
@@ -270,21 +320,20 @@ public class WalletInfoData {
     }
 
     public String lookupLabelForReceivingAddress(String address) {
-        for (WalletAddressBookData addressBookData : receivingAddresses) {
-            if (addressBookData.getAddress().equals(address)) {
-                return addressBookData.getLabel();
-            }
+        WalletAddressBookData addressBookData = receivingAddresses.getByAddress(address);
+        if (addressBookData != null) {
+            return addressBookData.getLabel();
         }
 
         return "";
     }
 
     public String lookupLabelForSendingAddress(String address) {
-        for (WalletAddressBookData addressBookData : sendingAddresses) {
-            if (addressBookData.getAddress().equals(address)) {
-                String label = addressBookData.getLabel();
-                if(label != null && label != "")
-                    return addressBookData.getLabel();
+        WalletAddressBookData addressBookData = sendingAddresses.getByAddress(address);
+        if (addressBookData != null) {
+            String label = addressBookData.getLabel();
+            if (label != null && label.length() > 0) {
+                return label;
             }
         }
 
@@ -292,8 +341,7 @@ public class WalletInfoData {
     }
 
     /**
-     * Write out the wallet info to the file specified as a parameter - a comma
-     * separated file format is used.
+     * Write out the wallet info to the file specified as a parameter - the binary format is used.
      * 
      * @param walletInfoFilename
      *            The full path of the wallet info file to write
@@ -303,7 +351,10 @@ public class WalletInfoData {
      *             Exception if write is unsuccessful
      */
     public void writeToFile(String walletInfoFilename, MultiBitWalletVersion walletVersion) throws WalletSaveException {
-        BufferedWriter out = null;
+        DataOutputStream out = null;
+        FileOutputStream fileOutputStream = null;
+        File walletInfoFile = new File(walletInfoFilename);
+        File temporaryWalletInfoFile = null;
         try {
             // We write out all the receiving addresses.
             LinkedHashMap<String, WalletAddressBookData> allReceivingAddresses = new LinkedHashMap<String, WalletAddressBookData>();
@@ -313,69 +364,55 @@ public class WalletInfoData {
                 }
             }
 
-            // Create file.
-            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(walletInfoFilename), "UTF8"));
-
-            // Write out the multibit addressbook identifier.
-            out.write(INFO_MAGIC_TEXT + SEPARATOR + INFO_VERSION_TEXT + "\n");
+            Properties walletPreferencesClone = createPersistentWalletPreferences();
 
-            // Write out the wallet version.
-            out.write(WALLET_VERSION_MARKER + SEPARATOR + walletVersion.getWalletVersionString() + "\n");
-
-            Collection<WalletAddressBookData> receiveAddressValues = allReceivingAddresses.values();
-            for (WalletAddressBookData addressBookData : receiveAddressValues) {
-                String columnOne = RECEIVE_ADDRESS_MARKER;
-                String columnTwo = addressBookData.getAddress();
-                String columnThree = addressBookData.getLabel();
-                if (columnTwo == null) {
-                    columnTwo = "";
-                }
-                out.write(columnOne + SEPARATOR + columnTwo + SEPARATOR + encodeURLString(columnThree) + "\n");
+            // Build the string table and the entries that point into it.
+            ByteArrayOutputStream stringTable = new ByteArrayOutputStream();
+            int numberOfEntries = allReceivingAddresses.size() + sendingAddresses.size() + walletPreferencesClone.size();
+            int[] entries = new int[numberOfEntries * 4];
+            int entryPosition = 0;
+            for (WalletAddressBookData addressBookData : allReceivingAddresses.values()) {
+                entryPosition = addEntry(entries, entryPosition, stringTable, encodeString(addressBookData.getAddress()),
+                        encodeLabel(addressBookData));
             }
-
             for (WalletAddressBookData addressBookData : sendingAddresses) {
-                String columnOne = SEND_ADDRESS_MARKER;
-                String columnTwo = addressBookData.getAddress();
-                String columnThree = addressBookData.getLabel();
-                if (columnTwo == null) {
-                    columnTwo = "";
-                }
-                out.write(columnOne + SEPARATOR + columnTwo + SEPARATOR + encodeURLString(columnThree) + "\n");
-            }
-
-            // Remove some properties form the wallet file that dont need to be persisted.
-            Properties walletPreferencesClone = new Properties();
-            walletPreferencesClone.putAll(walletPreferences);
-            walletPreferencesClone.remove(BitcoinModel.WALLET_FILE_SIZE);
-            walletPreferencesClone.remove(BitcoinModel.WALLET_FILE_LAST_MODIFIED);
-            walletPreferencesClone.remove(BitcoinModel.WALLET_INFO_FILE_SIZE);
-            walletPreferencesClone.remove(BitcoinModel.WALLET_INFO_FILE_LAST_MODIFIED);
-
-            walletPreferencesClone.remove(BitcoinModel.VALIDATION_ADDRESS_IS_INVALID);
-            walletPreferencesClone.remove(BitcoinModel.VALIDATION_ADDRESS_VALUE);
-            walletPreferencesClone.remove(BitcoinModel.VALIDATION_AMOUNT_IS_INVALID);
-            walletPreferencesClone.remove(BitcoinModel.VALIDATION_AMOUNT_IS_MISSING);
-            walletPreferencesClone.remove(BitcoinModel.VALIDATION_AMOUNT_IS_NEGATIVE_OR_ZERO);
-            walletPreferencesClone.remove(BitcoinModel.VALIDATION_AMOUNT_VALUE);
-            walletPreferencesClone.remove(BitcoinModel.VALIDATION_NOT_ENOUGH_FUNDS);
-
-            walletPreferencesClone.remove(BitcoinModel.SEND_PERFORM_PASTE_NOW);
-            
-            // These properties are obselete so removed from the info file to tidy them up.
-            walletPreferencesClone.remove("sendErrorMessage");
-            walletPreferencesClone.remove("sendWasSuccessful");
-            walletPreferencesClone.remove("earliestTransactionDate");
-
-            for (Map.Entry entry : walletPreferencesClone.entrySet()) {
-
-                String columnOne = PROPERTY_MARKER;
-                String columnTwo = (String) entry.getKey();
-                String encodedColumnThree = encodeURLString((String) entry.getValue());
-                if (columnTwo == null) {
-                    columnTwo = "";
-                }
-                out.write(columnOne + SEPARATOR + columnTwo + SEPARATOR + encodedColumnThree + "\n");
+                entryPosition = addEntry(entries, entryPosition, stringTable, encodeString(addressBookData.getAddress()),
+                        encodeLabel(addressBookData));
+            }
+            for (Map.Entry<Object, Object> entry : walletPreferencesClone.entrySet()) {
+                entryPosition = addEntry(entries, entryPosition, stringTable, encodeString((String) entry.getKey()),
+                        encodeString((String) entry.getValue()));
             }
+
+            // Create a temporary file next to the wallet info - it is renamed over the wallet info once written.
+            temporaryWalletInfoFile = File.createTempFile(walletInfoFile.getName(), ".tmp", walletInfoFile.getAbsoluteFile().getParentFile());
+            fileOutputStream = new FileOutputStream(temporaryWalletInfoFile);
+            out = new DataOutputStream(new BufferedOutputStream(fileOutputStream));
+
+            // Write out the header.
+            out.write(INFO_BINARY_MAGIC_BYTES);
+            out.writeByte(INFO_BINARY_VERSION_NUMBER);
+            byte[] walletVersionBytes = encodeString(walletVersion.getWalletVersionString());
+            out.writeInt(walletVersionBytes.length);
+            out.write(walletVersionBytes);
+            out.writeInt(allReceivingAddresses.size());
+            out.writeInt(sendingAddresses.size());
+            out.writeInt(walletPreferencesClone.size());
+            out.writeInt(stringTable.size());
+
+            // Write out the entries then the strings.
+            for (int entry : entries) {
+                out.writeInt(entry);
+            }
+            stringTable.writeTo(out);
+
+            out.flush();
+            fileOutputStream.getFD().sync();
+            out.close();
+            out = null;
+
+            FileHandler.replaceFile(temporaryWalletInfoFile, walletInfoFile);
+            temporaryWalletInfoFile = null;
         } catch (IOException ioe) {
             throw new WalletSaveException("Could not write walletinfo file for wallet '" + walletInfoFilename + "'", ioe);
         } finally {
@@ -387,9 +424,75 @@ public class WalletInfoData {
                     throw new WalletSaveException("Could not close walletinfo file for wallet '" + walletInfoFilename + "'", e);
                 }
             }
+            // Tidy up after a failed write.
+            if (temporaryWalletInfoFile != null && temporaryWalletInfoFile.exists()) {
+                temporaryWalletInfoFile.delete();
+            }
         }
     }
 
+    /**
+     * @return A copy of the wallet preferences without the properties that do not need to be persisted
+     */
+    private Properties createPersistentWalletPreferences() {
+        // Remove some properties form the wallet file that dont need to be persisted.
+        Properties walletPreferencesClone = new Properties();
+        walletPreferencesClone.putAll(walletPreferences);
+        walletPreferencesClone.remove(BitcoinModel.WALLET_FILE_SIZE);
+        walletPreferencesClone.remove(BitcoinModel.WALLET_FILE_LAST_MODIFIED);
+        walletPreferencesClone.remove(BitcoinModel.WALLET_INFO_FILE_SIZE);
+        walletPreferencesClone.remove(BitcoinModel.WALLET_INFO_FILE_LAST_MODIFIED);
+
+        walletPreferencesClone.remove(BitcoinModel.VALIDATION_ADDRESS_IS_INVALID);
+        walletPreferencesClone.remove(BitcoinModel.VALIDATION_ADDRESS_VALUE);
+        walletPreferencesClone.remove(BitcoinModel.VALIDATION_AMOUNT_IS_INVALID);
+        walletPreferencesClone.remove(BitcoinModel.VALIDATION_AMOUNT_IS_MISSING);
+        walletPreferencesClone.remove(BitcoinModel.VALIDATION_AMOUNT_IS_NEGATIVE_OR_ZERO);
+        walletPreferencesClone.remove(BitcoinModel.VALIDATION_AMOUNT_VALUE);
+        walletPreferencesClone.remove(BitcoinModel.VALIDATION_NOT_ENOUGH_FUNDS);
+
+        walletPreferencesClone.remove(BitcoinModel.SEND_PERFORM_PASTE_NOW);
+        
+        // These properties are obselete so removed from the info file to tidy them up.
+        walletPreferencesClone.remove("sendErrorMessage");
+        walletPreferencesClone.remove("sendWasSuccessful");
+        walletPreferencesClone.remove("earliestTransactionDate");
+
+        return walletPreferencesClone;
+    }
+
+    private static int addEntry(int[] entries, int entryPosition, ByteArrayOutputStream stringTable, byte[] first, byte[] second)
+            throws IOException {
+        entryPosition = addString(entries, entryPosition, stringTable, first);
+        return addString(entries, entryPosition, stringTable, second);
+    }
+
+    private static int addString(int[] entries, int entryPosition, ByteArrayOutputStream stringTable, byte[] encodedString)
+            throws IOException {
+        if (encodedString == null) {
+            entries[entryPosition] = 0;
+            entries[entryPosition + 1] = -1;
+        } else {
+            entries[entryPosition] = stringTable.size();
+            entries[entryPosition + 1] = encodedString.length;
+            stringTable.write(encodedString);
+        }
+        return entryPosition + 2;
+    }
+
+    private static byte[] encodeString(String string) {
+        return string == null ? null : string.getBytes(WalletAddressBookData.UTF8);
+    }
+
+    private static byte[] encodeLabel(WalletAddressBookData addressBookData) {
+        // A label that has not been used since it was loaded is written out without decoding it.
+        byte[] encodedLabel = addressBookData.getEncodedLabel();
+        if (encodedLabel != null) {
+            return encodedLabel;
+        }
+        return encodeString(addressBookData.getLabel());
+    }
+
     /**
      * Load the internally referenced wallet info file.
      * 
@@ -397,13 +500,188 @@ public class WalletInfoData {
      *             Exception if read is unsuccessful
      */
     public void loadFromFile() {
-        String walletInfoFilename = null;
-        InputStream inputStream = null;
+        String walletInfoFilename = createWalletInfoFilename(walletFilename);
+        walletPreferences = new Properties();
+
+        if (isBinaryWalletInfoFile(walletInfoFilename)) {
+            loadFromBinaryFile(walletInfoFilename);
+        } else {
+            loadFromTextFile(walletInfoFilename);
+        }
+    }
+
+    /**
+     * @return true if the wallet info file starts with the binary format magic bytes
+     */
+    private static boolean isBinaryWalletInfoFile(String walletInfoFilename) {
+        File walletInfoFile = new File(walletInfoFilename);
+        if (!walletInfoFile.exists() || walletInfoFile.length() < INFO_BINARY_MAGIC_BYTES.length) {
+            return false;
+        }
+
+        DataInputStream inputStream = null;
+        try {
+            inputStream = new DataInputStream(new FileInputStream(walletInfoFile));
+            byte[] magicBytes = new byte[INFO_BINARY_MAGIC_BYTES.length];
+            inputStream.readFully(magicBytes);
+            return Arrays.equals(INFO_BINARY_MAGIC_BYTES, magicBytes);
+        } catch (IOException ioe) {
+            throw new WalletLoadException("Could not load walletinfo file '" + walletInfoFilename + "'", ioe);
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    throw new WalletLoadException("Could not close walletinfo file '" + walletInfoFilename + "'", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Load the wallet info from the binary format.
+     * The file is read with a single channel read and the labels are decoded lazily from the string table.
+     * (The file is not memory mapped as on Windows a live mapping stops the next write being renamed over it).
+     */
+    private void loadFromBinaryFile(String walletInfoFilename) {
+        RandomAccessFile randomAccessFile = null;
         try {
-            walletPreferences = new Properties();
+            randomAccessFile = new RandomAccessFile(walletInfoFilename, "r");
+            FileChannel channel = randomAccessFile.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new WalletLoadException("The file '" + walletInfoFilename + "' is not a valid wallet info file (too large)");
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException();
+                }
+            }
+            buffer.flip();
+
+            buffer.position(INFO_BINARY_MAGIC_BYTES.length);
+            byte versionNumber = buffer.get();
+            if (versionNumber != INFO_BINARY_VERSION_NUMBER) {
+                throw new WalletLoadException("The file '" + walletInfoFilename
+                        + "' is not a valid wallet info file (unknown format version " + versionNumber + ")");
+            }
+
+            byte[] walletVersionBytes = new byte[checkLength(buffer.getInt(), buffer.remaining(), walletInfoFilename)];
+            buffer.get(walletVersionBytes);
+            setWalletVersionFromString(new String(walletVersionBytes, WalletAddressBookData.UTF8));
+
+            int numberOfReceivingAddresses = checkLength(buffer.getInt(), buffer.remaining(), walletInfoFilename);
+            int numberOfSendingAddresses = checkLength(buffer.getInt(), buffer.remaining(), walletInfoFilename);
+            int numberOfProperties = checkLength(buffer.getInt(), buffer.remaining(), walletInfoFilename);
+            int stringTableLength = checkLength(buffer.getInt(), buffer.remaining(), walletInfoFilename);
+
+            int entriesStart = buffer.position();
+            long entriesLength = ((long) numberOfReceivingAddresses + numberOfSendingAddresses + numberOfProperties) * BINARY_ENTRY_LENGTH;
+            if (entriesStart + entriesLength + stringTableLength != buffer.limit()) {
+                throw new WalletLoadException("The file '" + walletInfoFilename
+                        + "' is not a valid wallet info file (wrong length)");
+            }
+
+            byte[] stringTable = new byte[stringTableLength];
+            buffer.position(entriesStart + (int) entriesLength);
+            buffer.get(stringTable);
+            buffer.position(entriesStart);
 
+            for (int i = 0; i < numberOfReceivingAddresses; i++) {
+                addReceivingAddress(readAddressBookData(buffer, stringTable, walletInfoFilename), true);
+            }
+            for (int i = 0; i < numberOfSendingAddresses; i++) {
+                addSendingAddress(readAddressBookData(buffer, stringTable, walletInfoFilename));
+            }
+            for (int i = 0; i < numberOfProperties; i++) {
+                String key = readString(buffer, stringTable, walletInfoFilename);
+                String value = readString(buffer, stringTable, walletInfoFilename);
+                if (key != null && value != null) {
+                    walletPreferences.put(key, value);
+                }
+            }
+        } catch (BufferUnderflowException bue) {
+            throw new WalletLoadException("Could not load walletinfo file '" + walletInfoFilename + "'", bue);
+        } catch (IOException ioe) {
+            throw new WalletLoadException("Could not load walletinfo file '" + walletInfoFilename + "'", ioe);
+        } finally {
+            if (randomAccessFile != null) {
+                try {
+                    randomAccessFile.close();
+                } catch (IOException e) {
+                    throw new WalletLoadException("Could not close walletinfo file '" + walletInfoFilename + "'", e);
+                }
+            }
+        }
+    }
+
+    private static int checkLength(int length, int limit, String walletInfoFilename) {
+        if (length < 0 || length > limit) {
+            throw new WalletLoadException("The file '" + walletInfoFilename + "' is not a valid wallet info file (bad length "
+                    + length + ")");
+        }
+        return length;
+    }
+
+    private static WalletAddressBookData readAddressBookData(ByteBuffer buffer, byte[] stringTable, String walletInfoFilename) {
+        String address = readString(buffer, stringTable, walletInfoFilename);
+        int labelOffset = buffer.getInt();
+        int labelLength = buffer.getInt();
+        checkString(labelOffset, labelLength, stringTable, walletInfoFilename);
+        return new WalletAddressBookData(stringTable, labelOffset, labelLength, address);
+    }
+
+    private static String readString(ByteBuffer buffer, byte[] stringTable, String walletInfoFilename) {
+        int offset = buffer.getInt();
+        int length = buffer.getInt();
+        checkString(offset, length, stringTable, walletInfoFilename);
+        return length < 0 ? null : new String(stringTable, offset, length, WalletAddressBookData.UTF8);
+    }
+
+    private static void checkString(int offset, int length, byte[] stringTable, String walletInfoFilename) {
+        if (length < -1 || offset < 0 || (length > 0 && (long) offset + length > stringTable.length)) {
+            throw new WalletLoadException("The file '" + walletInfoFilename
+                    + "' is not a valid wallet info file (string outside of the string table)");
+        }
+    }
+
+    /**
+     * Set the wallet version from the string stored in the wallet info file.
+     * 
+     * @param walletVersionString
+     * @throws WalletVersionException
+     *             if the wallet version is not one that is understood
+     */
+    private void setWalletVersionFromString(String walletVersionString) {
+        if (!(MultiBitWalletVersion.SERIALIZED.getWalletVersionString().equals(walletVersionString)
+                || MultiBitWalletVersion.PROTOBUF.getWalletVersionString().equals(walletVersionString) || MultiBitWalletVersion.PROTOBUF_ENCRYPTED
+                .getWalletVersionString().equals(walletVersionString))) {
+            // This refers to a version of the wallet we do not know about.
+            throw new WalletVersionException("Cannot understand wallet version of '" + walletVersionString + "'");
+        }
+
+        // The wallet version passed in the file is used rather than
+        // the value in the constructor
+        if (walletVersion == null || !walletVersion.getWalletVersionString().equals(walletVersionString)) {
+            log.debug("The wallet version in the constructor was '" + walletVersion
+                    + "'. In the wallet info file it was '" + walletVersionString + "'. Using the latter.");
+            if (MultiBitWalletVersion.SERIALIZED.getWalletVersionString().equals(walletVersionString)) {
+                walletVersion = MultiBitWalletVersion.SERIALIZED;
+            } else if (MultiBitWalletVersion.PROTOBUF.getWalletVersionString().equals(walletVersionString)) {
+                walletVersion = MultiBitWalletVersion.PROTOBUF;
+            } else if (MultiBitWalletVersion.PROTOBUF_ENCRYPTED.getWalletVersionString().equals(walletVersionString)) {
+                walletVersion = MultiBitWalletVersion.PROTOBUF_ENCRYPTED;
+            }
+        }
+    }
+
+    /**
+     * Load the wallet info from the comma separated text format written by earlier MultiBits.
+     */
+    private void loadFromTextFile(String walletInfoFilename) {
+        InputStream inputStream = null;
+        try {
             // Read in the wallet info data.
-            walletInfoFilename = createWalletInfoFilename(walletFilename);
             FileInputStream fileInputStream = new FileInputStream(walletInfoFilename);
             // Get the object of DataInputStream.
             inputStream = new DataInputStream(fileInputStream);
@@ -670,6 +948,14 @@ public class WalletInfoData {
         this.deleted = deleted;
     }
 
+    public synchronized FileHandler.WriteToken getWriteToken() {
+        return writeToken;
+    }
+
+    public synchronized void setWriteToken(FileHandler.WriteToken writeToken) {
+        this.writeToken = writeToken;
+    }
+
     public String getWalletFilename() {
         return walletFilename;
     }
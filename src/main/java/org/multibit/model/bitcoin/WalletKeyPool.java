@@ -0,0 +1,297 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.model.bitcoin;
+
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
+import org.multibit.controller.bitcoin.BitcoinController;
+import org.multibit.crypto.DerivedKeyCache;
+import org.multibit.crypto.ParallelKeyCrypter;
+import org.multibit.file.FileHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.MultiBitWalletLock;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.crypto.KeyCrypter;
+
+/**
+ * A pool of keys that have been created ahead of time for a wallet so that new
+ * receiving addresses can be handed out straight away.
+ *
+ * The pooled keys are already in the wallet, so they are encrypted, in the
+ * bloom filter and in the private key backups, but their addresses are not yet
+ * receiving addresses. Taking an address just moves it into the receiving
+ * addresses. The pooled addresses are remembered in the wallet info, where they
+ * are written once when the wallet info is saved rather than on every change.
+ *
+ * The pool is topped up in the background. An encrypted wallet can only be
+ * topped up when the wallet password is known.
+ */
+public class WalletKeyPool {
+    private static final Logger log = LoggerFactory.getLogger(WalletKeyPool.class);
+
+    /**
+     * The wallet info property holding the pooled addresses, separated by spaces.
+     */
+    public static final String KEY_POOL_PROPERTY = "keyPool";
+
+    public static final int DEFAULT_KEY_POOL_SIZE = 100;
+
+    /**
+     * Bounds the pool so that writing the pooled addresses stays cheap.
+     */
+    public static final int MAXIMUM_KEY_POOL_SIZE = 10000;
+
+    private static final String SEPARATOR = " ";
+
+    private static final ExecutorService keyPoolExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "MultiBit key pool");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
+    private final WalletData perWalletModelData;
+
+    /**
+     * The pooled addresses, oldest first.
+     */
+    private final LinkedHashSet<String> addresses;
+
+    /**
+     * True when the addresses have changed since they were written to the wallet info.
+     */
+    private boolean addressesChanged = false;
+
+    WalletKeyPool(WalletData perWalletModelData) {
+        this.perWalletModelData = perWalletModelData;
+        this.addresses = new LinkedHashSet<String>();
+
+        WalletInfoData walletInfo = perWalletModelData.getWalletInfo();
+        String pooledAddresses = walletInfo == null ? null : walletInfo.getProperty(KEY_POOL_PROPERTY);
+        if (pooledAddresses != null) {
+            for (String address : pooledAddresses.split(SEPARATOR)) {
+                if (address.length() > 0) {
+                    addresses.add(address);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of addresses in the pool
+     */
+    public synchronized int size() {
+        return addresses.size();
+    }
+
+    /**
+     * @param address
+     * @return true if the address is in the pool, so should not be shown as a receiving address
+     */
+    public synchronized boolean contains(String address) {
+        return addresses.contains(address);
+    }
+
+    /**
+     * Take addresses out of the pool and add them to the receiving addresses,
+     * with empty labels. No keys are created so this needs no password.
+     *
+     * @param numberOfAddresses
+     * @return the addresses taken, or null if the pool does not hold enough
+     */
+    public synchronized List<String> takeAddresses(int numberOfAddresses) {
+        if (numberOfAddresses > addresses.size()) {
+            return null;
+        }
+        List<String> takenAddresses = new ArrayList<String>(numberOfAddresses);
+        Iterator<String> iterator = addresses.iterator();
+        for (int i = 0; i < numberOfAddresses; i++) {
+            takenAddresses.add(iterator.next());
+            iterator.remove();
+        }
+
+        WalletInfoData walletInfo = perWalletModelData.getWalletInfo();
+        for (String takenAddress : takenAddresses) {
+            walletInfo.getReceivingAddresses().add(new WalletAddressBookData("", takenAddress));
+        }
+        addressesChanged = true;
+        perWalletModelData.setDirty(true);
+        return takenAddresses;
+    }
+
+    /**
+     * Add the addresses of keys that have just been added to the wallet.
+     */
+    synchronized void addKeys(Collection<ECKey> keys, NetworkParameters networkParameters) {
+        for (ECKey key : keys) {
+            addresses.add(key.toAddress(networkParameters).toString());
+        }
+        addressesChanged = true;
+        perWalletModelData.setDirty(true);
+    }
+
+    /**
+     * Put the pooled addresses in the wallet info if they have changed, ready
+     * for the wallet info to be saved.
+     */
+    synchronized void writeAddresses() {
+        WalletInfoData walletInfo = perWalletModelData.getWalletInfo();
+        if (!addressesChanged || walletInfo == null) {
+            return;
+        }
+        addressesChanged = false;
+        if (addresses.isEmpty()) {
+            walletInfo.remove(KEY_POOL_PROPERTY);
+            return;
+        }
+        StringBuilder builder = new StringBuilder(addresses.size() * 35);
+        for (String address : addresses) {
+            if (builder.length() > 0) {
+                builder.append(SEPARATOR);
+            }
+            builder.append(address);
+        }
+        walletInfo.put(KEY_POOL_PROPERTY, builder.toString());
+    }
+
+    /**
+     * @return the size of pool to keep, from the user preferences
+     */
+    public static int getTargetSize(BitcoinController bitcoinController) {
+        int targetSize = DEFAULT_KEY_POOL_SIZE;
+        String keyPoolSize = bitcoinController.getModel().getUserPreference(BitcoinModel.KEY_POOL_SIZE);
+        if (keyPoolSize != null && keyPoolSize.trim().length() > 0) {
+            try {
+                targetSize = Integer.parseInt(keyPoolSize.trim());
+            } catch (NumberFormatException nfe) {
+                log.debug("Ignoring key pool size of '" + keyPoolSize + "'");
+            }
+        }
+        return Math.max(0, Math.min(MAXIMUM_KEY_POOL_SIZE, targetSize));
+    }
+
+    /**
+     * Top up the pool in the background.
+     *
+     * @param bitcoinController
+     * @param walletPassword
+     *            needed if the wallet is encrypted, otherwise may be null. A
+     *            copy is kept until the top up has run.
+     */
+    public void topUpInBackground(final BitcoinController bitcoinController, CharSequence walletPassword) {
+        final char[] passwordToUse;
+        if (walletPassword == null) {
+            passwordToUse = null;
+        } else {
+            passwordToUse = new char[walletPassword.length()];
+            for (int i = 0; i < passwordToUse.length; i++) {
+                passwordToUse[i] = walletPassword.charAt(i);
+            }
+        }
+
+        keyPoolExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    topUp(bitcoinController, passwordToUse == null ? null : CharBuffer.wrap(passwordToUse));
+                } catch (RuntimeException e) {
+                    log.error("Could not top up the key pool of wallet '" + perWalletModelData.getWalletFilename() + "'. "
+                            + e.getClass().getCanonicalName() + " " + e.getMessage());
+                } finally {
+                    if (passwordToUse != null) {
+                        Arrays.fill(passwordToUse, '\0');
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Create enough keys to fill the pool, add them to the wallet and the
+     * bloom filter, persist the wallet and schedule one backup for them all.
+     */
+    void topUp(BitcoinController bitcoinController, CharSequence walletPassword) {
+        Wallet wallet = perWalletModelData.getWallet();
+        WalletInfoData walletInfo = perWalletModelData.getWalletInfo();
+        if (wallet == null || walletInfo == null || walletInfo.isDeleted()) {
+            return;
+        }
+
+        int numberOfKeysToCreate = getTargetSize(bitcoinController) - size();
+        if (numberOfKeysToCreate <= 0) {
+            return;
+        }
+
+        KeyCrypter keyCrypter = null;
+        KeyParameter aesKey = null;
+        if (wallet.getEncryptionType() != EncryptionType.UNENCRYPTED) {
+            if (walletPassword == null || walletPassword.length() == 0) {
+                // Wait until the password is known.
+                return;
+            }
+            keyCrypter = wallet.getKeyCrypter();
+            aesKey = DerivedKeyCache.INSTANCE.deriveKey(keyCrypter, walletPassword);
+        }
+
+        List<ECKey> newKeys = ParallelKeyCrypter.createKeys(numberOfKeysToCreate, keyCrypter, aesKey, null);
+
+        // Only add the keys if the wallet is still encrypted the same way, as the password may have changed meanwhile.
+        // The wallet lock is held by password changes whilst they swap in the re-encrypted keys.
+        ReentrantLock walletLock = MultiBitWalletLock.getLock(wallet);
+        walletLock.lock();
+        try {
+            if (keyCrypter != wallet.getKeyCrypter() || (aesKey != null && !wallet.checkAESKey(aesKey))) {
+                log.debug("The encryption of wallet '" + perWalletModelData.getWalletFilename()
+                        + "' changed whilst topping up the key pool.");
+                return;
+            }
+            wallet.addKeys(newKeys);
+            addKeys(newKeys, bitcoinController.getModel().getNetworkParameters());
+        } finally {
+            walletLock.unlock();
+        }
+        log.debug("Added " + newKeys.size() + " keys to the key pool of wallet '" + perWalletModelData.getWalletFilename() + "'");
+
+        // Recalculate the bloom filter once for all the new keys.
+        if (bitcoinController.getMultiBitService() != null) {
+            bitcoinController.getMultiBitService().recalculateFastCatchupAndFilter();
+        }
+
+        // Persist the new keys, then backup the private keys, wallet and wallet info in the background.
+        FileHandler fileHandler = bitcoinController.getFileHandler();
+        fileHandler.savePerWalletModelData(perWalletModelData, false);
+        fileHandler.scheduleBackup(perWalletModelData, walletPassword, true, false);
+    }
+}
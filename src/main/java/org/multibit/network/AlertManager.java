@@ -38,7 +38,7 @@ import javax.swing.SwingWorker;
 import org.multibit.Localiser;
 import org.multibit.controller.core.CoreController;
 import org.multibit.controller.bitcoin.BitcoinController;
-import org.multibit.file.FileHandler;
+import org.multibit.crypto.DerivedKeyCache;
 import org.multibit.message.Message;
 import org.multibit.message.MessageManager;
 import org.multibit.model.core.CoreModel;
@@ -439,8 +439,7 @@ public enum AlertManager {
             
             // Load up the wallet containing the signing key.
             File walletFile = new File(walletLocation);
-            FileHandler fileHandler = new FileHandler(bitcoinController);
-            WalletData perWalletModelData = fileHandler.loadFromFile(walletFile);
+            WalletData perWalletModelData = bitcoinController.getFileHandler().loadFromFile(walletFile);
             
             // Find the private key whose Bitcoin address matches the passed in addressPrefix.
             ECKey signingKey = null;
@@ -460,7 +459,7 @@ public enum AlertManager {
             
             String publicKeyAsHex = Utils.bytesToHexString(signingKey.getPubKey());
 
-            KeyParameter keyParameter = wallet.getKeyCrypter().deriveKey(password);
+            KeyParameter keyParameter = DerivedKeyCache.INSTANCE.deriveKey(wallet.getKeyCrypter(), password);
             ECKey decryptedSigningKey = signingKey.decrypt(wallet.getKeyCrypter(), keyParameter);
             String signatureText = decryptedSigningKey.signMessage(textToSign, keyParameter);
             
@@ -0,0 +1,454 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.network;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.AbstractBlockChainListener;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.store.BlockStore;
+import com.google.bitcoin.store.BlockStoreException;
+
+/**
+ * An index of the best chain held in the SPV block store, so that a block can be
+ * found by date or by hash without walking back from the chain head one block
+ * store read at a time.
+ *
+ * The index holds the hash and time of each block from the oldest indexed block up
+ * to the chain head. It is kept up to date as blocks are connected, is cut back on
+ * a reorganisation and is saved to a file next to the block store so that it
+ * survives a restart. If the index does not match the block store (for instance
+ * the file is missing or out of date) it is rebuilt from the block store.
+ */
+public class BlockHeaderIndex extends AbstractBlockChainListener {
+    private static final Logger log = LoggerFactory.getLogger(BlockHeaderIndex.class);
+
+    /**
+     * The most blocks indexed. This is more than the SPV block store holds, so
+     * everything in the block store is indexed.
+     */
+    static final int MAXIMUM_NUMBER_OF_BLOCKS = 10000;
+
+    private static final int MAGIC = 0x4d424849;
+    private static final int VERSION = 1;
+
+    /**
+     * Magic, version, first height and number of blocks.
+     */
+    private static final int HEADER_LENGTH = 16;
+
+    /**
+     * Block hash and time.
+     */
+    private static final int ENTRY_LENGTH = 32 + 4;
+
+    private final File indexFile;
+    private RandomAccessFile randomAccessFile;
+
+    private final BlockStore blockStore;
+
+    /**
+     * The height of the first indexed block.
+     */
+    private int firstHeight;
+    private int numberOfBlocks;
+
+    private final Sha256Hash[] hashes;
+
+    /**
+     * The block times, in seconds.
+     */
+    private final long[] times;
+
+    /**
+     * The earliest time of a block at or above each height. Block times can go
+     * backwards a little, but this cannot, so it can be binary searched.
+     */
+    private final long[] earliestTimesFrom;
+
+    private final Map<Sha256Hash, Integer> heights;
+
+    /**
+     * Set when a block is connected that does not follow on from the index.
+     */
+    private boolean needsRebuild = false;
+
+    private BlockHeaderIndex(File indexFile, BlockStore blockStore) {
+        this.indexFile = indexFile;
+        this.blockStore = blockStore;
+        this.hashes = new Sha256Hash[MAXIMUM_NUMBER_OF_BLOCKS];
+        this.times = new long[MAXIMUM_NUMBER_OF_BLOCKS];
+        this.earliestTimesFrom = new long[MAXIMUM_NUMBER_OF_BLOCKS];
+        this.heights = new HashMap<Sha256Hash, Integer>();
+    }
+
+    /**
+     * Load the index of the block store from the index file, updating it to
+     * match the block store if need be.
+     *
+     * @param indexFile
+     *            the index file, created if it does not exist
+     * @param blockStore
+     *            the block store that is indexed
+     */
+    public static BlockHeaderIndex open(File indexFile, BlockStore blockStore) {
+        BlockHeaderIndex blockHeaderIndex = new BlockHeaderIndex(indexFile, blockStore);
+        synchronized (blockHeaderIndex) {
+            blockHeaderIndex.load();
+            blockHeaderIndex.matchBlockStore();
+        }
+        return blockHeaderIndex;
+    }
+
+    public BlockStore getBlockStore() {
+        return blockStore;
+    }
+
+    /**
+     * @return the newest block in the best chain that is before the date, or null if it is not in the block store
+     */
+    public synchronized StoredBlock findBlockBefore(Date date) {
+        matchBlockStoreIfNeeded();
+        int low = 0;
+        int high = numberOfBlocks - 1;
+        int found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (earliestTimesFrom[middle] * 1000 < date.getTime()) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found < 0 ? null : getStoredBlock(hashes[found]);
+    }
+
+    /**
+     * @return the block if it is in the best chain, otherwise null
+     */
+    public synchronized StoredBlock findBlock(Sha256Hash hash) {
+        matchBlockStoreIfNeeded();
+        return heights.containsKey(hash) ? getStoredBlock(hash) : null;
+    }
+
+    public synchronized void close() {
+        if (randomAccessFile != null) {
+            try {
+                randomAccessFile.close();
+            } catch (IOException ioe) {
+                log.error("Could not close block header index '" + indexFile.getAbsolutePath() + "'. " + ioe.getMessage());
+            }
+            randomAccessFile = null;
+        }
+    }
+
+    @Override
+    public synchronized void notifyNewBestBlock(StoredBlock block) {
+        Sha256Hash hash = block.getHeader().getHash();
+        if (needsRebuild || (numberOfBlocks > 0 && hash.equals(hashes[numberOfBlocks - 1]))) {
+            return;
+        }
+
+        Integer previousHeight = heights.get(block.getHeader().getPrevBlockHash());
+        if (numberOfBlocks == 0 || (previousHeight != null && previousHeight == block.getHeight() - 1)) {
+            if (previousHeight != null && previousHeight < firstHeight + numberOfBlocks - 1) {
+                truncate(previousHeight);
+            }
+            append(block);
+            writeEntries(numberOfBlocks - 1);
+        } else {
+            // A gap in the chain - rebuild from the block store when next used.
+            needsRebuild = true;
+        }
+    }
+
+    @Override
+    public synchronized void reorganize(StoredBlock splitPoint, List<StoredBlock> oldBlocks, List<StoredBlock> newBlocks) {
+        Integer splitHeight = heights.get(splitPoint.getHeader().getHash());
+        if (needsRebuild || splitHeight == null) {
+            needsRebuild = true;
+            return;
+        }
+        truncate(splitHeight);
+
+        // The new blocks are listed from the new chain head down.
+        List<StoredBlock> newBlocksInOrder = new ArrayList<StoredBlock>(newBlocks);
+        Collections.reverse(newBlocksInOrder);
+        for (StoredBlock newBlock : newBlocksInOrder) {
+            if (!newBlock.getHeader().getPrevBlockHash().equals(hashes[numberOfBlocks - 1])) {
+                needsRebuild = true;
+                return;
+            }
+            append(newBlock);
+        }
+        // The oldest blocks may have been dropped whilst appending.
+        writeEntries(Math.max(0, splitHeight + 1 - firstHeight));
+    }
+
+    /**
+     * The chain head has been moved back to a block in the best chain without a
+     * reorganize, for a replay. Forget the blocks above it.
+     */
+    public synchronized void rewind(StoredBlock newChainHead) {
+        Integer newChainHeadHeight = heights.get(newChainHead.getHeader().getHash());
+        if (needsRebuild || newChainHeadHeight == null) {
+            needsRebuild = true;
+            return;
+        }
+        truncate(newChainHeadHeight);
+        writeEntries(numberOfBlocks);
+    }
+
+    private void matchBlockStoreIfNeeded() {
+        if (needsRebuild) {
+            matchBlockStore();
+            return;
+        }
+        try {
+            StoredBlock chainHead = blockStore.getChainHead();
+            if (chainHead != null && (numberOfBlocks == 0 || !chainHead.getHeader().getHash().equals(hashes[numberOfBlocks - 1]))) {
+                matchBlockStore();
+            }
+        } catch (BlockStoreException bse) {
+            log.error("Could not read the chain head. " + bse.getMessage());
+        }
+    }
+
+    /**
+     * Make the index match the best chain in the block store, cutting it back if
+     * the chain head is indexed and otherwise rebuilding it.
+     */
+    private void matchBlockStore() {
+        needsRebuild = false;
+        try {
+            StoredBlock chainHead = blockStore.getChainHead();
+            if (chainHead == null) {
+                clear();
+                writeAll();
+                return;
+            }
+
+            Integer chainHeadHeight = heights.get(chainHead.getHeader().getHash());
+            if (chainHeadHeight != null && chainHeadHeight == chainHead.getHeight()) {
+                if (chainHeadHeight < firstHeight + numberOfBlocks - 1) {
+                    truncate(chainHeadHeight);
+                    writeHeader();
+                }
+                return;
+            }
+
+            // Walk back through the block store once.
+            log.debug("Rebuilding block header index '" + indexFile.getAbsolutePath() + "'");
+            List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+            StoredBlock block = chainHead;
+            while (block != null && blocks.size() < MAXIMUM_NUMBER_OF_BLOCKS) {
+                blocks.add(block);
+                block = block.getPrev(blockStore);
+            }
+            Collections.reverse(blocks);
+
+            clear();
+            for (StoredBlock blockToIndex : blocks) {
+                append(blockToIndex);
+            }
+            writeAll();
+            log.debug("Indexed " + numberOfBlocks + " blocks from height " + firstHeight);
+        } catch (BlockStoreException bse) {
+            log.error("Could not index the block store. " + bse.getMessage());
+            needsRebuild = true;
+        }
+    }
+
+    private StoredBlock getStoredBlock(Sha256Hash hash) {
+        try {
+            return blockStore.get(hash);
+        } catch (BlockStoreException bse) {
+            log.error("Could not read block " + hash + ". " + bse.getMessage());
+            return null;
+        }
+    }
+
+    private void clear() {
+        firstHeight = 0;
+        numberOfBlocks = 0;
+        heights.clear();
+    }
+
+    /**
+     * Add the block, which follows on from the last indexed block, to the
+     * index in memory.
+     */
+    private void append(StoredBlock block) {
+        if (numberOfBlocks == MAXIMUM_NUMBER_OF_BLOCKS) {
+            dropOldest(MAXIMUM_NUMBER_OF_BLOCKS / 2);
+        }
+        if (numberOfBlocks == 0) {
+            firstHeight = block.getHeight();
+        }
+        int index = numberOfBlocks;
+        Sha256Hash hash = block.getHeader().getHash();
+        long time = block.getHeader().getTimeSeconds();
+        hashes[index] = hash;
+        times[index] = time;
+        earliestTimesFrom[index] = time;
+        for (int i = index - 1; i >= 0 && earliestTimesFrom[i] > time; i--) {
+            earliestTimesFrom[i] = time;
+        }
+        heights.put(hash, block.getHeight());
+        numberOfBlocks++;
+    }
+
+    /**
+     * Remove the blocks above the height from the index in memory.
+     */
+    private void truncate(int height) {
+        int newNumberOfBlocks = Math.max(0, Math.min(numberOfBlocks, height - firstHeight + 1));
+        for (int i = newNumberOfBlocks; i < numberOfBlocks; i++) {
+            heights.remove(hashes[i]);
+            hashes[i] = null;
+        }
+        numberOfBlocks = newNumberOfBlocks;
+
+        // The earliest times can only go up.
+        long earliestTime = Long.MAX_VALUE;
+        for (int i = numberOfBlocks - 1; i >= 0; i--) {
+            earliestTime = Math.min(earliestTime, times[i]);
+            earliestTimesFrom[i] = earliestTime;
+        }
+    }
+
+    private void dropOldest(int numberToDrop) {
+        for (int i = 0; i < numberToDrop; i++) {
+            heights.remove(hashes[i]);
+        }
+        System.arraycopy(hashes, numberToDrop, hashes, 0, numberOfBlocks - numberToDrop);
+        System.arraycopy(times, numberToDrop, times, 0, numberOfBlocks - numberToDrop);
+        System.arraycopy(earliestTimesFrom, numberToDrop, earliestTimesFrom, 0, numberOfBlocks - numberToDrop);
+        numberOfBlocks -= numberToDrop;
+        firstHeight += numberToDrop;
+        for (int i = numberOfBlocks; i < numberOfBlocks + numberToDrop; i++) {
+            hashes[i] = null;
+        }
+
+        // Everything has moved in the file.
+        writeAll();
+    }
+
+    private void load() {
+        if (!indexFile.exists()) {
+            return;
+        }
+        try {
+            RandomAccessFile file = getRandomAccessFile();
+            if (file.length() < HEADER_LENGTH) {
+                return;
+            }
+            file.seek(0);
+            if (file.readInt() != MAGIC || file.readInt() != VERSION) {
+                log.debug("Ignoring block header index '" + indexFile.getAbsolutePath() + "' of unknown format");
+                return;
+            }
+            int storedFirstHeight = file.readInt();
+            int storedNumberOfBlocks = file.readInt();
+            if (storedNumberOfBlocks < 0 || storedNumberOfBlocks > MAXIMUM_NUMBER_OF_BLOCKS
+                    || file.length() < HEADER_LENGTH + (long) storedNumberOfBlocks * ENTRY_LENGTH) {
+                return;
+            }
+
+            byte[] entries = new byte[storedNumberOfBlocks * ENTRY_LENGTH];
+            file.readFully(entries);
+            ByteBuffer buffer = ByteBuffer.wrap(entries);
+            byte[] hashBytes = new byte[32];
+            firstHeight = storedFirstHeight;
+            for (int i = 0; i < storedNumberOfBlocks; i++) {
+                buffer.get(hashBytes);
+                Sha256Hash hash = new Sha256Hash(hashBytes.clone());
+                hashes[i] = hash;
+                times[i] = buffer.getInt() & 0xffffffffL;
+                heights.put(hash, firstHeight + i);
+            }
+            numberOfBlocks = storedNumberOfBlocks;
+            truncate(firstHeight + numberOfBlocks - 1);
+            log.debug("Loaded " + numberOfBlocks + " blocks from block header index '" + indexFile.getAbsolutePath() + "'");
+        } catch (IOException ioe) {
+            log.error("Could not read block header index '" + indexFile.getAbsolutePath() + "'. " + ioe.getMessage());
+            clear();
+        }
+    }
+
+    private RandomAccessFile getRandomAccessFile() throws IOException {
+        if (randomAccessFile == null) {
+            randomAccessFile = new RandomAccessFile(indexFile, "rw");
+        }
+        return randomAccessFile;
+    }
+
+    /**
+     * Write the entries from the index given, then the header. The index is
+     * still used in memory if it cannot be written.
+     */
+    private void writeEntries(int fromIndex) {
+        try {
+            RandomAccessFile file = getRandomAccessFile();
+            ByteBuffer buffer = ByteBuffer.allocate((numberOfBlocks - fromIndex) * ENTRY_LENGTH);
+            for (int i = fromIndex; i < numberOfBlocks; i++) {
+                buffer.put(hashes[i].getBytes());
+                buffer.putInt((int) times[i]);
+            }
+            file.seek(HEADER_LENGTH + (long) fromIndex * ENTRY_LENGTH);
+            file.write(buffer.array());
+            writeHeader();
+        } catch (IOException ioe) {
+            log.error("Could not write block header index '" + indexFile.getAbsolutePath() + "'. " + ioe.getMessage());
+        }
+    }
+
+    private void writeAll() {
+        try {
+            getRandomAccessFile().setLength(HEADER_LENGTH + (long) numberOfBlocks * ENTRY_LENGTH);
+        } catch (IOException ioe) {
+            log.error("Could not write block header index '" + indexFile.getAbsolutePath() + "'. " + ioe.getMessage());
+        }
+        writeEntries(0);
+    }
+
+    private void writeHeader() {
+        try {
+            RandomAccessFile file = getRandomAccessFile();
+            file.seek(0);
+            file.writeInt(MAGIC);
+            file.writeInt(VERSION);
+            file.writeInt(firstHeight);
+            file.writeInt(numberOfBlocks);
+        } catch (IOException ioe) {
+            log.error("Could not write block header index '" + indexFile.getAbsolutePath() + "'. " + ioe.getMessage());
+        }
+    }
+}
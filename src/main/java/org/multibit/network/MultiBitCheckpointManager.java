@@ -3,6 +3,7 @@ package org.multibit.network;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Map;
+import java.util.TreeMap;
 
 import com.google.bitcoin.core.CheckpointManager;
 import com.google.bitcoin.core.NetworkParameters;
@@ -11,8 +12,18 @@ import com.google.bitcoin.core.VerificationException;
 
 public class MultiBitCheckpointManager extends CheckpointManager {
 
+    /**
+     * The checkpoints by height (the checkpoints in CheckpointManager are by time).
+     */
+    private final TreeMap<Integer, StoredBlock> checkpointsByHeight;
+
     public MultiBitCheckpointManager(NetworkParameters params, InputStream inputStream) throws IOException {
         super(params, inputStream);
+
+        checkpointsByHeight = new TreeMap<Integer, StoredBlock>();
+        for (StoredBlock checkpoint : checkpoints.values()) {
+            checkpointsByHeight.put(checkpoint.getHeight(), checkpoint);
+        }
     }
     
     /**
@@ -20,21 +31,7 @@ public class MultiBitCheckpointManager extends CheckpointManager {
      * you would want to know the checkpoint before the last block the wallet had seen.
      */
     public StoredBlock getCheckpointBeforeOrAtHeight(int height) {
-        Map.Entry<Long, StoredBlock> highestCheckpointBeforeHeight = null;
-        
-        for (Map.Entry<Long, StoredBlock> loop : checkpoints.entrySet()) {
-            if (loop.getValue().getHeight() < height) {
-                // This checkpoint is before the specified height.
-                if (highestCheckpointBeforeHeight == null) {
-                    highestCheckpointBeforeHeight = loop;
-                } else {
-                    if (highestCheckpointBeforeHeight.getValue().getHeight() < loop.getValue().getHeight()) {
-                        // This entry is later.
-                        highestCheckpointBeforeHeight = loop;
-                    }
-                }
-            }
-        }
+        Map.Entry<Integer, StoredBlock> highestCheckpointBeforeHeight = checkpointsByHeight.lowerEntry(height);
         
         if (highestCheckpointBeforeHeight == null) {
             try {
@@ -45,4 +42,4 @@ public class MultiBitCheckpointManager extends CheckpointManager {
         }
         return highestCheckpointBeforeHeight.getValue();
     }
-}
\ No newline at end of file
+}
@@ -25,12 +25,14 @@ import com.google.bitcoin.net.discovery.SeedPeers;
 import com.google.bitcoin.store.BlockStore;
 import com.google.bitcoin.store.BlockStoreException;
 import com.google.bitcoin.store.SPVBlockStore;
+import com.google.bitcoin.utils.Threading;
 import com.google.common.util.concurrent.ListenableFuture;
 import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
 import org.multibit.MultiBit;
 import org.multibit.ApplicationDataDirectoryLocator;
 import org.multibit.controller.Controller;
 import org.multibit.controller.bitcoin.BitcoinController;
+import org.multibit.crypto.DerivedKeyCache;
 import org.multibit.file.BackupManager;
 import org.multibit.file.FileHandlerException;
 import org.multibit.file.WalletSaveException;
@@ -39,6 +41,7 @@ import org.multibit.message.MessageManager;
 import org.multibit.model.bitcoin.BitcoinModel;
 import org.multibit.model.bitcoin.WalletData;
 import org.multibit.model.bitcoin.WalletInfoData;
+import org.multibit.model.bitcoin.WalletKeyPool;
 import org.multibit.model.core.CoreModel;
 import org.multibit.model.core.StatusEnum;
 import org.multibit.store.MultiBitWalletVersion;
@@ -90,6 +93,13 @@ public class MultiBitService {
   public static final String CHECKPOINTS_SUFFIX = ".checkpoints";
   public static final String WALLET_SUFFIX = ".wallet";
   public static final String TARGETS_SUFFIX = ".targets"; // for KGW difficulty calculation from checkpoints.
+  public static final String BLOCK_HEADER_INDEX_SUFFIX = ".spvindex";
+  public static final String PEER_ADDRESS_STORE_SUFFIX = ".peers";
+
+  /**
+   * The most stored peers to try before discovering peers.
+   */
+  private static final int MAXIMUM_NUMBER_OF_STORED_PEERS_TO_TRY = 32;
 
   public static final String IRC_CHANNEL_TEST = "#bitcoinTEST";
   public static final String IRC_CHANNEL_TESTNET3 = "#bitcoinTEST3";
@@ -104,6 +114,12 @@ public class MultiBitService {
 
   private BlockStore blockStore;
 
+  private BlockHeaderIndex blockHeaderIndex;
+  private String blockHeaderIndexFilename;
+
+  private PeerAddressStore peerAddressStore;
+  private String peerAddressStoreFilename;
+
   private final Controller controller;
   private final BitcoinController bitcoinController;
 
@@ -113,6 +129,13 @@ public class MultiBitService {
 
   private MultiBitCheckpointManager checkpointManager;
   private String checkpointsFilename;
+
+  /**
+   * The checkpoints file the checkpoint manager was parsed from, to see if it has changed.
+   */
+  private String loadedCheckpointsFilename;
+  private long loadedCheckpointsLastModified;
+  private long loadedCheckpointsLength;
   private String targetsFilename;
 
   public static Date genesisBlockCreationDate;
@@ -167,6 +190,7 @@ public class MultiBitService {
       log.debug("Created blockchain '" + blockChain + "' with height " + blockChain.getBestChainHeight());
       
       setOuterTargetAndTimeFile();
+      createBlockHeaderIndex();
 
       log.debug("Creating peergroup ...");
       createNewPeerGroup();
@@ -183,9 +207,26 @@ public class MultiBitService {
       handleError(e);
     }
 
+    loadCheckpointManager();
+  }
+
+  /**
+   * Parse the checkpoints file into the checkpoint manager shared by the application.
+   */
+  private synchronized void loadCheckpointManager() {
+    if (checkpointsFilename == null) {
+      return;
+    }
+    File checkpointsFile = new File(checkpointsFilename);
+
+    // Note the file before it is parsed so that a missing or bad file is not parsed again until it changes.
+    loadedCheckpointsFilename = checkpointsFilename;
+    loadedCheckpointsLastModified = checkpointsFile.lastModified();
+    loadedCheckpointsLength = checkpointsFile.length();
+
     FileInputStream stream = null;
     try {
-      stream = new FileInputStream(checkpointsFilename);
+      stream = new FileInputStream(checkpointsFile);
       checkpointManager = new MultiBitCheckpointManager(networkParameters, stream);
     } catch (IOException e) {
       log.error("Error creating checkpointManager " + e.getClass().getName() + " " + e.getMessage());
@@ -216,12 +257,18 @@ public class MultiBitService {
 
     if ("".equals(controller.getApplicationDataDirectoryLocator().getApplicationDataDirectory())) {
       blockchainFilename = filePrefix + SPV_BLOCKCHAIN_SUFFIX;
+      blockHeaderIndexFilename = filePrefix + BLOCK_HEADER_INDEX_SUFFIX;
+      peerAddressStoreFilename = filePrefix + PEER_ADDRESS_STORE_SUFFIX;
       checkpointsFilename = filePrefix + CHECKPOINTS_SUFFIX;
       targetsFilename = filePrefix + TARGETS_SUFFIX;
 
     } else {
       blockchainFilename = controller.getApplicationDataDirectoryLocator().getApplicationDataDirectory() + File.separator
               + filePrefix + SPV_BLOCKCHAIN_SUFFIX;
+      blockHeaderIndexFilename = controller.getApplicationDataDirectoryLocator().getApplicationDataDirectory() + File.separator
+              + filePrefix + BLOCK_HEADER_INDEX_SUFFIX;
+      peerAddressStoreFilename = controller.getApplicationDataDirectoryLocator().getApplicationDataDirectory() + File.separator
+              + filePrefix + PEER_ADDRESS_STORE_SUFFIX;
       checkpointsFilename = controller.getApplicationDataDirectoryLocator().getApplicationDataDirectory() + File.separator
               + filePrefix + CHECKPOINTS_SUFFIX;
       targetsFilename = controller.getApplicationDataDirectoryLocator().getApplicationDataDirectory() + File.separator
@@ -387,6 +434,20 @@ public class MultiBitService {
     }
 
     if (!peersSpecified) {
+        // Try the best peers connected to before, then discover more when they run out.
+        if (peerAddressStore == null && peerAddressStoreFilename != null) {
+            peerAddressStore = PeerAddressStore.load(new File(peerAddressStoreFilename));
+        }
+        if (peerAddressStore != null) {
+            List<PeerAddress> storedPeerAddresses = peerAddressStore.getBestPeerAddresses(MAXIMUM_NUMBER_OF_STORED_PEERS_TO_TRY,
+                    networkParameters.getPort());
+            for (PeerAddress storedPeerAddress : storedPeerAddresses) {
+                peerGroup.addAddress(storedPeerAddress);
+            }
+            log.debug("Added " + storedPeerAddresses.size() + " stored peers to the PeerGroup");
+            peerGroup.addEventListener(peerAddressStore);
+        }
+
         // Use DNS for production, IRC for test.
         /*
           if (TESTNET3_GENESIS_HASH.equals(bitcoinController.getModel().getNetworkParameters().getGenesisBlock().getHashAsString())) {
@@ -530,10 +591,14 @@ public class MultiBitService {
         if (perWalletModelDataToReturn != null) {
           WalletInfoData walletInfo = perWalletModelDataToReturn.getWalletInfo();
           if (walletInfo != null) {
+            // Keys waiting in the key pool are not receiving addresses yet.
+            WalletKeyPool keyPool = perWalletModelDataToReturn.getKeyPool();
             for (ECKey key : keys) {
               if (key != null) {
                 Address address = key.toAddress(networkParameters);
-                walletInfo.addReceivingAddressOfKey(address);
+                if (!keyPool.contains(address.toString())) {
+                  walletInfo.addReceivingAddressOfKey(address);
+                }
               }
             }
           }
@@ -561,6 +626,35 @@ public class MultiBitService {
     return perWalletModelDataToReturn;
   }
 
+  /**
+   * Rewind the blockchain in place for a replay, if the block to replay from is
+   * still in the block store. The block store, blockchain and PeerGroup are
+   * kept so the peers stay connected.
+   *
+   * @param dateToReplayFrom The date to start the replay task from
+   * @return height of the block chain after the rewind, or -1 if it could not be rewound
+   *         (then use createNewBlockStoreForReplay)
+   * @throws BlockStoreException
+   */
+  public int rewindBlockChainForReplay(Date dateToReplayFrom) throws BlockStoreException {
+    if (dateToReplayFrom == null || blockStore == null || blockChain == null || peerGroup == null || !peerGroup.isRunning()) {
+      return -1;
+    }
+
+    // Dates this early are replayed from a checkpoint.
+    Date genesisPlusOnwWeekAndASecond = new Date(MultiBitService.genesisBlockCreationDate.getTime() + (86400 * 7 + 1) * 1000);
+    if (dateToReplayFrom.getTime() < genesisPlusOnwWeekAndASecond.getTime()) {
+      return -1;
+    }
+
+    StoredBlock rewindTo = ReplayManager.findBlockInStoredBestChain(blockStore, blockHeaderIndex, dateToReplayFrom);
+    if (rewindTo == null || !blockChain.rewindTo(rewindTo, blockHeaderIndex)) {
+      return -1;
+    }
+    log.debug("Rewound blockchain to height " + rewindTo.getHeight() + " for replay from " + dateToReplayFrom);
+    return blockChain.getBestChainHeight();
+  }
+
   /**
    * Create a new block store.
    *
@@ -574,9 +668,13 @@ public class MultiBitService {
       // replay from block in blockStore
       // 日付がblockStore内にあれば、replay開始地点がBestChain上にあることは確認済みと見做す
     StoredBlock cacheReplayFrom = null;
-    cacheReplayFrom = ReplayManager.findBlockInStoredBestChain( blockStore , dateToReplayFrom );
+    cacheReplayFrom = ReplayManager.findBlockInStoredBestChain( blockStore , blockHeaderIndex , dateToReplayFrom );
 
     log.debug("Loading/ creating blockstore ...");
+    if (blockHeaderIndex != null) {
+      blockHeaderIndex.close();
+      blockHeaderIndex = null;
+    }
     if (blockStore != null) {
       try {
         blockStore.close();
@@ -611,6 +709,7 @@ public class MultiBitService {
     log.debug("Created blockchain '" + blockChain + "'");
     
     setOuterTargetAndTimeFile();
+    createBlockHeaderIndex();
 
     // Hook up the wallets to the new blockchain.
     if (blockChain != null) {
@@ -671,7 +770,7 @@ public class MultiBitService {
     log.debug("MultiBitService#sendCoins - Just about to send coins");
     KeyParameter aesKey = null;
     if (perWalletModelData.getWallet().getEncryptionType() != EncryptionType.UNENCRYPTED) {
-      aesKey = perWalletModelData.getWallet().getKeyCrypter().deriveKey(password);
+      aesKey = DerivedKeyCache.INSTANCE.deriveKey(perWalletModelData.getWallet().getKeyCrypter(), password);
     }
     sendRequest.aesKey = aesKey;
     sendRequest.fee = BigInteger.ZERO;
@@ -719,15 +818,8 @@ public class MultiBitService {
         log.debug("Cannot add bitcoinController as listener to tx = " + sendTransaction.getHashAsString() + " no transactionConfidence");
       }
 
-      try {
-        bitcoinController.getFileHandler().savePerWalletModelData(perWalletModelData, false);
-      } catch (WalletSaveException wse) {
-        log.error(wse.getClass().getCanonicalName() + " " + wse.getMessage());
-        MessageManager.INSTANCE.addMessage(new Message(wse.getClass().getCanonicalName() + " " + wse.getMessage()));
-      } catch (WalletVersionException wse) {
-        log.error(wse.getClass().getCanonicalName() + " " + wse.getMessage());
-        MessageManager.INSTANCE.addMessage(new Message(wse.getClass().getCanonicalName() + " " + wse.getMessage()));
-      }
+      // Save in the background - any failure is reported by the wallet writer.
+      bitcoinController.getFileHandler().savePerWalletModelDataInBackground(perWalletModelData, false);
     
       try {
         // Notify other wallets of the send (it might be a send to or from them).
@@ -774,6 +866,20 @@ public class MultiBitService {
     return blockStore;
   }
 
+  /**
+   * @return the index of the best chain in the block store, or null if there is no block store
+   */
+  public BlockHeaderIndex getBlockHeaderIndex() {
+    return blockHeaderIndex;
+  }
+
+  /**
+   * @return the store of the peers connected to, or null if peers are specified in the preferences
+   */
+  public PeerAddressStore getPeerAddressStore() {
+    return peerAddressStore;
+  }
+
   public SecureRandom getSecureRandom() {
     return secureRandom;
   }
@@ -784,7 +890,19 @@ public class MultiBitService {
     return checkpointsFilename;
   }
 
-  public MultiBitCheckpointManager getCheckpointManager() {
+  /**
+   * @return the checkpoint manager, parsed again only if the checkpoints file has changed since it was last parsed
+   */
+  public synchronized MultiBitCheckpointManager getCheckpointManager() {
+    if (checkpointsFilename != null) {
+      File checkpointsFile = new File(checkpointsFilename);
+      if (!checkpointsFilename.equals(loadedCheckpointsFilename)
+              || (checkpointsFile.exists() && (checkpointsFile.lastModified() != loadedCheckpointsLastModified
+              || checkpointsFile.length() != loadedCheckpointsLength))) {
+        log.debug("Checkpoints file '" + checkpointsFilename + "' has changed - reloading.");
+        loadCheckpointManager();
+      }
+    }
     return checkpointManager;
   }
 
@@ -795,4 +913,12 @@ public class MultiBitService {
 
   }
 
+  /**
+   * Open the index of the block store and keep it up to date as blocks are connected.
+   */
+  private void createBlockHeaderIndex() {
+    blockHeaderIndex = BlockHeaderIndex.open(new File(blockHeaderIndexFilename), blockStore);
+    blockChain.addListener(blockHeaderIndex, Threading.SAME_THREAD);
+  }
+
 }
\ No newline at end of file
@@ -0,0 +1,495 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.network;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.AbstractPeerEventListener;
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.Peer;
+import com.google.bitcoin.core.PeerAddress;
+
+/**
+ * Remembers the peers connected to, how quickly they answer and deliver blocks
+ * and how often connecting to them fails. The best peers are tried first when
+ * the PeerGroup is created, before peer discovery is needed.
+ *
+ * The store is a text file of one peer per line in the application data directory.
+ */
+public class PeerAddressStore extends AbstractPeerEventListener {
+    private static final Logger log = LoggerFactory.getLogger(PeerAddressStore.class);
+
+    private static final String ENCODING = "UTF-8";
+
+    private static final String HEADER = "# address,lastSuccess,latencyMillis,blocksPerSecond,successes,failures,consecutiveFailures";
+
+    /**
+     * The most peers remembered. The lowest scoring are forgotten first.
+     */
+    static final int MAXIMUM_NUMBER_OF_PEERS = 256;
+
+    /**
+     * Peers that have failed this many times in a row are not tried first.
+     */
+    static final int MAXIMUM_CONSECUTIVE_FAILURES = 3;
+
+    /**
+     * Peers not connected to for this long are forgotten.
+     */
+    static final long FORGET_AFTER_MILLIS = 30L * 24 * 60 * 60 * 1000;
+
+    /**
+     * The fewest blocks downloaded from a peer in one connection to measure its throughput.
+     */
+    private static final int MINIMUM_BLOCKS_FOR_THROUGHPUT = 50;
+
+    /**
+     * The weight of the newest measurement in the running latency and throughput.
+     */
+    private static final double NEW_MEASUREMENT_WEIGHT = 0.3;
+
+    private static final long MINIMUM_MILLIS_BETWEEN_SAVES = 60 * 1000;
+
+    /**
+     * What is known about one peer.
+     */
+    static class PeerRecord {
+        private final String address;
+        private long lastSuccess;
+        private long latencyMillis = -1;
+        private double blocksPerSecond = -1;
+        private int successes;
+        private int failures;
+        private int consecutiveFailures;
+
+        PeerRecord(String address) {
+            this.address = address;
+        }
+
+        String getAddress() {
+            return address;
+        }
+
+        long getLastSuccess() {
+            return lastSuccess;
+        }
+
+        long getLatencyMillis() {
+            return latencyMillis;
+        }
+
+        double getBlocksPerSecond() {
+            return blocksPerSecond;
+        }
+
+        int getSuccesses() {
+            return successes;
+        }
+
+        int getFailures() {
+            return failures;
+        }
+
+        int getConsecutiveFailures() {
+            return consecutiveFailures;
+        }
+
+        /**
+         * @return higher for peers connected to recently and reliably that answer
+         *         quickly and deliver blocks quickly
+         */
+        double getScore(long now) {
+            double score = 0;
+            if (lastSuccess > 0) {
+                double daysSinceSuccess = Math.max(0, now - lastSuccess) / (24.0 * 60 * 60 * 1000);
+                score += 10 / (1 + daysSinceSuccess);
+            }
+            if (successes + failures > 0) {
+                score += 10.0 * successes / (successes + failures);
+            }
+            if (latencyMillis >= 0) {
+                score += 10 * 200.0 / (200 + latencyMillis);
+            }
+            if (blocksPerSecond >= 0) {
+                score += 10 * blocksPerSecond / (100 + blocksPerSecond);
+            }
+            return score - 10 * consecutiveFailures;
+        }
+    }
+
+    /**
+     * A connection to a peer whilst it is open.
+     */
+    private static class Connection {
+        private final String address;
+        private boolean connected;
+        private int blocksDownloaded;
+        private long firstBlockTime;
+        private long lastBlockTime;
+
+        Connection(String address) {
+            this.address = address;
+        }
+    }
+
+    private final File storeFile;
+
+    private final Map<String, PeerRecord> peerRecords = new HashMap<String, PeerRecord>();
+
+    private final Map<Peer, Connection> connections = new IdentityHashMap<Peer, Connection>();
+
+    private long lastSaveTime;
+
+    PeerAddressStore(File storeFile) {
+        this.storeFile = storeFile;
+    }
+
+    /**
+     * Load the peers stored in the file, if it exists.
+     */
+    public static PeerAddressStore load(File storeFile) {
+        PeerAddressStore store = new PeerAddressStore(storeFile);
+        if (storeFile != null && storeFile.isFile()) {
+            store.read();
+        }
+        return store;
+    }
+
+    /**
+     * @return the best scoring peers, best first, that have not failed repeatedly
+     */
+    public synchronized List<PeerAddress> getBestPeerAddresses(int maximumNumberOfPeers, int defaultPort) {
+        List<PeerAddress> peerAddresses = new ArrayList<PeerAddress>();
+        for (PeerRecord peerRecord : getPeerRecordsBestFirst(System.currentTimeMillis())) {
+            if (peerAddresses.size() >= maximumNumberOfPeers) {
+                break;
+            }
+            if (peerRecord.getConsecutiveFailures() >= MAXIMUM_CONSECUTIVE_FAILURES) {
+                continue;
+            }
+            PeerAddress peerAddress = parsePeerAddress(peerRecord.getAddress(), defaultPort);
+            if (peerAddress != null) {
+                peerAddresses.add(peerAddress);
+            }
+        }
+        return peerAddresses;
+    }
+
+    @Override
+    public synchronized void onPeerConnected(Peer peer, int peerCount) {
+        String address = getAddress(peer);
+        if (address == null) {
+            return;
+        }
+        Connection connection = getConnection(peer, address);
+        connection.connected = true;
+        recordSuccess(address, System.currentTimeMillis());
+        saveIfDue();
+    }
+
+    @Override
+    public synchronized void onPeerDisconnected(Peer peer, int peerCount) {
+        if (peer == null) {
+            return;
+        }
+        Connection connection = connections.remove(peer);
+        String address = connection == null ? getAddress(peer) : connection.address;
+        if (address == null) {
+            return;
+        }
+
+        if (connection == null || !connection.connected) {
+            // Never got as far as the handshake.
+            recordFailure(address);
+        } else {
+            recordLatency(address, peer.getPingTime());
+            if (connection.blocksDownloaded >= MINIMUM_BLOCKS_FOR_THROUGHPUT && connection.lastBlockTime > connection.firstBlockTime) {
+                recordThroughput(address, 1000.0 * (connection.blocksDownloaded - 1) / (connection.lastBlockTime - connection.firstBlockTime));
+            }
+        }
+        saveIfDue();
+    }
+
+    @Override
+    public synchronized void onBlocksDownloaded(Peer peer, Block block, int blocksLeft) {
+        String address = getAddress(peer);
+        if (address == null) {
+            return;
+        }
+        Connection connection = getConnection(peer, address);
+        long now = System.currentTimeMillis();
+        if (connection.blocksDownloaded == 0) {
+            connection.firstBlockTime = now;
+        }
+        connection.lastBlockTime = now;
+        connection.blocksDownloaded++;
+    }
+
+    /**
+     * Write the peers to the store file, including what is known of the peers still connected.
+     */
+    public synchronized void save() {
+        for (Map.Entry<Peer, Connection> entry : connections.entrySet()) {
+            if (entry.getValue().connected) {
+                recordLatency(entry.getValue().address, entry.getKey().getPingTime());
+            }
+        }
+        write();
+    }
+
+    synchronized void recordSuccess(String address, long now) {
+        PeerRecord peerRecord = getPeerRecord(address);
+        peerRecord.lastSuccess = now;
+        peerRecord.successes++;
+        peerRecord.consecutiveFailures = 0;
+    }
+
+    synchronized void recordFailure(String address) {
+        PeerRecord peerRecord = getPeerRecord(address);
+        peerRecord.failures++;
+        peerRecord.consecutiveFailures++;
+    }
+
+    synchronized void recordLatency(String address, long latencyMillis) {
+        // The ping time is Long.MAX_VALUE until the first pong.
+        if (latencyMillis < 0 || latencyMillis == Long.MAX_VALUE) {
+            return;
+        }
+        PeerRecord peerRecord = getPeerRecord(address);
+        if (peerRecord.latencyMillis < 0) {
+            peerRecord.latencyMillis = latencyMillis;
+        } else {
+            peerRecord.latencyMillis = Math.round(NEW_MEASUREMENT_WEIGHT * latencyMillis + (1 - NEW_MEASUREMENT_WEIGHT)
+                    * peerRecord.latencyMillis);
+        }
+    }
+
+    synchronized void recordThroughput(String address, double blocksPerSecond) {
+        PeerRecord peerRecord = getPeerRecord(address);
+        if (peerRecord.blocksPerSecond < 0) {
+            peerRecord.blocksPerSecond = blocksPerSecond;
+        } else {
+            peerRecord.blocksPerSecond = NEW_MEASUREMENT_WEIGHT * blocksPerSecond + (1 - NEW_MEASUREMENT_WEIGHT)
+                    * peerRecord.blocksPerSecond;
+        }
+    }
+
+    synchronized PeerRecord getPeerRecord(String address) {
+        PeerRecord peerRecord = peerRecords.get(address);
+        if (peerRecord == null) {
+            peerRecord = new PeerRecord(address);
+            peerRecords.put(address, peerRecord);
+        }
+        return peerRecord;
+    }
+
+    synchronized int getNumberOfPeers() {
+        return peerRecords.size();
+    }
+
+    /**
+     * @return the address as host:port, the host being an IP address
+     */
+    static String toAddressString(InetAddress inetAddress, int port) {
+        String host = inetAddress.getHostAddress();
+        if (host.indexOf(':') >= 0) {
+            // IPv6.
+            host = "[" + host + "]";
+        }
+        return host + ":" + port;
+    }
+
+    static PeerAddress parsePeerAddress(String address, int defaultPort) {
+        String host = address;
+        int port = defaultPort;
+        int portSeparator = address.lastIndexOf(':');
+        if (portSeparator > address.lastIndexOf(']')) {
+            host = address.substring(0, portSeparator);
+            try {
+                port = Integer.parseInt(address.substring(portSeparator + 1));
+            } catch (NumberFormatException nfe) {
+                port = defaultPort;
+            }
+        }
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        try {
+            // The host is always an IP address so there is no DNS lookup.
+            return new PeerAddress(InetAddress.getByName(host), port);
+        } catch (UnknownHostException e) {
+            log.debug("Ignoring stored peer '" + address + "'. " + e.getMessage());
+            return null;
+        }
+    }
+
+    private List<PeerRecord> getPeerRecordsBestFirst(final long now) {
+        List<PeerRecord> peerRecordsBestFirst = new ArrayList<PeerRecord>(peerRecords.values());
+        Collections.sort(peerRecordsBestFirst, new Comparator<PeerRecord>() {
+            @Override
+            public int compare(PeerRecord peerRecord1, PeerRecord peerRecord2) {
+                return Double.compare(peerRecord2.getScore(now), peerRecord1.getScore(now));
+            }
+        });
+        return peerRecordsBestFirst;
+    }
+
+    private Connection getConnection(Peer peer, String address) {
+        Connection connection = connections.get(peer);
+        if (connection == null) {
+            connection = new Connection(address);
+            connections.put(peer, connection);
+        }
+        return connection;
+    }
+
+    private static String getAddress(Peer peer) {
+        if (peer == null) {
+            return null;
+        }
+        PeerAddress peerAddress = peer.getAddress();
+        if (peerAddress == null || peerAddress.getAddr() == null) {
+            return null;
+        }
+        return toAddressString(peerAddress.getAddr(), peerAddress.getPort());
+    }
+
+    private void saveIfDue() {
+        if (System.currentTimeMillis() - lastSaveTime >= MINIMUM_MILLIS_BETWEEN_SAVES) {
+            write();
+        }
+    }
+
+    /**
+     * Forget peers not connected to for a long time, then the lowest scoring
+     * peers if there are too many.
+     */
+    private void prune(long now) {
+        List<PeerRecord> peerRecordsBestFirst = getPeerRecordsBestFirst(now);
+        for (int i = 0; i < peerRecordsBestFirst.size(); i++) {
+            PeerRecord peerRecord = peerRecordsBestFirst.get(i);
+            boolean stale = now - peerRecord.getLastSuccess() > FORGET_AFTER_MILLIS
+                    && (peerRecord.getLastSuccess() > 0 || peerRecord.getConsecutiveFailures() >= MAXIMUM_CONSECUTIVE_FAILURES);
+            if (stale || i >= MAXIMUM_NUMBER_OF_PEERS) {
+                peerRecords.remove(peerRecord.getAddress());
+            }
+        }
+    }
+
+    private void read() {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(storeFile), ENCODING));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split(",");
+                if (fields.length < 7) {
+                    continue;
+                }
+                try {
+                    PeerRecord peerRecord = new PeerRecord(fields[0]);
+                    peerRecord.lastSuccess = Long.parseLong(fields[1]);
+                    peerRecord.latencyMillis = Long.parseLong(fields[2]);
+                    peerRecord.blocksPerSecond = Double.parseDouble(fields[3]);
+                    peerRecord.successes = Integer.parseInt(fields[4]);
+                    peerRecord.failures = Integer.parseInt(fields[5]);
+                    peerRecord.consecutiveFailures = Integer.parseInt(fields[6]);
+                    peerRecords.put(peerRecord.getAddress(), peerRecord);
+                } catch (NumberFormatException nfe) {
+                    log.debug("Ignoring stored peer line '" + line + "'. " + nfe.getMessage());
+                }
+            }
+            log.debug("Loaded " + peerRecords.size() + " peers from '" + storeFile.getAbsolutePath() + "'");
+        } catch (IOException ioe) {
+            log.error("Could not read peer address store '" + storeFile.getAbsolutePath() + "'. " + ioe.getMessage());
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ioe) {
+                    log.error("Could not close peer address store '" + storeFile.getAbsolutePath() + "'. " + ioe.getMessage());
+                }
+            }
+        }
+    }
+
+    private void write() {
+        if (storeFile == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        lastSaveTime = now;
+        prune(now);
+
+        // Write a temporary file then rename it so that a crash does not leave half a store.
+        File temporaryFile = new File(storeFile.getAbsolutePath() + ".tmp");
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temporaryFile), ENCODING));
+            writer.write(HEADER);
+            writer.newLine();
+            for (PeerRecord peerRecord : getPeerRecordsBestFirst(now)) {
+                writer.write(peerRecord.getAddress() + "," + peerRecord.getLastSuccess() + "," + peerRecord.getLatencyMillis() + ","
+                        + peerRecord.getBlocksPerSecond() + "," + peerRecord.getSuccesses() + "," + peerRecord.getFailures() + ","
+                        + peerRecord.getConsecutiveFailures());
+                writer.newLine();
+            }
+            writer.close();
+            writer = null;
+
+            if (storeFile.exists() && !storeFile.delete()) {
+                log.error("Could not replace peer address store '" + storeFile.getAbsolutePath() + "'");
+                return;
+            }
+            if (!temporaryFile.renameTo(storeFile)) {
+                log.error("Could not rename '" + temporaryFile.getAbsolutePath() + "' to '" + storeFile.getAbsolutePath() + "'");
+            }
+        } catch (IOException ioe) {
+            log.error("Could not write peer address store '" + storeFile.getAbsolutePath() + "'. " + ioe.getMessage());
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException ioe) {
+                    log.error("Could not close peer address store '" + temporaryFile.getAbsolutePath() + "'. " + ioe.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -16,7 +16,6 @@
 
 package org.multibit.network;
 
-import com.google.bitcoin.core.CheckpointManager;
 import com.google.bitcoin.core.PeerGroup;
 import com.google.bitcoin.core.StoredBlock;
 import com.google.bitcoin.store.BlockStoreException;
@@ -31,8 +30,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.swing.*;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.text.DateFormat;
 import java.util.*;
@@ -63,6 +60,13 @@ public enum ReplayManager {
   private static final int REPLAY_MANAGER_DELAY_TIME = 0; // ms
   private static final int REPLAY_MANAGER_REPEAT_TIME = 333; // ms
 
+  /**
+   * How far ahead of the chain head a wallet must need blocks from to join a
+   * running replay. Blocks up to this far ahead may already have been requested
+   * with a bloom filter that does not include the wallet's keys.
+   */
+  static final int BLOCKS_IN_FLIGHT_MARGIN = 500;
+
   private BitcoinController controller;
 
   private final Queue<ReplayTask> replayTaskQueue = new LinkedList<ReplayTask>();
@@ -112,10 +116,7 @@ public enum ReplayManager {
 
     log.debug("Starting replay of blockchain from date = '" + dateToReplayFrom);
 
-    // Reset UI to zero peers.
-    controller.getPeerEventListener().onPeerDisconnected(null, 0);
-
-    // Restart peerGroup and download rest of blockchain.
+    // Download rest of blockchain.
     Message message;
     if (dateToReplayFrom != null) {
       message = new Message(controller.getLocaliser().getString(
@@ -130,6 +131,25 @@ public enum ReplayManager {
     }
     MessageManager.INSTANCE.addMessage(message);
 
+    // If the block to replay from is still in the block store rewind the chain
+    // in place, keeping the peers connected.
+    int newChainHeightAfterRewind = controller.getMultiBitService().rewindBlockChainForReplay(dateToReplayFrom);
+    if (newChainHeightAfterRewind >= 0) {
+      log.debug("dateToReplayFrom = " + dateToReplayFrom + ", newChainHeightAfterRewind = " + newChainHeightAfterRewind);
+      replayTask.setStartHeight(newChainHeightAfterRewind);
+
+      // Hook up the download listeners.
+      addDownloadListeners(perWalletModelDataList);
+
+      // Send the current bloom filter then download the rest of the blockchain from the connected peers.
+      controller.getMultiBitService().recalculateFastCatchupAndFilter();
+      log.debug("About to start  blockchain download from rewound chain.");
+      controller.getMultiBitService().getPeerGroup().downloadBlockChain();
+      log.debug("Blockchain download started.");
+      return;
+    }
+
+    // Otherwise restart peerGroup with a new block store.
     log.debug("About to restart PeerGroup.");
     message = new Message(controller.getLocaliser().getString("multiBitService.stoppingBitcoinNetworkConnection"),
             false, 0);
@@ -191,6 +211,28 @@ public enum ReplayManager {
     }
   }
 
+  /**
+   * Find the newest block in the stored best chain that is before the date,
+   * using the block header index if it indexes the block store.
+   */
+  public static StoredBlock findBlockInStoredBestChain( BlockStore bs , BlockHeaderIndex index , Date from ){
+      if( index != null && bs != null && index.getBlockStore() == bs ){
+          return index.findBlockBefore( from );
+      }
+      return findBlockInStoredBestChain( bs , from );
+  }
+
+  /**
+   * Find the block with the hash if it is in the stored best chain,
+   * using the block header index if it indexes the block store.
+   */
+  public static StoredBlock findBlockInStoredBestChain( BlockStore bs , BlockHeaderIndex index , Sha256Hash hash ){
+      if( index != null && bs != null && index.getBlockStore() == bs ){
+          return index.findBlock( hash );
+      }
+      return findBlockInStoredBestChain( bs , hash );
+  }
+
   public static StoredBlock findBlockInStoredBestChain( BlockStore bs , Date from ){
       if( bs != null){
           try {
@@ -263,44 +305,36 @@ public enum ReplayManager {
 
     // Work out for this replay task where the blockchain will be truncated to.
     int startHeight = replayTask.getStartHeight();
-    if (startHeight == ReplayTask.UNKNOWN_START_HEIGHT) {
-      File checkpointsFile = new File(controller.getMultiBitService().getCheckpointsFilename());
-      System.out.println("ReplayManager#offerReplayTask checkpointsFile = " + checkpointsFile.getAbsolutePath());
-      if (checkpointsFile.exists() && replayTask.getStartDate() != null) {
-        FileInputStream stream = null;
-        try {
-            stream = new FileInputStream(checkpointsFile);
-            CheckpointManager checkpointManager = new CheckpointManager(controller.getModel().getNetworkParameters(), stream);
-            StoredBlock checkpoint = checkpointManager.getCheckpointBefore(replayTask.getStartDate().getTime() / 1000);
-            System.out.println("ReplayManager#offerReplayTask checkpoint = " + checkpoint);
-          if (checkpoint != null) {
-            startHeight = checkpoint.getHeight();
-            System.out.println("ReplayManager#offerReplayTask startHeight = " + startHeight);
-
-            // Store it in the replay task as it will be used for percents.
-            replayTask.setStartHeight(startHeight);
-          }
-        } catch (IOException e) {
-          log.error(e.getClass().getName() + " " + e.getMessage());
-        } finally {
-          if (stream != null) {
-            try {
-              stream.close();
-            } catch (IOException e) {
-              e.printStackTrace();
-            }
-          }
+    if (startHeight == ReplayTask.UNKNOWN_START_HEIGHT && replayTask.getStartDate() != null) {
+      // Use the checkpoints already parsed by the MultiBitService.
+      MultiBitCheckpointManager checkpointManager = controller.getMultiBitService().getCheckpointManager();
+      if (checkpointManager != null) {
+        StoredBlock checkpoint = checkpointManager.getCheckpointBefore(replayTask.getStartDate().getTime() / 1000);
+        log.debug("ReplayManager#offerReplayTask checkpoint = " + checkpoint);
+        if (checkpoint != null) {
+          startHeight = checkpoint.getHeight();
+
+          // Store it in the replay task as it will be used for percents.
+          replayTask.setStartHeight(startHeight);
         }
-
       }
     }
     log.debug("Actual replayTask offered = " + replayTask.toString());
     synchronized (replayTaskQueue) {
-      replayTaskQueue.offer(replayTask);
+      if (joinRunningTask(replayTask)) {
+        return true;
+      }
+
+      // Merge with the tasks that have not started, so that they all replay once from the earliest start.
+      boolean headHasStarted = replayManagerTimerTask != null && replayManagerTimerTask.hasStartedATask();
+      ReplayTask mergedTask = mergeWithWaitingTasks(replayTaskQueue, replayTask, headHasStarted);
+      replayTaskQueue.offer(mergedTask);
+      log.debug("Queued ReplayTask = " + mergedTask.toString());
+
       String waitingText = "singleWalletPanel.waiting.text";
       String waitingVerb = "singleWalletPanel.waiting.verb";
 
-      for (WalletData perWalletModelData : replayTask.getPerWalletModelDataToReplay()) {
+      for (WalletData perWalletModelData : mergedTask.getPerWalletModelDataToReplay()) {
         if (perWalletModelData != null) {
           perWalletModelData.setBusy(true);
           perWalletModelData.setBusyTaskVerbKey(waitingVerb);
@@ -309,15 +343,104 @@ public enum ReplayManager {
           // Set the height on the wallet to be the startHeight.
           // This means that if the user shuts down MultBit replay on start up
           // will be from the required startHeight.
-          perWalletModelData.getWallet().setLastBlockSeenHeight(startHeight);
+          perWalletModelData.getWallet().setLastBlockSeenHeight(mergedTask.getStartHeight());
           perWalletModelData.getWallet().setLastBlockSeenHash(null);
           perWalletModelData.setDirty(true);
+
+          // Write the start of the replay over the last block seen file now, so that a
+          // last block seen further on is not applied over it on the next start.
+          controller.getFileHandler().saveLastBlockSeen(perWalletModelData);
         }
       }
     }
     return true;
   }
 
+  /**
+   * Remove the tasks waiting in the queue and merge them with the task.
+   * Called holding the queue lock.
+   *
+   * @param headHasStarted true if the task at the head of the queue has been started. It is
+   *          left in the queue even if it has completed, as the timer task removes it.
+   * @return the merged task, to be offered to the queue
+   */
+  static ReplayTask mergeWithWaitingTasks(Queue<ReplayTask> replayTaskQueue, ReplayTask replayTask, boolean headHasStarted) {
+    ReplayTask mergedTask = replayTask;
+    Iterator<ReplayTask> iterator = replayTaskQueue.iterator();
+    if (headHasStarted && iterator.hasNext()) {
+      // Skip the started task.
+      iterator.next();
+    }
+    while (iterator.hasNext()) {
+      ReplayTask waitingTask = iterator.next();
+      log.debug("Merging waiting ReplayTask " + waitingTask.toString());
+      mergedTask = mergedTask.mergeWith(waitingTask);
+      iterator.remove();
+    }
+    return mergedTask;
+  }
+
+  /**
+   * @param chainHeight the height the running replay has reached
+   * @return true if the rest of the running replay covers all the blocks the wallets of the task need
+   */
+  static boolean canJoinRunningTask(ReplayTask runningTask, ReplayTask replayTask, int chainHeight) {
+    if (runningTask == null || replayTask.getPerWalletModelDataToReplay() == null
+            || replayTask.getStartHeight() == ReplayTask.UNKNOWN_START_HEIGHT) {
+      return false;
+    }
+    if (replayTask.getStartHeight() < chainHeight + BLOCKS_IN_FLIGHT_MARGIN) {
+      // The running replay has already passed the blocks these wallets need.
+      return false;
+    }
+    for (WalletData perWalletModelData : replayTask.getPerWalletModelDataToReplay()) {
+      if (runningTask.isReplaying(perWalletModelData)) {
+        // The wallet may have been reset since the replay started.
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Add the wallets of the task to the running replay if the rest of that
+   * replay covers all the blocks they need. Called holding the queue lock.
+   *
+   * @return true if the wallets joined the running replay
+   */
+  private boolean joinRunningTask(ReplayTask replayTask) {
+    if (replayManagerTimerTask == null || !replayManagerTimerTask.isRunningATask()
+            || controller.getMultiBitService().getChain() == null) {
+      return false;
+    }
+    ReplayTask runningTask = replayTaskQueue.peek();
+    int chainHeight = controller.getMultiBitService().getChain().getBestChainHeight();
+    if (!canJoinRunningTask(runningTask, replayTask, chainHeight)) {
+      return false;
+    }
+
+    log.debug("Adding the wallets of " + replayTask.toString() + " to the running ReplayTask " + runningTask.toString());
+    List<WalletData> joiningPerWalletModelData = new ArrayList<WalletData>();
+    for (WalletData perWalletModelData : replayTask.getPerWalletModelDataToReplay()) {
+      if (perWalletModelData != null) {
+        runningTask.addPerWalletModelDataToReplay(perWalletModelData);
+        joiningPerWalletModelData.add(perWalletModelData);
+
+        perWalletModelData.setBusy(true);
+        perWalletModelData.setBusyTaskKey("multiBitDownloadListener.downloadingText");
+        perWalletModelData.setBusyTaskVerbKey("multiBitDownloadListener.downloadingTextShort");
+        perWalletModelData.setReplayTaskUUID(runningTask.getUuid());
+        perWalletModelData.getWallet().setLastBlockSeenHeight(replayTask.getStartHeight());
+        perWalletModelData.getWallet().setLastBlockSeenHash(null);
+        perWalletModelData.setDirty(true);
+        controller.getFileHandler().saveLastBlockSeen(perWalletModelData);
+      }
+    }
+    addDownloadListeners(joiningPerWalletModelData);
+    controller.fireWalletBusyChange(true);
+    return true;
+  }
+
   /**
    * Called by the downloadlistener when the synchronise completes.
    *
@@ -325,24 +448,30 @@ public enum ReplayManager {
    */
   public void taskHasCompleted(UUID replayTaskUUID) {
     log.debug("ReplayTask with UUID " + replayTaskUUID + " has completed.");
-    // Check the UUID matches the current task.
-    ReplayTask currentTask = replayTaskQueue.peek();
-    if (currentTask == null) {
-      return;
-    } else {
-      // Not relevant - ignore.
-      if (!currentTask.getUuid().equals(replayTaskUUID)) {
+    ReplayTask currentTask;
+    List<WalletData> perWalletModelDataList;
+    synchronized (replayTaskQueue) {
+      // Check the UUID matches the current task.
+      currentTask = replayTaskQueue.peek();
+      if (currentTask == null) {
         return;
+      } else {
+        // Not relevant - ignore.
+        if (!currentTask.getUuid().equals(replayTaskUUID)) {
+          return;
+        }
       }
-    }
 
-    // Tell the ReplayTimerTask that we are cleaning up.
-    replayManagerTimerTask.currentTaskIsTidyingUp(true);
+      // Tell the ReplayTimerTask that we are cleaning up. No more wallets can join the
+      // task after this, so the wallets copied here are all the wallets it replayed.
+      replayManagerTimerTask.currentTaskIsTidyingUp(true);
+      perWalletModelDataList = currentTask.getPerWalletModelDataToReplay() == null ? null : new ArrayList<WalletData>(
+              currentTask.getPerWalletModelDataToReplay());
+    }
 
     try {
       if (currentTask != null) {
         // This task is complete. Inform the UI.
-        List<WalletData> perWalletModelDataList = currentTask.getPerWalletModelDataToReplay();
         if (perWalletModelDataList != null) {
           for (WalletData perWalletModelData : perWalletModelDataList) {
             perWalletModelData.setBusyTaskVerbKey(null);
@@ -23,9 +23,9 @@ public class ReplayManagerTimerTask extends TimerTask {
     private static final Logger log = LoggerFactory.getLogger(ReplayManager.class);
 
     // State control booleans.
-    private boolean currentlyRunningATask = false;
-    private boolean currentTaskHasCompleted = false;
-    private boolean currentTaskIsTidyingUp = false;
+    private volatile boolean currentlyRunningATask = false;
+    private volatile boolean currentTaskHasCompleted = false;
+    private volatile boolean currentTaskIsTidyingUp = false;
 
     final private Queue<ReplayTask> replayTaskQueue;
 
@@ -65,6 +65,21 @@ public class ReplayManagerTimerTask extends TimerTask {
         }
     }
 
+    /**
+     * @return true if the task at the head of the queue is replaying and has not finished
+     */
+    public boolean isRunningATask() {
+        return currentlyRunningATask && !currentTaskHasCompleted && !currentTaskIsTidyingUp;
+    }
+
+    /**
+     * @return true if the task at the head of the queue has been started, even if it has
+     *         completed or is tidying up and has not yet been removed from the queue
+     */
+    public boolean hasStartedATask() {
+        return currentlyRunningATask;
+    }
+
     public void currentTaskHasCompleted() {
         currentTaskHasCompleted = true;
     }
@@ -1,8 +1,10 @@
 package org.multibit.network;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.multibit.message.Message;
 import org.multibit.model.bitcoin.WalletData;
@@ -38,7 +40,9 @@ public class ReplayTask {
     private long percentComplete;
        
     public ReplayTask( List<WalletData> perWalletModelDataToReplay, Date startDate, int startHeight) {
-        this.perWalletModelDataToReplay = perWalletModelDataToReplay;
+        // Wallets can join the task whilst the UI reads its wallets.
+        this.perWalletModelDataToReplay = perWalletModelDataToReplay == null ? null : new CopyOnWriteArrayList<WalletData>(
+                perWalletModelDataToReplay);
         this.startDate = startDate;
         this.startHeight = startHeight;
         this.percentComplete = Message.NOT_RELEVANT_PERCENTAGE_COMPLETE;
@@ -53,6 +57,65 @@ public class ReplayTask {
         return startDate;
     }
 
+    /**
+     * @return true if the wallet is one of the wallets replayed by this task
+     */
+    public boolean isReplaying(WalletData perWalletModelData) {
+        return contains(perWalletModelDataToReplay, perWalletModelData);
+    }
+
+    /**
+     * Add a wallet to a task that is already replaying, because the rest of the
+     * replay covers all the blocks the wallet needs.
+     */
+    void addPerWalletModelDataToReplay(WalletData perWalletModelData) {
+        if (perWalletModelDataToReplay != null && !contains(perWalletModelDataToReplay, perWalletModelData)) {
+            perWalletModelDataToReplay.add(perWalletModelData);
+        }
+    }
+
+    /**
+     * Merge two tasks that have not started into one task replaying all of their
+     * wallets from the earlier start.
+     *
+     * @return a new task - the tasks merged are not changed
+     */
+    public ReplayTask mergeWith(ReplayTask other) {
+        List<WalletData> mergedPerWalletModelData = new ArrayList<WalletData>();
+        for (ReplayTask task : new ReplayTask[] { this, other }) {
+            if (task.perWalletModelDataToReplay != null) {
+                for (WalletData perWalletModelData : task.perWalletModelDataToReplay) {
+                    if (!contains(mergedPerWalletModelData, perWalletModelData)) {
+                        mergedPerWalletModelData.add(perWalletModelData);
+                    }
+                }
+            }
+        }
+
+        // Start from the earlier task. A null start date means from the genesis block.
+        ReplayTask earlierTask = this;
+        if (other.startDate == null || (startDate != null && other.startDate.before(startDate))) {
+            earlierTask = other;
+        }
+        Date mergedStartDate = earlierTask.startDate;
+        int mergedStartHeight = earlierTask.startHeight;
+        if (startHeight != UNKNOWN_START_HEIGHT && other.startHeight != UNKNOWN_START_HEIGHT) {
+            mergedStartHeight = Math.min(startHeight, other.startHeight);
+        }
+        return new ReplayTask(mergedPerWalletModelData, mergedStartDate, mergedStartHeight);
+    }
+
+    private static boolean contains(List<WalletData> perWalletModelDataList, WalletData perWalletModelData) {
+        if (perWalletModelDataList != null && perWalletModelData != null) {
+            for (WalletData item : perWalletModelDataList) {
+                if (item.getWalletFilename() != null && item.getWalletFilename().equals(perWalletModelData.getWalletFilename())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
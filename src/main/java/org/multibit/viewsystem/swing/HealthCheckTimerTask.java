@@ -17,11 +17,7 @@ package org.multibit.viewsystem.swing;
 
 import org.multibit.controller.Controller;
 import org.multibit.controller.bitcoin.BitcoinController;
-import org.multibit.file.WalletSaveException;
-import org.multibit.message.Message;
-import org.multibit.message.MessageManager;
 import org.multibit.model.bitcoin.WalletData;
-import org.multibit.store.WalletVersionException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -29,7 +25,9 @@ import java.util.*;
 
 /**
  * TimerTask to regularly check the 'health' of MultiBit.
- * It detects whether wallet files have been changed by some external process and to save dirty files.
+ * It writes the last block seen of the wallets.
+ * (Changes to wallet files by some external process are detected by the WalletFileWatcher and dirty
+ * wallets are saved by the FileHandler when they become dirty).
  * It checks the ping times of the peers to see if they are up.
  *
  * @see java.util.Timer
@@ -75,7 +73,7 @@ public class HealthCheckTimerTask extends TimerTask {
       log.debug("Start of HealthCheckTimerTask");
 
       //if (counter == 0) {
-        log.debug("Checking if wallets are dirty . . .");
+        log.debug("Checking if the last block seen of the wallets needs writing . . .");
         List<WalletData> perWalletModelDataList = bitcoinController.getModel().getPerWalletModelDataList();
 
         if (perWalletModelDataList != null) {
@@ -83,39 +81,13 @@ public class HealthCheckTimerTask extends TimerTask {
           while (iterator.hasNext()) {
             WalletData loopModelData = iterator.next();
             if (bitcoinController.getFileHandler() != null) {
-              // See if the files have been changed by another
-              // process (non MultiBit).
-              boolean haveFilesChanged = bitcoinController.getFileHandler().haveFilesChanged(loopModelData);
-              if (haveFilesChanged) {
-                boolean previousFilesHaveBeenChanged = loopModelData.isFilesHaveBeenChangedByAnotherProcess();
-                loopModelData.setFilesHaveBeenChangedByAnotherProcess(true);
-                if (!previousFilesHaveBeenChanged) {
-                  // only fire once, when change happens
-                  bitcoinController.fireFilesHaveBeenChangedByAnotherProcess(loopModelData);
-                  log.debug("Marking wallet " + loopModelData.getWalletFilename()
-                          + " as having been changed by another process.");
-                }
-              }
-
-              // See if they are dirty - write out if so.
-              if (loopModelData.isDirty()) {
-                log.debug("Saving dirty wallet '" + loopModelData.getWalletFilename() + "'...");
-                try {
-                  bitcoinController.getFileHandler().savePerWalletModelData(loopModelData, false);
-                  log.debug("... done.");
-                } catch (WalletSaveException e) {
-                  String message = controller.getLocaliser().getString(
-                          "createNewWalletAction.walletCouldNotBeCreated",
-                          new Object[]{loopModelData.getWalletFilename(), e.getMessage()});
-                  log.error(message);
-                  MessageManager.INSTANCE.addMessage(new Message(message));
-                } catch (WalletVersionException e) {
-                  String message = controller.getLocaliser().getString(
-                          "createNewWalletAction.walletCouldNotBeCreated",
-                          new Object[]{loopModelData.getWalletFilename(), e.getMessage()});
-                  log.error(message);
-                  MessageManager.INSTANCE.addMessage(new Message(message));
-                }
+              // Changes by other processes are picked up by the WalletFileWatcher and dirty
+              // wallets are saved as soon as they become dirty.
+              // The last block seen changes on every block so it is written here, at most once a cycle.
+              // Failures are reported by the background wallet writer.
+              if (loopModelData.isLastBlockSeenDirty()) {
+                log.debug("Queueing save of the last block seen of wallet '" + loopModelData.getWalletFilename() + "'.");
+                bitcoinController.getFileHandler().savePerWalletModelDataInBackground(loopModelData, false);
               }
             }
           }
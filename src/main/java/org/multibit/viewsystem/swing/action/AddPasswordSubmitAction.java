@@ -16,20 +16,20 @@
 package org.multibit.viewsystem.swing.action;
 
 import java.awt.event.ActionEvent;
-import java.io.File;
-import java.io.IOException;
 import java.nio.CharBuffer;
+import java.util.List;
 
 import javax.swing.Action;
 import javax.swing.ImageIcon;
 import javax.swing.JPasswordField;
-import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
 
 import org.bitcoinj.wallet.Protos;
 import org.bitcoinj.wallet.Protos.ScryptParameters;
 import org.multibit.controller.Controller;
 import org.multibit.controller.bitcoin.BitcoinController;
-import org.multibit.file.BackupManager;
+import org.multibit.crypto.DerivedKeyCache;
+import org.multibit.crypto.ParallelKeyCrypter;
 import org.multibit.file.FileHandler;
 import org.multibit.model.bitcoin.WalletData;
 import org.multibit.model.bitcoin.WalletBusyListener;
@@ -62,8 +62,6 @@ public class AddPasswordSubmitAction extends MultiBitSubmitAction implements Wal
 
     private JPasswordField password2;
     
-    private File privateKeysBackupFile;
-
     /**
      * Creates a new {@link AddPasswordSubmitAction}.
      */
@@ -86,8 +84,6 @@ public class AddPasswordSubmitAction extends MultiBitSubmitAction implements Wal
     @Override
     public void actionPerformed(ActionEvent e) {
         addPasswordPanel.clearMessages();
-        privateKeysBackupFile = null;
-
         char[] passwordToUse = null;
 
         // Get the passwords on the password fields.
@@ -118,83 +114,101 @@ public class AddPasswordSubmitAction extends MultiBitSubmitAction implements Wal
                 }
             }
 
-            WalletData perWalletModelData = null;
-            WalletInfoData walletInfoData = null;
-            try {
-                // Double check wallet is not busy then declare that the active
-                // wallet is busy with the task
-                perWalletModelData = this.bitcoinController.getModel().getActivePerWalletModelData();
-                walletInfoData = this.bitcoinController.getModel().getActiveWalletWalletInfo();
-
-                if (!perWalletModelData.isBusy()) {
-                    perWalletModelData.setBusy(true);
-                    perWalletModelData.setBusyTaskKey("addPasswordSubmitAction.text");
-
-                    super.bitcoinController.fireWalletBusyChange(true);
-
-                    KeyCrypter keyCrypterToUse;
-                    if (wallet.getKeyCrypter() == null) {
-                        byte[] salt = new byte[KeyCrypterScrypt.SALT_LENGTH];
-                        super.bitcoinController.getMultiBitService().getSecureRandom().nextBytes(salt);
-                        Protos.ScryptParameters.Builder scryptParametersBuilder = Protos.ScryptParameters.newBuilder().setSalt(ByteString.copyFrom(salt));
-                        ScryptParameters scryptParameters = scryptParametersBuilder.build();
-                        keyCrypterToUse = new KeyCrypterScrypt(scryptParameters);
-                    } else {
-                        keyCrypterToUse = wallet.getKeyCrypter();
-                    }
+            // Double check wallet is not busy then declare that the active
+            // wallet is busy with the task
+            WalletData perWalletModelData = this.bitcoinController.getModel().getActivePerWalletModelData();
+            WalletInfoData walletInfoData = this.bitcoinController.getModel().getActiveWalletWalletInfo();
+
+            if (!perWalletModelData.isBusy()) {
+                perWalletModelData.setBusy(true);
+                perWalletModelData.setBusyTaskKey("addPasswordSubmitAction.text");
+
+                super.bitcoinController.fireWalletBusyChange(true);
+
+                KeyCrypter keyCrypterToUse;
+                if (wallet.getKeyCrypter() == null) {
+                    byte[] salt = new byte[KeyCrypterScrypt.SALT_LENGTH];
+                    super.bitcoinController.getMultiBitService().getSecureRandom().nextBytes(salt);
+                    Protos.ScryptParameters.Builder scryptParametersBuilder = Protos.ScryptParameters.newBuilder().setSalt(ByteString.copyFrom(salt));
+                    ScryptParameters scryptParameters = scryptParametersBuilder.build();
+                    keyCrypterToUse = new KeyCrypterScrypt(scryptParameters);
+                } else {
+                    keyCrypterToUse = wallet.getKeyCrypter();
+                }
 
-                    wallet.encrypt(keyCrypterToUse, keyCrypterToUse.deriveKey(CharBuffer.wrap(passwordToUse)));
+                encryptWalletInBackground(perWalletModelData, walletInfoData, keyCrypterToUse, passwordToUse);
+            }
+        }
+    }
+
+    /**
+     * Encrypt the wallet private keys in a background Swing worker thread, showing the progress.
+     */
+    private void encryptWalletInBackground(final WalletData perWalletModelData, final WalletInfoData walletInfoData,
+            final KeyCrypter keyCrypterToUse, final char[] passwordToUse) {
+        SwingWorker<Boolean, Integer> worker = new SwingWorker<Boolean, Integer>() {
+            private String errorMessage = null;
+
+            @Override
+            protected Boolean doInBackground() throws Exception {
+                try {
+                    // Derive the AES key once, then encrypt the keys on all the processors.
+                    ParallelKeyCrypter.encrypt(perWalletModelData.getWallet(), keyCrypterToUse,
+                            DerivedKeyCache.INSTANCE.deriveKey(keyCrypterToUse, CharBuffer.wrap(passwordToUse)), new ParallelKeyCrypter.ProgressListener() {
+                                @Override
+                                public void keysDone(int numberOfKeysDone, int numberOfKeys) {
+                                    publish(numberOfKeysDone * 100 / numberOfKeys);
+                                }
+                            });
                     walletInfoData.setWalletVersion(MultiBitWalletVersion.PROTOBUF_ENCRYPTED);
                     perWalletModelData.setDirty(true);
-                    FileHandler fileHandler = new FileHandler(super.bitcoinController);
+                    FileHandler fileHandler = bitcoinController.getFileHandler();
                     fileHandler.savePerWalletModelData(perWalletModelData, true);
 
-                    // Backup the private keys.
-                    privateKeysBackupFile = fileHandler.backupPrivateKeys(CharBuffer.wrap(passwordToUse));
-
-                    // Backup the wallet and wallet info.
-                    BackupManager.INSTANCE.backupPerWalletModelData(fileHandler,perWalletModelData);
-                    
-                    // Ensure that any unencrypted wallet backups are file encrypted with the wallet password.
-                    BackupManager.INSTANCE.fileLevelEncryptUnencryptedWalletBackups(perWalletModelData, CharBuffer.wrap(passwordToUse));
+                    // Backup the private keys, wallet and wallet info in the background and ensure that any
+                    // unencrypted wallet backups are file encrypted with the wallet password.
+                    fileHandler.scheduleBackup(perWalletModelData, CharBuffer.wrap(passwordToUse), true, true);
+                    return Boolean.TRUE;
+                } catch (KeyCrypterException ede) {
+                    ede.printStackTrace();
+                    errorMessage = ede.getMessage();
+                    return Boolean.FALSE;
                 }
-            } catch (KeyCrypterException ede) {
-                ede.printStackTrace();
-                addPasswordPanel.setMessage1(controller.getLocaliser().getString("addPasswordPanel.addPasswordFailed",
-                        new String[] { ede.getMessage() }));
-                return;
-            } catch (IOException ede) {
-                // Notify the user that the private key backup failed.
-                addPasswordPanel.setMessage2(controller.getLocaliser().getString(
-                        "changePasswordPanel.keysBackupFailed", new String[] { ede.getMessage() }));
-                return;
-            } finally {
-                // Declare that wallet is no longer busy with the task.
-                if (perWalletModelData != null) {
-                    perWalletModelData.setBusyTaskKey(null);
-                    perWalletModelData.setBusy(false);
-                }
-                super.bitcoinController.fireWalletBusyChange(false);                   
             }
-        }
-        controller.fireDataChangedUpdateNow();
 
-        // Success.
-        SwingUtilities.invokeLater(new Runnable() {
             @Override
-            public void run() {
-                addPasswordPanel.clearMessages();
-                addPasswordPanel.clearPasswords();
-                addPasswordPanel.setMessage1(controller.getLocaliser().getString("addPasswordPanel.addPasswordSuccess")); 
-                
-                if (privateKeysBackupFile != null) {
-                    try {
-                        addPasswordPanel.setMessage2(controller.getLocaliser().getString("changePasswordPanel.keysBackupSuccess", new Object[]{privateKeysBackupFile.getCanonicalPath()}));
-                    } catch (IOException e1) {
-                        log.debug(e1.getClass().getCanonicalName() + " " + e1.getMessage());
+            protected void process(List<Integer> percentagesComplete) {
+                addPasswordPanel.setMessage2(controller.getLocaliser().getString("changePasswordPanel.encryptingPrivateKeys",
+                        new Object[] { percentagesComplete.get(percentagesComplete.size() - 1) }));
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    // Declare that wallet is no longer busy with the task.
+                    perWalletModelData.setBusyTaskKey(null);
+                    perWalletModelData.setBusy(false);
+                    bitcoinController.fireWalletBusyChange(false);
+
+                    if (get()) {
+                        controller.fireDataChangedUpdateNow();
+
+                        // Success.
+                        addPasswordPanel.clearMessages();
+                        addPasswordPanel.clearPasswords();
+                        addPasswordPanel.setMessage1(controller.getLocaliser().getString("addPasswordPanel.addPasswordSuccess"));
+                    } else {
+                        addPasswordPanel.clearMessages();
+                        addPasswordPanel.setMessage1(controller.getLocaliser().getString("addPasswordPanel.addPasswordFailed",
+                                new String[] { errorMessage }));
                     }
+                } catch (Exception e) {
+                    // Not really used but caught so that SwingWorker shuts down cleanly.
+                    log.error(e.getClass() + " " + e.getMessage());
                 }
-             }});
+            }
+        };
+        worker.execute();
     }
 
     @Override
@@ -0,0 +1,293 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.viewsystem.swing.action;
+
+import java.awt.ComponentOrientation;
+import java.awt.event.ActionEvent;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.Icon;
+import javax.swing.JFileChooser;
+import javax.swing.JOptionPane;
+import javax.swing.SwingWorker;
+
+import org.multibit.controller.bitcoin.BitcoinController;
+import org.multibit.crypto.BulkMessageSigner;
+import org.multibit.message.Message;
+import org.multibit.message.MessageManager;
+import org.multibit.utils.ImageLoader;
+import org.multibit.viewsystem.swing.MultiBitFrame;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Base of the actions that sign or verify a whole file of messages. The user
+ * chooses the input file and the file for the results, then the messages are
+ * processed in the background with the progress shown on the panel.
+ */
+public abstract class BulkMessageSubmitAction extends MultiBitSubmitAction {
+
+    private static final Logger log = LoggerFactory.getLogger(BulkMessageSubmitAction.class);
+
+    private static final long serialVersionUID = 1923333087598753212L;
+
+    private static final String ENCODING = "UTF-8";
+
+    protected MultiBitFrame mainFrame;
+
+    private volatile BulkMessageSigner bulkMessageSigner;
+
+    public BulkMessageSubmitAction(BitcoinController bitcoinController, MultiBitFrame mainFrame, String textKey,
+            String tooltipKey, String mnemonicKey, Icon icon) {
+        super(bitcoinController, textKey, tooltipKey, mnemonicKey, icon);
+        this.mainFrame = mainFrame;
+    }
+
+    /**
+     * Choose the files and start processing the messages.
+     */
+    @Override
+    public void actionPerformed(ActionEvent event) {
+        if (bulkMessageSigner != null) {
+            // Already processing a file.
+            return;
+        }
+
+        if (!checkCanProcess()) {
+            return;
+        }
+
+        File inputFile = chooseFile(controller.getLocaliser().getString("bulkMessageAction.chooseInputFile"), null, false);
+        if (inputFile == null) {
+            return;
+        }
+        if (!inputFile.isFile()) {
+            setMessageText1(controller.getLocaliser().getString("bulkMessageAction.noSuchFile", new Object[] { inputFile.getAbsolutePath() }));
+            setMessageText2(" ");
+            return;
+        }
+
+        File outputFile = chooseFile(controller.getLocaliser().getString("bulkMessageAction.chooseOutputFile"),
+                createOutputFile(inputFile), true);
+        if (outputFile == null) {
+            return;
+        }
+        if (outputFile.getAbsoluteFile().equals(inputFile.getAbsoluteFile())) {
+            setMessageText1(controller.getLocaliser().getString("bulkMessageAction.sameFile"));
+            setMessageText2(" ");
+            return;
+        }
+        if (outputFile.exists() && !confirmOverwrite(outputFile)) {
+            return;
+        }
+
+        processInBackground(inputFile, outputFile);
+    }
+
+    /**
+     * Check the panel is filled in (for instance the wallet password) and show
+     * what is wrong on the panel if not.
+     *
+     * @return true if the messages can be processed
+     */
+    protected abstract boolean checkCanProcess();
+
+    /**
+     * @return added to the name of the input file to suggest the name of the results file
+     */
+    protected abstract String getOutputFileSuffix();
+
+    /**
+     * Called on the Swing thread before the processing starts.
+     */
+    protected void beforeProcessing() {
+    }
+
+    /**
+     * Sign or verify the messages. Called on a background thread.
+     */
+    protected abstract BulkMessageSigner.Result processMessages(BulkMessageSigner bulkMessageSigner, Reader input, Writer output,
+            BulkMessageSigner.Format format, BulkMessageSigner.ProgressListener progressListener) throws IOException,
+            InterruptedException;
+
+    /**
+     * Called on the Swing thread once the processing has finished, however it finished.
+     */
+    protected void afterProcessing() {
+    }
+
+    protected abstract void setMessageText1(String message1);
+
+    protected abstract void setMessageText2(String message2);
+
+    /**
+     * Stop processing the file, if it is being processed.
+     */
+    public void cancel() {
+        BulkMessageSigner signerToCancel = bulkMessageSigner;
+        if (signerToCancel != null) {
+            signerToCancel.cancel();
+        }
+    }
+
+    private void processInBackground(final File inputFile, final File outputFile) {
+        final BulkMessageSigner signer = new BulkMessageSigner(bitcoinController.getModel().getNetworkParameters());
+        bulkMessageSigner = signer;
+        setEnabled(false);
+        setMessageText1(controller.getLocaliser().getString("bulkMessageAction.progress", new Object[] { 0 }));
+        setMessageText2(" ");
+        beforeProcessing();
+
+        SwingWorker<BulkMessageSigner.Result, Integer> worker = new SwingWorker<BulkMessageSigner.Result, Integer>() {
+            @Override
+            protected BulkMessageSigner.Result doInBackground() throws Exception {
+                BulkMessageSigner.Format format = BulkMessageSigner.Format.forFilename(inputFile.getName());
+                Reader input = null;
+                Writer output = null;
+                try {
+                    input = new BufferedReader(new InputStreamReader(new FileInputStream(inputFile), ENCODING));
+                    output = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputFile), ENCODING));
+                    return processMessages(signer, input, output, format, new BulkMessageSigner.ProgressListener() {
+                        @Override
+                        public void messagesProcessed(int numberOfMessagesProcessed) {
+                            publish(numberOfMessagesProcessed);
+                        }
+                    });
+                } finally {
+                    if (input != null) {
+                        try {
+                            input.close();
+                        } catch (IOException ioe) {
+                            log.error("Could not close '" + inputFile.getAbsolutePath() + "'. " + ioe.getMessage());
+                        }
+                    }
+                    if (output != null) {
+                        output.close();
+                    }
+                }
+            }
+
+            @Override
+            protected void process(List<Integer> numbersOfMessagesProcessed) {
+                if (!signer.isCancelled() && !numbersOfMessagesProcessed.isEmpty()) {
+                    setMessageText1(controller.getLocaliser().getString("bulkMessageAction.progress",
+                            new Object[] { numbersOfMessagesProcessed.get(numbersOfMessagesProcessed.size() - 1) }));
+                }
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    BulkMessageSigner.Result result = get();
+                    String message = controller.getLocaliser().getString(
+                            "bulkMessageAction.success",
+                            new Object[] { result.getNumberOfMessages(), result.getNumberOfSuccesses(),
+                                    result.getNumberOfFailures(), outputFile.getAbsolutePath() });
+                    log.debug(message);
+                    setMessageText1(message);
+                    setMessageText2(" ");
+                    MessageManager.INSTANCE.addMessage(new Message(message));
+                } catch (InterruptedException e) {
+                    showFailure(e);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof CancellationException) {
+                        String message = controller.getLocaliser().getString("bulkMessageAction.cancelled");
+                        log.debug(message);
+                        setMessageText1(message);
+                        setMessageText2(" ");
+                    } else {
+                        showFailure(e.getCause() == null ? e : e.getCause());
+                    }
+                } finally {
+                    bulkMessageSigner = null;
+                    setEnabled(true);
+                    afterProcessing();
+                }
+            }
+
+            private void showFailure(Throwable e) {
+                String message = controller.getLocaliser().getString("bulkMessageAction.failure",
+                        new Object[] { inputFile.getAbsolutePath(), e.getClass().getCanonicalName() + " " + e.getMessage() });
+                log.error(message);
+                setMessageText1(message);
+                setMessageText2(" ");
+                MessageManager.INSTANCE.addMessage(new Message(message));
+            }
+        };
+        worker.execute();
+    }
+
+    private File createOutputFile(File inputFile) {
+        String inputFilename = inputFile.getAbsolutePath();
+        int suffixSeparator = inputFilename.lastIndexOf('.');
+        if (suffixSeparator > inputFilename.lastIndexOf(File.separatorChar)) {
+            return new File(inputFilename.substring(0, suffixSeparator) + getOutputFileSuffix()
+                    + inputFilename.substring(suffixSeparator));
+        } else {
+            return new File(inputFilename + getOutputFileSuffix());
+        }
+    }
+
+    /**
+     * @return the file chosen, or null if the user cancelled
+     */
+    private File chooseFile(String title, File defaultFile, boolean save) {
+        JFileChooser.setDefaultLocale(controller.getLocaliser().getLocale());
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setLocale(controller.getLocaliser().getLocale());
+        fileChooser.setDialogTitle(title);
+        fileChooser.applyComponentOrientation(ComponentOrientation.getOrientation(controller.getLocaliser().getLocale()));
+        fileChooser.setFileSelectionMode(JFileChooser.FILES_ONLY);
+
+        String walletFilename = bitcoinController.getModel().getActiveWalletFilename();
+        if (defaultFile != null) {
+            fileChooser.setCurrentDirectory(defaultFile.getParentFile());
+            fileChooser.setSelectedFile(defaultFile);
+        } else if (walletFilename != null) {
+            fileChooser.setCurrentDirectory(new File(walletFilename).getParentFile());
+        }
+
+        int returnVal = save ? fileChooser.showSaveDialog(mainFrame) : fileChooser.showOpenDialog(mainFrame);
+        if (returnVal == JFileChooser.APPROVE_OPTION) {
+            return fileChooser.getSelectedFile();
+        }
+        return null;
+    }
+
+    private boolean confirmOverwrite(File file) {
+        String yesText = controller.getLocaliser().getString("showOpenUriView.yesText");
+        String noText = controller.getLocaliser().getString("showOpenUriView.noText");
+        String questionText = controller.getLocaliser().getString("showExportPrivateKeysAction.thisFileExistsOverwrite",
+                new Object[] { file.getName() });
+        String questionTitle = controller.getLocaliser().getString("showExportPrivateKeysAction.thisFileExistsOverwriteTitle");
+        int selection = JOptionPane.showOptionDialog(mainFrame, questionText, questionTitle, JOptionPane.YES_NO_OPTION,
+                JOptionPane.QUESTION_MESSAGE, ImageLoader.createImageIcon(ImageLoader.QUESTION_MARK_ICON_FILE), new String[] {
+                        yesText, noText }, noText);
+        return selection == JOptionPane.YES_OPTION;
+    }
+}
@@ -16,17 +16,17 @@
 package org.multibit.viewsystem.swing.action;
 
 import java.awt.event.ActionEvent;
-import java.io.File;
-import java.io.IOException;
 import java.nio.CharBuffer;
+import java.util.List;
 
 import javax.swing.Action;
 import javax.swing.ImageIcon;
 import javax.swing.JPasswordField;
-import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
 
 import org.multibit.controller.bitcoin.BitcoinController;
-import org.multibit.file.BackupManager;
+import org.multibit.crypto.DerivedKeyCache;
+import org.multibit.crypto.ParallelKeyCrypter;
 import org.multibit.file.FileHandler;
 import org.multibit.model.bitcoin.WalletBusyListener;
 import org.multibit.model.bitcoin.WalletData;
@@ -55,8 +55,6 @@ public class ChangePasswordSubmitAction extends MultiBitSubmitAction implements
     private JPasswordField newPassword;
 
     private JPasswordField repeatNewPassword;
-    
-    private File privateKeysBackupFile;
 
     /**
      * Creates a new {@link ChangePasswordSubmitAction}.
@@ -81,7 +79,6 @@ public class ChangePasswordSubmitAction extends MultiBitSubmitAction implements
     @Override
     public void actionPerformed(ActionEvent e) {
         changePasswordPanel.clearMessages();
-        privateKeysBackupFile = null;
 
         char[] newPasswordToUse = null;
         char[] currentPasswordToUse = null;
@@ -121,79 +118,78 @@ public class ChangePasswordSubmitAction extends MultiBitSubmitAction implements
 
                 super.bitcoinController.fireWalletBusyChange(true);
 
-                boolean decryptSuccess = false;
-                KeyCrypter keyCrypterToUse = wallet.getKeyCrypter();
+                changePasswordInBackground(perWalletModelData, wallet.getKeyCrypter(), currentPasswordToUse, newPasswordToUse);
+            }
+        }
+    }
+
+    /**
+     * Re-encrypt the wallet private keys with the new password in a background Swing worker thread, showing the progress.
+     */
+    private void changePasswordInBackground(final WalletData perWalletModelData, final KeyCrypter keyCrypterToUse,
+            final char[] currentPasswordToUse, final char[] newPasswordToUse) {
+        SwingWorker<Boolean, Integer> worker = new SwingWorker<Boolean, Integer>() {
+            private String errorMessage = null;
+
+            @Override
+            protected Boolean doInBackground() throws Exception {
                 try {
-                    wallet.decrypt(keyCrypterToUse.deriveKey(CharBuffer.wrap(currentPasswordToUse)));
-                    decryptSuccess = true;
+                    // Derive both AES keys once, then re-encrypt the keys on all the processors.
+                    // A wrong current password fails before the wallet is changed.
+                    ParallelKeyCrypter.changeKey(perWalletModelData.getWallet(),
+                            DerivedKeyCache.INSTANCE.deriveKey(keyCrypterToUse, CharBuffer.wrap(currentPasswordToUse)),
+                            DerivedKeyCache.INSTANCE.deriveKey(keyCrypterToUse, CharBuffer.wrap(newPasswordToUse)), new ParallelKeyCrypter.ProgressListener() {
+                                @Override
+                                public void keysDone(int numberOfKeysDone, int numberOfKeys) {
+                                    publish(numberOfKeysDone * 100 / numberOfKeys);
+                                }
+                            });
+                    FileHandler fileHandler = bitcoinController.getFileHandler();
+                    fileHandler.savePerWalletModelData(perWalletModelData, true);
+
+                    // Backup the private keys, wallet and wallet info in the background.
+                    fileHandler.scheduleBackup(perWalletModelData, CharBuffer.wrap(newPasswordToUse), true, false);
+                    return Boolean.TRUE;
                 } catch (KeyCrypterException kce) {
-                    // Notify the user that the decrypt failed.
-                    changePasswordPanel.setMessage1(controller.getLocaliser().getString("changePasswordPanel.changePasswordFailed",
-                            new String[] { kce.getMessage() }));
-
-                    // Declare that wallet is no longer busy with the task.
-                    perWalletModelData.setBusyTaskKey(null);
-                    perWalletModelData.setBusy(false);
-                    super.bitcoinController.fireWalletBusyChange(false);
-                    
-                    return;
+                    log.error(kce.getClass().getCanonicalName() + " " + kce.getMessage());
+                    errorMessage = kce.getMessage();
+                    return Boolean.FALSE;
                 }
+            }
 
-                if (decryptSuccess) {
-                    try {
-                        wallet.encrypt(keyCrypterToUse, keyCrypterToUse.deriveKey(CharBuffer.wrap(newPasswordToUse)));
-                        FileHandler fileHandler = new FileHandler(super.bitcoinController);
-                        fileHandler.savePerWalletModelData(super.bitcoinController.getModel().getActivePerWalletModelData(), true);
-                        
-                        // Backup the private keys.
-                        privateKeysBackupFile = fileHandler.backupPrivateKeys(CharBuffer.wrap(newPasswordToUse));
-                        
-                        // Backup the wallet and wallet info
-                        BackupManager.INSTANCE.backupPerWalletModelData(fileHandler, perWalletModelData);                        
-                    } catch (KeyCrypterException kce) {
-                        // Notify the user that the encrypt failed.
-                        changePasswordPanel.setMessage1(controller.getLocaliser().getString(
-                                "changePasswordPanel.changePasswordFailed", new String[] { kce.getMessage() }));
-                        return;
-                    } catch (IOException ede) {
-                        // Notify the user that the private key backup failed.
-                        changePasswordPanel.setMessage2(controller.getLocaliser().getString(
-                                "changePasswordPanel.keysBackupFailed", new String[] { ede.getMessage() }));
-                        return;
-                    } finally {
-                        // Declare that wallet is no longer busy with the task.
-                        perWalletModelData.setBusyTaskKey(null);
-                        perWalletModelData.setBusy(false);
-                        super.bitcoinController.fireWalletBusyChange(false);
-                    }
-                } else {
-                    // Declare that wallet is no longer busy with the task.
-                    perWalletModelData.setBusyTaskKey(null);
-                    perWalletModelData.setBusy(false);
-                    super.bitcoinController.fireWalletBusyChange(false);
-                }
+            @Override
+            protected void process(List<Integer> percentagesComplete) {
+                changePasswordPanel.setMessage2(controller.getLocaliser().getString("changePasswordPanel.encryptingPrivateKeys",
+                        new Object[] { percentagesComplete.get(percentagesComplete.size() - 1) }));
             }
-        }
 
-        // Success.
-        SwingUtilities.invokeLater(new Runnable() {
             @Override
-            public void run() {
-                changePasswordPanel.clearMessages();
-                changePasswordPanel.clearPasswords();
-                changePasswordPanel.setMessage1(controller.getLocaliser().getString("changePasswordPanel.changePasswordSuccess"));
-                if (privateKeysBackupFile != null) {
-                    try {
-                        changePasswordPanel.setMessage2(controller.getLocaliser().getString(
-                        "changePasswordPanel.oldBackupsMessage"));
-                        changePasswordPanel.setMessage3(controller.getLocaliser().getString(
-                                "changePasswordPanel.keysBackupSuccess", new Object[] { privateKeysBackupFile.getCanonicalPath() }));
-                    } catch (IOException e1) {
-                        log.debug(e1.getClass().getCanonicalName() + " " + e1.getMessage());
+            protected void done() {
+                try {
+                    // Declare that wallet is no longer busy with the task.
+                    perWalletModelData.setBusyTaskKey(null);
+                    perWalletModelData.setBusy(false);
+                    bitcoinController.fireWalletBusyChange(false);
+
+                    if (get()) {
+                        // Success.
+                        changePasswordPanel.clearMessages();
+                        changePasswordPanel.clearPasswords();
+                        changePasswordPanel.setMessage1(controller.getLocaliser().getString("changePasswordPanel.changePasswordSuccess"));
+                        changePasswordPanel.setMessage2(controller.getLocaliser().getString("changePasswordPanel.oldBackupsMessage"));
+                    } else {
+                        // Notify the user that the change failed.
+                        changePasswordPanel.clearMessages();
+                        changePasswordPanel.setMessage1(controller.getLocaliser().getString(
+                                "changePasswordPanel.changePasswordFailed", new String[] { errorMessage }));
                     }
+                } catch (Exception e) {
+                    // Not really used but caught so that SwingWorker shuts down cleanly.
+                    log.error(e.getClass() + " " + e.getMessage());
                 }
             }
-        });
+        };
+        worker.execute();
     }
 
     @Override
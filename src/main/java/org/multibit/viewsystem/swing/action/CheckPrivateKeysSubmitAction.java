@@ -15,13 +15,12 @@
  */
 package org.multibit.viewsystem.swing.action;
 
-import com.google.bitcoin.core.Address;
-import com.google.bitcoin.core.ECKey;
-import com.google.bitcoin.core.NetworkParameters;
 import com.google.bitcoin.core.Wallet;
 import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
 import org.multibit.controller.bitcoin.BitcoinController;
+import org.multibit.crypto.DerivedKeyCache;
+import org.multibit.crypto.KeyAuditor;
 import org.multibit.message.Message;
 import org.multibit.message.MessageManager;
 import org.multibit.model.bitcoin.WalletBusyListener;
@@ -34,9 +33,10 @@ import org.spongycastle.crypto.params.KeyParameter;
 
 import javax.swing.*;
 import java.awt.event.ActionEvent;
-import java.math.BigInteger;
 import java.nio.CharBuffer;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 
 /**
  * This {@link javax.swing.Action} checks private keys against the bitcoin addresses
@@ -49,6 +49,11 @@ public class CheckPrivateKeysSubmitAction extends MultiBitSubmitAction implement
 
   private CheckPrivateKeysPanel checkPrivateKeysPanel;
 
+  /**
+   * The check that is running, if any.
+   */
+  private volatile KeyAuditor keyAuditor;
+
   /**
    * Creates a new {@link org.multibit.viewsystem.swing.action.CheckPrivateKeysSubmitAction}.
    */
@@ -75,6 +80,11 @@ public class CheckPrivateKeysSubmitAction extends MultiBitSubmitAction implement
       return;
     }
 
+    if (keyAuditor != null) {
+      // A check is already running.
+      return;
+    }
+
     CharSequence walletPassword = null;
     if (checkPrivateKeysPanel.getWalletPasswordField() != null) {
       walletPassword = CharBuffer.wrap(checkPrivateKeysPanel.getWalletPasswordField().getPassword());
@@ -99,13 +109,23 @@ public class CheckPrivateKeysSubmitAction extends MultiBitSubmitAction implement
 
     // Check the private keys match the bitcoin addresses
     try {
-      checkPrivateKeysMatchAddresses(bitcoinController.getModel().getActivePerWalletModelData(), walletPassword);
+      checkPrivateKeysMatchAddressesInBackground(bitcoinController.getModel().getActivePerWalletModelData(), walletPassword);
     } catch (PrivateKeysException pke) {
       // Error messaging is handled in the method itself
       pke.printStackTrace();
     }
   }
 
+  /**
+   * Cancel the check that is running, if there is one.
+   */
+  public void cancel() {
+    KeyAuditor auditor = keyAuditor;
+    if (auditor != null) {
+      auditor.cancel();
+    }
+  }
+
   @Override
   public void walletBusyChange(boolean newWalletIsBusy) {
     // Update the enable status of the action to match the wallet busy
@@ -132,113 +152,128 @@ public class CheckPrivateKeysSubmitAction extends MultiBitSubmitAction implement
   }
 
   /**
-   * Check that the private key in the wallet file correctly creates the bitcoin address
+   * Check that the private keys in the wallet file correctly create the bitcoin addresses, in a background Swing worker thread.
    *
    * @param perWalletModelData the wallet data to check the private keys for
    * @param password the wallet password
-   * @return badAddresses A list of the bad addresses i.e. the addresses for which the private key does not match the bitcoin address.
-   *                      If this is empty then all private keys are present and match the address.
    */
-  private List<String> checkPrivateKeysMatchAddresses(WalletData perWalletModelData, CharSequence password) throws PrivateKeysException {
+  private void checkPrivateKeysMatchAddressesInBackground(final WalletData perWalletModelData, final CharSequence password) throws PrivateKeysException {
     if (perWalletModelData == null || perWalletModelData.getWallet() == null) {
       throw new PrivateKeysException("No wallet specified");
     }
 
-    Message separatorMessage = new Message(AlertManager.MESSAGE_WINDOW_SEPARATOR);
+    final Message separatorMessage = new Message(AlertManager.MESSAGE_WINDOW_SEPARATOR);
     separatorMessage.setShowInStatusBar(false);
 
-    boolean allKeysAreOk = true;
-    List<String> badAddresses = Lists.newArrayList();
+    final Wallet walletToCheck = perWalletModelData.getWallet();
+    final KeyAuditor auditor = new KeyAuditor(walletToCheck, bitcoinController.getModel().getNetworkParameters());
+    keyAuditor = auditor;
 
-    try {
-      Wallet walletToCheck = perWalletModelData.getWallet();
-      List<ECKey> keysToCheck = walletToCheck.getKeys();
+    checkPrivateKeysPanel.setMessageText1(" ");
+    checkPrivateKeysPanel.setMessageText2(" ");
 
-      // Derive keyParameter if wallet is encrypted
-      KeyParameter keyParameter = null;
-      if (password != null && !password.equals("") && walletToCheck.isEncrypted()) {
-        keyParameter = walletToCheck.getKeyCrypter().deriveKey(password);
-      }
+    SwingWorker<List<KeyAuditor.KeyFailure>, Integer> worker = new SwingWorker<List<KeyAuditor.KeyFailure>, Integer>() {
+      private int numberOfKeys = 0;
 
-      for (ECKey loopECKey : keysToCheck) {
-        Address originalAddress = loopECKey.toAddress(NetworkParameters.fromID(NetworkParameters.ID_MAINNET));
-        try {
+      @Override
+      protected List<KeyAuditor.KeyFailure> doInBackground() throws Exception {
+        // Derive keyParameter if wallet is encrypted
+        KeyParameter keyParameter = null;
+        if (password != null && password.length() > 0 && walletToCheck.isEncrypted()) {
+          keyParameter = DerivedKeyCache.INSTANCE.deriveKey(walletToCheck.getKeyCrypter(), password);
+        }
 
-          // Decrypt the ECKey if it is encrypted
-          if (loopECKey.isEncrypted()) {
-            loopECKey = loopECKey.decrypt(walletToCheck.getKeyCrypter(), keyParameter);
+        return auditor.audit(keyParameter, new KeyAuditor.AuditListener() {
+          @Override
+          public void keysAudited(int numberOfKeysAudited, int numberOfKeysToAudit) {
+            numberOfKeys = numberOfKeysToAudit;
+            publish(numberOfKeysAudited);
           }
+        });
+      }
 
-          byte[] privateKeyBytes = loopECKey.getPrivKeyBytes();
-          if (privateKeyBytes == null) {
-            // The private key in the ecKey is missing
-            allKeysAreOk = false;
+      @Override
+      protected void process(List<Integer> numbersOfKeysAudited) {
+        if (!auditor.isCancelled()) {
+          checkPrivateKeysPanel.setMessageText1(controller.getLocaliser().getString("checkPrivateKeysSubmitAction.progress",
+                  new Object[]{numbersOfKeysAudited.get(numbersOfKeysAudited.size() - 1), numberOfKeys}));
+        }
+      }
 
-            badAddresses.add(originalAddress.toString());
+      @Override
+      protected void done() {
+        if (keyAuditor == auditor) {
+          keyAuditor = null;
+        }
+
+        MessageManager.INSTANCE.addMessage(separatorMessage);
+        try {
+          List<KeyAuditor.KeyFailure> failures = get();
+          reportFailures(perWalletModelData, failures);
+        } catch (ExecutionException ee) {
+          Throwable cause = ee.getCause();
+          if (cause instanceof CancellationException) {
+            String messageText = controller.getLocaliser().getString("checkPrivateKeysSubmitAction.cancelled");
+            checkPrivateKeysPanel.setMessageText1(messageText);
+            checkPrivateKeysPanel.setMessageText2(" ");
+            addMessage(messageText);
           } else {
-            // Create an ECKey with just the private key bytes, it creates the public key - the address should be the same
-            ECKey rebornKey = new ECKey(new BigInteger(1, privateKeyBytes), null, loopECKey.isCompressed());
-            Address rebornAddress = rebornKey.toAddress(NetworkParameters.fromID(NetworkParameters.ID_MAINNET));
-            if (!rebornAddress.toString().equals(originalAddress.toString())) {
-              // The private key in the ecKey does not match the address - private key could be damaged or missing
-              allKeysAreOk = false;
-              badAddresses.add(originalAddress.toString());
-            }
+            reportDidNotComplete(cause);
           }
         } catch (Exception e) {
-          e.printStackTrace();
-          allKeysAreOk = false;
-          badAddresses.add(originalAddress.toString());
+          reportDidNotComplete(e);
+        } finally {
+          MessageManager.INSTANCE.addMessage(separatorMessage);
         }
       }
+    };
+    worker.execute();
+  }
+
+  private void reportFailures(WalletData perWalletModelData, List<KeyAuditor.KeyFailure> failures) {
+    if (failures.isEmpty()) {
+      // No problems
+      String messageText = super.bitcoinController.getLocaliser().getString("checkPrivateKeysSubmitAction.ok", new String[]{perWalletModelData.getWalletDescription()});
+      checkPrivateKeysPanel.setMessageText1(messageText);
+      checkPrivateKeysPanel.setMessageText2("");
+      addMessage(messageText);
+    } else {
+      // Some private keys are missing or damaged
+      String messageText = super.bitcoinController.getLocaliser().getString("checkPrivateKeysSubmitAction.fail", new String[]{perWalletModelData.getWalletDescription(), "" + failures.size()});
+      checkPrivateKeysPanel.setMessageText1(messageText);
+      checkPrivateKeysPanel.setMessageText2(super.bitcoinController.getLocaliser().getString("checkPrivateKeysSubmitAction.details"));
+      addMessage(messageText);
+
+      List<String> badAddresses = Lists.newArrayList();
+      for (KeyAuditor.KeyFailure failure : failures) {
+        badAddresses.add(failure.getAddress());
+      }
+      addMessage(super.bitcoinController.getLocaliser().getString("checkPrivateKeysSubmitAction.badAddresses", new String[]{Joiner.on(", ").join(badAddresses)}));
 
-      MessageManager.INSTANCE.addMessage(separatorMessage);
-
-      if (allKeysAreOk) {
-        // No problems
-        String messageText = super.bitcoinController.getLocaliser().getString("checkPrivateKeysSubmitAction.ok", new String[]{perWalletModelData.getWalletDescription()});
-        checkPrivateKeysPanel.setMessageText1(messageText);
-        checkPrivateKeysPanel.setMessageText2("");
-
-        Message message = new Message(messageText);
-        message.setShowInStatusBar(false);
-        MessageManager.INSTANCE.addMessage(message);
-      } else {
-        // Some private keys are missing or damaged
-        String messageText = super.bitcoinController.getLocaliser().getString("checkPrivateKeysSubmitAction.fail", new String[]{perWalletModelData.getWalletDescription(), "" + badAddresses.size()});
-        checkPrivateKeysPanel.setMessageText1(messageText);
-        checkPrivateKeysPanel.setMessageText2(super.bitcoinController.getLocaliser().getString("checkPrivateKeysSubmitAction.details"));
-
-        Message message = new Message(messageText);
-        message.setShowInStatusBar(false);
-        MessageManager.INSTANCE.addMessage(message);
-
-        message = new Message(super.bitcoinController.getLocaliser().getString("checkPrivateKeysSubmitAction.badAddresses", new String[]{Joiner.on(", ").join(badAddresses)}));
-        message.setShowInStatusBar(false);
-        MessageManager.INSTANCE.addMessage(message);
-
-        message = new Message(super.bitcoinController.getLocaliser().getString("checkPrivateKeysSubmitAction.doNotSend"));
-        message.setShowInStatusBar(false);
-        MessageManager.INSTANCE.addMessage(message);
+      // What is wrong with each key.
+      for (KeyAuditor.KeyFailure failure : failures) {
+        addMessage(super.bitcoinController.getLocaliser().getString("checkPrivateKeysSubmitAction.badAddress",
+                new String[]{failure.getAddress(), super.bitcoinController.getLocaliser().getString(
+                        "checkPrivateKeysSubmitAction.problem." + failure.getProblem().name())}));
       }
-    } catch (Exception e) {
-      String messageText1 = super.bitcoinController.getLocaliser().getString("checkPrivateKeysSubmitAction.didNotComplete");
-      String messageText2 = super.bitcoinController.getLocaliser().getString("deleteWalletConfirmDialog.walletDeleteError2", new String[]{e.getClass().getCanonicalName() + " " + e.getMessage()});
-      checkPrivateKeysPanel.setMessageText1(messageText1);
-      checkPrivateKeysPanel.setMessageText2(messageText2);
-      Message message = new Message(messageText1);
-      message.setShowInStatusBar(false);
-      MessageManager.INSTANCE.addMessage(message);
-
-      message = new Message(messageText2);
-      message.setShowInStatusBar(false);
-      MessageManager.INSTANCE.addMessage(message);
-
-      throw new PrivateKeysException("The check of the private keys failed", e);
-    } finally {
-      MessageManager.INSTANCE.addMessage(separatorMessage);
+
+      addMessage(super.bitcoinController.getLocaliser().getString("checkPrivateKeysSubmitAction.doNotSend"));
     }
+  }
+
+  private void reportDidNotComplete(Throwable e) {
+    log.error(e.getClass().getCanonicalName() + " " + e.getMessage());
+    String messageText1 = super.bitcoinController.getLocaliser().getString("checkPrivateKeysSubmitAction.didNotComplete");
+    String messageText2 = super.bitcoinController.getLocaliser().getString("deleteWalletConfirmDialog.walletDeleteError2", new String[]{e.getClass().getCanonicalName() + " " + e.getMessage()});
+    checkPrivateKeysPanel.setMessageText1(messageText1);
+    checkPrivateKeysPanel.setMessageText2(messageText2);
+    addMessage(messageText1);
+    addMessage(messageText2);
+  }
 
-    return badAddresses;
+  private void addMessage(String messageText) {
+    Message message = new Message(messageText);
+    message.setShowInStatusBar(false);
+    MessageManager.INSTANCE.addMessage(message);
   }
-}
\ No newline at end of file
+}
@@ -84,9 +84,10 @@ public class CloseWalletAction extends MultiBitSubmitAction {
       // Unhook it from the PeerGroup.
       super.bitcoinController.getMultiBitService().getPeerGroup().removeWallet(perWalletModelData.getWallet());
 
-      // Save it.
-      FileHandler fileHandler = new FileHandler(super.bitcoinController);
+      // Save it, then stop saving it when it changes and stop watching its files.
+      FileHandler fileHandler = super.bitcoinController.getFileHandler();
       fileHandler.savePerWalletModelData(perWalletModelData, true);
+      fileHandler.unwatchWallet(perWalletModelData);
 
       // Work out which wallet to select after the wallet is removed.
       String activeWalletFilename = perWalletModelData.getWalletFilename();
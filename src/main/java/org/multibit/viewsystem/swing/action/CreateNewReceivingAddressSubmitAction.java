@@ -16,13 +16,15 @@
 package org.multibit.viewsystem.swing.action;
 
 import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.MultiBitWalletLock;
+import com.google.bitcoin.core.Wallet;
 import com.google.bitcoin.crypto.KeyCrypter;
 import com.google.bitcoin.crypto.KeyCrypterException;
 import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
 import org.multibit.controller.bitcoin.BitcoinController;
-import org.multibit.file.BackupManager;
+import org.multibit.crypto.DerivedKeyCache;
+import org.multibit.crypto.ParallelKeyCrypter;
 import org.multibit.file.FileHandler;
-import org.multibit.file.WalletSaveException;
 import org.multibit.message.Message;
 import org.multibit.message.MessageManager;
 import org.multibit.model.bitcoin.*;
@@ -36,11 +38,9 @@ import org.spongycastle.crypto.params.KeyParameter;
 
 import javax.swing.*;
 import java.awt.event.ActionEvent;
-import java.io.File;
-import java.io.IOException;
 import java.nio.CharBuffer;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * This {@link Action} represents an action to actually create receiving
@@ -56,11 +56,6 @@ public class CreateNewReceivingAddressSubmitAction extends MultiBitSubmitAction
 
     private JPasswordField walletPassword;
     
-    /**
-     * The last private keys backup file used - used in testing.
-     */
-    private File lastPrivateKeysBackupFile;
-    
     /**
      * Creates a new {@link CreateNewReceivingAddressSubmitAction}.
      */
@@ -72,7 +67,6 @@ public class CreateNewReceivingAddressSubmitAction extends MultiBitSubmitAction
         this.createNewReceivingAddressDialog = createNewReceivingAddressDialog;
         this.createNewReceivingAddressPanel = createNewReceivingAddressPanel;
         this.walletPassword = walletPassword;
-        this.lastPrivateKeysBackupFile = null;
         
         // This action is a WalletBusyListener
         super.bitcoinController.registerWalletBusyListener(this);
@@ -90,6 +84,12 @@ public class CreateNewReceivingAddressSubmitAction extends MultiBitSubmitAction
 
         WalletData perWalletModelData = super.bitcoinController.getModel().getActivePerWalletModelData();
         boolean encryptNewKeys = false;
+
+        // Hand out addresses from the key pool if it holds enough - no password is needed.
+        if (!perWalletModelData.isBusy() && perWalletModelData.getWalletInfo() != null
+                && createNewReceivingAddressesFromKeyPool(perWalletModelData)) {
+            return;
+        }
         
         if (super.bitcoinController.getModel().getActiveWallet() != null
                 && super.bitcoinController.getModel().getActiveWallet().getEncryptionType() == EncryptionType.ENCRYPTED_SCRYPT_AES) {
@@ -149,6 +149,45 @@ public class CreateNewReceivingAddressSubmitAction extends MultiBitSubmitAction
         }
     }
     
+    /**
+     * Take the new receiving addresses from the key pool of the wallet.
+     * 
+     * @return true if the key pool held enough addresses
+     */
+    private boolean createNewReceivingAddressesFromKeyPool(WalletData perWalletModelData) {
+        int numberOfAddressesToCreate = createNewReceivingAddressPanel.getNumberOfAddressesToCreate();
+        List<String> newAddresses = perWalletModelData.getKeyPool().takeAddresses(numberOfAddressesToCreate);
+        if (newAddresses == null) {
+            return false;
+        }
+        log.debug("Took " + numberOfAddressesToCreate + " receiving addresses from the key pool");
+
+        if (!newAddresses.isEmpty()) {
+            perWalletModelData.getWalletInfo().put(BitcoinModel.RECEIVE_ADDRESS, newAddresses.get(newAddresses.size() - 1));
+            perWalletModelData.getWalletInfo().put(BitcoinModel.RECEIVE_LABEL, "");
+        }
+        super.bitcoinController.getFileHandler().savePerWalletModelDataInBackground(perWalletModelData, false);
+
+        if (createNewReceivingAddressPanel.getReceiveBitcoinPanel() != null) {
+            createNewReceivingAddressPanel.getReceiveBitcoinPanel().getAddressesTableModel().fireTableDataChanged();
+            createNewReceivingAddressPanel.getReceiveBitcoinPanel().selectRows();
+        }
+
+        String walletDescription = perWalletModelData.getWalletInfo().getProperty(WalletInfoData.DESCRIPTION_PROPERTY);
+        String shortMessage = controller.getLocaliser().getString("createNewReceivingAddressSubmitAction.createdSuccessfullyShort", new Object[] {numberOfAddressesToCreate});
+        String longMessage = controller.getLocaliser().getString("createNewReceivingAddressSubmitAction.createdSuccessfullyLong", new Object[] {numberOfAddressesToCreate, walletDescription});
+        createNewReceivingAddressPanel.setMessageText(shortMessage);
+        Message logMessage = new Message(longMessage);
+        logMessage.setShowInStatusBar(false);
+        MessageManager.INSTANCE.addMessage(logMessage);
+
+        // Refill the pool. An encrypted wallet is only refilled if the password has been entered.
+        char[] password = walletPassword.getPassword();
+        perWalletModelData.getKeyPool().topUpInBackground(super.bitcoinController,
+                password == null || password.length == 0 ? null : CharBuffer.wrap(password));
+        return true;
+    }
+
     /**
      * Create the new receiving addresses in a background Swing worker thread.
      */
@@ -158,73 +197,83 @@ public class CreateNewReceivingAddressSubmitAction extends MultiBitSubmitAction
 
         final BitcoinController finalController = super.bitcoinController;
         
-        SwingWorker<Boolean, Void> worker = new SwingWorker<Boolean, Void>() {
+        SwingWorker<Boolean, Integer> worker = new SwingWorker<Boolean, Integer>() {
             private String shortMessage = null;
             private String longMessage = null;
             private String lastAddressString = null;
-            private File privateKeysBackupFile = null;
 
             @Override
             protected Boolean doInBackground() throws Exception {
                 Boolean successMeasure = Boolean.FALSE;
-                
-                privateKeysBackupFile = null;
 
                 final KeyCrypter walletKeyCrypter = finalPerWalletModelData.getWallet().getKeyCrypter();
                     try {
                         // Derive AES key to use outside of loop - it is the same for all keys in a single wallet.
                         KeyParameter aesKey = null;
                         if (encryptNewKeys) {
-                            aesKey = walletKeyCrypter.deriveKey(walletPassword);
-                        }
-                        List<ECKey> newKeys = new ArrayList<ECKey>();
-                        for (int i = 0; i < numberOfAddressesToCreate; i++) {
-                            ECKey newKey;
-                            if (encryptNewKeys) {
-                                // Use the wallet KeyCrypter.
-                                newKey = (new ECKey()).encrypt(walletKeyCrypter, aesKey);
-                            } else {
-                                newKey = new ECKey();
-                            }
-                            newKeys.add(newKey);
+                            aesKey = DerivedKeyCache.INSTANCE.deriveKey(walletKeyCrypter, walletPassword);
                         }
+
+                        // Create and encrypt the keys on all the processors.
+                        List<ECKey> newKeys = ParallelKeyCrypter.createKeys(numberOfAddressesToCreate,
+                                encryptNewKeys ? walletKeyCrypter : null, aesKey, new ParallelKeyCrypter.ProgressListener() {
+                                    @Override
+                                    public void keysDone(int numberOfKeysDone, int numberOfKeys) {
+                                        publish(numberOfKeysDone);
+                                    }
+                                });
                         
                         FileHandler fileHandler = finalController.getFileHandler();
                         
-                        synchronized (finalPerWalletModelData.getWallet()) {
-                            finalPerWalletModelData.getWallet().addKeys(newKeys);
+                        // Add the keys and their receiving addresses together, under the wallet lock that
+                        // password changes hold, and only if the wallet is still encrypted the same way.
+                        Wallet wallet = finalPerWalletModelData.getWallet();
+                        ReentrantLock walletLock = MultiBitWalletLock.getLock(wallet);
+                        walletLock.lock();
+                        try {
+                            boolean walletIsEncrypted = wallet.getEncryptionType() != EncryptionType.UNENCRYPTED;
+                            if (encryptNewKeys != walletIsEncrypted
+                                    || (encryptNewKeys && (walletKeyCrypter != wallet.getKeyCrypter() || !wallet.checkAESKey(aesKey)))) {
+                                throw new KeyCrypterException("The wallet password was changed whilst the keys were created");
+                            }
+                            wallet.addKeys(newKeys);
+                            finalPerWalletModelData.getWalletInfo().addReceivingAddressesOfKeys(newKeys);
+                        } finally {
+                            walletLock.unlock();
+                        }
+                        if (!newKeys.isEmpty()) {
+                            lastAddressString = newKeys.get(newKeys.size() - 1)
+                                    .toAddress(finalController.getModel().getNetworkParameters()).toString();
                         }
 
-                        // Recalculate the bloom filter.
+                        // Recalculate the bloom filter, once for all the new keys.
                         if (bitcoinController.getMultiBitService() != null) {
                           bitcoinController.getMultiBitService().recalculateFastCatchupAndFilter();
                         }
-
-                        // Add keys to address book.
-                        for (ECKey newKey : newKeys) {
-                            lastAddressString = newKey.toAddress(finalController.getModel().getNetworkParameters()).toString();
-                            finalPerWalletModelData.getWalletInfo().addReceivingAddress(new WalletAddressBookData("", lastAddressString),
-                                false);
-                        }
                         
-                        // Backup the private keys.
-                        privateKeysBackupFile = fileHandler.backupPrivateKeys(CharBuffer.wrap(walletPassword));
-                        thisAction.setLastPrivateKeysBackupFile(privateKeysBackupFile);
+                        // Persist the new keys, then backup the private keys, wallet and wallet info in the background.
+                        fileHandler.savePerWalletModelData(finalPerWalletModelData, false);
+                        fileHandler.scheduleBackup(finalPerWalletModelData, walletPassword, true, false);
 
-                        // Backup the wallet and wallet info.
-                        BackupManager.INSTANCE.backupPerWalletModelData(fileHandler, finalPerWalletModelData);
+                        // Whilst the password is known, fill the key pool so that the next addresses are instant.
+                        finalPerWalletModelData.getKeyPool().topUpInBackground(finalController, walletPassword);
 
                         successMeasure = Boolean.TRUE;
                     } catch (KeyCrypterException kce) {
                         logError(kce);
-                    } catch (IOException io) {
-                        logError(io);
                     } catch (Exception e) {
                         logError(e);
                     }
                 
                 return successMeasure;
             }
+
+            @Override
+            protected void process(List<Integer> numbersOfKeysDone) {
+                createNewReceivingAddressPanel.setMessageText(controller.getLocaliser().getString(
+                        "createNewReceivingAddressSubmitAction.creatingProgress",
+                        new Object[] { numbersOfKeysDone.get(numbersOfKeysDone.size() - 1), numberOfAddressesToCreate }));
+            }
             
             private void logError(Exception e) {
                 log.error(e.getClass().getName() + " " + e.getMessage());
@@ -247,9 +296,6 @@ public class CreateNewReceivingAddressSubmitAction extends MultiBitSubmitAction
                     if (wasSuccessful) {
                         shortMessage = controller.getLocaliser().getString("createNewReceivingAddressSubmitAction.createdSuccessfullyShort", new Object[] {numberOfAddressesToCreate});
                         longMessage = controller.getLocaliser().getString("createNewReceivingAddressSubmitAction.createdSuccessfullyLong", new Object[] {numberOfAddressesToCreate, walletDescription});
-                        if (privateKeysBackupFile != null) {
-                            longMessage = longMessage + ".\n" + controller.getLocaliser().getString("changePasswordPanel.keysBackupSuccess", new Object[] { privateKeysBackupFile.getCanonicalPath() });
-                        }
                         
                         log.debug(longMessage);
                         
@@ -261,13 +307,8 @@ public class CreateNewReceivingAddressSubmitAction extends MultiBitSubmitAction
                         finalPerWalletModelData.getWalletInfo().put(BitcoinModel.RECEIVE_ADDRESS, lastAddressString);
                         finalPerWalletModelData.getWalletInfo().put(BitcoinModel.RECEIVE_LABEL, "");
                         
-                        try {
-                            finalController.getFileHandler().savePerWalletModelData(finalPerWalletModelData, false);
-                        } catch (WalletSaveException wse) {
-                            log.error(wse.getClass().getCanonicalName() + " " + wse.getMessage());
-                            MessageManager.INSTANCE.addMessage(new Message(controller.getLocaliser().getString("createNewReceivingAddressesSubmitAction.failure",
-                                    new Object[] { wse.getClass().getCanonicalName() + " " + wse.getMessage() })));
-                        }   
+                        // done() runs on the Swing thread so save in the background.
+                        finalController.getFileHandler().savePerWalletModelDataInBackground(finalPerWalletModelData, false);
                     } else {
                         log.error(longMessage);
                     }
@@ -322,12 +363,4 @@ public class CreateNewReceivingAddressSubmitAction extends MultiBitSubmitAction
             createNewReceivingAddressPanel.getCancelButton().setEnabled(true);
         }
     }
-
-    public File getLastPrivateKeysBackupFile() {
-        return lastPrivateKeysBackupFile;
-    }
-
-    public void setLastPrivateKeysBackupFile(File lastPrivateKeysBackupFile) {
-        this.lastPrivateKeysBackupFile = lastPrivateKeysBackupFile;
-    }
 }
\ No newline at end of file
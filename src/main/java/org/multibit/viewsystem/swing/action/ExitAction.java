@@ -21,6 +21,7 @@ import org.multibit.ApplicationInstanceManager;
 import org.multibit.controller.Controller;
 import org.multibit.controller.bitcoin.BitcoinController;
 import org.multibit.controller.core.CoreController;
+import org.multibit.crypto.DerivedKeyCache;
 import org.multibit.file.BackupManager;
 import org.multibit.file.FileHandler;
 import org.multibit.file.WalletSaveException;
@@ -122,6 +123,16 @@ public class ExitAction extends AbstractExitAction {
                 log.debug("PeerGroup is now stopped.");
             }
 
+            // Remember the peers for the next start.
+            if (bitcoinController.getMultiBitService().getPeerAddressStore() != null) {
+                bitcoinController.getMultiBitService().getPeerAddressStore().save();
+            }
+
+            // Close the index of the blockstore.
+            if (bitcoinController.getMultiBitService().getBlockHeaderIndex() != null) {
+                bitcoinController.getMultiBitService().getBlockHeaderIndex().close();
+            }
+
             // Close down the blockstore.
             BlockStore blockStore = bitcoinController.getMultiBitService().getBlockStore();
             if (blockStore != null) {
@@ -149,6 +160,12 @@ public class ExitAction extends AbstractExitAction {
         }
 
         if (bitcoinController != null) {
+            // Let any queued background saves finish before the final saves.
+            if (bitcoinController.getFileHandler() != null) {
+                bitcoinController.getFileHandler().stopWatchingWalletFiles();
+                bitcoinController.getFileHandler().waitForBackgroundSaves();
+            }
+
             // Save all the wallets and put their filenames in the user preferences.
             List<WalletData> perWalletModelDataList = bitcoinController.getModel().getPerWalletModelDataList();
             if (perWalletModelDataList != null) {
@@ -197,6 +214,9 @@ public class ExitAction extends AbstractExitAction {
             FileHandler.writeUserPreferences(bitcoinController);
         }
 
+        // Wipe any cached keys.
+        DerivedKeyCache.INSTANCE.clear();
+
         log.debug("Shutting down Bitcoin URI checker ...");
         ApplicationInstanceManager.shutdownSocket();
 
@@ -16,12 +16,12 @@
 package org.multibit.viewsystem.swing.action;
 
 import com.google.bitcoin.core.ECKey;
-import com.google.bitcoin.core.Utils;
 import com.google.bitcoin.core.Wallet;
 import com.google.bitcoin.crypto.KeyCrypter;
 import com.google.bitcoin.crypto.KeyCrypterException;
 import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
 import org.multibit.controller.bitcoin.BitcoinController;
+import org.multibit.crypto.DerivedKeyCache;
 import org.multibit.file.*;
 import org.multibit.message.Message;
 import org.multibit.model.bitcoin.WalletBusyListener;
@@ -41,7 +41,7 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.io.File;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.util.*;
 import java.util.List;
@@ -63,10 +63,9 @@ public class ImportPrivateKeysSubmitAction extends MultiBitSubmitAction implemen
 
     private boolean performReplay = true;
 
-    private File privateKeysBackupFile;
-
     private static final long NUMBER_OF_MILLISECONDS_IN_A_SECOND = 1000;
 
+
     /**
      * Creates a new {@link ImportPrivateKeysSubmitAction}.
      */
@@ -90,8 +89,6 @@ public class ImportPrivateKeysSubmitAction extends MultiBitSubmitAction implemen
      */
     @Override
     public void actionPerformed(ActionEvent event) {
-        privateKeysBackupFile = null;
-
         if (abort()) {
             return;
         }
@@ -149,12 +146,11 @@ public class ImportPrivateKeysSubmitAction extends MultiBitSubmitAction implemen
                 log.debug("Regular MultiBit import.");
 
                 PrivateKeysHandler privateKeysHandler = new PrivateKeysHandler(super.bitcoinController.getModel().getNetworkParameters());
-                importPrivateKeysPanel.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
-                Collection<PrivateKeyAndDate> privateKeyAndDateArray = privateKeysHandler.readInPrivateKeys(importFile,
-                        passwordCharSequence);
 
-                changeWalletBusyAndImportInBackground(privateKeyAndDateArray,  CharBuffer.wrap(walletPasswordField.getPassword()));
-                importPrivateKeysPanel.setCursor(Cursor.getPredefinedCursor(Cursor.DEFAULT_CURSOR));
+                // The file is decrypted and the keys decoded in one pass, in the background. A wrong
+                // import file password is found there and no keys are added.
+                changeWalletBusyAndImportInBackground(privateKeysHandler, importFile, passwordCharSequence,
+                        CharBuffer.wrap(walletPasswordField.getPassword()));
             } else {
                 log.error("The wallet import file was not a recognised type.");
             }
@@ -170,8 +166,8 @@ public class ImportPrivateKeysSubmitAction extends MultiBitSubmitAction implemen
         }
     }
 
-    private void changeWalletBusyAndImportInBackground(final Collection<PrivateKeyAndDate> privateKeyAndDateArray,
-            final CharSequence walletPassword) {
+    private void changeWalletBusyAndImportInBackground(PrivateKeysHandler privateKeysHandler, File importFile,
+            CharSequence importFilePassword, CharSequence walletPassword) {
         // Double check wallet is not busy then declare that the active wallet
         // is busy with the task
         WalletData perWalletModelData = super.bitcoinController.getModel().getActivePerWalletModelData();
@@ -187,21 +183,22 @@ public class ImportPrivateKeysSubmitAction extends MultiBitSubmitAction implemen
 
             super.bitcoinController.fireWalletBusyChange(true);
 
-            importPrivateKeysInBackground(privateKeyAndDateArray, walletPassword);
+            importPrivateKeysInBackground(privateKeysHandler, importFile, importFilePassword, walletPassword);
         }
     }
     
     /**
-     * Import the private keys in a background Swing worker thread.
+     * Read in and import the private keys in a background Swing worker thread.
      */
-    private void importPrivateKeysInBackground(final Collection<PrivateKeyAndDate> privateKeyAndDateArray,
-            final CharSequence walletPassword) {
+    private void importPrivateKeysInBackground(final PrivateKeysHandler privateKeysHandler, final File importFile,
+            final CharSequence importFilePassword, final CharSequence walletPassword) {
         final WalletData finalPerWalletModelData = super.bitcoinController.getModel().getActivePerWalletModelData();
         final ImportPrivateKeysPanel finalImportPanel = importPrivateKeysPanel;
         final BitcoinController finalBitcoinController = super.bitcoinController;
 
-        SwingWorker<Boolean, Void> worker = new SwingWorker<Boolean, Void>() {
+        SwingWorker<Boolean, Integer> worker = new SwingWorker<Boolean, Integer>() {
             private String uiMessage = null;
+            private boolean replayOffered = false;
 
             @Override
             protected Boolean doInBackground() throws Exception {
@@ -210,90 +207,56 @@ public class ImportPrivateKeysSubmitAction extends MultiBitSubmitAction implemen
                 try {
                     Wallet walletToAddKeysTo = finalPerWalletModelData.getWallet();
 
-                    Collection<byte[]> unencryptedWalletPrivateKeys = new ArrayList<byte[]>();
                     Date earliestTransactionDate = new Date(DateUtils.nowUtc().getMillis());
 
                     if (walletToAddKeysTo.getEncryptionType() != EncryptionType.UNENCRYPTED) {
                         keyEncryptionRequired = true;
                     }
 
-                    try {
-                        if (walletToAddKeysTo != null) {
-                            synchronized (walletToAddKeysTo.getKeychain()) {
-                                // Work out what the unencrypted private keys are.
-                                KeyCrypter walletKeyCrypter = walletToAddKeysTo.getKeyCrypter();
-                                KeyParameter aesKey = null;
-                                if (keyEncryptionRequired) {
-                                    if (walletKeyCrypter == null) {
-                                        log.error("Missing KeyCrypter. Could not decrypt private keys.");
-                                    }
-                                    aesKey = walletKeyCrypter.deriveKey(CharBuffer.wrap(walletPassword));
+                    if (walletToAddKeysTo != null) {
+                        synchronized (walletToAddKeysTo.getKeychain()) {
+                            // The new keys are encrypted with the wallet AES key.
+                            KeyCrypter walletKeyCrypter = walletToAddKeysTo.getKeyCrypter();
+                            KeyParameter aesKey = null;
+                            if (keyEncryptionRequired) {
+                                if (walletKeyCrypter == null) {
+                                    log.error("Missing KeyCrypter. Could not encrypt private keys.");
                                 }
-                                for (ECKey ecKey : walletToAddKeysTo.getKeychain()) {
-                                    if (keyEncryptionRequired) {
-                                        if (ecKey.getEncryptedPrivateKey() == null
-                                                || ecKey.getEncryptedPrivateKey().getEncryptedBytes() == null
-                                                || ecKey.getEncryptedPrivateKey().getEncryptedBytes().length == 0) {
-
-                                            log.error("Missing encrypted private key bytes for key " + ecKey.toString()
-                                                    + ", enc.priv = "
-                                                    + Utils.bytesToHexString(ecKey.getEncryptedPrivateKey().getEncryptedBytes()));
-                                        } else {
-                                            byte[] decryptedPrivateKey = ecKey.getKeyCrypter().decrypt(
-                                                    ecKey.getEncryptedPrivateKey(), aesKey);
-                                            unencryptedWalletPrivateKeys.add(decryptedPrivateKey);
-                                        }
-
-                                    } else {
-                                        // Wallet is not encrypted.
-                                        unencryptedWalletPrivateKeys.add(ecKey.getPrivKeyBytes());
-                                    }
+                                aesKey = DerivedKeyCache.INSTANCE.deriveKey(walletKeyCrypter, CharBuffer.wrap(walletPassword));
+                                if (!walletToAddKeysTo.checkAESKey(aesKey)) {
+                                    throw new KeyCrypterException("The wallet password is incorrect");
                                 }
+                            }
 
-                                // Keep track of earliest transaction date go backwards from now.
-                                if (privateKeyAndDateArray != null) {
-                                    for (PrivateKeyAndDate privateKeyAndDate : privateKeyAndDateArray) {
-                                        ECKey keyToAdd = privateKeyAndDate.getKey();
-                                        if (keyToAdd != null) {
-                                            if (privateKeyAndDate.getDate() != null) {
-                                                keyToAdd.setCreationTimeSeconds(privateKeyAndDate.getDate().getTime()
-                                                        / NUMBER_OF_MILLISECONDS_IN_A_SECOND);
-                                            }
-
-                                            if (!keyChainContainsPrivateKey(unencryptedWalletPrivateKeys, keyToAdd, walletPassword)) {
-                                                if (keyEncryptionRequired) {
-                                                    ECKey encryptedKey = new ECKey(walletKeyCrypter.encrypt(
-                                                            keyToAdd.getPrivKeyBytes(), aesKey), keyToAdd.getPubKey(),
-                                                            walletKeyCrypter);
-                                                    walletToAddKeysTo.addKey(encryptedKey);
-                                                } else {
-                                                    walletToAddKeysTo.addKey(keyToAdd);
-                                                }
-
-                                                // Update earliest transaction date.
-                                                if (privateKeyAndDate.getDate() == null) {
-                                                    // Need to go back to the genesis block.
-                                                    earliestTransactionDate = null;
-                                                } else {
-                                                    if (earliestTransactionDate != null) {
-                                                        earliestTransactionDate = earliestTransactionDate.before(privateKeyAndDate
-                                                                .getDate()) ? earliestTransactionDate : privateKeyAndDate.getDate();
-                                                    }
-                                                }
-                                            }
-                                        }
-                                    }
-                                }
+                            // Keys already in the wallet are spotted by their pubkey hash, so no private key is decrypted.
+                            // The compressed and uncompressed forms of a key have different addresses so both can be imported.
+                            Set<ByteBuffer> walletPubKeyHashes = new HashSet<ByteBuffer>();
+                            for (ECKey ecKey : walletToAddKeysTo.getKeychain()) {
+                                walletPubKeyHashes.add(ByteBuffer.wrap(ecKey.getPubKeyHash()));
                             }
-                        }
-                    } finally {
-                        // Wipe the work collection of private key bytes to remove it from memory.
-                        for (byte[] privateKeyBytes : unencryptedWalletPrivateKeys) {
-                            if (privateKeyBytes != null) {
-                                for (int i = 0; i < privateKeyBytes.length; i++) {
-                                    privateKeyBytes[i] = 0;
-                                }
+
+                            // Read in the private keys, working out which are new as each batch is decoded.
+                            final PrivateKeysImporter privateKeysImporter = new PrivateKeysImporter(walletPubKeyHashes,
+                                    keyEncryptionRequired, walletKeyCrypter, aesKey);
+                            try {
+                                privateKeysHandler.readInPrivateKeys(importFile, importFilePassword, new PrivateKeysReadListener() {
+                                    @Override
+                                    public void privateKeysRead(List<PrivateKeyAndDate> privateKeyAndDates, int percentComplete) {
+                                        privateKeysImporter.importPrivateKeys(privateKeyAndDates);
+                                        publish(percentComplete);
+                                    }
+                                });
+                            } catch (KeyCrypterException kce) {
+                                // The import file password is wrong - nothing has been added to the wallet.
+                                log.error(kce.getClass().getName() + " " + kce.getMessage());
+                                uiMessage = controller.getLocaliser().getString("importPrivateKeysSubmitAction.privateKeysUnlockFailure",
+                                        new Object[] { kce.getMessage() });
+                                return Boolean.FALSE;
                             }
+
+                            // Add the new keys together once the whole file has been read.
+                            walletToAddKeysTo.addKeys(privateKeysImporter.getKeysToAdd());
+                            earliestTransactionDate = privateKeysImporter.getEarliestTransactionDate();
                         }
                     }
 
@@ -311,11 +274,8 @@ public class ImportPrivateKeysSubmitAction extends MultiBitSubmitAction implemen
                       bitcoinController.getMultiBitService().recalculateFastCatchupAndFilter();
                     }
 
-                    // Backup the private keys.
-                    privateKeysBackupFile = finalBitcoinController.getFileHandler().backupPrivateKeys(CharBuffer.wrap(walletPassword));
-
-                    // Backup the wallet and wallet info.
-                    BackupManager.INSTANCE.backupPerWalletModelData(finalBitcoinController.getFileHandler(), finalPerWalletModelData);
+                    // Backup the private keys, wallet and wallet info in the background - the wallet is already saved.
+                    finalBitcoinController.getFileHandler().scheduleBackup(finalPerWalletModelData, walletPassword, true, false);
                     
                     // Begin blockchain replay - returns quickly - just kicks it off.
                     log.debug("Starting replay from date = " + earliestTransactionDate);
@@ -337,6 +297,7 @@ public class ImportPrivateKeysSubmitAction extends MultiBitSubmitAction implemen
 
                         ReplayTask replayTask = new ReplayTask(perWalletModelDataList, earliestTransactionDate, ReplayTask.UNKNOWN_START_HEIGHT);
                         ReplayManager.INSTANCE.offerReplayTask(replayTask);
+                        replayOffered = true;
                         successMeasure = Boolean.TRUE;
                     }
                 } catch (WalletSaveException wse) {
@@ -359,6 +320,15 @@ public class ImportPrivateKeysSubmitAction extends MultiBitSubmitAction implemen
 
             }
 
+            @Override
+            protected void process(List<Integer> percentagesComplete) {
+                if (finalImportPanel != null && !percentagesComplete.isEmpty()) {
+                    finalImportPanel.setMessageText2(controller.getLocaliser().getString(
+                            "importPrivateKeysSubmitAction.readingPrivateKeys",
+                            new Object[] { percentagesComplete.get(percentagesComplete.size() - 1) }));
+                }
+            }
+
             @Override
             protected void done() {
                 try {
@@ -366,25 +336,23 @@ public class ImportPrivateKeysSubmitAction extends MultiBitSubmitAction implemen
 
                     if (finalImportPanel != null && uiMessage != null) {
                         finalImportPanel.setMessageText1(uiMessage);
+                        finalImportPanel.setMessageText2(" ");
                     }
                     
-                    if (privateKeysBackupFile != null) {
-                        try {
-                            finalImportPanel.setMessageText2(controller.getLocaliser().getString(
-                                    "changePasswordPanel.keysBackupSuccess",
-                                    new Object[] { privateKeysBackupFile.getCanonicalPath() }));
-                        } catch (IOException e1) {
-                            log.debug(e1.getClass().getCanonicalName() + " " + e1.getMessage());
-                        }
-                    }
-
                     if (wasSuccessful) {
                         finalImportPanel.clearPasswords();
                     }
                 } catch (Exception e) {
                     // Not really used but caught so that SwingWorker shuts down cleanly.
                     log.error(e.getClass() + " " + e.getMessage());
-                } 
+                } finally {
+                    if (!replayOffered) {
+                        // Declare that wallet is no longer busy with the task - otherwise the replay does this.
+                        finalPerWalletModelData.setBusyTaskKey(null);
+                        finalPerWalletModelData.setBusy(false);
+                        finalBitcoinController.fireWalletBusyChange(false);
+                    }
+                }
             }
         };
         log.debug("Importing private keys in background SwingWorker thread");
@@ -392,23 +360,67 @@ public class ImportPrivateKeysSubmitAction extends MultiBitSubmitAction implemen
     }
 
     /**
-     * Determine whether the key is already in the wallet.
-     * @throws KeyCrypterException
+     * Works out which of the private keys read in are not already in the wallet
+     * and prepares them for adding.
      */
-    private boolean keyChainContainsPrivateKey(Collection<byte[]> unencryptedPrivateKeys, ECKey keyToAdd, CharSequence walletPassword) throws KeyCrypterException {
-        if (unencryptedPrivateKeys == null || keyToAdd == null) {
-            return false;
-        } else {
-            byte[] unencryptedKeyToAdd = new byte[0];
-            if (keyToAdd.isEncrypted()) {
-                unencryptedKeyToAdd = keyToAdd.getKeyCrypter().decrypt(keyToAdd.getEncryptedPrivateKey(), keyToAdd.getKeyCrypter().deriveKey(walletPassword));
-            }
-            for (byte[] loopEncryptedPrivateKey : unencryptedPrivateKeys) { 
-                if (Arrays.equals(unencryptedKeyToAdd, loopEncryptedPrivateKey)) {
-                    return true;
+    private class PrivateKeysImporter {
+        private final Set<ByteBuffer> walletPubKeyHashes;
+        private final boolean keyEncryptionRequired;
+        private final KeyCrypter walletKeyCrypter;
+        private final KeyParameter aesKey;
+
+        private final List<ECKey> keysToAdd = new ArrayList<ECKey>();
+
+        // Keep track of earliest transaction date go backwards from now.
+        private Date earliestTransactionDate = new Date(DateUtils.nowUtc().getMillis());
+
+        PrivateKeysImporter(Set<ByteBuffer> walletPubKeyHashes, boolean keyEncryptionRequired, KeyCrypter walletKeyCrypter,
+                KeyParameter aesKey) {
+            this.walletPubKeyHashes = walletPubKeyHashes;
+            this.keyEncryptionRequired = keyEncryptionRequired;
+            this.walletKeyCrypter = walletKeyCrypter;
+            this.aesKey = aesKey;
+        }
+
+        void importPrivateKeys(List<PrivateKeyAndDate> privateKeyAndDates) {
+            for (PrivateKeyAndDate privateKeyAndDate : privateKeyAndDates) {
+                ECKey keyToAdd = privateKeyAndDate.getKey();
+                if (keyToAdd != null) {
+                    if (privateKeyAndDate.getDate() != null) {
+                        keyToAdd.setCreationTimeSeconds(privateKeyAndDate.getDate().getTime() / NUMBER_OF_MILLISECONDS_IN_A_SECOND);
+                    }
+
+                    // Adding to the set also catches a key that is in the import file twice.
+                    if (walletPubKeyHashes.add(ByteBuffer.wrap(keyToAdd.getPubKeyHash()))) {
+                        if (keyEncryptionRequired) {
+                            ECKey encryptedKey = new ECKey(walletKeyCrypter.encrypt(keyToAdd.getPrivKeyBytes(), aesKey),
+                                    keyToAdd.getPubKey(), walletKeyCrypter);
+                            keysToAdd.add(encryptedKey);
+                        } else {
+                            keysToAdd.add(keyToAdd);
+                        }
+
+                        // Update earliest transaction date.
+                        if (privateKeyAndDate.getDate() == null) {
+                            // Need to go back to the genesis block.
+                            earliestTransactionDate = null;
+                        } else {
+                            if (earliestTransactionDate != null) {
+                                earliestTransactionDate = earliestTransactionDate.before(privateKeyAndDate.getDate()) ? earliestTransactionDate
+                                        : privateKeyAndDate.getDate();
+                            }
+                        }
+                    }
                 }
             }
-            return false;
+        }
+
+        List<ECKey> getKeysToAdd() {
+            return keysToAdd;
+        }
+
+        Date getEarliestTransactionDate() {
+            return earliestTransactionDate;
         }
     }
 
@@ -409,6 +409,7 @@ public class OpenWalletAction extends AbstractAction {
                             if( wallet.getLastBlockSeenHash() != null){
                                 syncFromStoredBlock = 
                                     ReplayManager.findBlockInStoredBestChain( bitcoinController.getMultiBitService().getBlockStore() ,
+                                                                              bitcoinController.getMultiBitService().getBlockHeaderIndex() ,
                                                                               wallet.getLastBlockSeenHash() );
                             }
 
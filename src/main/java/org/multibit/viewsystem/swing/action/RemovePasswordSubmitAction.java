@@ -25,6 +25,7 @@ import javax.swing.SwingUtilities;
 
 import org.multibit.controller.Controller;
 import org.multibit.controller.bitcoin.BitcoinController;
+import org.multibit.crypto.DerivedKeyCache;
 import org.multibit.file.BackupManager;
 import org.multibit.file.FileHandler;
 import org.multibit.model.bitcoin.WalletData;
@@ -99,10 +100,10 @@ public class RemovePasswordSubmitAction extends MultiBitSubmitAction implements
 
                             super.bitcoinController.fireWalletBusyChange(true);
 
-                            wallet.decrypt(wallet.getKeyCrypter().deriveKey(CharBuffer.wrap(passwordToUse)));
+                            wallet.decrypt(DerivedKeyCache.INSTANCE.deriveKey(wallet.getKeyCrypter(), CharBuffer.wrap(passwordToUse)));
                             walletInfoData.setWalletVersion(MultiBitWalletVersion.PROTOBUF);
                             perWalletModelData.setDirty(true);
-                            FileHandler fileHandler = new FileHandler(super.bitcoinController);
+                            FileHandler fileHandler = super.bitcoinController.getFileHandler();
                             fileHandler.savePerWalletModelData(perWalletModelData, true);
                             
                             // Backup the wallet and wallet info.
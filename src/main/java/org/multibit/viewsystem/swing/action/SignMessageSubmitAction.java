@@ -18,6 +18,7 @@ package org.multibit.viewsystem.swing.action;
 import com.google.bitcoin.core.*;
 import com.google.bitcoin.crypto.KeyCrypterException;
 import org.multibit.controller.bitcoin.BitcoinController;
+import org.multibit.crypto.DerivedKeyCache;
 import org.multibit.model.bitcoin.WalletBusyListener;
 import org.multibit.utils.WhitespaceTrimmer;
 import org.multibit.viewsystem.swing.MultiBitFrame;
@@ -144,7 +145,7 @@ public class SignMessageSubmitAction extends MultiBitSubmitAction implements Wal
             } else {
                 KeyParameter aesKey = null;
                 if (signingKey.isEncrypted()) {
-                    aesKey = signingKey.getKeyCrypter().deriveKey(walletPassword);
+                    aesKey = DerivedKeyCache.INSTANCE.deriveKey(signingKey.getKeyCrypter(), walletPassword);
                     signingKey = signingKey.decrypt(signingKey.getKeyCrypter(), aesKey);
                 }
 
@@ -0,0 +1,134 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.viewsystem.swing.action;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+import javax.swing.Action;
+import javax.swing.ImageIcon;
+
+import org.multibit.controller.bitcoin.BitcoinController;
+import org.multibit.crypto.BulkMessageSigner;
+import org.multibit.crypto.DerivedKeyCache;
+import org.multibit.model.bitcoin.WalletData;
+import org.multibit.viewsystem.swing.MultiBitFrame;
+import org.multibit.viewsystem.swing.view.panels.SignMessagePanel;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import com.google.bitcoin.core.Wallet;
+
+/**
+ * This {@link Action} signs each message in a file with its address.
+ */
+public class SignMessagesFromFileSubmitAction extends BulkMessageSubmitAction {
+
+    private static final long serialVersionUID = 1923333087598757766L;
+
+    private SignMessagePanel signMessagePanel;
+
+    private WalletData perWalletModelData;
+    private char[] walletPassword;
+
+    /**
+     * Creates a new {@link SignMessagesFromFileSubmitAction}.
+     */
+    public SignMessagesFromFileSubmitAction(BitcoinController bitcoinController, MultiBitFrame mainFrame,
+            SignMessagePanel signMessagePanel, ImageIcon icon) {
+        super(bitcoinController, mainFrame, "signMessagesFromFileAction.text", "signMessagesFromFileAction.tooltip",
+                "signMessagesFromFileAction.mnemonic", icon);
+        this.signMessagePanel = signMessagePanel;
+    }
+
+    @Override
+    protected boolean checkCanProcess() {
+        if (abort() || signMessagePanel == null) {
+            return false;
+        }
+
+        perWalletModelData = bitcoinController.getModel().getActivePerWalletModelData();
+        walletPassword = null;
+        if (perWalletModelData.getWallet().isEncrypted()) {
+            char[] password = signMessagePanel.getWalletPasswordField() == null ? new char[0] : signMessagePanel
+                    .getWalletPasswordField().getPassword();
+            if (password.length == 0) {
+                setMessageText1(controller.getLocaliser().getString("showExportPrivateKeysAction.youMustEnterTheWalletPassword"));
+                setMessageText2(" ");
+                return false;
+            }
+
+            if (!perWalletModelData.getWallet().checkPassword(CharBuffer.wrap(password))) {
+                // The password supplied is incorrect.
+                setMessageText1(controller.getLocaliser().getString("createNewReceivingAddressSubmitAction.passwordIsIncorrect"));
+                setMessageText2(" ");
+                return false;
+            }
+            walletPassword = password;
+        }
+        return true;
+    }
+
+    @Override
+    protected String getOutputFileSuffix() {
+        return "-signed";
+    }
+
+    @Override
+    protected void beforeProcessing() {
+        // Stop the password being changed whilst the messages are signed.
+        perWalletModelData.setBusy(true);
+        perWalletModelData.setBusyTaskKey("signMessagesFromFileAction.text");
+        bitcoinController.fireWalletBusyChange(true);
+    }
+
+    @Override
+    protected BulkMessageSigner.Result processMessages(BulkMessageSigner bulkMessageSigner, Reader input, Writer output,
+            BulkMessageSigner.Format format, BulkMessageSigner.ProgressListener progressListener) throws IOException,
+            InterruptedException {
+        Wallet wallet = perWalletModelData.getWallet();
+
+        // Derive the AES key once for all the messages.
+        KeyParameter aesKey = null;
+        if (walletPassword != null) {
+            aesKey = DerivedKeyCache.INSTANCE.deriveKey(wallet.getKeyCrypter(), CharBuffer.wrap(walletPassword));
+        }
+        return bulkMessageSigner.sign(wallet, aesKey, input, output, format, progressListener);
+    }
+
+    @Override
+    protected void afterProcessing() {
+        if (walletPassword != null) {
+            Arrays.fill(walletPassword, '\0');
+            walletPassword = null;
+        }
+        perWalletModelData.setBusyTaskKey(null);
+        perWalletModelData.setBusy(false);
+        bitcoinController.fireWalletBusyChange(false);
+    }
+
+    @Override
+    protected void setMessageText1(String message1) {
+        signMessagePanel.setMessageText1(message1);
+    }
+
+    @Override
+    protected void setMessageText2(String message2) {
+        signMessagePanel.setMessageText2(message2);
+    }
+}
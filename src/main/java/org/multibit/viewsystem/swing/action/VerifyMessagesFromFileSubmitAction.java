@@ -0,0 +1,75 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.viewsystem.swing.action;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
+import javax.swing.Action;
+import javax.swing.ImageIcon;
+
+import org.multibit.controller.bitcoin.BitcoinController;
+import org.multibit.crypto.BulkMessageSigner;
+import org.multibit.viewsystem.swing.MultiBitFrame;
+import org.multibit.viewsystem.swing.view.panels.VerifyMessagePanel;
+
+/**
+ * This {@link Action} verifies each signed message in a file.
+ */
+public class VerifyMessagesFromFileSubmitAction extends BulkMessageSubmitAction {
+
+    private static final long serialVersionUID = 1923333087598757767L;
+
+    private VerifyMessagePanel verifyMessagePanel;
+
+    /**
+     * Creates a new {@link VerifyMessagesFromFileSubmitAction}.
+     */
+    public VerifyMessagesFromFileSubmitAction(BitcoinController bitcoinController, MultiBitFrame mainFrame,
+            VerifyMessagePanel verifyMessagePanel, ImageIcon icon) {
+        super(bitcoinController, mainFrame, "verifyMessagesFromFileAction.text", "verifyMessagesFromFileAction.tooltip",
+                "verifyMessagesFromFileAction.mnemonic", icon);
+        this.verifyMessagePanel = verifyMessagePanel;
+    }
+
+    @Override
+    protected boolean checkCanProcess() {
+        return verifyMessagePanel != null;
+    }
+
+    @Override
+    protected String getOutputFileSuffix() {
+        return "-verified";
+    }
+
+    @Override
+    protected BulkMessageSigner.Result processMessages(BulkMessageSigner bulkMessageSigner, Reader input, Writer output,
+            BulkMessageSigner.Format format, BulkMessageSigner.ProgressListener progressListener) throws IOException,
+            InterruptedException {
+        return bulkMessageSigner.verify(input, output, format, progressListener);
+    }
+
+    @Override
+    protected void setMessageText1(String message1) {
+        verifyMessagePanel.setMessageText1(message1);
+    }
+
+    @Override
+    protected void setMessageText2(String message2) {
+        verifyMessagePanel.setMessageText2(message2);
+    }
+}
@@ -21,6 +21,7 @@ import javax.swing.table.DefaultTableModel;
 
 import org.multibit.controller.Controller;
 import org.multibit.controller.bitcoin.BitcoinController;
+import org.multibit.model.bitcoin.WalletAddressBook;
 import org.multibit.model.bitcoin.WalletAddressBookData;
 import org.multibit.model.bitcoin.WalletInfoData;
 
@@ -95,10 +96,9 @@ public class AddressBookTableModel extends DefaultTableModel {
             addresses = walletInfo.getSendingAddresses();
         }
 
-        WalletAddressBookData[] addressesArray = addresses.toArray(new WalletAddressBookData[addresses.size()]);
         WalletAddressBookData addressBookData = null;
         if (row >= 0 && row < addresses.size()) {
-            addressBookData = addressesArray[row];
+            addressBookData = addresses.get(row);
         }
 
         if (addressBookData == null) {
@@ -141,7 +141,7 @@ public class AddressBookTableModel extends DefaultTableModel {
             return -1;
         }
 
-        ArrayList<WalletAddressBookData> addresses;
+        WalletAddressBook addresses;
         if (isReceiving) {
             addresses = walletInfo.getReceivingAddresses();
         } else {
@@ -150,15 +150,7 @@ public class AddressBookTableModel extends DefaultTableModel {
 
         if (addresses != null) {
             // prefer the one added later at the same address.
-            for (int row = addresses.size() - 1; row >= 0 ; row--) {
-                WalletAddressBookData loopAddress = addresses.get(row);
-                if (loopAddress != null) {
-                    if (address.equals(loopAddress.getAddress())) {
-                        // select this row in the table
-                        return row;
-                    }
-                }
-            }
+            return addresses.lastIndexOfAddress(address);
         }
         return -1;
     }
@@ -363,6 +363,10 @@ public class CheckPrivateKeysPanel extends JPanel implements Viewable, WalletBus
 
   @Override
   public void navigateAwayFromView() {
+    // Do not carry on checking keys that are no longer on show.
+    if (checkPrivateKeysSubmitAction != null) {
+      checkPrivateKeysSubmitAction.cancel();
+    }
   }
 
   public void setMessageText1(String message1) {
@@ -50,6 +50,7 @@ import org.multibit.viewsystem.swing.ColorAndFontConstants;
 import org.multibit.viewsystem.swing.MultiBitFrame;
 import org.multibit.viewsystem.swing.action.HelpContextAction;
 import org.multibit.viewsystem.swing.action.SignMessageSubmitAction;
+import org.multibit.viewsystem.swing.action.SignMessagesFromFileSubmitAction;
 import org.multibit.viewsystem.swing.view.components.HelpButton;
 import org.multibit.viewsystem.swing.view.components.MultiBitButton;
 import org.multibit.viewsystem.swing.view.components.MultiBitLabel;
@@ -85,6 +86,7 @@ public class SignMessagePanel extends JPanel implements Viewable, WalletBusyList
     private MultiBitLabel signatureLabel;
     
     private SignMessageSubmitAction signMessageSubmitAction;
+    private SignMessagesFromFileSubmitAction signMessagesFromFileSubmitAction;
     private MultiBitButton clearAllButton;
     
     private static final int FIELD_WIDTH = 360;
@@ -591,6 +593,12 @@ public class SignMessagePanel extends JPanel implements Viewable, WalletBusyList
         MultiBitButton submitButton = new MultiBitButton(signMessageSubmitAction, controller);
         submitButton.applyComponentOrientation(ComponentOrientation.getOrientation(controller.getLocaliser().getLocale()));
         buttonPanel.add(submitButton);
+
+        signMessagesFromFileSubmitAction = new SignMessagesFromFileSubmitAction(this.bitcoinController, mainFrame, this,
+                ImageLoader.createImageIcon(ImageLoader.MESSAGE_SIGN_ICON_FILE));
+        MultiBitButton signFileButton = new MultiBitButton(signMessagesFromFileSubmitAction, controller);
+        signFileButton.applyComponentOrientation(ComponentOrientation.getOrientation(controller.getLocaliser().getLocale()));
+        buttonPanel.add(signFileButton);
         
         clearAllButton = new MultiBitButton(controller.getLocaliser().getString("signMessagePanel.clearAll.text"));
         clearAllButton.setToolTipText(controller.getLocaliser().getString("signMessagePanel.clearAll.tooltip"));
@@ -632,6 +640,9 @@ public class SignMessagePanel extends JPanel implements Viewable, WalletBusyList
 
     @Override
     public void navigateAwayFromView() {
+        if (signMessagesFromFileSubmitAction != null) {
+            signMessagesFromFileSubmitAction.cancel();
+        }
     }
 
     public void setMessageText1(String message1) {
@@ -694,11 +705,13 @@ public class SignMessagePanel extends JPanel implements Viewable, WalletBusyList
             signMessageSubmitAction.putValue(Action.SHORT_DESCRIPTION, HelpContentsPanel.createTooltipText(controller.getLocaliser().getString("multiBitSubmitAction.walletIsBusy", 
                     new Object[]{controller.getLocaliser().getString(this.bitcoinController.getModel().getActivePerWalletModelData().getBusyTaskKey())})));
             signMessageSubmitAction.setEnabled(false);           
+            signMessagesFromFileSubmitAction.setEnabled(false);
         } else {
             // Enable unless wallet has been modified by another process.
             if (!this.bitcoinController.getModel().getActivePerWalletModelData().isFilesHaveBeenChangedByAnotherProcess()) {
                 signMessageSubmitAction.putValue(Action.SHORT_DESCRIPTION, HelpContentsPanel.createTooltipText(controller.getLocaliser().getString("signMessageAction.tooltip")));
                 signMessageSubmitAction.setEnabled(true);
+                signMessagesFromFileSubmitAction.setEnabled(true);
             }
         }
     }
@@ -48,6 +48,7 @@ import org.multibit.viewsystem.swing.ColorAndFontConstants;
 import org.multibit.viewsystem.swing.MultiBitFrame;
 import org.multibit.viewsystem.swing.action.HelpContextAction;
 import org.multibit.viewsystem.swing.action.VerifyMessageSubmitAction;
+import org.multibit.viewsystem.swing.action.VerifyMessagesFromFileSubmitAction;
 import org.multibit.viewsystem.swing.view.components.HelpButton;
 import org.multibit.viewsystem.swing.view.components.MultiBitButton;
 import org.multibit.viewsystem.swing.view.components.MultiBitLabel;
@@ -79,6 +80,7 @@ public class VerifyMessagePanel extends JPanel implements Viewable, WalletBusyLi
     private MultiBitLabel signatureLabel;
     
     private VerifyMessageSubmitAction verifyMessageSubmitAction;
+    private VerifyMessagesFromFileSubmitAction verifyMessagesFromFileSubmitAction;
     private MultiBitButton clearAllButton;
     
     private static final int FIELD_WIDTH = 360;
@@ -449,6 +451,12 @@ public class VerifyMessagePanel extends JPanel implements Viewable, WalletBusyLi
         MultiBitButton submitButton = new MultiBitButton(verifyMessageSubmitAction, controller);
         submitButton.applyComponentOrientation(ComponentOrientation.getOrientation(controller.getLocaliser().getLocale()));
         buttonPanel.add(submitButton);
+
+        verifyMessagesFromFileSubmitAction = new VerifyMessagesFromFileSubmitAction(this.bitcoinController, mainFrame, this,
+                ImageLoader.createImageIcon(ImageLoader.MESSAGE_VERIFY_ICON_FILE));
+        MultiBitButton verifyFileButton = new MultiBitButton(verifyMessagesFromFileSubmitAction, controller);
+        verifyFileButton.applyComponentOrientation(ComponentOrientation.getOrientation(controller.getLocaliser().getLocale()));
+        buttonPanel.add(verifyFileButton);
         
         clearAllButton = new MultiBitButton(controller.getLocaliser().getString("signMessagePanel.clearAll.text"));
         clearAllButton.setToolTipText(controller.getLocaliser().getString("signMessagePanel.clearAll.tooltip"));
@@ -483,6 +491,9 @@ public class VerifyMessagePanel extends JPanel implements Viewable, WalletBusyLi
 
     @Override
     public void navigateAwayFromView() {
+        if (verifyMessagesFromFileSubmitAction != null) {
+            verifyMessagesFromFileSubmitAction.cancel();
+        }
     }
 
     public void setMessageText1(String message1) {
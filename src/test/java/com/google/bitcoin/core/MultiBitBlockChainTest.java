@@ -20,9 +20,12 @@ import com.google.bitcoin.core.Wallet.BalanceType;
 import com.google.bitcoin.store.BlockStore;
 import com.google.bitcoin.store.MemoryBlockStore;
 import com.google.bitcoin.utils.BriefLogFormatter;
+import com.google.bitcoin.utils.Threading;
 import org.junit.Before;
 import org.junit.Test;
+import org.multibit.network.BlockHeaderIndex;
 
+import java.io.File;
 import java.math.BigInteger;
 
 import static com.google.bitcoin.core.CoreTestUtils.createFakeBlock;
@@ -345,6 +348,55 @@ public class MultiBitBlockChainTest {
         assertEquals(Utils.toNanoCoins(49, 0), wallet2.getBalance(BalanceType.AVAILABLE));
     }
 
+    @Test
+    public void rewindThenConnectStaleHigherBlock() throws Exception {
+        MultiBitBlockChain multiBitChain = new MultiBitBlockChain(unitTestParams, blockStore);
+        File indexFile = File.createTempFile("multibit", BlockHeaderIndex.class.getSimpleName());
+        indexFile.delete();
+        indexFile.deleteOnExit();
+        BlockHeaderIndex blockHeaderIndex = BlockHeaderIndex.open(indexFile, blockStore);
+        multiBitChain.addListener(blockHeaderIndex, Threading.SAME_THREAD);
+        try {
+            Block[] blocks = new Block[7];
+            blocks[0] = unitTestParams.genesisBlock;
+            for (int i = 1; i <= 5; i++) {
+                blocks[i] = blocks[i - 1].createNextBlock(coinbaseTo);
+                assertTrue(multiBitChain.add(blocks[i]));
+            }
+
+            // A block that is not in the best chain cannot be rewound to.
+            Block sideBlock = blocks[1].createNextBlock(new ECKey().toAddress(unitTestParams));
+            assertTrue(multiBitChain.add(sideBlock));
+            assertFalse(multiBitChain.rewindTo(blockStore.get(sideBlock.getHash()), blockHeaderIndex));
+            assertEquals(5, multiBitChain.getBestChainHeight());
+
+            StoredBlock rewindTo = blockStore.get(blocks[2].getHash());
+            assertTrue(multiBitChain.rewindTo(rewindTo, blockHeaderIndex));
+            assertEquals(2, multiBitChain.getBestChainHeight());
+            assertEquals(rewindTo, blockStore.getChainHead());
+            assertNull(blockHeaderIndex.findBlock(blocks[3].getHash()));
+
+            // A block built on a block left in the store above the chain head is an orphan, not a reorganisation
+            // onto it that skips the blocks being downloaded again.
+            blocks[6] = blocks[5].createNextBlock(coinbaseTo);
+            assertFalse(multiBitChain.add(blocks[6]));
+            assertTrue(multiBitChain.isOrphan(blocks[6].getHash()));
+            assertEquals(2, multiBitChain.getBestChainHeight());
+
+            // The replay downloads the blocks again and the orphan connects once the chain has caught up.
+            for (int i = 3; i <= 5; i++) {
+                assertTrue(multiBitChain.add(blocks[i]));
+                assertEquals(blocks[i].cloneAsHeader(), blockHeaderIndex.findBlock(blocks[i].getHash()).getHeader());
+            }
+            assertEquals(6, multiBitChain.getBestChainHeight());
+            assertEquals(blocks[6].cloneAsHeader(), multiBitChain.getChainHead().getHeader());
+            assertNotNull(blockHeaderIndex.findBlock(blocks[6].getHash()));
+        } finally {
+            blockHeaderIndex.close();
+            indexFile.delete();
+        }
+    }
+
     // Some blocks from the test net.
     private Block getBlock2() throws Exception {
         Block b2 = new Block(testNet);
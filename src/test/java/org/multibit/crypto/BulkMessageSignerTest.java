@@ -0,0 +1,137 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.crypto;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Wallet;
+
+public class BulkMessageSignerTest extends TestCase {
+    private NetworkParameters networkParameters;
+
+    private Wallet wallet;
+
+    private String address;
+
+    private String otherAddress;
+
+    @Override
+    public void setUp() throws Exception {
+        networkParameters = NetworkParameters.prodNet();
+        wallet = new Wallet(networkParameters);
+        ECKey key = new ECKey();
+        wallet.addKey(key);
+        address = key.toAddress(networkParameters).toString();
+        otherAddress = new ECKey().toAddress(networkParameters).toString();
+    }
+
+    @Test
+    public void testSignAndVerifyCsv() throws Exception {
+        String input = "address,message\n" + address + ",\"Hello, world\"\r\n" + address
+                + ",\"A message over\ntwo lines with \"\"quotes\"\"\"\n" + "\n" + otherAddress + ",Not my key\n"
+                + "notAnAddress,Bad address\n";
+
+        StringWriter signed = new StringWriter();
+        BulkMessageSigner.Result signResult = new BulkMessageSigner(networkParameters).sign(wallet, null, new StringReader(input),
+                signed, BulkMessageSigner.Format.CSV, null);
+        assertEquals(4, signResult.getNumberOfMessages());
+        assertEquals(2, signResult.getNumberOfSuccesses());
+
+        String[] signedLines = signed.toString().split("\n");
+        assertEquals("address,message,signature,outcome", signedLines[0]);
+        assertTrue(signedLines[1].startsWith(address + ",\"Hello, world\","));
+        assertTrue(signedLines[1].endsWith("," + BulkMessageSigner.Outcome.SIGNED));
+        assertEquals(otherAddress + ",Not my key,," + BulkMessageSigner.Outcome.NO_SIGNING_KEY, signedLines[4]);
+        assertEquals("notAnAddress,Bad address,," + BulkMessageSigner.Outcome.BAD_ADDRESS, signedLines[5]);
+
+        // The signed output verifies, apart from the two messages that were not signed.
+        StringWriter verified = new StringWriter();
+        BulkMessageSigner.Result verifyResult = new BulkMessageSigner(networkParameters).verify(new StringReader(signed.toString()),
+                verified, BulkMessageSigner.Format.CSV, null);
+        assertEquals(4, verifyResult.getNumberOfMessages());
+        assertEquals(2, verifyResult.getNumberOfSuccesses());
+        assertTrue(verified.toString().contains("\"A message over\ntwo lines with \"\"quotes\"\"\","));
+        assertTrue(verified.toString().contains(otherAddress + ",Not my key,," + BulkMessageSigner.Outcome.MISSING_FIELD));
+    }
+
+    @Test
+    public void testQuoteInsideAnUnquotedCsvField() throws Exception {
+        String input = address + ",ab\"c\n" + otherAddress + ",Next message\n";
+
+        StringWriter signed = new StringWriter();
+        BulkMessageSigner.Result signResult = new BulkMessageSigner(networkParameters).sign(wallet, null, new StringReader(input),
+                signed, BulkMessageSigner.Format.CSV, null);
+        assertEquals(2, signResult.getNumberOfMessages());
+        assertEquals(1, signResult.getNumberOfSuccesses());
+
+        // The quote is part of the message and does not swallow the rest of the input.
+        String[] signedLines = signed.toString().split("\n");
+        assertEquals(3, signedLines.length);
+        assertTrue(signedLines[1].startsWith(address + ",\"ab\"\"c\","));
+        assertTrue(signedLines[1].endsWith("," + BulkMessageSigner.Outcome.SIGNED));
+        assertEquals(otherAddress + ",Next message,," + BulkMessageSigner.Outcome.NO_SIGNING_KEY, signedLines[2]);
+
+        StringWriter verified = new StringWriter();
+        BulkMessageSigner.Result verifyResult = new BulkMessageSigner(networkParameters).verify(new StringReader(signed.toString()),
+                verified, BulkMessageSigner.Format.CSV, null);
+        assertEquals(1, verifyResult.getNumberOfSuccesses());
+    }
+
+    @Test
+    public void testSignAndVerifyJsonLines() throws Exception {
+        StringBuilder input = new StringBuilder();
+        int numberOfMessages = 500;
+        for (int i = 0; i < numberOfMessages; i++) {
+            input.append("{\"address\":\"").append(address).append("\",\"message\":\"Message ").append(i).append("\"}\n");
+        }
+
+        StringWriter signed = new StringWriter();
+        BulkMessageSigner.Result signResult = new BulkMessageSigner(networkParameters).sign(wallet, null,
+                new StringReader(input.toString()), signed, BulkMessageSigner.Format.JSON_LINES, null);
+        assertEquals(numberOfMessages, signResult.getNumberOfMessages());
+        assertEquals(numberOfMessages, signResult.getNumberOfSuccesses());
+
+        // The results are written in the input order.
+        String[] signedLines = signed.toString().split("\n");
+        assertEquals(numberOfMessages, signedLines.length);
+        assertTrue(signedLines[numberOfMessages - 1].contains("\"message\":\"Message " + (numberOfMessages - 1) + "\""));
+
+        // Swap a signature onto the wrong message.
+        String tampered = signed.toString().replace("\"message\":\"Message 7\"", "\"message\":\"Message 8\"");
+
+        StringWriter verified = new StringWriter();
+        BulkMessageSigner.Result verifyResult = new BulkMessageSigner(networkParameters).verify(new StringReader(tampered),
+                verified, BulkMessageSigner.Format.JSON_LINES, null);
+        assertEquals(numberOfMessages, verifyResult.getNumberOfMessages());
+        assertEquals(numberOfMessages - 1, verifyResult.getNumberOfSuccesses());
+        assertTrue(verified.toString().split("\n")[7].contains("\"outcome\":\"" + BulkMessageSigner.Outcome.NOT_VERIFIED + "\""));
+    }
+
+    @Test
+    public void testFormatForFilename() {
+        assertEquals(BulkMessageSigner.Format.JSON_LINES, BulkMessageSigner.Format.forFilename("messages.jsonl"));
+        assertEquals(BulkMessageSigner.Format.JSON_LINES, BulkMessageSigner.Format.forFilename("messages.JSON"));
+        assertEquals(BulkMessageSigner.Format.CSV, BulkMessageSigner.Format.forFilename("messages.csv"));
+        assertEquals(BulkMessageSigner.Format.CSV, BulkMessageSigner.Format.forFilename("messages"));
+    }
+}
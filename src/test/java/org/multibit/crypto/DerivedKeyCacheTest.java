@@ -0,0 +1,108 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.crypto;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.bitcoinj.wallet.Protos;
+import org.junit.Test;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import com.google.bitcoin.crypto.KeyCrypterScrypt;
+import com.google.protobuf.ByteString;
+
+public class DerivedKeyCacheTest extends TestCase {
+    private static final String TEST_PASSWORD = "aTestPassword";
+    private static final String OTHER_PASSWORD = "anotherPassword";
+
+    private KeyCrypterScrypt keyCrypter;
+
+    private SecureRandom secureRandom;
+
+    @Override
+    public void setUp() throws Exception {
+        secureRandom = new SecureRandom();
+        byte[] salt = new byte[KeyCrypterScrypt.SALT_LENGTH];
+        secureRandom.nextBytes(salt);
+        keyCrypter = new KeyCrypterScrypt(Protos.ScryptParameters.newBuilder().setSalt(ByteString.copyFrom(salt)).build());
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        DerivedKeyCache.INSTANCE.setEnabled(false);
+        DerivedKeyCache.INSTANCE.setTimeToLive(DerivedKeyCache.DEFAULT_TIME_TO_LIVE);
+    }
+
+    @Test
+    public void testNothingIsCachedUnlessEnabled() {
+        DerivedKeyCache.INSTANCE.setEnabled(false);
+        KeyParameter aesKey = DerivedKeyCache.INSTANCE.deriveKey(keyCrypter, TEST_PASSWORD);
+
+        assertTrue(Arrays.equals(keyCrypter.deriveKey(TEST_PASSWORD).getKey(), aesKey.getKey()));
+        assertEquals(0, DerivedKeyCache.INSTANCE.size());
+    }
+
+    @Test
+    public void testKeysAreCachedByPassword() {
+        DerivedKeyCache.INSTANCE.setEnabled(true);
+        KeyParameter aesKey = DerivedKeyCache.INSTANCE.deriveKey(keyCrypter, TEST_PASSWORD);
+        KeyParameter cachedAesKey = DerivedKeyCache.INSTANCE.deriveKey(keyCrypter, TEST_PASSWORD);
+
+        assertEquals(1, DerivedKeyCache.INSTANCE.size());
+        assertTrue(Arrays.equals(aesKey.getKey(), cachedAesKey.getKey()));
+
+        // Changing the returned key does not change the cached key.
+        Arrays.fill(cachedAesKey.getKey(), (byte) 0);
+        assertTrue(Arrays.equals(aesKey.getKey(), DerivedKeyCache.INSTANCE.deriveKey(keyCrypter, TEST_PASSWORD).getKey()));
+
+        KeyParameter otherAesKey = DerivedKeyCache.INSTANCE.deriveKey(keyCrypter, OTHER_PASSWORD);
+        assertEquals(2, DerivedKeyCache.INSTANCE.size());
+        assertFalse(Arrays.equals(aesKey.getKey(), otherAesKey.getKey()));
+
+        DerivedKeyCache.INSTANCE.clear();
+        assertEquals(0, DerivedKeyCache.INSTANCE.size());
+    }
+
+    @Test
+    public void testExpiredKeysAreRemoved() {
+        DerivedKeyCache.INSTANCE.setEnabled(true);
+        DerivedKeyCache.INSTANCE.setTimeToLive(0);
+        DerivedKeyCache.INSTANCE.deriveKey(keyCrypter, TEST_PASSWORD);
+        assertEquals(1, DerivedKeyCache.INSTANCE.size());
+
+        DerivedKeyCache.INSTANCE.removeExpiredKeys();
+        assertEquals(0, DerivedKeyCache.INSTANCE.size());
+    }
+
+    @Test
+    public void testEncryptionSaltIsReusedWhilstCached() {
+        DerivedKeyCache.INSTANCE.setEnabled(false);
+        byte[] salt = DerivedKeyCache.INSTANCE.getEncryptionSalt(TEST_PASSWORD, KeyCrypterScrypt.SALT_LENGTH, secureRandom);
+        assertFalse(Arrays.equals(salt,
+                DerivedKeyCache.INSTANCE.getEncryptionSalt(TEST_PASSWORD, KeyCrypterScrypt.SALT_LENGTH, secureRandom)));
+
+        DerivedKeyCache.INSTANCE.setEnabled(true);
+        salt = DerivedKeyCache.INSTANCE.getEncryptionSalt(TEST_PASSWORD, KeyCrypterScrypt.SALT_LENGTH, secureRandom);
+        assertEquals(KeyCrypterScrypt.SALT_LENGTH, salt.length);
+        assertTrue(Arrays.equals(salt,
+                DerivedKeyCache.INSTANCE.getEncryptionSalt(TEST_PASSWORD, KeyCrypterScrypt.SALT_LENGTH, secureRandom)));
+        assertFalse(Arrays.equals(salt,
+                DerivedKeyCache.INSTANCE.getEncryptionSalt(OTHER_PASSWORD, KeyCrypterScrypt.SALT_LENGTH, secureRandom)));
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.crypto;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Wallet;
+
+public class KeyAuditorTest extends TestCase {
+    private NetworkParameters networkParameters;
+
+    @Override
+    public void setUp() throws Exception {
+        networkParameters = NetworkParameters.prodNet();
+    }
+
+    @Test
+    public void testGoodKeysPass() throws Exception {
+        Wallet wallet = new Wallet(networkParameters);
+        for (int i = 0; i < 50; i++) {
+            wallet.addKey(new ECKey());
+        }
+
+        assertTrue(new KeyAuditor(wallet, networkParameters).audit(null, null).isEmpty());
+    }
+
+    @Test
+    public void testEachProblemIsReported() throws Exception {
+        Wallet wallet = new Wallet(networkParameters);
+        ECKey goodKey = new ECKey();
+        wallet.addKey(goodKey);
+
+        // A private key stored with the public key of another key.
+        ECKey mismatchedKey = new ECKey(new ECKey().getPrivKeyBytes(), new ECKey().getPubKey());
+        wallet.addKey(mismatchedKey);
+
+        // A public key with no private key.
+        ECKey watchingKey = new ECKey(null, new ECKey().getPubKey());
+        wallet.addKey(watchingKey);
+
+        // A key that fails whilst it is checked.
+        ECKey brokenKey = new ECKey() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public byte[] getPrivKeyBytes() {
+                throw new IllegalStateException("The private key cannot be read");
+            }
+        };
+        wallet.addKey(brokenKey);
+
+        List<KeyAuditor.KeyFailure> failures = new KeyAuditor(wallet, networkParameters).audit(null, null);
+        assertEquals(3, failures.size());
+        checkFailure(failures.get(0), mismatchedKey, KeyAuditor.Problem.PUBLIC_KEY_MISMATCH);
+        checkFailure(failures.get(1), watchingKey, KeyAuditor.Problem.MISSING_PRIVATE_KEY);
+        checkFailure(failures.get(2), brokenKey, KeyAuditor.Problem.CHECK_FAILED);
+    }
+
+    private void checkFailure(KeyAuditor.KeyFailure failure, ECKey expectedKey, KeyAuditor.Problem expectedProblem) {
+        assertEquals(expectedKey.toAddress(networkParameters).toString(), failure.getAddress());
+        assertEquals(expectedProblem, failure.getProblem());
+    }
+}
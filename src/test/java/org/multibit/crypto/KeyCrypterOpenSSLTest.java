@@ -123,6 +123,9 @@ public class KeyCrypterOpenSSLTest extends TestCase {
         } catch (KeyCrypterException ede) {
             assertTrue(ede.getMessage().indexOf("Could not decrypt") > -1);
         }
+
+        // The failed decrypt leaves nothing behind in this thread's cipher.
+        assertEquals(stringBuffer.toString(), encrypterDecrypter.decrypt(cipherText, PASSWORD2));
     }
 
     public void testEncryptJavaDecryptOpenSSL() throws Exception, IOException {
@@ -310,4 +313,126 @@ public class KeyCrypterOpenSSLTest extends TestCase {
         }
         return stringBuilder.toString();
     }
+
+    @Test
+    public void testEncryptDecryptIntoBuffers() throws Exception {
+        KeyCrypterOpenSSL encrypterDecrypter = new KeyCrypterOpenSSL();
+
+        for (int length = 0; length <= TEST_BYTES1.length; length++) {
+            // Encrypt part of the bytes into the middle of a buffer.
+            byte[] encryptedBuffer = new byte[3 + encrypterDecrypter.getEncryptedLength(length) + 5];
+            int encryptedLength = encrypterDecrypter.encrypt(TEST_BYTES1, 1, length - Math.min(1, length), PASSWORD1,
+                    encryptedBuffer, 3);
+            assertEquals(encrypterDecrypter.getEncryptedLength(length - Math.min(1, length)), encryptedLength);
+
+            byte[] decryptedBuffer = new byte[2 + encryptedLength];
+            int decryptedLength = encrypterDecrypter.decrypt(encryptedBuffer, 3, encryptedLength, PASSWORD1, decryptedBuffer, 2);
+            assertEquals(length - Math.min(1, length), decryptedLength);
+            for (int i = 0; i < decryptedLength; i++) {
+                assertEquals(TEST_BYTES1[1 + i], decryptedBuffer[2 + i]);
+            }
+        }
+    }
+
+    @Test
+    public void testEncryptStreamDecryptsAsString() throws Exception {
+        KeyCrypterOpenSSL encrypterDecrypter = new KeyCrypterOpenSSL();
+
+        StringBuffer stringBuffer = new StringBuffer();
+        for (int i = 0; i < 200; i++) {
+            stringBuffer.append(i + " ").append(TEST_STRING2);
+        }
+
+        ByteArrayOutputStream cipherTextStream = new ByteArrayOutputStream();
+        Writer writer = new OutputStreamWriter(encrypterDecrypter.encrypt(cipherTextStream, PASSWORD3), KeyCrypterOpenSSL.STRING_ENCODING);
+        writer.write(stringBuffer.toString());
+        writer.close();
+
+        String cipherText = new String(cipherTextStream.toByteArray(), KeyCrypterOpenSSL.STRING_ENCODING);
+        assertTrue(cipherText.startsWith(encrypterDecrypter.getOpenSSLMagicText()));
+        assertEquals(stringBuffer.toString(), encrypterDecrypter.decrypt(cipherText, PASSWORD3));
+    }
+
+    @Test
+    public void testDecryptStreamRoundTrip() throws Exception {
+        KeyCrypterOpenSSL encrypterDecrypter = new KeyCrypterOpenSSL();
+
+        // Long enough to need many buffers of the decrypting stream.
+        StringBuffer stringBuffer = new StringBuffer();
+        for (int i = 0; i < 1000; i++) {
+            stringBuffer.append(i + " ").append(TEST_STRING1).append(TEST_STRING2).append("\n");
+        }
+        String cipherText = encrypterDecrypter.encrypt(stringBuffer.toString(), PASSWORD3);
+
+        InputStream plainTextStream = encrypterDecrypter.decrypt(
+                new ByteArrayInputStream(cipherText.getBytes(KeyCrypterOpenSSL.STRING_ENCODING)), PASSWORD3);
+        assertEquals(stringBuffer.toString(), readAll(plainTextStream));
+
+        // Byte at a time reads give the same.
+        plainTextStream = encrypterDecrypter.decrypt(new ByteArrayInputStream(cipherText.getBytes(KeyCrypterOpenSSL.STRING_ENCODING)),
+                PASSWORD3);
+        ByteArrayOutputStream plainTextBytes = new ByteArrayOutputStream();
+        int b;
+        while ((b = plainTextStream.read()) != -1) {
+            plainTextBytes.write(b);
+        }
+        assertEquals(stringBuffer.toString(), new String(plainTextBytes.toByteArray(), KeyCrypterOpenSSL.STRING_ENCODING));
+    }
+
+    @Test
+    public void testDecryptStreamWithWrongPassword() throws Exception {
+        KeyCrypterOpenSSL encrypterDecrypter = new KeyCrypterOpenSSL();
+        String cipherText = encrypterDecrypter.encrypt(TEST_STRING1, PASSWORD1);
+
+        InputStream plainTextStream = encrypterDecrypter.decrypt(
+                new ByteArrayInputStream(cipherText.getBytes(KeyCrypterOpenSSL.STRING_ENCODING)), WRONG_PASSWORD);
+        try {
+            // The padding check at the end of the stream finds the wrong password, unless the
+            // garbage happens to end in valid padding - in which case it is still not the plain text.
+            assertFalse(TEST_STRING1.equals(readAll(plainTextStream)));
+        } catch (KeyCrypterException kce) {
+            assertTrue(kce.getMessage().indexOf("Could not decrypt") > -1);
+        }
+    }
+
+    @Test
+    public void testDecryptTruncatedStream() throws Exception {
+        KeyCrypterOpenSSL encrypterDecrypter = new KeyCrypterOpenSSL();
+        StringBuffer stringBuffer = new StringBuffer();
+        for (int i = 0; i < 100; i++) {
+            stringBuffer.append(i + " ").append(TEST_STRING1);
+        }
+        String cipherText = encrypterDecrypter.encrypt(stringBuffer.toString(), PASSWORD1).replaceAll("\\s", "");
+
+        // Cut off part way through a cipher block.
+        String truncatedCipherText = cipherText.substring(0, cipherText.length() - 12);
+        InputStream plainTextStream = encrypterDecrypter.decrypt(
+                new ByteArrayInputStream(truncatedCipherText.getBytes(KeyCrypterOpenSSL.STRING_ENCODING)), PASSWORD1);
+        try {
+            readAll(plainTextStream);
+            fail("Decrypt of a truncated stream did not throw exception");
+        } catch (KeyCrypterException kce) {
+            assertTrue(kce.getMessage().indexOf("Could not decrypt") > -1);
+        }
+
+        // Cut off in the salt.
+        try {
+            encrypterDecrypter.decrypt(new ByteArrayInputStream(cipherText.substring(0, 12).getBytes(KeyCrypterOpenSSL.STRING_ENCODING)),
+                    PASSWORD1);
+            fail("Decrypt of a stream shorter than the salt did not throw exception");
+        } catch (KeyCrypterException kce) {
+            assertTrue(kce.getMessage().indexOf("too short") > -1);
+        }
+    }
+
+    private String readAll(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        int bytesRead;
+        while ((bytesRead = inputStream.read(buffer)) != -1) {
+            bytes.write(buffer, 0, bytesRead);
+        }
+        inputStream.close();
+        return new String(bytes.toByteArray(), KeyCrypterOpenSSL.STRING_ENCODING);
+    }
 }
@@ -0,0 +1,240 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.crypto;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+
+import org.bitcoinj.wallet.Protos;
+import org.bitcoinj.wallet.Protos.ScryptParameters;
+import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
+import org.junit.Test;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.crypto.KeyCrypter;
+import com.google.bitcoin.crypto.KeyCrypterException;
+import com.google.bitcoin.crypto.KeyCrypterScrypt;
+import com.google.protobuf.ByteString;
+
+public class ParallelKeyCrypterTest extends TestCase {
+    // More than one batch of keys.
+    private static final int NUMBER_OF_KEYS = 150;
+
+    private KeyCrypter keyCrypter;
+    private KeyParameter aesKey;
+    private KeyParameter newAesKey;
+
+    @Override
+    public void setUp() throws Exception {
+        byte[] salt = new byte[KeyCrypterScrypt.SALT_LENGTH];
+        new SecureRandom().nextBytes(salt);
+        ScryptParameters scryptParameters = Protos.ScryptParameters.newBuilder().setSalt(ByteString.copyFrom(salt)).build();
+        keyCrypter = new KeyCrypterScrypt(scryptParameters);
+        aesKey = keyCrypter.deriveKey("the current password");
+        newAesKey = keyCrypter.deriveKey("the new password");
+    }
+
+    @Test
+    public void testCreateKeys() throws Exception {
+        final List<Integer> numbersOfKeysDone = Collections.synchronizedList(new ArrayList<Integer>());
+        List<ECKey> keys = ParallelKeyCrypter.createKeys(NUMBER_OF_KEYS, keyCrypter, aesKey, new ParallelKeyCrypter.ProgressListener() {
+            @Override
+            public void keysDone(int numberOfKeysDone, int numberOfKeys) {
+                assertEquals(NUMBER_OF_KEYS, numberOfKeys);
+                numbersOfKeysDone.add(numberOfKeysDone);
+            }
+        });
+
+        assertEquals(NUMBER_OF_KEYS, keys.size());
+        Set<String> pubKeys = new HashSet<String>();
+        for (int i = 0; i < keys.size(); i++) {
+            ECKey key = keys.get(i);
+            assertTrue("Key " + i + " is not encrypted", key.isEncrypted());
+            ECKey decryptedKey = key.decrypt(keyCrypter, aesKey);
+            assertTrue("Key " + i + " did not decrypt", Arrays.equals(key.getPubKey(), decryptedKey.getPubKey()));
+            pubKeys.add(Utils.bytesToHexString(key.getPubKey()));
+        }
+        assertEquals("The keys are not all different", NUMBER_OF_KEYS, pubKeys.size());
+
+        // Progress is told once for each batch of keys, the last telling all the keys are done.
+        assertEquals((NUMBER_OF_KEYS + ParallelKeyCrypter.KEYS_PER_BATCH - 1) / ParallelKeyCrypter.KEYS_PER_BATCH,
+                numbersOfKeysDone.size());
+        assertEquals(Integer.valueOf(NUMBER_OF_KEYS), Collections.max(numbersOfKeysDone));
+
+        // Keys for an unencrypted wallet are not encrypted.
+        List<ECKey> unencryptedKeys = ParallelKeyCrypter.createKeys(3, null, null, null);
+        assertEquals(3, unencryptedKeys.size());
+        for (ECKey unencryptedKey : unencryptedKeys) {
+            assertFalse(unencryptedKey.isEncrypted());
+            assertNotNull(unencryptedKey.getPrivKeyBytes());
+        }
+    }
+
+    @Test
+    public void testEncryptAndChangeKey() throws Exception {
+        Wallet wallet = new Wallet(NetworkParameters.prodNet());
+        List<byte[]> pubKeys = addKeys(wallet, NUMBER_OF_KEYS);
+
+        ParallelKeyCrypter.encrypt(wallet, keyCrypter, aesKey, null);
+        assertEquals(EncryptionType.ENCRYPTED_SCRYPT_AES, wallet.getEncryptionType());
+        checkKeys(wallet, pubKeys, aesKey);
+
+        ParallelKeyCrypter.changeKey(wallet, aesKey, newAesKey, null);
+        assertTrue(wallet.checkAESKey(newAesKey));
+        assertFalse(wallet.checkAESKey(aesKey));
+        checkKeys(wallet, pubKeys, newAesKey);
+    }
+
+    @Test
+    public void testKeysAddedWhilstEncryptingAreEncrypted() throws Exception {
+        final Wallet wallet = new Wallet(NetworkParameters.prodNet());
+        final List<byte[]> pubKeys = addKeys(wallet, NUMBER_OF_KEYS);
+
+        // Add a key whilst the keys are being encrypted on the key crypter threads.
+        final AtomicBoolean keyAdded = new AtomicBoolean(false);
+        ParallelKeyCrypter.encrypt(wallet, keyCrypter, aesKey, new ParallelKeyCrypter.ProgressListener() {
+            @Override
+            public void keysDone(int numberOfKeysDone, int numberOfKeys) {
+                if (keyAdded.compareAndSet(false, true)) {
+                    pubKeys.addAll(addKeys(wallet, 1));
+                }
+            }
+        });
+        assertTrue(keyAdded.get());
+        checkKeys(wallet, pubKeys, aesKey);
+
+        // And a key whilst they are being re-encrypted.
+        keyAdded.set(false);
+        ParallelKeyCrypter.changeKey(wallet, aesKey, newAesKey, new ParallelKeyCrypter.ProgressListener() {
+            @Override
+            public void keysDone(int numberOfKeysDone, int numberOfKeys) {
+                if (keyAdded.compareAndSet(false, true)) {
+                    ECKey key = new ECKey();
+                    pubKeys.add(key.getPubKey());
+                    wallet.addKey(key.encrypt(keyCrypter, aesKey));
+                }
+            }
+        });
+        assertTrue(keyAdded.get());
+        checkKeys(wallet, pubKeys, newAesKey);
+    }
+
+    @Test
+    public void testChangeKeyWithWrongAesKeyLeavesWalletUnchanged() throws Exception {
+        Wallet wallet = new Wallet(NetworkParameters.prodNet());
+        List<byte[]> pubKeys = addKeys(wallet, NUMBER_OF_KEYS);
+        ParallelKeyCrypter.encrypt(wallet, keyCrypter, aesKey, null);
+        List<ECKey> keysBefore = new ArrayList<ECKey>(wallet.getKeychain());
+
+        try {
+            ParallelKeyCrypter.changeKey(wallet, keyCrypter.deriveKey("not the password"), newAesKey, null);
+            fail("The keys were re-encrypted with the wrong AES key");
+        } catch (KeyCrypterException kce) {
+            // Expected.
+        }
+        assertKeychainIs(keysBefore, wallet);
+        checkKeys(wallet, pubKeys, aesKey);
+    }
+
+    @Test
+    public void testChangeKeyRollsBackWhenTheWalletDoesNotTakeUpTheKeys() throws Exception {
+        final AtomicBoolean failAESKeyCheck = new AtomicBoolean(false);
+        Wallet wallet = new Wallet(NetworkParameters.prodNet()) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public boolean checkAESKey(KeyParameter aesKey) {
+                return !failAESKeyCheck.get() && super.checkAESKey(aesKey);
+            }
+        };
+        List<byte[]> pubKeys = addKeys(wallet, NUMBER_OF_KEYS);
+        ParallelKeyCrypter.encrypt(wallet, keyCrypter, aesKey, null);
+        List<ECKey> keysBefore = new ArrayList<ECKey>(wallet.getKeychain());
+
+        failAESKeyCheck.set(true);
+        try {
+            ParallelKeyCrypter.changeKey(wallet, aesKey, newAesKey, null);
+            fail("The failed AES key check was not reported");
+        } catch (KeyCrypterException kce) {
+            // Expected.
+        }
+        failAESKeyCheck.set(false);
+
+        assertKeychainIs(keysBefore, wallet);
+        checkKeys(wallet, pubKeys, aesKey);
+    }
+
+    @Test
+    public void testEncryptAnEncryptedWalletFails() throws Exception {
+        Wallet wallet = new Wallet(NetworkParameters.prodNet());
+        addKeys(wallet, 1);
+        ParallelKeyCrypter.encrypt(wallet, keyCrypter, aesKey, null);
+        List<ECKey> keysBefore = new ArrayList<ECKey>(wallet.getKeychain());
+
+        try {
+            ParallelKeyCrypter.encrypt(wallet, keyCrypter, newAesKey, null);
+            fail("An encrypted wallet was encrypted again");
+        } catch (KeyCrypterException kce) {
+            // Expected.
+        }
+        assertKeychainIs(keysBefore, wallet);
+    }
+
+    private List<byte[]> addKeys(Wallet wallet, int numberOfKeys) {
+        List<byte[]> pubKeys = new ArrayList<byte[]>();
+        for (int i = 0; i < numberOfKeys; i++) {
+            ECKey key = new ECKey();
+            pubKeys.add(key.getPubKey());
+            wallet.addKey(key);
+        }
+        return pubKeys;
+    }
+
+    /**
+     * Check the wallet has the keys, all encrypted with the AES key.
+     */
+    private void checkKeys(Wallet wallet, List<byte[]> pubKeys, KeyParameter expectedAesKey) {
+        List<ECKey> keychain = wallet.getKeychain();
+        assertEquals(pubKeys.size(), keychain.size());
+        for (int i = 0; i < pubKeys.size(); i++) {
+            ECKey key = keychain.get(i);
+            assertTrue("Key " + i + " is not encrypted", key.isEncrypted());
+            assertTrue("Key " + i + " is not the right key", Arrays.equals(pubKeys.get(i), key.getPubKey()));
+            ECKey decryptedKey = key.decrypt(keyCrypter, expectedAesKey);
+            assertTrue("Key " + i + " did not decrypt", Arrays.equals(pubKeys.get(i), decryptedKey.getPubKey()));
+        }
+    }
+
+    private void assertKeychainIs(List<ECKey> expectedKeys, Wallet wallet) {
+        List<ECKey> keychain = wallet.getKeychain();
+        assertEquals(expectedKeys.size(), keychain.size());
+        for (int i = 0; i < expectedKeys.size(); i++) {
+            assertSame("Key " + i + " was changed", expectedKeys.get(i), keychain.get(i));
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class BackupCatalogTest extends TestCase {
+    private static final String TEST_BACKUP_CATALOG = "testBackupCatalog";
+
+    private File backupDirectory;
+
+    @Override
+    public void setUp() throws Exception {
+        File topLevelDirectory = FileHandler.createTempDirectory(TEST_BACKUP_CATALOG);
+        backupDirectory = new File(topLevelDirectory, BackupManager.ENCRYPTED_WALLET_BACKUP_DIRECTORY_NAME);
+        backupDirectory.mkdir();
+    }
+
+    @Test
+    public void testBackupsAreListedInTimestampOrder() throws IOException {
+        createBackup("test-20140103000000.wallet");
+        createBackup("test-20140101000000.wallet.manifest");
+        createBackup("test-20140102000000.wallet");
+        createBackup("test-20140104000000.info");
+        createBackup("notABackup.wallet");
+
+        List<File> backups = new BackupCatalog(backupDirectory).getBackups();
+        assertEquals(3, backups.size());
+        assertEquals("test-20140101000000.wallet.manifest", backups.get(0).getName());
+        assertEquals("test-20140102000000.wallet", backups.get(1).getName());
+        assertEquals("test-20140103000000.wallet", backups.get(2).getName());
+    }
+
+    @Test
+    public void testMostQuicklyReplacedBackupIsThinned() throws IOException {
+        BackupCatalog catalog = new BackupCatalog(backupDirectory);
+        for (int day = 1; day <= 9; day++) {
+            catalog.added(createBackup("test-2014010" + day + "000000.wallet"));
+        }
+        // Replaced after an hour.
+        catalog.added(createBackup("test-20140103010000.wallet"));
+
+        assertNull("Thinned below the maximum", catalog.findBackupToThin(11, 2, 2));
+        File backupToThin = catalog.findBackupToThin(10, 2, 2);
+        assertNotNull(backupToThin);
+        assertEquals("test-20140103000000.wallet", backupToThin.getName());
+
+        // The first and last backups are always kept.
+        assertEquals("test-20140103010000.wallet", catalog.findBackupToThin(10, 3, 2).getName());
+        backupToThin.delete();
+        catalog.removed(backupToThin);
+        assertEquals(9, catalog.size());
+        assertEquals("test-20140103010000.wallet", catalog.findBackupToThin(9, 2, 2).getName());
+        assertNull(catalog.findBackupToThin(9, 9, 0));
+    }
+
+    @Test
+    public void testCatalogIsReadBackAndRebuiltAfterAnOutsideChange() throws IOException {
+        BackupCatalog catalog = new BackupCatalog(backupDirectory);
+        catalog.added(createBackup("test-20140101000000.wallet"));
+        catalog.added(createBackup("test-20140102000000.wallet"));
+        assertTrue(new File(backupDirectory.getParentFile(), backupDirectory.getName() + "." + BackupCatalog.CATALOG_FILE_EXTENSION).exists());
+
+        // A new catalog reads the saved one.
+        assertEquals(2, new BackupCatalog(backupDirectory).size());
+
+        // A backup copied in by hand is picked up.
+        createBackup("test-20140103000000.wallet");
+        backupDirectory.setLastModified(backupDirectory.lastModified() + 2000);
+        assertEquals(3, catalog.size());
+        assertEquals(3, new BackupCatalog(backupDirectory).size());
+    }
+
+    private File createBackup(String filename) throws IOException {
+        File backupFile = new File(backupDirectory, filename);
+        FileHandler.writeFile(new byte[] { 1, 2, 3 }, backupFile);
+        return backupFile;
+    }
+}
@@ -0,0 +1,231 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.file;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class BackupChunkStoreTest extends TestCase {
+    private static final String TEST_BACKUP_CHUNK_STORE = "testBackupChunkStore";
+
+    private File backupDirectory;
+    private File chunkDirectory;
+    private BackupChunkStore chunkStore;
+
+    @Override
+    public void setUp() throws Exception {
+        File topLevelDirectory = FileHandler.createTempDirectory(TEST_BACKUP_CHUNK_STORE);
+        backupDirectory = new File(topLevelDirectory, BackupManager.ENCRYPTED_WALLET_BACKUP_DIRECTORY_NAME);
+        backupDirectory.mkdir();
+        chunkDirectory = new File(topLevelDirectory, BackupManager.BACKUP_CHUNK_DIRECTORY_NAME);
+        chunkStore = new BackupChunkStore(chunkDirectory, new File[] { backupDirectory });
+    }
+
+    @Test
+    public void testUnchangedBytesAreOnlyStoredOnce() throws IOException {
+        byte[] content = createContent(200000);
+
+        File firstBackup = new File(backupDirectory, "test-20140101000000.wallet.manifest");
+        chunkStore.store(firstBackup, content);
+        int chunksAfterFirstBackup = countChunks();
+        assertTrue("The content was not split into chunks", chunksAfterFirstBackup > 1);
+
+        // Identical content costs only a manifest.
+        File secondBackup = new File(backupDirectory, "test-20140101000100.wallet.manifest");
+        chunkStore.store(secondBackup, content);
+        assertEquals("Identical content added chunks", chunksAfterFirstBackup, countChunks());
+
+        // Inserting bytes in the middle only changes the chunks around the insertion.
+        byte[] changedContent = new byte[content.length + 100];
+        System.arraycopy(content, 0, changedContent, 0, 100000);
+        System.arraycopy(content, 100000, changedContent, 100100, content.length - 100000);
+        File thirdBackup = new File(backupDirectory, "test-20140101000200.wallet.manifest");
+        chunkStore.store(thirdBackup, changedContent);
+        assertTrue("Too many chunks were added for a small change", countChunks() <= chunksAfterFirstBackup + 3);
+
+        assertTrue("The first backup did not read back", Arrays.equals(content, chunkStore.read(firstBackup)));
+        assertTrue("The third backup did not read back", Arrays.equals(changedContent, chunkStore.read(thirdBackup)));
+    }
+
+    @Test
+    public void testRemoveOnlyDeletesUnreferencedChunks() throws IOException {
+        byte[] content = createContent(100000);
+        byte[] otherContent = createContent(50000);
+
+        File firstBackup = new File(backupDirectory, "test-20140101000000.wallet.manifest");
+        chunkStore.store(firstBackup, content);
+        File secondBackup = new File(backupDirectory, "test-20140101000100.wallet.manifest");
+        chunkStore.store(secondBackup, content);
+        int sharedChunks = countChunks();
+        File thirdBackup = new File(backupDirectory, "test-20140101000200.wallet.manifest");
+        chunkStore.store(thirdBackup, otherContent);
+
+        // The chunks of the first backup are still used by the second.
+        chunkStore.remove(firstBackup);
+        assertFalse(firstBackup.exists());
+        assertTrue(Arrays.equals(content, chunkStore.read(secondBackup)));
+
+        // Once the third backup is removed only the shared chunks are left.
+        chunkStore.remove(thirdBackup);
+        assertEquals(sharedChunks, countChunks());
+        assertTrue(Arrays.equals(content, chunkStore.read(secondBackup)));
+    }
+
+    @Test
+    public void testRemoveOnlyReadsTheRemovedManifest() throws IOException {
+        byte[] content = createContent(100000);
+        byte[] otherContent = createContent(50000);
+
+        File firstBackup = new File(backupDirectory, "test-20140101000000.wallet.manifest");
+        chunkStore.store(firstBackup, content);
+        int chunksOfFirstBackup = countChunks();
+        File secondBackup = new File(backupDirectory, "test-20140101000100.wallet.manifest");
+        chunkStore.store(secondBackup, otherContent);
+
+        // Damage the first manifest. The chunks of the second are still counted, so they are deleted with it.
+        RandomAccessFile randomAccessFile = new RandomAccessFile(firstBackup, "rw");
+        try {
+            randomAccessFile.writeInt(0);
+        } finally {
+            randomAccessFile.close();
+        }
+        chunkStore.remove(secondBackup);
+        assertFalse(secondBackup.exists());
+        assertEquals(chunksOfFirstBackup, countChunks());
+    }
+
+    @Test
+    public void testLeftOverChunksAreDeletedWhenTheStoreIsFirstUsed() throws IOException {
+        byte[] content = createContent(100000);
+        File backup = new File(backupDirectory, "test-20140101000000.wallet.manifest");
+        chunkStore.store(backup, content);
+        int chunks = countChunks();
+
+        // A chunk left behind by a backup that did not complete.
+        File storedChunk = chunkDirectory.listFiles()[0].listFiles()[0];
+        File leftOverChunk = chunkStore.getChunkFile(new byte[32]);
+        leftOverChunk.getParentFile().mkdirs();
+        FileHandler.copyFile(storedChunk, leftOverChunk);
+        assertEquals(chunks + 1, countChunks());
+
+        // The chunks are counted by the first use of a newly created store.
+        BackupChunkStore newChunkStore = new BackupChunkStore(chunkDirectory, new File[] { backupDirectory });
+        File otherBackup = new File(backupDirectory, "test-20140101000100.wallet.manifest");
+        newChunkStore.store(otherBackup, content);
+        assertFalse(leftOverChunk.exists());
+        assertEquals(chunks, countChunks());
+
+        // Removing one of the two backups of the same content keeps the chunks, removing both deletes them.
+        newChunkStore.remove(backup);
+        assertEquals(chunks, countChunks());
+        assertTrue(Arrays.equals(content, newChunkStore.read(otherBackup)));
+        newChunkStore.remove(otherBackup);
+        assertEquals(0, countChunks());
+    }
+
+    @Test
+    public void testStreamReadsTheContentChunkByChunk() throws IOException {
+        byte[] content = createContent(200000);
+        File backup = new File(backupDirectory, "test-20140101000000.wallet.manifest");
+        chunkStore.store(backup, content);
+
+        assertTrue("The streamed backup did not read back", Arrays.equals(content, readStream(backup)));
+
+        // An empty backup streams as no bytes.
+        File emptyBackup = new File(backupDirectory, "test-20140101000100.wallet.manifest");
+        chunkStore.store(emptyBackup, new byte[0]);
+        assertEquals(0, readStream(emptyBackup).length);
+    }
+
+    @Test
+    public void testDamagedChunkIsDetected() throws IOException {
+        byte[] content = createContent(10000);
+        File backup = new File(backupDirectory, "test-20140101000000.wallet.manifest");
+        chunkStore.store(backup, content);
+
+        // Damage a chunk.
+        File chunkFile = chunkDirectory.listFiles()[0].listFiles()[0];
+        RandomAccessFile randomAccessFile = new RandomAccessFile(chunkFile, "rw");
+        try {
+            randomAccessFile.seek(randomAccessFile.length() / 2);
+            int value = randomAccessFile.read();
+            randomAccessFile.seek(randomAccessFile.length() / 2);
+            randomAccessFile.write(value ^ 0xFF);
+        } finally {
+            randomAccessFile.close();
+        }
+
+        try {
+            chunkStore.read(backup);
+            fail("A damaged chunk was not detected");
+        } catch (IOException ioe) {
+            // Success.
+        }
+        try {
+            readStream(backup);
+            fail("A damaged chunk was not detected whilst streaming");
+        } catch (IOException ioe) {
+            // Success.
+        }
+    }
+
+    private byte[] readStream(File backup) throws IOException {
+        ByteArrayOutputStream streamedContent = new ByteArrayOutputStream();
+        InputStream inputStream = chunkStore.openStream(backup);
+        try {
+            // Smaller than a chunk, so reads are served from within chunks and across their ends.
+            byte[] buffer = new byte[1000];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                streamedContent.write(buffer, 0, read);
+            }
+            assertEquals(-1, inputStream.read());
+        } finally {
+            inputStream.close();
+        }
+        return streamedContent.toByteArray();
+    }
+
+    private byte[] createContent(int length) {
+        // Wallets are repetitive so only randomise some of the bytes, as otherwise nothing compresses.
+        Random random = new Random(length);
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = (i % 4 == 0) ? (byte) random.nextInt() : (byte) (i % 7);
+        }
+        return content;
+    }
+
+    private int countChunks() {
+        int chunks = 0;
+        File[] chunkSubDirectories = chunkDirectory.listFiles();
+        if (chunkSubDirectories != null) {
+            for (File chunkSubDirectory : chunkSubDirectories) {
+                chunks += chunkSubDirectory.listFiles().length;
+            }
+        }
+        return chunks;
+    }
+}
@@ -43,6 +43,7 @@ import com.google.bitcoin.core.NetworkParameters;
 import com.google.bitcoin.core.Utils;
 import com.google.bitcoin.core.Wallet;
 import com.google.bitcoin.crypto.KeyCrypter;
+import com.google.bitcoin.crypto.KeyCrypterException;
 import com.google.bitcoin.crypto.KeyCrypterScrypt;
 import com.google.protobuf.ByteString;
 
@@ -115,6 +116,39 @@ public class BackupManagerTest extends TestCase {
         assertTrue("The wallet after the encrypt save roundtrip has changed", Arrays.areEqual(sourceBytes, decryptedWalletBytes));
     }
     
+    @Test
+    public void testLargeFileCopyAndEncryptIsChunked() throws IOException {
+        File temporaryFile = File.createTempFile(TEST_FILE_COPY_AND_ENCRYPT, ".wallet");
+        temporaryFile.deleteOnExit();
+
+        File temporaryFileCopy = File.createTempFile(TEST_FILE_COPY_AND_ENCRYPT, ".wallet.cipher");
+        temporaryFileCopy.deleteOnExit();
+        temporaryFileCopy.delete();
+
+        // Several chunks with a partial last chunk.
+        byte[] sourceBytes = new byte[BackupManager.ENCRYPTED_FILE_CHUNK_LENGTH * 3 + 1234];
+        new SecureRandom().nextBytes(sourceBytes);
+        FileHandler.writeFile(sourceBytes, temporaryFile);
+
+        BackupManager.INSTANCE.copyFileAndEncrypt(temporaryFile, temporaryFileCopy, WALLET_PASSWORD);
+        byte[] encryptedBytes = FileHandler.read(temporaryFileCopy);
+        assertEquals("Wrong format version", BackupManager.FILE_ENCRYPTED_STREAMING_VERSION_NUMBER,
+                encryptedBytes[BackupManager.ENCRYPTED_FILE_FORMAT_MAGIC_BYTES.length]);
+
+        byte[] decryptedBytes = BackupManager.INSTANCE.readFileAndDecrypt(temporaryFileCopy, WALLET_PASSWORD);
+        assertTrue("The file after the encrypt save roundtrip has changed", Arrays.areEqual(sourceBytes, decryptedBytes));
+
+        // Damage the second chunk - its authentication tag no longer matches.
+        encryptedBytes[BackupManager.ENCRYPTED_FILE_CHUNK_LENGTH + 1000] ^= 0x01;
+        FileHandler.writeFile(encryptedBytes, temporaryFileCopy);
+        try {
+            BackupManager.INSTANCE.readFileAndDecrypt(temporaryFileCopy, WALLET_PASSWORD);
+            fail("A damaged encrypted file was decrypted");
+        } catch (KeyCrypterException kce) {
+            // Success.
+        }
+    }
+
     @Test
     public void checkSaltAndIVLength() {
         // If something changes in the KeyCrypterScrypt it would cause backwards compatibility problems reading and writing
@@ -232,7 +266,7 @@ public class BackupManagerTest extends TestCase {
         byte[] originalBytes = FileHandler.read(temporaryWallet);
  
         // Read the backup wallet back in.
-        byte[] backupBytes = FileHandler.read(backupWallets.get(0));
+        byte[] backupBytes = BackupManager.INSTANCE.readBackup(backupWallets.get(0));
 
         assertNotNull("The originally saved wallet was not read back in ok.1", originalBytes);
         assertTrue("The originally saved wallet was not read back in ok.2", originalBytes.length > 0);
@@ -290,7 +324,7 @@ public class BackupManagerTest extends TestCase {
         byte[] originalBytes = FileHandler.read(temporaryWallet);
  
         // Read the backup wallet back in.
-        byte[] backupBytes = FileHandler.read(backupWallets.get(0));
+        byte[] backupBytes = BackupManager.INSTANCE.readBackup(backupWallets.get(0));
 
         assertNotNull("The originally saved wallet was not read back in ok.1", originalBytes);
         assertTrue("The originally saved wallet was not read back in ok.2", originalBytes.length > 0);
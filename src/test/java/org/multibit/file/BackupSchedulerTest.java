@@ -0,0 +1,150 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.file;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.multibit.CreateControllers;
+import org.multibit.controller.bitcoin.BitcoinController;
+import org.multibit.model.bitcoin.WalletData;
+import org.multibit.model.bitcoin.WalletInfoData;
+import org.multibit.store.MultiBitWalletVersion;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Wallet;
+
+public class BackupSchedulerTest extends TestCase {
+    private static final String TEST_BACKUP_SCHEDULER_PREFIX = "testBackupScheduler";
+
+    private static final int TIME_TO_WAIT_FOR_BACKUP_TO_START = 5000; // milliseconds
+
+    private BitcoinController controller;
+
+    private BackupScheduler backupScheduler;
+
+    @Override
+    public void setUp() throws Exception {
+        final CreateControllers.Controllers controllers = CreateControllers.createControllers();
+        controller = controllers.bitcoinController;
+        backupScheduler = new BackupScheduler(controller, controller.getFileHandler());
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        backupScheduler.shutdown();
+    }
+
+    @Test
+    public void testBackupsAreCoalescedAndPasswordsWiped() throws Exception {
+        WalletData blockingWallet = createSavedWallet();
+        WalletData walletToBackup = createSavedWallet();
+
+        Future<Void> secondBackup;
+        char[] firstPassword;
+        char[] secondPassword;
+        Future<Void> blockingBackup;
+
+        // Hold the wallet info lock so the first backup blocks the backup thread.
+        synchronized (blockingWallet.getWalletInfo()) {
+            blockingBackup = backupScheduler.schedule(blockingWallet, null, false, false);
+            waitForBackupToStart();
+
+            Future<Void> firstBackup = backupScheduler.schedule(walletToBackup, "first password", false, false);
+            firstPassword = backupScheduler.getPendingPassword(walletToBackup.getWalletFilename());
+            assertEquals("first password", new String(firstPassword));
+
+            // The second request is merged into the first as it has not started. The latest password wins.
+            secondBackup = backupScheduler.schedule(walletToBackup, "second password", true, false);
+            assertSame(firstBackup, secondBackup);
+            assertEquals(1, backupScheduler.getNumberOfPendingBackups());
+            secondPassword = backupScheduler.getPendingPassword(walletToBackup.getWalletFilename());
+            assertEquals("second password", new String(secondPassword));
+            assertTrue("The replaced password was not wiped", isWiped(firstPassword));
+            assertFalse(blockingBackup.isDone());
+        }
+
+        backupScheduler.flush();
+        assertTrue(blockingBackup.isDone());
+        assertTrue(secondBackup.isDone());
+        assertEquals(0, backupScheduler.getNumberOfPendingBackups());
+        assertNull(backupScheduler.getPendingPassword(walletToBackup.getWalletFilename()));
+        assertTrue("The password was not wiped after the backup", isWiped(secondPassword));
+    }
+
+    @Test
+    public void testBackupsNeverRunOnTheCallersThread() throws Exception {
+        WalletData blockingWallet = createSavedWallet();
+        List<Future<Void>> backups = new ArrayList<Future<Void>>();
+
+        synchronized (blockingWallet.getWalletInfo()) {
+            backupScheduler.schedule(blockingWallet, null, false, false);
+            waitForBackupToStart();
+
+            // More wallets than the old bounded queue held - none of them is run here.
+            for (int i = 0; i < 20; i++) {
+                backups.add(backupScheduler.schedule(createSavedWallet(), null, false, false));
+            }
+            for (Future<Void> backup : backups) {
+                assertFalse("A backup ran on the caller's thread", backup.isDone());
+            }
+        }
+
+        backupScheduler.flush();
+        for (Future<Void> backup : backups) {
+            assertTrue(backup.isDone());
+        }
+    }
+
+    private void waitForBackupToStart() throws InterruptedException {
+        long start = System.currentTimeMillis();
+        while (backupScheduler.getNumberOfPendingBackups() > 0) {
+            assertTrue("The backup did not start", System.currentTimeMillis() - start < TIME_TO_WAIT_FOR_BACKUP_TO_START);
+            Thread.sleep(10);
+        }
+    }
+
+    private boolean isWiped(char[] password) {
+        for (char character : password) {
+            if (character != '\0') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private WalletData createSavedWallet() throws Exception {
+        File temporaryWallet = File.createTempFile(TEST_BACKUP_SCHEDULER_PREFIX, ".wallet");
+        temporaryWallet.deleteOnExit();
+        String walletFilename = temporaryWallet.getAbsolutePath();
+
+        Wallet wallet = new Wallet(NetworkParameters.prodNet());
+        wallet.getKeychain().add(new ECKey());
+        WalletData perWalletModelData = new WalletData();
+        perWalletModelData.setWalletInfo(new WalletInfoData(walletFilename, wallet, MultiBitWalletVersion.PROTOBUF));
+        perWalletModelData.setWallet(wallet);
+        perWalletModelData.setWalletFilename(walletFilename);
+        perWalletModelData.setWalletDescription(TEST_BACKUP_SCHEDULER_PREFIX);
+        controller.getFileHandler().savePerWalletModelData(perWalletModelData, true);
+        return perWalletModelData;
+    }
+}
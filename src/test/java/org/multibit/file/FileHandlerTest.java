@@ -42,6 +42,7 @@ import java.math.BigInteger;
 import java.security.SecureRandom;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.concurrent.Future;
 
 import static junit.framework.Assert.*;
 
@@ -62,6 +63,8 @@ public class FileHandlerTest {
     private static final String TEST_WALLET_VERSION_2_PREFIX = "testWalletVersion";
 
     private static final String TEST_SCRYPT_PARAMETERS = "testScryptParameters";
+
+    private static final String TEST_BACKGROUND_SAVE_PREFIX = "testBackgroundSave";
     
     private final CharSequence WALLET_PASSWORD = "horatio nelson 123";
 
@@ -487,4 +490,83 @@ public class FileHandlerTest {
         WalletInfoData rebornWalletInfo = perWalletModelDataReborn.getWalletInfo();
         assertEquals("Wallet version was incorrect.", MultiBitWalletVersion.PROTOBUF, rebornWalletInfo.getWalletVersion());;
     }
+
+    @Test
+    public void testBackgroundSaveIsCoalescedAndAtomic() throws Exception {
+        File temporaryWallet = File.createTempFile(TEST_BACKGROUND_SAVE_PREFIX, ".wallet");
+        temporaryWallet.deleteOnExit();
+
+        String newWalletFilename = temporaryWallet.getAbsolutePath();
+
+        Wallet newWallet = new Wallet(NetworkParameters.prodNet());
+        newWallet.getKeychain().add(new ECKey());
+        WalletData perWalletModelData = new WalletData();
+        WalletInfoData walletInfo = new WalletInfoData(newWalletFilename, newWallet, MultiBitWalletVersion.PROTOBUF);
+
+        perWalletModelData.setWalletInfo(walletInfo);
+        perWalletModelData.setWallet(newWallet);
+        perWalletModelData.setWalletFilename(newWalletFilename);
+        perWalletModelData.setWalletDescription(TEST_BACKGROUND_SAVE_PREFIX);
+
+        // Marking the wallet as dirty queues a delayed save, so the saves queued after it have not started.
+        FileHandler backgroundFileHandler = controller.getFileHandler();
+        int numberOfSavesWrittenBefore = backgroundFileHandler.getNumberOfBackgroundSavesWritten();
+        backgroundFileHandler.walletDirty(perWalletModelData);
+
+        // Queue a number of saves - they all share the one slot.
+        Future<Void> firstSave = backgroundFileHandler.savePerWalletModelDataInBackground(perWalletModelData, true);
+        for (int i = 0; i < 10; i++) {
+            assertSame(firstSave, backgroundFileHandler.savePerWalletModelDataInBackground(perWalletModelData, true));
+        }
+
+        // Bring the delayed save forward.
+        backgroundFileHandler.waitForBackgroundSaves();
+        firstSave.get();
+        assertEquals(1, backgroundFileHandler.getNumberOfBackgroundSavesWritten() - numberOfSavesWrittenBefore);
+
+        // The wallet was written and can be loaded.
+        File newWalletFile = new File(newWalletFilename);
+        assertTrue(newWalletFile.exists());
+        assertTrue(new File(WalletInfoData.createWalletInfoFilename(newWalletFilename)).exists());
+        WalletData perWalletModelDataReborn = fileHandler.loadFromFile(newWalletFile);
+        assertNotNull(perWalletModelDataReborn);
+        assertEquals(TEST_BACKGROUND_SAVE_PREFIX, perWalletModelDataReborn.getWalletDescription());
+
+        // No temporary files are left next to the wallet.
+        File[] siblingFiles = newWalletFile.getParentFile().listFiles();
+        for (File siblingFile : siblingFiles) {
+            if (siblingFile.getName().startsWith(newWalletFile.getName())) {
+                assertFalse("Temporary file was left behind : " + siblingFile.getName(), siblingFile.getName().endsWith(".tmp"));
+            }
+        }
+    }
+
+    @Test
+    public void testDirtyWalletIsSavedWhenItBecomesDirty() throws Exception {
+        File temporaryWallet = File.createTempFile(TEST_BACKGROUND_SAVE_PREFIX, ".wallet");
+        temporaryWallet.deleteOnExit();
+
+        String newWalletFilename = temporaryWallet.getAbsolutePath();
+
+        Wallet newWallet = new Wallet(NetworkParameters.prodNet());
+        newWallet.getKeychain().add(new ECKey());
+        WalletData perWalletModelData = new WalletData();
+        perWalletModelData.setWalletInfo(new WalletInfoData(newWalletFilename, newWallet, MultiBitWalletVersion.PROTOBUF));
+        perWalletModelData.setWallet(newWallet);
+        perWalletModelData.setWalletFilename(newWalletFilename);
+        perWalletModelData.setWalletDescription(TEST_BACKGROUND_SAVE_PREFIX);
+        controller.getFileHandler().savePerWalletModelData(perWalletModelData, true);
+        assertFalse(perWalletModelData.isDirty());
+
+        // Marking the wallet as dirty queues a save - there is no need to wait for a timer.
+        perWalletModelData.setWalletDescription(TEST_BACKGROUND_SAVE_PREFIX + "changed");
+        assertTrue(perWalletModelData.isDirty());
+        controller.getFileHandler().waitForBackgroundSaves();
+        assertFalse(perWalletModelData.isDirty());
+
+        // The save was our own so it is not seen as a change by another process.
+        assertFalse(controller.getFileHandler().haveFilesChanged(perWalletModelData));
+        WalletData perWalletModelDataReborn = new FileHandler(controller).loadFromFile(temporaryWallet);
+        assertEquals(TEST_BACKGROUND_SAVE_PREFIX + "changed", perWalletModelDataReborn.getWalletDescription());
+    }
 }
@@ -0,0 +1,137 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.file;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.google.bitcoin.core.CoreTestUtils;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionInput;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.core.WalletEventListener;
+import com.google.bitcoin.crypto.TransactionSignature;
+import com.google.bitcoin.script.ScriptBuilder;
+
+public class KeyUsageIndexTest extends TestCase {
+    private NetworkParameters params;
+
+    @Override
+    public void setUp() throws Exception {
+        params = NetworkParameters.prodNet();
+    }
+
+    @Test
+    public void testUsageDatesFromOutputsAndInputs() throws Exception {
+        ECKey receivingKey = new ECKey();
+        ECKey spendingKey = new ECKey();
+        ECKey unusedKey = new ECKey();
+
+        List<Transaction> transactions = new ArrayList<Transaction>();
+        transactions.add(createTransaction(null, receivingKey, new Date(3000)));
+        transactions.add(createTransaction(spendingKey, null, new Date(2000)));
+        transactions.add(createTransaction(null, receivingKey, new Date(1000)));
+        transactions.add(createTransaction(spendingKey, null, new Date(4000)));
+
+        KeyUsageIndex keyUsageIndex = new KeyUsageIndex(transactions);
+
+        // Paid to in outputs.
+        assertEquals(new Date(1000), keyUsageIndex.getEarliestUsageDate(receivingKey));
+        assertEquals(new Date(3000), keyUsageIndex.getLatestUsageDate(receivingKey));
+
+        // Spent from in inputs, found by the hash of the pubkey in the scriptSig.
+        assertEquals(new Date(2000), keyUsageIndex.getEarliestUsageDate(spendingKey));
+        assertEquals(new Date(4000), keyUsageIndex.getLatestUsageDate(spendingKey));
+
+        assertNull(keyUsageIndex.getEarliestUsageDate(unusedKey));
+        assertNull(keyUsageIndex.getLatestUsageDate(unusedKey));
+    }
+
+    @Test
+    public void testIndexIsRebuiltWhenTheTransactionCountChanges() throws Exception {
+        ECKey key = new ECKey();
+        Wallet wallet = new Wallet(params);
+        wallet.addKey(key);
+
+        KeyUsageIndex keyUsageIndex = KeyUsageIndex.forWallet(wallet);
+        assertNull(keyUsageIndex.getEarliestUsageDate(key));
+        assertSame(keyUsageIndex, KeyUsageIndex.forWallet(wallet));
+
+        // The count changes straight away, before the wallet events are delivered.
+        Transaction transaction = CoreTestUtils.createFakeTx(params, Utils.toNanoCoins(1, 0), key.toAddress(params));
+        transaction.setUpdateTime(new Date(5000));
+        wallet.receivePending(transaction, null);
+
+        KeyUsageIndex rebuiltKeyUsageIndex = KeyUsageIndex.forWallet(wallet);
+        assertNotSame(keyUsageIndex, rebuiltKeyUsageIndex);
+        Date updateTime = wallet.getTransaction(transaction.getHash()).getUpdateTime();
+        assertEquals(updateTime, rebuiltKeyUsageIndex.getEarliestUsageDate(key));
+        assertEquals(updateTime, rebuiltKeyUsageIndex.getLatestUsageDate(key));
+    }
+
+    @Test
+    public void testIndexIsRebuiltWhenTheWalletChanges() throws Exception {
+        final List<WalletEventListener> walletEventListeners = new ArrayList<WalletEventListener>();
+        Wallet wallet = new Wallet(params) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public void addEventListener(WalletEventListener listener) {
+                walletEventListeners.add(listener);
+                super.addEventListener(listener);
+            }
+        };
+        ECKey key = new ECKey();
+        wallet.addKey(key);
+
+        KeyUsageIndex keyUsageIndex = KeyUsageIndex.forWallet(wallet);
+        assertSame(keyUsageIndex, KeyUsageIndex.forWallet(wallet));
+        assertFalse("The index does not listen to the wallet", walletEventListeners.isEmpty());
+
+        // A change that leaves the number of transactions the same.
+        for (WalletEventListener walletEventListener : walletEventListeners) {
+            walletEventListener.onWalletChanged(wallet);
+        }
+
+        KeyUsageIndex rebuiltKeyUsageIndex = KeyUsageIndex.forWallet(wallet);
+        assertNotSame(keyUsageIndex, rebuiltKeyUsageIndex);
+        assertSame(rebuiltKeyUsageIndex, KeyUsageIndex.forWallet(wallet));
+    }
+
+    /**
+     * Create a transaction that spends from the spendingKey, if there is one, and pays the receivingKey, if there is one.
+     */
+    private Transaction createTransaction(ECKey spendingKey, ECKey receivingKey, Date updateTime) {
+        Transaction transaction = new Transaction(params);
+        ECKey outputKey = receivingKey == null ? new ECKey() : receivingKey;
+        transaction.addOutput(new TransactionOutput(params, transaction, Utils.toNanoCoins(1, 0), outputKey.toAddress(params)));
+        if (spendingKey != null) {
+            byte[] scriptSig = ScriptBuilder.createInputScript(TransactionSignature.dummy(), spendingKey).getProgram();
+            transaction.addInput(new TransactionInput(params, transaction, scriptSig));
+        }
+        transaction.setUpdateTime(updateTime);
+        return transaction;
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.file;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Wallet;
+import org.junit.Before;
+import org.junit.Test;
+import org.multibit.CreateControllers;
+import org.multibit.controller.bitcoin.BitcoinController;
+import org.multibit.model.bitcoin.WalletData;
+import org.multibit.model.bitcoin.WalletInfoData;
+import org.multibit.store.MultiBitWalletVersion;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static junit.framework.Assert.*;
+
+public class LastBlockSeenFileTest {
+
+    private static final String TEST_LAST_BLOCK_SEEN_PREFIX = "testLastBlockSeen";
+
+    private BitcoinController controller;
+    private NetworkParameters params;
+
+    @Before
+    public void setUp() throws Exception {
+        final CreateControllers.Controllers controllers = CreateControllers.createControllers();
+        controller = controllers.bitcoinController;
+        params = controller.getModel().getNetworkParameters();
+    }
+
+    @Test
+    public void testLastBlockSeenIsSavedWithoutWritingWallet() throws Exception {
+        File temporaryWallet = File.createTempFile(TEST_LAST_BLOCK_SEEN_PREFIX, ".wallet");
+        temporaryWallet.deleteOnExit();
+        String newWalletFilename = temporaryWallet.getAbsolutePath();
+
+        Wallet newWallet = new Wallet(params);
+        newWallet.getKeychain().add(new ECKey());
+        WalletData perWalletModelData = new WalletData();
+        perWalletModelData.setWalletInfo(new WalletInfoData(newWalletFilename, newWallet, MultiBitWalletVersion.PROTOBUF));
+        perWalletModelData.setWallet(newWallet);
+        perWalletModelData.setWalletFilename(newWalletFilename);
+        perWalletModelData.setWalletDescription(TEST_LAST_BLOCK_SEEN_PREFIX);
+
+        controller.getFileHandler().savePerWalletModelData(perWalletModelData, true);
+        File lastBlockSeenFile = new File(LastBlockSeenFile.createLastBlockSeenFilename(newWalletFilename));
+        assertTrue("The last block seen was not written with the wallet", lastBlockSeenFile.exists());
+        lastBlockSeenFile.deleteOnExit();
+        long snapshotLength = temporaryWallet.length();
+        long snapshotLastModified = temporaryWallet.lastModified();
+
+        // A new block only changes the last block seen.
+        Sha256Hash lastBlockSeenHash = new Sha256Hash("000000000019d6689c085ae165831e934ff763ae46a2a6c172b3f1b60a8ce26f");
+        newWallet.setLastBlockSeenHeight(4321);
+        newWallet.setLastBlockSeenHash(lastBlockSeenHash);
+        perWalletModelData.setLastBlockSeenDirty(true);
+
+        controller.getFileHandler().savePerWalletModelData(perWalletModelData, false);
+        assertFalse(perWalletModelData.isLastBlockSeenDirty());
+        assertEquals(LastBlockSeenFile.RECORD_LENGTH, lastBlockSeenFile.length());
+        assertEquals(snapshotLength, temporaryWallet.length());
+        assertEquals(snapshotLastModified, temporaryWallet.lastModified());
+
+        // The chain position is picked up when the wallet is loaded again.
+        FileHandler fileHandler = new FileHandler(controller);
+        WalletData perWalletModelDataReborn = fileHandler.loadFromFile(temporaryWallet);
+        assertNotNull(perWalletModelDataReborn);
+        assertEquals(4321, perWalletModelDataReborn.getWallet().getLastBlockSeenHeight());
+        assertEquals(lastBlockSeenHash, perWalletModelDataReborn.getWallet().getLastBlockSeenHash());
+
+        // An older record is ignored ...
+        Wallet rewoundWallet = new Wallet(params);
+        rewoundWallet.setLastBlockSeenHeight(1000);
+        rewoundWallet.setLastBlockSeenHash(lastBlockSeenHash);
+        new LastBlockSeenFile(temporaryWallet).write(rewoundWallet);
+        Wallet walletFurtherOn = new Wallet(params);
+        walletFurtherOn.setLastBlockSeenHeight(4321);
+        walletFurtherOn.setLastBlockSeenHash(lastBlockSeenHash);
+        assertFalse(new LastBlockSeenFile(temporaryWallet).applyTo(walletFurtherOn));
+        assertEquals(4321, walletFurtherOn.getLastBlockSeenHeight());
+
+        // ... unless it was written when a replay was queued, which clears the hash.
+        rewoundWallet.setLastBlockSeenHash(null);
+        new LastBlockSeenFile(temporaryWallet).write(rewoundWallet);
+        assertTrue(new LastBlockSeenFile(temporaryWallet).applyTo(walletFurtherOn));
+        assertEquals(1000, walletFurtherOn.getLastBlockSeenHeight());
+        assertNull(walletFurtherOn.getLastBlockSeenHash());
+
+        // A damaged record is ignored.
+        RandomAccessFile randomAccessFile = new RandomAccessFile(lastBlockSeenFile, "rw");
+        try {
+            randomAccessFile.seek(10);
+            randomAccessFile.write(0xFF);
+        } finally {
+            randomAccessFile.close();
+        }
+        Wallet otherWallet = new Wallet(params);
+        int originalLastBlockSeenHeight = otherWallet.getLastBlockSeenHeight();
+        assertFalse(new LastBlockSeenFile(temporaryWallet).applyTo(otherWallet));
+        assertEquals(originalLastBlockSeenHeight, otherWallet.getLastBlockSeenHeight());
+    }
+}
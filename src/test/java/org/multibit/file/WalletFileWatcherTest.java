@@ -0,0 +1,135 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.file;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.multibit.CreateControllers;
+import org.multibit.controller.bitcoin.BitcoinController;
+import org.multibit.model.bitcoin.WalletData;
+import org.multibit.model.bitcoin.WalletInfoData;
+import org.multibit.store.MultiBitWalletVersion;
+import org.multibit.viewsystem.simple.SimpleViewSystem;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Wallet;
+
+public class WalletFileWatcherTest extends TestCase {
+    private static final String TEST_WALLET_FILE_WATCHER_PREFIX = "testWalletFileWatcher";
+
+    /**
+     * Long enough for a change to be seen whether there is a WatchService or not.
+     */
+    private static final int TIME_TO_WAIT_FOR_CHANGE = WalletFileWatcher.POLL_INTERVAL + 10000; // milliseconds
+
+    /**
+     * Several WatchService timeouts, so that events from our own saves have been handled.
+     */
+    private static final int TIME_TO_WAIT_FOR_OWN_SAVES = 3000; // milliseconds
+
+    private BitcoinController controller;
+
+    private WalletFileWatcher walletFileWatcher;
+
+    private AtomicInteger numberOfChangesFired;
+
+    private File walletDirectory;
+
+    @Override
+    public void setUp() throws Exception {
+        final CreateControllers.Controllers controllers = CreateControllers.createControllers();
+        controller = controllers.bitcoinController;
+
+        numberOfChangesFired = new AtomicInteger();
+        controllers.coreController.registerViewSystem(new SimpleViewSystem() {
+            @Override
+            public void fireFilesHaveBeenChangedByAnotherProcess(WalletData perWalletModelData) {
+                numberOfChangesFired.incrementAndGet();
+            }
+        });
+
+        walletFileWatcher = new WalletFileWatcher(controller);
+
+        // A directory of its own, so that only the test wallet files change in it.
+        walletDirectory = File.createTempFile(TEST_WALLET_FILE_WATCHER_PREFIX, "");
+        assertTrue(walletDirectory.delete());
+        assertTrue(walletDirectory.mkdir());
+        walletDirectory.deleteOnExit();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        walletFileWatcher.stop();
+        controller.getFileHandler().stopWatchingWalletFiles();
+    }
+
+    @Test
+    public void testOnlyChangesByAnotherProcessAreFired() throws Exception {
+        WalletData perWalletModelData = createSavedWallet();
+        walletFileWatcher.watch(perWalletModelData);
+
+        // Our own saves are recognised by their write token.
+        for (int i = 0; i < 3; i++) {
+            perWalletModelData.getWallet().getKeychain().add(new ECKey());
+            controller.getFileHandler().savePerWalletModelData(perWalletModelData, true);
+        }
+        Thread.sleep(TIME_TO_WAIT_FOR_OWN_SAVES);
+        assertEquals(0, numberOfChangesFired.get());
+        assertFalse(perWalletModelData.isFilesHaveBeenChangedByAnotherProcess());
+
+        // Another process changes the wallet.
+        FileOutputStream otherProcess = new FileOutputStream(perWalletModelData.getWalletFilename(), true);
+        try {
+            otherProcess.write(new byte[] { 1, 2, 3 });
+        } finally {
+            otherProcess.close();
+        }
+
+        long start = System.currentTimeMillis();
+        while (numberOfChangesFired.get() == 0) {
+            assertTrue("The change was not seen", System.currentTimeMillis() - start < TIME_TO_WAIT_FOR_CHANGE);
+            Thread.sleep(10);
+        }
+        assertTrue(perWalletModelData.isFilesHaveBeenChangedByAnotherProcess());
+
+        // The change is only fired once.
+        Thread.sleep(TIME_TO_WAIT_FOR_OWN_SAVES);
+        assertEquals(1, numberOfChangesFired.get());
+    }
+
+    private WalletData createSavedWallet() throws Exception {
+        File walletFile = new File(walletDirectory, TEST_WALLET_FILE_WATCHER_PREFIX + ".wallet");
+        walletFile.deleteOnExit();
+        new File(WalletInfoData.createWalletInfoFilename(walletFile.getAbsolutePath())).deleteOnExit();
+        String walletFilename = walletFile.getAbsolutePath();
+
+        Wallet wallet = new Wallet(NetworkParameters.prodNet());
+        wallet.getKeychain().add(new ECKey());
+        WalletData perWalletModelData = new WalletData();
+        perWalletModelData.setWalletInfo(new WalletInfoData(walletFilename, wallet, MultiBitWalletVersion.PROTOBUF));
+        perWalletModelData.setWallet(wallet);
+        perWalletModelData.setWalletFilename(walletFilename);
+        perWalletModelData.setWalletDescription(TEST_WALLET_FILE_WATCHER_PREFIX);
+        controller.getFileHandler().savePerWalletModelData(perWalletModelData, true);
+        return perWalletModelData;
+    }
+}
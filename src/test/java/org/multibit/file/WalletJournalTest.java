@@ -0,0 +1,97 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.file;
+
+import com.google.bitcoin.core.CoreTestUtils;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.Wallet;
+import org.junit.Before;
+import org.junit.Test;
+import org.multibit.CreateControllers;
+import org.multibit.controller.bitcoin.BitcoinController;
+import org.multibit.model.bitcoin.WalletData;
+import org.multibit.model.bitcoin.WalletInfoData;
+import org.multibit.store.MultiBitWalletVersion;
+
+import java.io.File;
+
+import static junit.framework.Assert.*;
+
+public class WalletJournalTest {
+
+    private static final String TEST_JOURNAL_PREFIX = "testWalletJournal";
+
+    private BitcoinController controller;
+    private NetworkParameters params;
+
+    @Before
+    public void setUp() throws Exception {
+        final CreateControllers.Controllers controllers = CreateControllers.createControllers();
+        controller = controllers.bitcoinController;
+        params = controller.getModel().getNetworkParameters();
+    }
+
+    @Test
+    public void testNewTransactionIsJournalledAndReplayed() throws Exception {
+        File temporaryWallet = File.createTempFile(TEST_JOURNAL_PREFIX, ".wallet");
+        temporaryWallet.deleteOnExit();
+        String newWalletFilename = temporaryWallet.getAbsolutePath();
+
+        Wallet newWallet = new Wallet(params);
+        ECKey key = new ECKey();
+        newWallet.getKeychain().add(key);
+        WalletData perWalletModelData = new WalletData();
+        perWalletModelData.setWalletInfo(new WalletInfoData(newWalletFilename, newWallet, MultiBitWalletVersion.PROTOBUF));
+        perWalletModelData.setWallet(newWallet);
+        perWalletModelData.setWalletFilename(newWalletFilename);
+        perWalletModelData.setWalletDescription(TEST_JOURNAL_PREFIX);
+
+        // The first save is a full snapshot.
+        controller.getFileHandler().savePerWalletModelData(perWalletModelData, true);
+        File journalFile = new File(WalletJournal.createWalletJournalFilename(newWalletFilename));
+        assertFalse("There should be no journal after a snapshot", journalFile.exists());
+        long snapshotLength = temporaryWallet.length();
+        long snapshotLastModified = temporaryWallet.lastModified();
+
+        // Receive a pending transaction and move the last block seen on.
+        Transaction transaction = CoreTestUtils.createFakeTx(params, Utils.toNanoCoins(1, 0), key.toAddress(params));
+        newWallet.receivePending(transaction, null);
+        newWallet.setLastBlockSeenHeight(1234);
+        perWalletModelData.setDirty(true);
+
+        // The next save only appends to the journal.
+        controller.getFileHandler().savePerWalletModelData(perWalletModelData, false);
+        assertTrue("The journal was not written", journalFile.exists());
+        journalFile.deleteOnExit();
+        assertEquals(snapshotLength, temporaryWallet.length());
+        assertEquals(snapshotLastModified, temporaryWallet.lastModified());
+
+        // Load the wallet again - the journal is replayed onto the snapshot.
+        FileHandler fileHandler = new FileHandler(controller);
+        WalletData perWalletModelDataReborn = fileHandler.loadFromFile(temporaryWallet);
+        assertNotNull(perWalletModelDataReborn);
+        Wallet walletReborn = perWalletModelDataReborn.getWallet();
+        assertNotNull("Journalled transaction was not replayed", walletReborn.getTransaction(transaction.getHash()));
+        assertEquals(1234, walletReborn.getLastBlockSeenHeight());
+
+        // A forced write compacts the journal into the snapshot.
+        fileHandler.savePerWalletModelData(perWalletModelDataReborn, true);
+        assertFalse("The journal was not compacted", journalFile.exists());
+    }
+}
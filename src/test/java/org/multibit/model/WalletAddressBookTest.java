@@ -0,0 +1,63 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.model;
+
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.multibit.model.bitcoin.WalletAddressBook;
+import org.multibit.model.bitcoin.WalletAddressBookData;
+
+public class WalletAddressBookTest extends TestCase {
+    private static final String ADDRESS_1 = "1NzESHfiazCbxwhTCg2jiTWcZgpSMKDKhy";
+    private static final String ADDRESS_2 = "1NzESHfiazCbxwhTCg2jiTWcZgpSMKDKhz";
+    private static final String ADDRESS_3 = "15ZHTfpM4eJvKa1D4ZtV5GAsUsbU9BhsrY";
+
+    @Test
+    public void testLookupsFollowChangesToTheList() throws Exception {
+        WalletAddressBook addressBook = new WalletAddressBook();
+        assertFalse(addressBook.containsAddress(ADDRESS_1));
+
+        addressBook.add(new WalletAddressBookData("first", ADDRESS_1));
+        addressBook.add(new WalletAddressBookData("second", ADDRESS_2));
+        addressBook.add(new WalletAddressBookData("second again", ADDRESS_2));
+
+        assertTrue(addressBook.containsAddress(ADDRESS_1));
+        assertEquals("second", addressBook.getByAddress(ADDRESS_2).getLabel());
+        assertEquals(1, addressBook.indexOfAddress(ADDRESS_2));
+        assertEquals(2, addressBook.lastIndexOfAddress(ADDRESS_2));
+
+        // Appends after a lookup keep the index current.
+        addressBook.add(new WalletAddressBookData("third", ADDRESS_3));
+        assertEquals(3, addressBook.indexOfAddress(ADDRESS_3));
+
+        // Removes, sorts and sets are picked up.
+        addressBook.remove(0);
+        assertFalse(addressBook.containsAddress(ADDRESS_1));
+        assertEquals(0, addressBook.indexOfAddress(ADDRESS_2));
+
+        Collections.reverse(addressBook);
+        assertEquals(0, addressBook.indexOfAddress(ADDRESS_3));
+        assertEquals("second again", addressBook.getByAddress(ADDRESS_2).getLabel());
+
+        addressBook.set(0, new WalletAddressBookData("first", ADDRESS_1));
+        assertFalse(addressBook.containsAddress(ADDRESS_3));
+        assertEquals(0, addressBook.indexOfAddress(ADDRESS_1));
+        assertEquals(-1, addressBook.indexOfAddress(ADDRESS_3));
+    }
+}
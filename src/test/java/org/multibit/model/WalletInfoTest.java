@@ -17,8 +17,11 @@ package org.multibit.model;
 
 import org.multibit.model.bitcoin.WalletAddressBookData;
 import org.multibit.model.bitcoin.WalletInfoData;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import junit.framework.TestCase;
 
@@ -26,6 +29,7 @@ import org.junit.Test;
 import org.multibit.Constants;
 import org.multibit.CreateControllers;
 import org.multibit.controller.bitcoin.BitcoinController;
+import org.multibit.file.FileHandler;
 import org.multibit.store.MultiBitWalletVersion;
 
 public class WalletInfoTest extends TestCase {
@@ -109,6 +113,57 @@ public class WalletInfoTest extends TestCase {
         assertEquals(PROPERTY_VALUE2, rebornWalletInfo.getProperty(PROPERTY_NAME2));
     }
 
+    @Test
+    public void testTextFormatIsMigratedToBinaryFormat() throws Exception {
+        // Create MultiBit controller.
+        final CreateControllers.Controllers controllers = CreateControllers.createControllers();
+
+        // Copy a wallet info file in the text format to a temporary directory.
+        File directory = new File(".");
+        String currentPath = directory.getAbsolutePath();
+        File textWalletInfoFile = new File(currentPath + File.separator + Constants.TESTDATA_DIRECTORY + File.separator
+                + WALLET_TESTDATA_DIRECTORY + File.separator + "protobuf1.info");
+
+        File temporaryWallet = File.createTempFile("testMigrateWalletInfo", ".wallet");
+        temporaryWallet.deleteOnExit();
+        String walletName = temporaryWallet.getAbsolutePath();
+        File walletInfoFile = new File(WalletInfoData.createWalletInfoFilename(walletName));
+        walletInfoFile.deleteOnExit();
+        FileHandler.copyFile(textWalletInfoFile, walletInfoFile);
+
+        WalletInfoData walletInfo = new WalletInfoData(walletName, null, MultiBitWalletVersion.PROTOBUF);
+        assertEquals(MultiBitWalletVersion.PROTOBUF, walletInfo.getWalletVersion());
+        String receivingLabel = walletInfo.lookupLabelForReceivingAddress("1GtMdodCNN5ewFcEUxxVBziBrLtQzSuZvq");
+        String sendingLabel = walletInfo.lookupLabelForSendingAddress("1CQH7Hp9nNQVDcKtFVwbA8tqPMNWDBvqE3");
+        String description = walletInfo.getProperty(WalletInfoData.DESCRIPTION_PROPERTY);
+        assertEquals("protobuf 1.1.\u5317\u4eac", receivingLabel);
+        assertEquals("a new protobuf 1", description);
+
+        // Writing it out uses the binary format.
+        walletInfo.writeToFile(walletInfoFile.getAbsolutePath(), MultiBitWalletVersion.PROTOBUF);
+        byte[] magicBytes = new byte[WalletInfoData.INFO_BINARY_MAGIC_BYTES.length];
+        DataInputStream inputStream = new DataInputStream(new FileInputStream(walletInfoFile));
+        try {
+            inputStream.readFully(magicBytes);
+        } finally {
+            inputStream.close();
+        }
+        assertTrue(Arrays.equals(WalletInfoData.INFO_BINARY_MAGIC_BYTES, magicBytes));
+
+        // The binary format reads back the same.
+        WalletInfoData rebornWalletInfo = new WalletInfoData(walletName, null, MultiBitWalletVersion.PROTOBUF);
+        assertEquals(walletInfo.getReceivingAddresses().size(), rebornWalletInfo.getReceivingAddresses().size());
+        assertEquals(walletInfo.getSendingAddresses().size(), rebornWalletInfo.getSendingAddresses().size());
+        assertEquals(receivingLabel, rebornWalletInfo.lookupLabelForReceivingAddress("1GtMdodCNN5ewFcEUxxVBziBrLtQzSuZvq"));
+        assertEquals(sendingLabel, rebornWalletInfo.lookupLabelForSendingAddress("1CQH7Hp9nNQVDcKtFVwbA8tqPMNWDBvqE3"));
+        assertEquals(description, rebornWalletInfo.getProperty(WalletInfoData.DESCRIPTION_PROPERTY));
+
+        // Labels that were not used are written out unchanged.
+        rebornWalletInfo.writeToFile(walletInfoFile.getAbsolutePath(), MultiBitWalletVersion.PROTOBUF);
+        WalletInfoData thirdWalletInfo = new WalletInfoData(walletName, null, MultiBitWalletVersion.PROTOBUF);
+        assertEquals(receivingLabel, thirdWalletInfo.lookupLabelForReceivingAddress("1GtMdodCNN5ewFcEUxxVBziBrLtQzSuZvq"));
+    }
+
     @Test
     public void testloadNonExistentInfoFile() throws Exception {
         // Create MultiBit controller.
@@ -0,0 +1,192 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.model.bitcoin;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.multibit.CreateControllers;
+import org.multibit.controller.bitcoin.BitcoinController;
+import org.multibit.store.MultiBitWalletVersion;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Wallet;
+
+public class WalletKeyPoolTest extends TestCase {
+    private static final String TEST_KEY_POOL_PREFIX = "testWalletKeyPool";
+
+    private static final int NUMBER_OF_POOLED_KEYS = 5;
+
+    private NetworkParameters networkParameters;
+
+    @Override
+    public void setUp() throws Exception {
+        networkParameters = NetworkParameters.prodNet();
+    }
+
+    @Test
+    public void testTakeAddresses() throws Exception {
+        WalletData perWalletModelData = createWalletData();
+        WalletKeyPool keyPool = perWalletModelData.getKeyPool();
+        List<String> pooledAddresses = addKeys(perWalletModelData, keyPool, NUMBER_OF_POOLED_KEYS);
+        assertEquals(NUMBER_OF_POOLED_KEYS, keyPool.size());
+
+        // The oldest addresses are taken first and become receiving addresses.
+        List<String> takenAddresses = keyPool.takeAddresses(2);
+        assertEquals(pooledAddresses.subList(0, 2), takenAddresses);
+        assertEquals(NUMBER_OF_POOLED_KEYS - 2, keyPool.size());
+        for (String takenAddress : takenAddresses) {
+            assertFalse(keyPool.contains(takenAddress));
+            assertTrue(perWalletModelData.getWalletInfo().getReceivingAddresses().containsAddress(takenAddress));
+        }
+        assertTrue(perWalletModelData.isDirty());
+
+        // Asking for more than the pool holds takes nothing.
+        assertNull(keyPool.takeAddresses(NUMBER_OF_POOLED_KEYS));
+        assertEquals(NUMBER_OF_POOLED_KEYS - 2, keyPool.size());
+    }
+
+    @Test
+    public void testPooledAddressesAreOnlyWrittenWhenTheWalletInfoIsSaved() throws Exception {
+        WalletData perWalletModelData = createWalletData();
+        WalletInfoData walletInfo = perWalletModelData.getWalletInfo();
+        WalletKeyPool keyPool = perWalletModelData.getKeyPool();
+        List<String> pooledAddresses = addKeys(perWalletModelData, keyPool, NUMBER_OF_POOLED_KEYS);
+        assertNull(walletInfo.getProperty(WalletKeyPool.KEY_POOL_PROPERTY));
+
+        perWalletModelData.writeKeyPoolToWalletInfo();
+        String writtenAddresses = walletInfo.getProperty(WalletKeyPool.KEY_POOL_PROPERTY);
+        assertEquals(join(pooledAddresses), writtenAddresses);
+
+        // Taking an address does not rebuild the pooled addresses.
+        keyPool.takeAddresses(1);
+        assertSame(writtenAddresses, walletInfo.getProperty(WalletKeyPool.KEY_POOL_PROPERTY));
+
+        // They are written when the wallet info is next saved.
+        perWalletModelData.writeKeyPoolToWalletInfo();
+        writtenAddresses = walletInfo.getProperty(WalletKeyPool.KEY_POOL_PROPERTY);
+        assertEquals(join(pooledAddresses.subList(1, NUMBER_OF_POOLED_KEYS)), writtenAddresses);
+
+        // Nothing has changed since the last write so the property is left alone.
+        perWalletModelData.writeKeyPoolToWalletInfo();
+        assertSame(writtenAddresses, walletInfo.getProperty(WalletKeyPool.KEY_POOL_PROPERTY));
+
+        // An empty pool removes the property.
+        keyPool.takeAddresses(NUMBER_OF_POOLED_KEYS - 1);
+        perWalletModelData.writeKeyPoolToWalletInfo();
+        assertNull(walletInfo.getProperty(WalletKeyPool.KEY_POOL_PROPERTY));
+    }
+
+    @Test
+    public void testPooledAddressesAreSavedAndLoaded() throws Exception {
+        final CreateControllers.Controllers controllers = CreateControllers.createControllers();
+        BitcoinController controller = controllers.bitcoinController;
+
+        WalletData perWalletModelData = createWalletData();
+        WalletKeyPool keyPool = perWalletModelData.getKeyPool();
+        List<String> pooledAddresses = addKeys(perWalletModelData, keyPool, NUMBER_OF_POOLED_KEYS);
+        keyPool.takeAddresses(1);
+        controller.getFileHandler().savePerWalletModelData(perWalletModelData, true);
+
+        WalletData loadedPerWalletModelData = new WalletData();
+        loadedPerWalletModelData.setWallet(perWalletModelData.getWallet());
+        loadedPerWalletModelData.setWalletFilename(perWalletModelData.getWalletFilename());
+        loadedPerWalletModelData.setWalletInfo(new WalletInfoData(perWalletModelData.getWalletFilename(), perWalletModelData
+                .getWallet(), MultiBitWalletVersion.PROTOBUF));
+        WalletKeyPool loadedKeyPool = loadedPerWalletModelData.getKeyPool();
+
+        assertEquals(NUMBER_OF_POOLED_KEYS - 1, loadedKeyPool.size());
+        assertEquals(pooledAddresses.subList(1, NUMBER_OF_POOLED_KEYS), loadedKeyPool.takeAddresses(NUMBER_OF_POOLED_KEYS - 1));
+    }
+
+    @Test
+    public void testImportWhilstThePoolHoldsKeys() throws Exception {
+        final CreateControllers.Controllers controllers = CreateControllers.createControllers();
+        BitcoinController controller = controllers.bitcoinController;
+
+        WalletData createdWalletData = createWalletData();
+        Wallet wallet = createdWalletData.getWallet();
+        String walletFilename = createdWalletData.getWalletFilename();
+        WalletData perWalletModelData = controller.getModel().addWallet(controller, wallet, walletFilename);
+        perWalletModelData.setWalletInfo(createdWalletData.getWalletInfo());
+        WalletKeyPool keyPool = perWalletModelData.getKeyPool();
+        List<String> pooledAddresses = addKeys(perWalletModelData, keyPool, NUMBER_OF_POOLED_KEYS);
+
+        // Import a key and rebuild the receiving addresses, as the import does.
+        ECKey importedKey = new ECKey();
+        String importedAddress = importedKey.toAddress(networkParameters).toString();
+        wallet.addKey(importedKey);
+        controller.getModel().createAddressBookReceivingAddresses(walletFilename);
+
+        WalletAddressBook receivingAddresses = perWalletModelData.getWalletInfo().getReceivingAddresses();
+        assertEquals(1, receivingAddresses.size());
+        assertTrue(receivingAddresses.containsAddress(importedAddress));
+        for (String pooledAddress : pooledAddresses) {
+            assertFalse("A pooled address is a receiving address", receivingAddresses.containsAddress(pooledAddress));
+        }
+        assertEquals(NUMBER_OF_POOLED_KEYS, keyPool.size());
+
+        // Taking an address from the pool adds it once.
+        String takenAddress = keyPool.takeAddresses(1).get(0);
+        receivingAddresses = perWalletModelData.getWalletInfo().getReceivingAddresses();
+        assertEquals(2, receivingAddresses.size());
+        assertEquals(receivingAddresses.indexOfAddress(takenAddress), receivingAddresses.lastIndexOfAddress(takenAddress));
+    }
+
+    private List<String> addKeys(WalletData perWalletModelData, WalletKeyPool keyPool, int numberOfKeys) {
+        List<ECKey> keys = new ArrayList<ECKey>();
+        List<String> addresses = new ArrayList<String>();
+        for (int i = 0; i < numberOfKeys; i++) {
+            ECKey key = new ECKey();
+            keys.add(key);
+            addresses.add(key.toAddress(networkParameters).toString());
+        }
+        perWalletModelData.getWallet().addKeys(keys);
+        keyPool.addKeys(keys, networkParameters);
+        return addresses;
+    }
+
+    private String join(List<String> addresses) {
+        StringBuilder builder = new StringBuilder();
+        for (String address : addresses) {
+            if (builder.length() > 0) {
+                builder.append(" ");
+            }
+            builder.append(address);
+        }
+        return builder.toString();
+    }
+
+    private WalletData createWalletData() throws Exception {
+        File temporaryWallet = File.createTempFile(TEST_KEY_POOL_PREFIX, ".wallet");
+        temporaryWallet.deleteOnExit();
+        new File(WalletInfoData.createWalletInfoFilename(temporaryWallet.getAbsolutePath())).deleteOnExit();
+        String walletFilename = temporaryWallet.getAbsolutePath();
+
+        Wallet wallet = new Wallet(networkParameters);
+        WalletData perWalletModelData = new WalletData();
+        perWalletModelData.setWallet(wallet);
+        perWalletModelData.setWalletFilename(walletFilename);
+        perWalletModelData.setWalletInfo(new WalletInfoData(walletFilename, wallet, MultiBitWalletVersion.PROTOBUF));
+        perWalletModelData.setWalletDescription(TEST_KEY_POOL_PREFIX);
+        return perWalletModelData;
+    }
+}
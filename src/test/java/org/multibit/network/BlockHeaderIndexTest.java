@@ -0,0 +1,259 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.network;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.google.bitcoin.core.CoreTestUtils;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.store.MemoryBlockStore;
+
+public class BlockHeaderIndexTest extends TestCase {
+    private NetworkParameters unitTestParams;
+    private CountingBlockStore blockStore;
+    private File indexFile;
+    private BlockHeaderIndex index;
+
+    /**
+     * Block times are given relative to this, in seconds.
+     */
+    private long startTime;
+
+    @Override
+    public void setUp() throws Exception {
+        unitTestParams = NetworkParameters.unitTests();
+        blockStore = new CountingBlockStore(unitTestParams);
+        startTime = blockStore.getChainHead().getHeader().getTimeSeconds() + 10000;
+
+        indexFile = File.createTempFile("multibit", BlockHeaderIndex.class.getSimpleName());
+        indexFile.delete();
+        indexFile.deleteOnExit();
+        index = BlockHeaderIndex.open(indexFile, blockStore);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        index.close();
+        indexFile.delete();
+    }
+
+    @Test
+    public void testAppend() throws Exception {
+        StoredBlock genesis = blockStore.getChainHead();
+        List<StoredBlock> blocks = addBlocks(5, 600);
+
+        assertIndexed(genesis);
+        for (StoredBlock block : blocks) {
+            assertIndexed(block);
+        }
+        assertNull(index.findBlock(Sha256Hash.ZERO_HASH));
+    }
+
+    @Test
+    public void testReorganize() throws Exception {
+        List<StoredBlock> oldChain = addBlocks(3, 600);
+        StoredBlock splitPoint = oldChain.get(0);
+
+        // Build a longer chain from the first block, as the block chain does before it reorganizes.
+        blockStore.setChainHead(splitPoint);
+        List<StoredBlock> newChain = createBlocks(3, 700);
+
+        // The blocks are listed from the chain head down.
+        List<StoredBlock> oldBlocks = new ArrayList<StoredBlock>(Arrays.asList(oldChain.get(2), oldChain.get(1)));
+        List<StoredBlock> newBlocks = new ArrayList<StoredBlock>(Arrays.asList(newChain.get(2), newChain.get(1), newChain.get(0)));
+        index.reorganize(splitPoint, oldBlocks, newBlocks);
+
+        assertIndexed(splitPoint);
+        for (StoredBlock oldBlock : oldBlocks) {
+            assertNull("A block of the old chain is still indexed", index.findBlock(oldBlock.getHeader().getHash()));
+        }
+        for (StoredBlock newBlock : newChain) {
+            assertIndexed(newBlock);
+        }
+
+        // The reorganised index was saved.
+        index.close();
+        blockStore.resetNumberOfGets();
+        index = BlockHeaderIndex.open(indexFile, blockStore);
+        assertEquals("The index was rebuilt rather than loaded", 0, blockStore.getNumberOfGets());
+        assertIndexed(newChain.get(2));
+    }
+
+    @Test
+    public void testRewind() throws Exception {
+        List<StoredBlock> blocks = addBlocks(4, 600);
+
+        blockStore.setChainHead(blocks.get(1));
+        index.rewind(blocks.get(1));
+        assertIndexed(blocks.get(1));
+        assertNull(index.findBlock(blocks.get(2).getHeader().getHash()));
+        assertNull(index.findBlock(blocks.get(3).getHeader().getHash()));
+
+        // The blocks are connected again after the rewind.
+        StoredBlock nextBlock = createBlocks(1, 600).get(0);
+        index.notifyNewBestBlock(nextBlock);
+        assertIndexed(nextBlock);
+    }
+
+    @Test
+    public void testReloadFromFile() throws Exception {
+        List<StoredBlock> blocks = addBlocks(10, 600);
+        index.close();
+
+        blockStore.resetNumberOfGets();
+        index = BlockHeaderIndex.open(indexFile, blockStore);
+        assertEquals("The index was rebuilt rather than loaded", 0, blockStore.getNumberOfGets());
+        for (StoredBlock block : blocks) {
+            assertIndexed(block);
+        }
+    }
+
+    @Test
+    public void testRebuildWhenTheIndexDoesNotMatchTheBlockStore() throws Exception {
+        addBlocks(3, 600);
+        index.close();
+
+        // Blocks are added to the block store whilst the index is closed.
+        List<StoredBlock> missedBlocks = createBlocks(3, 600);
+        index = BlockHeaderIndex.open(indexFile, blockStore);
+        for (StoredBlock missedBlock : missedBlocks) {
+            assertIndexed(missedBlock);
+        }
+        index.close();
+
+        // The index file is damaged.
+        RandomAccessFile file = new RandomAccessFile(indexFile, "rw");
+        file.writeInt(0);
+        file.close();
+        index = BlockHeaderIndex.open(indexFile, blockStore);
+        for (StoredBlock missedBlock : missedBlocks) {
+            assertIndexed(missedBlock);
+        }
+    }
+
+    @Test
+    public void testRebuildAfterAGap() throws Exception {
+        addBlocks(2, 600);
+
+        // A block arrives that does not follow on from the index.
+        List<StoredBlock> blocks = createBlocks(2, 600);
+        index.notifyNewBestBlock(blocks.get(1));
+        assertIndexed(blocks.get(0));
+        assertIndexed(blocks.get(1));
+    }
+
+    @Test
+    public void testFindBlockBeforeWithNonMonotonicTimes() throws Exception {
+        StoredBlock genesis = blockStore.getChainHead();
+        long[] blockTimes = new long[] { 1000, 1100, 1050, 1200, 1150, 1300 };
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        for (long blockTime : blockTimes) {
+            CoreTestUtils.createFakeBlock(unitTestParams, blockStore, startTime + blockTime);
+            StoredBlock block = blockStore.getChainHead();
+            index.notifyNewBestBlock(block);
+            blocks.add(block);
+        }
+
+        // The newest block before the date, even when an older block is later.
+        assertEquals(genesis, findBlockBefore(999));
+        assertEquals(blocks.get(0), findBlockBefore(1001));
+        assertEquals(blocks.get(0), findBlockBefore(1050));
+        assertEquals(blocks.get(2), findBlockBefore(1051));
+        assertEquals(blocks.get(2), findBlockBefore(1101));
+        assertEquals(blocks.get(4), findBlockBefore(1151));
+        assertEquals(blocks.get(4), findBlockBefore(1300));
+        assertEquals(blocks.get(5), findBlockBefore(1301));
+        assertNull(index.findBlockBefore(new Date(genesis.getHeader().getTimeSeconds() * 1000)));
+
+        // The same blocks as walking back from the chain head.
+        for (long time = 990; time <= 1310; time += 5) {
+            Date date = new Date((startTime + time) * 1000);
+            assertEquals("Different block found for time " + time, ReplayManager.findBlockInStoredBestChain(blockStore, date),
+                    index.findBlockBefore(date));
+        }
+    }
+
+    private StoredBlock findBlockBefore(long time) {
+        return index.findBlockBefore(new Date((startTime + time) * 1000));
+    }
+
+    /**
+     * Add blocks to the block store and tell the index, as the block chain does.
+     */
+    private List<StoredBlock> addBlocks(int numberOfBlocks, long secondsBetweenBlocks) throws BlockStoreException {
+        List<StoredBlock> blocks = createBlocks(numberOfBlocks, secondsBetweenBlocks);
+        for (StoredBlock block : blocks) {
+            index.notifyNewBestBlock(block);
+        }
+        return blocks;
+    }
+
+    /**
+     * Add blocks to the block store on top of its chain head without telling the index.
+     */
+    private List<StoredBlock> createBlocks(int numberOfBlocks, long secondsBetweenBlocks) throws BlockStoreException {
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        for (int i = 0; i < numberOfBlocks; i++) {
+            long time = blockStore.getChainHead().getHeader().getTimeSeconds() + secondsBetweenBlocks;
+            CoreTestUtils.createFakeBlock(unitTestParams, blockStore, Math.max(startTime, time));
+            blocks.add(blockStore.getChainHead());
+        }
+        return blocks;
+    }
+
+    private void assertIndexed(StoredBlock block) {
+        StoredBlock foundBlock = index.findBlock(block.getHeader().getHash());
+        assertNotNull("Block at height " + block.getHeight() + " is not indexed", foundBlock);
+        assertEquals(block.getHeight(), foundBlock.getHeight());
+    }
+
+    /**
+     * Counts the blocks read, to tell a loaded index from a rebuilt one.
+     */
+    private static class CountingBlockStore extends MemoryBlockStore {
+        private int numberOfGets = 0;
+
+        CountingBlockStore(NetworkParameters params) {
+            super(params);
+        }
+
+        @Override
+        public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+            numberOfGets++;
+            return super.get(hash);
+        }
+
+        synchronized int getNumberOfGets() {
+            return numberOfGets;
+        }
+
+        synchronized void resetNumberOfGets() {
+            numberOfGets = 0;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.network;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.google.bitcoin.core.PeerAddress;
+
+public class PeerAddressStoreTest extends TestCase {
+    private static final int DEFAULT_PORT = 9401;
+
+    private File storeFile;
+
+    @Override
+    public void setUp() throws Exception {
+        storeFile = File.createTempFile("multibit", PeerAddressStore.class.getSimpleName());
+        storeFile.delete();
+        storeFile.deleteOnExit();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        storeFile.delete();
+    }
+
+    @Test
+    public void testBestPeersFirstAndFailingPeersSkipped() throws Exception {
+        PeerAddressStore store = PeerAddressStore.load(storeFile);
+        long now = System.currentTimeMillis();
+
+        store.recordSuccess("10.0.0.1:9401", now);
+        store.recordLatency("10.0.0.1:9401", 900);
+
+        store.recordSuccess("10.0.0.2:9402", now);
+        store.recordLatency("10.0.0.2:9402", 50);
+        store.recordThroughput("10.0.0.2:9402", 200);
+
+        for (int i = 0; i < PeerAddressStore.MAXIMUM_CONSECUTIVE_FAILURES; i++) {
+            store.recordFailure("10.0.0.3:9401");
+        }
+
+        List<PeerAddress> best = store.getBestPeerAddresses(10, DEFAULT_PORT);
+        assertEquals(2, best.size());
+        assertEquals(InetAddress.getByName("10.0.0.2"), best.get(0).getAddr());
+        assertEquals(9402, best.get(0).getPort());
+        assertEquals(InetAddress.getByName("10.0.0.1"), best.get(1).getAddr());
+
+        assertEquals(1, store.getBestPeerAddresses(1, DEFAULT_PORT).size());
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        PeerAddressStore store = PeerAddressStore.load(storeFile);
+        long now = System.currentTimeMillis();
+        store.recordSuccess("10.0.0.1:9401", now);
+        store.recordLatency("10.0.0.1:9401", 120);
+        store.recordThroughput("10.0.0.1:9401", 75.5);
+        store.recordFailure("10.0.0.1:9401");
+        String ipv6Address = PeerAddressStore.toAddressString(InetAddress.getByName("::1"), 9402);
+        store.recordSuccess(ipv6Address, now);
+        store.save();
+        assertTrue(storeFile.isFile());
+
+        PeerAddressStore loadedStore = PeerAddressStore.load(storeFile);
+        assertEquals(2, loadedStore.getNumberOfPeers());
+        PeerAddressStore.PeerRecord peerRecord = loadedStore.getPeerRecord("10.0.0.1:9401");
+        assertEquals(now, peerRecord.getLastSuccess());
+        assertEquals(120, peerRecord.getLatencyMillis());
+        assertEquals(75.5, peerRecord.getBlocksPerSecond(), 0.0001);
+        assertEquals(1, peerRecord.getSuccesses());
+        assertEquals(1, peerRecord.getFailures());
+        assertEquals(1, peerRecord.getConsecutiveFailures());
+
+        PeerAddress ipv6PeerAddress = PeerAddressStore.parsePeerAddress(ipv6Address, DEFAULT_PORT);
+        assertEquals(InetAddress.getByName("::1"), ipv6PeerAddress.getAddr());
+        assertEquals(9402, ipv6PeerAddress.getPort());
+    }
+
+    @Test
+    public void testLatencyIgnoredBeforeFirstPong() throws Exception {
+        PeerAddressStore store = PeerAddressStore.load(storeFile);
+        store.recordLatency("10.0.0.1:9401", Long.MAX_VALUE);
+        assertEquals(-1, store.getPeerRecord("10.0.0.1:9401").getLatencyMillis());
+
+        store.recordLatency("10.0.0.1:9401", 100);
+        store.recordLatency("10.0.0.1:9401", 200);
+        assertEquals(130, store.getPeerRecord("10.0.0.1:9401").getLatencyMillis());
+    }
+}
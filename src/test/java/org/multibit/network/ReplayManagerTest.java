@@ -20,13 +20,15 @@ import java.io.IOException;
 import java.math.BigInteger;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Queue;
 import java.util.TimeZone;
 
 import junit.framework.TestCase;
 
-import org.junit.Before;
 import org.junit.Test;
 import org.multibit.ApplicationDataDirectoryLocator;
 import org.multibit.Constants;
@@ -65,8 +67,10 @@ public class ReplayManagerTest extends TestCase {
 
     private SimpleViewSystem simpleViewSystem;
 
-    @Before
-    public void setUp() throws Exception {
+    /**
+     * Start a MultiBitService connected to the monacoin network.
+     */
+    private void startMultiBitService() throws Exception {
         multiBitDirectory = createMultiBitRuntime();
 
         // Set the application data directory to be the one we just created.
@@ -103,6 +107,8 @@ public class ReplayManagerTest extends TestCase {
         // tests need running.
         String runFunctionalTests = System.getProperty(Constants.RUN_FUNCTIONAL_TESTS_PARAMETER);
         if (Boolean.TRUE.toString().equalsIgnoreCase(runFunctionalTests)) {
+            startMultiBitService();
+
             // Date format is UTC with century, T time separator and Z for UTC
             // timezone.
             formatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.ENGLISH);
@@ -179,6 +185,87 @@ public class ReplayManagerTest extends TestCase {
         }
     }
 
+    @Test
+    public void testMergeLeavesTheStartedTaskAlone() throws Exception {
+        ReplayTask startedTask = new ReplayTask(createWalletDataList("started"), new Date(1000000), 1000);
+        ReplayTask waitingTask = new ReplayTask(createWalletDataList("waiting"), new Date(3000000), 3000);
+        ReplayTask offeredTask = new ReplayTask(createWalletDataList("offered"), new Date(2000000), 2000);
+
+        Queue<ReplayTask> replayTaskQueue = new LinkedList<ReplayTask>();
+        replayTaskQueue.add(startedTask);
+        replayTaskQueue.add(waitingTask);
+
+        // The started task stays at the head of the queue, even if it has completed and is waiting to be removed.
+        ReplayTask mergedTask = ReplayManager.mergeWithWaitingTasks(replayTaskQueue, offeredTask, true);
+        assertEquals(1, replayTaskQueue.size());
+        assertSame(startedTask, replayTaskQueue.peek());
+        assertEquals(1, startedTask.getPerWalletModelDataToReplay().size());
+
+        // The waiting task is replayed with the offered one from the earlier start.
+        assertEquals(2, mergedTask.getPerWalletModelDataToReplay().size());
+        assertTrue(mergedTask.isReplaying(waitingTask.getPerWalletModelDataToReplay().get(0)));
+        assertTrue(mergedTask.isReplaying(offeredTask.getPerWalletModelDataToReplay().get(0)));
+        assertEquals(offeredTask.getStartDate(), mergedTask.getStartDate());
+        assertEquals(2000, mergedTask.getStartHeight());
+    }
+
+    @Test
+    public void testMergeWhenNoTaskHasStarted() throws Exception {
+        ReplayTask firstTask = new ReplayTask(createWalletDataList("first"), new Date(1000000), 1000);
+        ReplayTask offeredTask = new ReplayTask(createWalletDataList("offered", "first"), new Date(2000000), 2000);
+
+        Queue<ReplayTask> replayTaskQueue = new LinkedList<ReplayTask>();
+        replayTaskQueue.add(firstTask);
+
+        ReplayTask mergedTask = ReplayManager.mergeWithWaitingTasks(replayTaskQueue, offeredTask, false);
+        assertTrue(replayTaskQueue.isEmpty());
+        assertEquals(2, mergedTask.getPerWalletModelDataToReplay().size());
+        assertEquals(firstTask.getStartDate(), mergedTask.getStartDate());
+        assertEquals(1000, mergedTask.getStartHeight());
+    }
+
+    @Test
+    public void testJoinRunningTask() throws Exception {
+        int chainHeight = 5000;
+        ReplayTask runningTask = new ReplayTask(createWalletDataList("running"), new Date(1000000), 1000);
+
+        // Wallets can only join if the running replay has not yet asked for the blocks they need.
+        int joinHeight = chainHeight + ReplayManager.BLOCKS_IN_FLIGHT_MARGIN;
+        ReplayTask joiningTask = new ReplayTask(createWalletDataList("joining"), new Date(9000000), joinHeight);
+        assertTrue(ReplayManager.canJoinRunningTask(runningTask, joiningTask, chainHeight));
+        assertFalse(ReplayManager.canJoinRunningTask(runningTask, new ReplayTask(createWalletDataList("joining"), new Date(
+                9000000), joinHeight - 1), chainHeight));
+        assertFalse(ReplayManager.canJoinRunningTask(runningTask, new ReplayTask(createWalletDataList("joining"), new Date(
+                9000000), ReplayTask.UNKNOWN_START_HEIGHT), chainHeight));
+        assertFalse(ReplayManager.canJoinRunningTask(null, joiningTask, chainHeight));
+
+        // A wallet the running task is already replaying cannot join it again.
+        assertFalse(ReplayManager.canJoinRunningTask(runningTask, new ReplayTask(createWalletDataList("running"), new Date(
+                9000000), joinHeight), chainHeight));
+
+        // A joining wallet is added once, and can be read whilst another wallet joins.
+        WalletData joiningWallet = joiningTask.getPerWalletModelDataToReplay().get(0);
+        WalletData laterWallet = createWalletDataList("later").get(0);
+        for (WalletData perWalletModelData : runningTask.getPerWalletModelDataToReplay()) {
+            runningTask.addPerWalletModelDataToReplay(joiningWallet);
+            runningTask.addPerWalletModelDataToReplay(laterWallet);
+            assertNotNull(perWalletModelData);
+        }
+        assertEquals(3, runningTask.getPerWalletModelDataToReplay().size());
+        assertTrue(runningTask.isReplaying(joiningWallet));
+        assertTrue(runningTask.isReplaying(laterWallet));
+    }
+
+    private List<WalletData> createWalletDataList(String... walletNames) {
+        List<WalletData> perWalletModelDataList = new ArrayList<WalletData>();
+        for (String walletName : walletNames) {
+            WalletData perWalletModelData = new WalletData();
+            perWalletModelData.setWalletFilename(walletName + ".wallet");
+            perWalletModelDataList.add(perWalletModelData);
+        }
+        return perWalletModelDataList;
+    }
+
     /**
      * Create a working, portable runtime of MultiBit in a temporary directory.
      * 
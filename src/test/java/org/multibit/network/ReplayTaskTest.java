@@ -0,0 +1,90 @@
+/**
+ * Copyright 2014 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.network;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.multibit.model.bitcoin.WalletData;
+
+public class ReplayTaskTest extends TestCase {
+
+    @Test
+    public void testMergeReplaysAllWalletsFromTheEarliestStart() {
+        WalletData walletOne = createWalletData("one.wallet");
+        WalletData walletTwo = createWalletData("two.wallet");
+        WalletData walletThree = createWalletData("three.wallet");
+
+        Date earlierDate = new Date(1390000000000L);
+        Date laterDate = new Date(1395000000000L);
+        ReplayTask firstTask = new ReplayTask(list(walletOne, walletTwo), laterDate, 500000);
+        ReplayTask secondTask = new ReplayTask(list(walletTwo, walletThree), earlierDate, 400000);
+
+        ReplayTask mergedTask = firstTask.mergeWith(secondTask);
+        assertEquals(3, mergedTask.getPerWalletModelDataToReplay().size());
+        assertTrue(mergedTask.isReplaying(walletOne));
+        assertTrue(mergedTask.isReplaying(walletTwo));
+        assertTrue(mergedTask.isReplaying(walletThree));
+        assertEquals(earlierDate, mergedTask.getStartDate());
+        assertEquals(400000, mergedTask.getStartHeight());
+
+        // The merged tasks are not changed.
+        assertEquals(2, firstTask.getPerWalletModelDataToReplay().size());
+        assertEquals(laterDate, firstTask.getStartDate());
+    }
+
+    @Test
+    public void testMergeWithReplayFromGenesis() {
+        ReplayTask fromGenesisTask = new ReplayTask(list(createWalletData("one.wallet")), null, 0);
+        ReplayTask unknownHeightTask = new ReplayTask(list(createWalletData("two.wallet")), new Date(),
+                ReplayTask.UNKNOWN_START_HEIGHT);
+
+        ReplayTask mergedTask = unknownHeightTask.mergeWith(fromGenesisTask);
+        assertNull(mergedTask.getStartDate());
+        assertEquals(0, mergedTask.getStartHeight());
+    }
+
+    @Test
+    public void testAddingAWalletDoesNotChangeTheCallersList() {
+        List<WalletData> perWalletModelDataList = list(createWalletData("one.wallet"));
+        ReplayTask replayTask = new ReplayTask(perWalletModelDataList, null, 0);
+
+        WalletData joiningWallet = createWalletData("two.wallet");
+        replayTask.addPerWalletModelDataToReplay(joiningWallet);
+        replayTask.addPerWalletModelDataToReplay(joiningWallet);
+
+        assertEquals(2, replayTask.getPerWalletModelDataToReplay().size());
+        assertEquals(1, perWalletModelDataList.size());
+    }
+
+    private WalletData createWalletData(String walletFilename) {
+        WalletData perWalletModelData = new WalletData();
+        perWalletModelData.setWalletFilename(walletFilename);
+        return perWalletModelData;
+    }
+
+    private List<WalletData> list(WalletData... perWalletModelData) {
+        List<WalletData> list = new ArrayList<WalletData>();
+        for (WalletData item : perWalletModelData) {
+            list.add(item);
+        }
+        return list;
+    }
+}
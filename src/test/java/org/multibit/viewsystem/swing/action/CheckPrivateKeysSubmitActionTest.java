@@ -39,6 +39,8 @@ public class CheckPrivateKeysSubmitActionTest extends TestCase {
 
   private static final String BAD_WALLET_FILE = "badPrivateKeys.wallet";
   private static final String BAD_WALLET_CORRECT_PASSWORD = "password";
+  private static final int DELAY_TO_COMPLETE_CHECK = 4000; // milliseconds
+
   private static final String EXPECTED_FAILED_CHECK = "Private key check FAIL for the wallet \"badPrivateKeys *password\". There are 5 private keys that do not match their receiving addresses.";
 
   @Test
@@ -78,6 +80,9 @@ public class CheckPrivateKeysSubmitActionTest extends TestCase {
     // Execute = this should actually check the wallet private keys (and pass the check OK)
     checkAction.actionPerformed(null);
 
+    // The check runs in the background.
+    Thread.sleep(DELAY_TO_COMPLETE_CHECK);
+
     assertEquals("Wrong message after good private key check", EXPECTED_CHECKED_OK, checkPanel.getMessageText1());
   }
 
@@ -115,6 +120,9 @@ public class CheckPrivateKeysSubmitActionTest extends TestCase {
     // Execute = this should actually check the wallet private keys (and pass the check OK)
     checkAction.actionPerformed(null);
 
+    // The check runs in the background.
+    Thread.sleep(DELAY_TO_COMPLETE_CHECK);
+
     assertEquals("Wrong message after failed private key check", EXPECTED_FAILED_CHECK, checkPanel.getMessageText1());
   }
 }
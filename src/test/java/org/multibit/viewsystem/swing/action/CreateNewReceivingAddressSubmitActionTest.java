@@ -48,7 +48,6 @@ public class CreateNewReceivingAddressSubmitActionTest extends TestCase {
         assertNotNull("createNewAction was not created successfully", createNewAction);
         assertEquals("Wrong number of keys at wallet creation", 1, controller.getModel().getActiveWallet().getKeychain().size());
         assertTrue("Wallet is not encrypted but it should be", controller.getModel().getActiveWallet().getEncryptionType() == EncryptionType.ENCRYPTED_SCRYPT_AES);
-        assertNull("The last private key backup file was not null", createNewAction.getLastPrivateKeysBackupFile());
         System.out.println("ping 1");
         // Execute the createNewAction - by default the createNewDialog sould be set to add one key.
         // However as there is no wallet password supplied it will not add the key.
@@ -16,6 +16,7 @@
 package org.multibit.viewsystem.swing.action;
 
 import java.io.File;
+import java.math.BigInteger;
 
 import junit.framework.TestCase;
 
@@ -24,6 +25,7 @@ import org.multibit.Constants;
 import org.multibit.CreateControllers;
 import org.multibit.controller.Controller;
 import org.multibit.controller.bitcoin.BitcoinController;
+import org.multibit.file.PrivateKeysHandler;
 import org.multibit.file.PrivateKeysHandlerTest;
 import org.multibit.message.Message;
 import org.multibit.message.MessageManager;
@@ -31,13 +33,14 @@ import org.multibit.viewsystem.swing.view.panels.ImportPrivateKeysPanel;
 import org.multibit.viewsystem.swing.view.components.FontSizer;
 
 import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.Wallet;
 import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
 
 public class ImportPrivateKeysSubmitActionTest extends TestCase {   
     
     private static final String EXPECTED_ENTER_THE_WALLET_PASSWORD = "Enter the wallet password";
     private static final String EXPECTED_NO_IMPORT_FILE_WAS_CHOSEN = "No import file was chosen. Nothing to do.";
-    private static final String EXPECTED_PRIVATE_KEY_UNLOCK_FAILED = "The private keys unlock failed. The error was \"Could not decrypt input string\". ";
+    private static final String EXPECTED_PRIVATE_KEY_UNLOCK_FAILED = "The private keys unlock failed. The error was \"Could not decrypt input stream\". ";
     private static final String EXPECTED_IMPORTING_PRIVATE_KEYS = "Importing private keys...";
     private static final String EXPECTED_IMPORTED_PRIVATE_KEYS = "Importing private keys... completed successfully";
      
@@ -134,7 +137,11 @@ public class ImportPrivateKeysSubmitActionTest extends TestCase {
  
         // Execute - this should now complain that it could not decrypt the encrypted key export file.
         importAction.actionPerformed(null);
+
+        // The import file is unlocked on the import thread so wait for it to fail.
+        Thread.sleep(DELAY_TO_COMPLETE_IMPORT);
         assertEquals("Wrong message after no password set execute", EXPECTED_PRIVATE_KEY_UNLOCK_FAILED, importPanel.getMessageText1());     
+        assertFalse("The wallet is still busy after the unlock failed", controller.getModel().getActivePerWalletModelData().isBusy());
  
         // Set the import file password.
         importPanel.setImportFilePassword(PrivateKeysHandlerTest.ENCRYPTED_TEST1_PASSWORD);
@@ -270,7 +277,11 @@ public class ImportPrivateKeysSubmitActionTest extends TestCase {
 
         // Execute - this should now complain that it could not decrypt the encrypted key export file.
         importAction.actionPerformed(null);
+
+        // The import file is unlocked on the import thread so wait for it to fail.
+        Thread.sleep(DELAY_TO_COMPLETE_IMPORT);
         assertEquals("Wrong message after no password set execute", EXPECTED_PRIVATE_KEY_UNLOCK_FAILED, importPanel.getMessageText1());     
+        assertFalse("The wallet is still busy after the unlock failed", controller.getModel().getActivePerWalletModelData().isBusy());
  
         // Set the import file password.
         importPanel.setImportFilePassword(PrivateKeysHandlerTest.ENCRYPTED_TEST1_PASSWORD);
@@ -297,6 +308,49 @@ public class ImportPrivateKeysSubmitActionTest extends TestCase {
         assertEquals("The label on the original address was not correct after import", ActionTestUtils.LABEL_OF_ADDRESS_ADDED, controller.getModel().getActivePerWalletModelData().getWalletInfo().getReceivingAddresses().get(0).getLabel());
     }
     
+    @Test
+    public void testImportKeyWhoseOtherFormatIsInTheWallet() throws Exception {
+        // Create MultiBit controller.
+        final CreateControllers.Controllers controllers = CreateControllers.createControllers();
+        BitcoinController controller = controllers.bitcoinController;
+
+        // Create a new unencrypted wallet and put it in the model as the active wallet.
+        ActionTestUtils.createNewActiveWallet(controller, "testImportKeyWhoseOtherFormatIsInTheWallet", false, null);
+        Wallet activeWallet = controller.getModel().getActiveWallet();
+
+        // The wallet has the uncompressed form of a key and the import file has the compressed form.
+        // They have different addresses so both must be in the wallet after the import.
+        BigInteger privateKey = new ECKey().getPrivKey();
+        ECKey uncompressedKey = new ECKey(privateKey, null, false);
+        ECKey compressedKey = new ECKey(privateKey, null, true);
+        activeWallet.addKey(uncompressedKey);
+        assertEquals("Wrong number of keys before the import", 2, activeWallet.getKeychain().size());
+
+        Wallet exportWallet = new Wallet(controller.getModel().getNetworkParameters());
+        exportWallet.addKey(compressedKey);
+        File exportFile = File.createTempFile("testImportKeyWhoseOtherFormatIsInTheWallet", ".key");
+        exportFile.deleteOnExit();
+        new PrivateKeysHandler(controller.getModel().getNetworkParameters()).exportPrivateKeys(exportFile, exportWallet, null, false, null, null);
+
+        FontSizer.INSTANCE.initialise(controller);
+        ImportPrivateKeysPanel importPanel = new ImportPrivateKeysPanel(controller, null);
+        ImportPrivateKeysSubmitAction importAction = importPanel.getImportPrivateKeysSubmitAction();
+        importAction.setPerformReplay(false);
+        importPanel.setOutputFilename(exportFile.getAbsolutePath());
+
+        importAction.actionPerformed(null);
+        Thread.sleep(DELAY_TO_COMPLETE_IMPORT);
+        assertEquals("Wrong message after import should have completed", EXPECTED_IMPORTED_PRIVATE_KEYS, importPanel.getMessageText1());
+        assertEquals("The compressed key was not imported", 3, activeWallet.getKeychain().size());
+        assertTrue("The compressed key is missing", activeWallet.hasKey(compressedKey));
+
+        // Importing the same file again adds nothing as the compressed key is now in the wallet.
+        importAction.actionPerformed(null);
+        Thread.sleep(DELAY_TO_COMPLETE_IMPORT);
+        assertEquals("Wrong message after second import should have completed", EXPECTED_IMPORTED_PRIVATE_KEYS, importPanel.getMessageText1());
+        assertEquals("A key already in the wallet was imported again", 3, activeWallet.getKeychain().size());
+    }
+
     @Test
     public void testNoWalletSelected() throws Exception {
         // Create MultiBit controller.